@@ -0,0 +1,304 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver Distribution
+ * %%
+ * Copyright (C) 2005 - 2017 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.derby.drda.NetworkServerControl;
+
+/**
+ * Runs a cluster of File Transfer Receivers on this machine and drives transfers through it.
+ * <p>
+ * A Derby network server holds the shared database and each node is a separate JVM running the embedded launcher,
+ * with its own port, staging folder and commit journal and the receiving root shared with the others. One
+ * {@link FileTransferLoadDriver} per sender then runs at the same time, each sending its successive requests to the
+ * nodes in turn: the calls for a transfer reach nodes that do not own it and have to be forwarded, and its status is
+ * read from every node. The harness fails if any transfer fails.
+ * <p>
+ * Settings are the ftr.cluster.* system properties below; the ftr.loadtest.* settings of the drivers are read as by
+ * the driver itself. It must be run from the distribution's directory like the launcher.
+ * <ul>
+ * <li>ftr.cluster.nodes - the number of nodes, 3 by default</li>
+ * <li>ftr.cluster.firstPort - the port of the first node, the others following, 9190 by default</li>
+ * <li>ftr.cluster.derbyPort - the port of the Derby network server, 1527 by default</li>
+ * <li>ftr.cluster.senders - the number of senders, one per node by default</li>
+ * <li>ftr.cluster.workDir - where the database, the root and the files of the nodes go, ./ftr-cluster by default</li>
+ * <li>ftr.cluster.startTimeoutMillis - how long to wait for the nodes to start, 180000 by default</li>
+ * </ul>
+ */
+public class FileTransferClusterHarness
+{
+    private static final String PREFIX = "ftr.cluster.";
+    private static final String LOADTEST_PREFIX = "ftr.loadtest.";
+
+    public static void main(String[] args) throws Exception
+    {
+        int nodes = Integer.getInteger(PREFIX + "nodes", 3);
+        int firstPort = Integer.getInteger(PREFIX + "firstPort", 9190);
+        int derbyPort = Integer.getInteger(PREFIX + "derbyPort", 1527);
+        int senders = Integer.getInteger(PREFIX + "senders", nodes);
+        long startTimeout = Long.getLong(PREFIX + "startTimeoutMillis", 180000L);
+        File workDir = new File(System.getProperty(PREFIX + "workDir", "ftr-cluster")).getAbsoluteFile();
+        if (!workDir.isDirectory() && !workDir.mkdirs())
+        {
+            throw new IOException("Unable to create " + workDir);
+        }
+
+        Properties loadtest = loadTestSettings();
+        String username = loadtest.getProperty(LOADTEST_PREFIX + "username", "admin");
+        String password = loadtest.getProperty(LOADTEST_PREFIX + "password", "admin");
+
+        NetworkServerControl derby = new NetworkServerControl(InetAddress.getByName("localhost"), derbyPort);
+        derby.start(new PrintWriter(new File(workDir, "derby.log"), "UTF-8"));
+        waitForDerby(derby, startTimeout);
+
+        List<String> urls = new ArrayList<String>();
+        StringBuilder nodeUrls = new StringBuilder();
+        for (int i = 0; i < nodes; i++)
+        {
+            String url = "http://localhost:" + (firstPort + i) + "/alfresco-ftr";
+            urls.add(url + "/service/api/transfer");
+            nodeUrls.append(nodeUrls.length() == 0 ? "" : ",").append("node").append(i).append('=').append(url);
+        }
+
+        List<Process> processes = new ArrayList<Process>();
+        try
+        {
+            for (int i = 0; i < nodes; i++)
+            {
+                processes.add(startNode(i, firstPort + i, derbyPort, nodeUrls.toString(), workDir));
+            }
+            for (String url : urls)
+            {
+                waitForNode(url, username, password, startTimeout);
+            }
+            System.out.println("Cluster of " + nodes + " nodes started, running " + senders + " senders");
+
+            boolean passed = runSenders(senders, urls, loadtest, workDir);
+            System.out.println(passed ? "Cluster harness PASSED" : "Cluster harness FAILED");
+            if (!passed)
+            {
+                System.exit(1);
+            }
+        }
+        finally
+        {
+            for (Process process : processes)
+            {
+                process.destroy();
+            }
+            for (Process process : processes)
+            {
+                process.waitFor();
+            }
+            derby.shutdown();
+        }
+    }
+
+    private static Process startNode(int index, int port, int derbyPort, String nodeUrls, File workDir)
+            throws IOException
+    {
+        File nodeDir = new File(workDir, "node" + index);
+        if (!nodeDir.isDirectory() && !nodeDir.mkdirs())
+        {
+            throw new IOException("Unable to create " + nodeDir);
+        }
+        String jdbcUrl = "jdbc:derby://localhost:" + derbyPort + "/" + new File(workDir, "db").getPath()
+                + ";create=true;user=alfresco;password=alfresco";
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dftr.tomcat.portNum=" + port);
+        command.add("-Dftr.tomcat.baseDir=" + nodeDir.getPath());
+        command.add("-DfileTransferReceiver.clusterNodeId=node" + index);
+        command.add("-DfileTransferReceiver.clusterNodes=" + nodeUrls);
+        command.add("-DfileTransferReceiver.jdbcDriver=org.apache.derby.jdbc.ClientDriver");
+        command.add("-DfileTransferReceiver.jdbcUrl=" + jdbcUrl);
+        command.add("-DfileTransferReceiver.rootDirectory=" + new File(workDir, "root").getPath());
+        command.add("-DfileTransferReceiver.stagingDirectory=" + new File(nodeDir, "staging").getPath());
+        command.add("-DfileTransferReceiver.journalDirectory=" + new File(nodeDir, "journal").getPath());
+        command.add("-DfileTransferReceiver.reportDirectory=" + nodeDir.getPath());
+        command.add("-DfileTransferReceiver.verifyCheckpointFile=" + new File(nodeDir, "verify.checkpoint").getPath());
+        command.add(FileTransferMainEmbedded.class.getName());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(new File(System.getProperty("user.dir")));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(nodeDir, "node.log"));
+        return builder.start();
+    }
+
+    private static boolean runSenders(int senders, List<String> urls, Properties loadtest, File workDir)
+            throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(senders);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < senders; i++)
+        {
+            final Properties config = new Properties();
+            config.putAll(loadtest);
+            config.setProperty(LOADTEST_PREFIX + "embedded", "false");
+            config.setProperty(LOADTEST_PREFIX + "repositoryId", "ftr-cluster-" + i);
+            config.setProperty(LOADTEST_PREFIX + "workDir", new File(workDir, "sender" + i).getPath());
+            config.setProperty(LOADTEST_PREFIX + "seed", String.valueOf(42 + i));
+            //Each sender starts on a different node and moves on to the next one with each request
+            StringBuilder rotated = new StringBuilder();
+            for (int n = 0; n < urls.size(); n++)
+            {
+                rotated.append(n == 0 ? "" : ",").append(urls.get((i + n) % urls.size()));
+            }
+            config.setProperty(LOADTEST_PREFIX + "url", rotated.toString());
+            final int sender = i;
+            results.add(executor.submit(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        ByteArrayOutputStream report = new ByteArrayOutputStream();
+                        PrintStream out = new PrintStream(report, true, "UTF-8");
+                        out.println("Sender " + sender + ":");
+                        new FileTransferLoadDriver(config).run(out);
+                        return new String(report.toByteArray(), StandardCharsets.UTF_8);
+                    }
+                }));
+        }
+        executor.shutdown();
+
+        boolean passed = true;
+        for (int i = 0; i < results.size(); i++)
+        {
+            try
+            {
+                System.out.println(results.get(i).get());
+            }
+            catch (Exception e)
+            {
+                passed = false;
+                System.out.println("Sender " + i + " failed: " + e.getCause());
+            }
+        }
+        return passed;
+    }
+
+    private static Properties loadTestSettings() throws IOException
+    {
+        Properties config = new Properties();
+        InputStream defaults = FileTransferClusterHarness.class.getClassLoader().getResourceAsStream(
+                "ftr-loadtest.properties");
+        if (defaults != null)
+        {
+            try
+            {
+                config.load(defaults);
+            }
+            finally
+            {
+                defaults.close();
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith(LOADTEST_PREFIX))
+            {
+                config.setProperty(name, System.getProperty(name));
+            }
+        }
+        return config;
+    }
+
+    private static void waitForDerby(NetworkServerControl derby, long timeout) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true)
+        {
+            try
+            {
+                derby.ping();
+                return;
+            }
+            catch (Exception e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    throw e;
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    private static void waitForNode(String url, String username, String password, long timeout)
+            throws IOException, InterruptedException
+    {
+        String authorization = "Basic "
+                + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true)
+        {
+            try
+            {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/test").openConnection();
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Authorization", authorization);
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+                {
+                    return;
+                }
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    throw new IOException("Node " + url + " did not start within " + timeout + "ms", e);
+                }
+            }
+            if (System.currentTimeMillis() > deadline)
+            {
+                throw new IOException("Node " + url + " did not start within " + timeout + "ms");
+            }
+            Thread.sleep(500);
+        }
+    }
+}
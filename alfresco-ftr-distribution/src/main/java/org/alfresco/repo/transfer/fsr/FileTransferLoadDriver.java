@@ -0,0 +1,493 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver Distribution
+ * %%
+ * Copyright (C) 2005 - 2017 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Replays synthetic transfers against a File Transfer Receiver.
+ * <p>
+ * Each transfer is a manifest produced by the {@link FileTransferManifestGenerator}, pushed through the same web script
+ * commands used by a repository: begin, post-snapshot, post-content, prepare and commit. Commit is asynchronous, so the
+ * "end" phase is measured by polling the status command until the transfer completes. Throughput and latency
+ * percentiles are printed for every phase once all transfers have run.
+ * <p>
+ * Settings are read from ftr-loadtest.properties on the classpath, optionally overridden by a properties file given as
+ * the first argument and by system properties. With ftr.loadtest.embedded=true the driver starts the embedded launcher
+ * in the same JVM, so it must be run from the distribution's directory like the launcher itself.
+ * <p>
+ * ftr.loadtest.url may list several receivers, separated by commas; successive requests are then sent to each in
+ * turn, as a load balancer would spread them over the nodes of a cluster.
+ */
+public class FileTransferLoadDriver
+{
+    private static final String PREFIX = "ftr.loadtest.";
+    private static final Pattern JSON_STRING = Pattern.compile("\"%s\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final Properties config;
+    private final String[] baseUrls;
+    private final AtomicInteger nextUrl = new AtomicInteger();
+    private final String authorization;
+    private final FileTransferManifestGenerator generator;
+    private final FileTransferLoadStatistics statistics = new FileTransferLoadStatistics();
+    private final int contentBatchSize;
+    private final long statusPollMillis;
+    private final long commitTimeoutMillis;
+
+    public FileTransferLoadDriver(Properties config)
+    {
+        this.config = config;
+        this.baseUrls = get("url", "http://localhost:9090/alfresco-ftr/service/api/transfer").split("\\s*,\\s*");
+        String credentials = get("username", "admin") + ":" + get("password", "admin");
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        this.contentBatchSize = Integer.parseInt(get("contentBatchSize", "50"));
+        this.statusPollMillis = Long.parseLong(get("statusPollMillis", "100"));
+        this.commitTimeoutMillis = Long.parseLong(get("commitTimeoutMillis", "600000"));
+
+        generator = new FileTransferManifestGenerator();
+        generator.setRepositoryId(get("repositoryId", "ftr-loadtest"));
+        generator.setRootNodeRef(get("rootNodeRef", null));
+        generator.setDepth(Integer.parseInt(get("tree.depth", "3")));
+        generator.setFoldersPerFolder(Integer.parseInt(get("tree.foldersPerFolder", "4")));
+        generator.setFilesPerFolder(Integer.parseInt(get("tree.filesPerFolder", "20")));
+        generator.setNodeCount(Integer.parseInt(get("tree.nodeCount", "5000")));
+        generator.setRenameRatio(Double.parseDouble(get("ratio.rename", "0.05")));
+        generator.setMoveRatio(Double.parseDouble(get("ratio.move", "0.02")));
+        generator.setDeleteRatio(Double.parseDouble(get("ratio.delete", "0.02")));
+        generator.setModifyRatio(Double.parseDouble(get("ratio.modify", "0.10")));
+        generator.setCreateRatio(Double.parseDouble(get("ratio.create", "0.05")));
+        generator.setMinContentSize(Long.parseLong(get("content.minSize", "512")));
+        generator.setMaxContentSize(Long.parseLong(get("content.maxSize", "65536")));
+        generator.setSync(Boolean.parseBoolean(get("sync", "false")));
+        generator.setSeed(Long.parseLong(get("seed", "42")));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Properties config = new Properties();
+        InputStream defaults = FileTransferLoadDriver.class.getClassLoader().getResourceAsStream(
+                "ftr-loadtest.properties");
+        if (defaults != null)
+        {
+            try
+            {
+                config.load(defaults);
+            }
+            finally
+            {
+                defaults.close();
+            }
+        }
+        if (args.length > 0)
+        {
+            InputStream in = new FileInputStream(args[0]);
+            try
+            {
+                config.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith(PREFIX))
+            {
+                config.setProperty(name, System.getProperty(name));
+            }
+        }
+
+        Tomcat tomcat = null;
+        if (Boolean.parseBoolean(config.getProperty(PREFIX + "embedded", "true")))
+        {
+            tomcat = FileTransferMainEmbedded.startEmbedded();
+        }
+        try
+        {
+            new FileTransferLoadDriver(config).run(System.out);
+        }
+        finally
+        {
+            if (tomcat != null)
+            {
+                tomcat.stop();
+            }
+        }
+    }
+
+    /**
+     * Run the warm-up transfers followed by the measured transfers and print the statistics.
+     */
+    public void run(java.io.PrintStream out) throws Exception
+    {
+        int warmup = Integer.parseInt(get("warmupTransfers", "1"));
+        int transfers = Integer.parseInt(get("transfers", "10"));
+        File workDir = new File(get("workDir", System.getProperty("java.io.tmpdir") + "/ftr-loadtest"));
+
+        for (int i = 0; i < warmup + transfers; i++)
+        {
+            if (i == warmup)
+            {
+                statistics.reset();
+            }
+            File manifestFile = new File(workDir, "snapshot-" + i + ".xml");
+            FileTransferManifestGenerator.GeneratedManifest manifest = generator.generate(manifestFile);
+            transfer(manifest);
+            if (!manifestFile.delete())
+            {
+                manifestFile.deleteOnExit();
+            }
+        }
+        statistics.print(out);
+    }
+
+    /**
+     * Push one generated manifest through the receiver.
+     */
+    void transfer(FileTransferManifestGenerator.GeneratedManifest manifest) throws IOException
+    {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("fromRepositoryId", get("repositoryId", "ftr-loadtest"));
+        params.put("transferToSelf", "true");
+        params.put("fromVersionMajor", "5");
+        params.put("fromVersionMinor", "2");
+        params.put("fromVersionRevision", "0");
+        params.put("fromVersionEdition", "Enterprise");
+        long start = System.nanoTime();
+        String response = post("begin", params);
+        statistics.record("begin", System.nanoTime() - start, 0, 0);
+        String transferId = jsonString(response, "transferId");
+        if (transferId == null)
+        {
+            throw new IOException("No transferId in begin response: " + response);
+        }
+
+        try
+        {
+            List<Part> snapshot = new ArrayList<Part>();
+            snapshot.add(new Part("snapshot.xml", manifest.getFile().length(), manifest.getFile()));
+            start = System.nanoTime();
+            String requsite = postMultipart("post-snapshot", transferId, snapshot);
+            statistics.record("post-snapshot", System.nanoTime() - start, manifest.getNodeCount(),
+                    manifest.getFile().length());
+
+            Set<String> required = requiredParts(requsite, manifest.getContentParts().keySet());
+            List<Part> batch = new ArrayList<Part>();
+            for (String partName : required)
+            {
+                Long size = manifest.getContentParts().get(partName);
+                if (size == null)
+                {
+                    continue;
+                }
+                batch.add(new Part(partName, size, null));
+                if (batch.size() >= contentBatchSize)
+                {
+                    postContent(transferId, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty())
+            {
+                postContent(transferId, batch);
+            }
+
+            params = new LinkedHashMap<String, String>();
+            params.put("transferId", transferId);
+            start = System.nanoTime();
+            post("prepare", params);
+            statistics.record("prepare", System.nanoTime() - start, manifest.getNodeCount(), 0);
+
+            start = System.nanoTime();
+            post("commit", params);
+            statistics.record("commit", System.nanoTime() - start, manifest.getNodeCount(), 0);
+        }
+        catch (IOException e)
+        {
+            params = new LinkedHashMap<String, String>();
+            params.put("transferId", transferId);
+            try
+            {
+                post("abort", params);
+            }
+            catch (IOException ignore)
+            {
+                // report the original failure
+            }
+            throw e;
+        }
+
+        start = System.nanoTime();
+        waitForCompletion(transferId);
+        statistics.record("end", System.nanoTime() - start, manifest.getNodeCount(), 0);
+    }
+
+    private void postContent(String transferId, List<Part> batch) throws IOException
+    {
+        long bytes = 0;
+        for (Part part : batch)
+        {
+            bytes += part.size;
+        }
+        long start = System.nanoTime();
+        postMultipart("post-content", transferId, batch);
+        statistics.record("post-content", System.nanoTime() - start, batch.size(), bytes);
+    }
+
+    private void waitForCompletion(String transferId) throws IOException
+    {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("transferId", transferId);
+        long deadline = System.currentTimeMillis() + commitTimeoutMillis;
+        while (true)
+        {
+            String status = jsonString(post("status", params), "status");
+            if ("COMPLETE".equals(status))
+            {
+                return;
+            }
+            if ("ERROR".equals(status) || "CANCELLED".equals(status))
+            {
+                throw new IOException("Transfer " + transferId + " ended with status " + status);
+            }
+            if (System.currentTimeMillis() > deadline)
+            {
+                throw new IOException("Transfer " + transferId + " did not complete within " + commitTimeoutMillis
+                        + "ms, last status " + status);
+            }
+            try
+            {
+                Thread.sleep(statusPollMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for transfer " + transferId, e);
+            }
+        }
+    }
+
+    /**
+     * The parts named in the requisite response. If the response cannot be understood every part is sent.
+     */
+    private Set<String> requiredParts(String requsite, Set<String> allParts)
+    {
+        final Set<String> required = new LinkedHashSet<String>();
+        try
+        {
+            SAXParserFactory.newInstance().newSAXParser().parse(
+                    new ByteArrayInputStream(requsite.getBytes(StandardCharsets.UTF_8)), new DefaultHandler()
+                    {
+                        @Override
+                        public void startElement(String uri, String localName, String qName, Attributes atts)
+                        {
+                            if (qName.endsWith("requiredContent") && atts.getValue("name") != null)
+                            {
+                                required.add(atts.getValue("name"));
+                            }
+                        }
+                    });
+            return required;
+        }
+        catch (Exception e)
+        {
+            return allParts;
+        }
+    }
+
+    private String post(String command, Map<String, String> params) throws IOException
+    {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet())
+        {
+            if (body.length() > 0)
+            {
+                body.append('&');
+            }
+            body.append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+        }
+        HttpURLConnection connection = open(command);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        OutputStream out = connection.getOutputStream();
+        try
+        {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            out.close();
+        }
+        return readResponse(command, connection);
+    }
+
+    private String postMultipart(String command, String transferId, List<Part> parts) throws IOException
+    {
+        String boundary = "----ftr-loadtest-" + UUID.randomUUID();
+        HttpURLConnection connection = open(command);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        connection.setChunkedStreamingMode(64 * 1024);
+        OutputStream out = connection.getOutputStream();
+        try
+        {
+            write(out, "--" + boundary + "\r\n");
+            write(out, "Content-Disposition: form-data; name=\"transferId\"\r\n\r\n");
+            write(out, transferId + "\r\n");
+            byte[] buffer = new byte[64 * 1024];
+            for (Part part : parts)
+            {
+                write(out, "--" + boundary + "\r\n");
+                write(out, "Content-Disposition: form-data; name=\"" + part.name + "\"; filename=\"" + part.name
+                        + "\"\r\n");
+                write(out, "Content-Type: application/octet-stream\r\n\r\n");
+                InputStream in = part.file != null ? new FileInputStream(part.file) : generator.openContent(part.name,
+                        part.size);
+                try
+                {
+                    int read;
+                    while ((read = in.read(buffer)) != -1)
+                    {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+                write(out, "\r\n");
+            }
+            write(out, "--" + boundary + "--\r\n");
+        }
+        finally
+        {
+            out.close();
+        }
+        return readResponse(command, connection);
+    }
+
+    private HttpURLConnection open(String command) throws IOException
+    {
+        String baseUrl = baseUrls[(nextUrl.getAndIncrement() & Integer.MAX_VALUE) % baseUrls.length];
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/" + command).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", authorization);
+        return connection;
+    }
+
+    private String readResponse(String command, HttpURLConnection connection) throws IOException
+    {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null)
+        {
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    body.write(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        String response = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        if (status >= 400)
+        {
+            throw new IOException(command + " failed with HTTP " + status + ": " + response);
+        }
+        return response;
+    }
+
+    private static void write(OutputStream out, String text) throws IOException
+    {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException
+    {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String jsonString(String json, String name)
+    {
+        Matcher matcher = Pattern.compile(String.format(JSON_STRING.pattern(), Pattern.quote(name))).matcher(json);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private String get(String name, String defaultValue)
+    {
+        String value = config.getProperty(PREFIX + name);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+
+    private static class Part
+    {
+        final String name;
+        final long size;
+        final File file;
+
+        Part(String name, long size, File file)
+        {
+            this.name = name;
+            this.size = size;
+            this.file = file;
+        }
+    }
+}
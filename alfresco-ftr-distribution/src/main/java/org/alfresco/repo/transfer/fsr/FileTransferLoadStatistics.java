@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver Distribution
+ * %%
+ * Copyright (C) 2005 - 2017 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects per-phase latencies and volumes recorded by the {@link FileTransferLoadDriver} and prints throughput and
+ * latency percentiles for each phase.
+ */
+public class FileTransferLoadStatistics
+{
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private long startNanos = System.nanoTime();
+
+    private static class Phase
+    {
+        final List<Long> latencies = new ArrayList<Long>();
+        long totalNanos;
+        long nodes;
+        long bytes;
+    }
+
+    public synchronized void reset()
+    {
+        phases.clear();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Record one execution of a phase.
+     * 
+     * @param phase the phase (web script command) name
+     * @param nanos elapsed time of the request
+     * @param nodes number of nodes carried by the request
+     * @param bytes number of bytes uploaded by the request
+     */
+    public synchronized void record(String phase, long nanos, long nodes, long bytes)
+    {
+        Phase p = phases.get(phase);
+        if (p == null)
+        {
+            p = new Phase();
+            phases.put(phase, p);
+        }
+        p.latencies.add(nanos);
+        p.totalNanos += nanos;
+        p.nodes += nodes;
+        p.bytes += bytes;
+    }
+
+    public synchronized void print(PrintStream out)
+    {
+        double wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        out.println(String.format("%-14s %7s %10s %10s %10s %10s %12s %12s", "phase", "count", "p50(ms)", "p90(ms)",
+                "p99(ms)", "max(ms)", "nodes/s", "MB/s"));
+        for (Map.Entry<String, Phase> entry : phases.entrySet())
+        {
+            Phase p = entry.getValue();
+            List<Long> sorted = new ArrayList<Long>(p.latencies);
+            Collections.sort(sorted);
+            double busySeconds = p.totalNanos / 1e9;
+            out.println(String.format("%-14s %7d %10.1f %10.1f %10.1f %10.1f %12.1f %12.2f", entry.getKey(),
+                    sorted.size(), millis(percentile(sorted, 50)), millis(percentile(sorted, 90)),
+                    millis(percentile(sorted, 99)), millis(sorted.get(sorted.size() - 1)),
+                    busySeconds > 0 ? p.nodes / busySeconds : 0d,
+                    busySeconds > 0 ? p.bytes / busySeconds / (1024 * 1024) : 0d));
+        }
+        out.println(String.format("wall clock %.1fs", wallSeconds));
+    }
+
+    static long percentile(List<Long> sorted, int percentile)
+    {
+        int index = (int) Math.ceil(percentile / 100d * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / 1e6;
+    }
+}
@@ -25,21 +25,45 @@
  */
 package org.alfresco.repo.transfer.fsr;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 public class FileTransferMainEmbedded
 {
+    private static final Log log = LogFactory.getLog(FileTransferMainEmbedded.class);
+
     /**
      * @param args
      */
     public static void main(String[] args) throws Exception
     {
+        Tomcat tomcat = startEmbedded();
+        tomcat.getServer().await();
+    }
+
+    /**
+     * Start the embedded Tomcat with the File Transfer Receiver web application deployed.
+     * 
+     * @return the running Tomcat instance
+     */
+    public static Tomcat startEmbedded() throws Exception
+    {
+        long start = System.currentTimeMillis();
         ApplicationContext appCtx = new ClassPathXmlApplicationContext("classpath*:ftr-launcher-context.xml");
         Tomcat tomcat = (Tomcat) appCtx.getBean("embeddedTomcat");
         tomcat.getConnector().setProperty("maxSwallowSize", "-1");
         tomcat.addWebapp("/alfresco-ftr", System.getProperty("user.dir")+"/webapps/file-transfer-receiver.war");
+        long launcherStarted = System.currentTimeMillis();
         tomcat.start();
-        tomcat.getServer().await();
+        if (log.isInfoEnabled())
+        {
+            long started = System.currentTimeMillis();
+            log.info("File Transfer Receiver started in " + (started - start) + "ms: launcher "
+                    + (launcherStarted - start) + "ms, web application and connector " + (started - launcherStarted)
+                    + "ms");
+        }
+        return tomcat;
     }
 }
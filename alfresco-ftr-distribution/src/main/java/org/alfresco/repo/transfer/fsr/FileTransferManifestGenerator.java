@@ -0,0 +1,623 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver Distribution
+ * %%
+ * Copyright (C) 2005 - 2017 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.alfresco.repo.transfer.TransferModel;
+import org.alfresco.repo.transfer.manifest.ManifestModel;
+import org.alfresco.service.namespace.NamespaceService;
+
+/**
+ * Generates synthetic snapshot manifests, in the format read by XMLTransferManifestReader, together with the content
+ * parts that they reference.
+ * <p>
+ * The generator keeps a model of the tree it has already "transferred". The first manifest creates the tree with the
+ * configured shape, subsequent manifests rename, move, delete, modify and create nodes according to the configured
+ * ratios. Content is never written to disk: it is regenerated deterministically from the part name when it is posted.
+ * <p>
+ * Only compile-time constants are used from the Alfresco model classes, so the generator has no runtime dependency on
+ * the repository libraries and can run from the distribution's launcher jar.
+ */
+public class FileTransferManifestGenerator
+{
+    private static final String XFER_PREFIX = "xfer";
+    private static final String XFER_URI = TransferModel.TRANSFER_MODEL_1_0_URI;
+    private static final String CM_PREFIX = "cm";
+    private static final String CM_URI = NamespaceService.CONTENT_MODEL_1_0_URI;
+
+    private static final String TYPE_FOLDER = "{" + CM_URI + "}folder";
+    private static final String TYPE_CONTENT = "{" + CM_URI + "}content";
+    private static final String ASSOC_CONTAINS = "{" + CM_URI + "}contains";
+    private static final String PROP_NAME = "{" + CM_URI + "}name";
+    private static final String PROP_CONTENT = "{" + CM_URI + "}content";
+    private static final String STORE_PREFIX = "workspace://SpacesStore/";
+
+    private static final DateTimeFormatter ISO8601 = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private String rootNodeRef;
+    private String repositoryId = "ftr-loadtest";
+    private int depth = 3;
+    private int foldersPerFolder = 4;
+    private int filesPerFolder = 20;
+    private int nodeCount = 5000;
+    private double renameRatio = 0.05;
+    private double moveRatio = 0.02;
+    private double deleteRatio = 0.02;
+    private double modifyRatio = 0.10;
+    private double createRatio = 0.05;
+    private long minContentSize = 512;
+    private long maxContentSize = 64 * 1024;
+    private boolean sync = false;
+    private long seed = 42;
+
+    private Random random;
+    private GeneratedNode root;
+    private Map<String, GeneratedNode> nodes = new LinkedHashMap<String, GeneratedNode>();
+    private List<GeneratedNode> folders = new ArrayList<GeneratedNode>();
+    private int generation = 0;
+    private int nameCounter = 0;
+
+    /**
+     * The summary of one generated manifest
+     */
+    public static class GeneratedManifest
+    {
+        private final File file;
+        private final int nodeCount;
+        private final Map<String, Long> contentParts;
+
+        GeneratedManifest(File file, int nodeCount, Map<String, Long> contentParts)
+        {
+            this.file = file;
+            this.nodeCount = nodeCount;
+            this.contentParts = contentParts;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public int getNodeCount()
+        {
+            return nodeCount;
+        }
+
+        /**
+         * @return the content parts referenced by the manifest, keyed by part name, with their sizes
+         */
+        public Map<String, Long> getContentParts()
+        {
+            return contentParts;
+        }
+    }
+
+    private static class GeneratedNode
+    {
+        String nodeRef;
+        GeneratedNode parent;
+        String name;
+        boolean folder;
+        String contentUrl;
+        long size;
+        List<GeneratedNode> children = new ArrayList<GeneratedNode>();
+    }
+
+    /**
+     * Generate the next manifest. The first call builds the initial tree, later calls generate a set of changes to the
+     * tree generated so far.
+     * 
+     * @param manifestFile where to write the manifest
+     * @return a summary of what was generated
+     */
+    public GeneratedManifest generate(File manifestFile) throws IOException
+    {
+        if (root == null)
+        {
+            init();
+        }
+        generation++;
+        List<GeneratedNode> changed = new ArrayList<GeneratedNode>();
+        List<GeneratedNode> deleted = new ArrayList<GeneratedNode>();
+        if (generation == 1)
+        {
+            buildTree(changed);
+        }
+        else
+        {
+            mutateTree(changed, deleted);
+        }
+
+        Map<String, Long> contentParts = new LinkedHashMap<String, Long>();
+        for (GeneratedNode node : changed)
+        {
+            if (!node.folder && node.contentUrl != null)
+            {
+                contentParts.put(partName(node.contentUrl), node.size);
+            }
+        }
+        writeManifest(manifestFile, sync ? new ArrayList<GeneratedNode>(nodes.values()) : changed, deleted);
+        return new GeneratedManifest(manifestFile, changed.size() + deleted.size(), contentParts);
+    }
+
+    /**
+     * Open the generated content for a part. The bytes are derived from the part name, so posting the same part twice
+     * produces the same content.
+     */
+    public InputStream openContent(String partName, long size)
+    {
+        return new GeneratedContentInputStream(new Random(seed ^ partName.hashCode()), size);
+    }
+
+    /**
+     * Mirrors TransferCommons.URLToPartName
+     */
+    public static String partName(String contentUrl)
+    {
+        return contentUrl.substring(contentUrl.lastIndexOf('/') + 1);
+    }
+
+    private void init()
+    {
+        random = new Random(seed);
+        root = new GeneratedNode();
+        root.nodeRef = rootNodeRef != null ? rootNodeRef : STORE_PREFIX + UUID.randomUUID();
+        root.folder = true;
+        root.name = "root";
+        folders.add(root);
+    }
+
+    private void buildTree(List<GeneratedNode> changed)
+    {
+        List<GeneratedNode> level = new ArrayList<GeneratedNode>();
+        level.add(root);
+        for (int d = 0; d <= depth && nodes.size() < nodeCount; d++)
+        {
+            List<GeneratedNode> nextLevel = new ArrayList<GeneratedNode>();
+            for (GeneratedNode parent : level)
+            {
+                for (int i = 0; i < filesPerFolder && nodes.size() < nodeCount; i++)
+                {
+                    changed.add(createFile(parent));
+                }
+                if (d < depth)
+                {
+                    for (int i = 0; i < foldersPerFolder && nodes.size() < nodeCount; i++)
+                    {
+                        GeneratedNode folder = createFolder(parent);
+                        changed.add(folder);
+                        nextLevel.add(folder);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+    }
+
+    private void mutateTree(List<GeneratedNode> changed, List<GeneratedNode> deleted)
+    {
+        int total = nodes.size();
+        Set<GeneratedNode> touched = new LinkedHashSet<GeneratedNode>();
+
+        for (int i = 0; i < count(deleteRatio, total); i++)
+        {
+            GeneratedNode node = pickNode(touched);
+            if (node != null)
+            {
+                detach(node);
+                removeSubtree(node, touched);
+                deleted.add(node);
+            }
+        }
+        for (int i = 0; i < count(renameRatio, total); i++)
+        {
+            GeneratedNode node = pickNode(touched);
+            if (node != null)
+            {
+                node.name = nextName(node.folder);
+                touched.add(node);
+                changed.add(node);
+            }
+        }
+        for (int i = 0; i < count(moveRatio, total); i++)
+        {
+            //Pick again when the folder is the node's own parent or lies below it, so that every move is made
+            for (int attempt = 0; attempt < 10; attempt++)
+            {
+                GeneratedNode node = pickNode(touched);
+                GeneratedNode target = folders.get(random.nextInt(folders.size()));
+                if (node != null && target != node.parent && !isAncestorOrSelf(node, target))
+                {
+                    detach(node);
+                    node.parent = target;
+                    target.children.add(node);
+                    touched.add(node);
+                    changed.add(node);
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < count(modifyRatio, total); i++)
+        {
+            GeneratedNode node = pickNode(touched);
+            if (node != null && !node.folder)
+            {
+                assignContent(node);
+                touched.add(node);
+                changed.add(node);
+            }
+        }
+        for (int i = 0; i < count(createRatio, total); i++)
+        {
+            changed.add(createFile(folders.get(random.nextInt(folders.size()))));
+        }
+    }
+
+    private int count(double ratio, int total)
+    {
+        return (int) Math.round(ratio * total);
+    }
+
+    private GeneratedNode pickNode(Set<GeneratedNode> touched)
+    {
+        if (nodes.isEmpty())
+        {
+            return null;
+        }
+        List<GeneratedNode> all = new ArrayList<GeneratedNode>(nodes.values());
+        for (int attempt = 0; attempt < 10; attempt++)
+        {
+            GeneratedNode candidate = all.get(random.nextInt(all.size()));
+            if (!touched.contains(candidate))
+            {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAncestorOrSelf(GeneratedNode node, GeneratedNode target)
+    {
+        for (GeneratedNode current = target; current != null; current = current.parent)
+        {
+            if (current == node)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void detach(GeneratedNode node)
+    {
+        node.parent.children.remove(node);
+    }
+
+    private void removeSubtree(GeneratedNode node, Set<GeneratedNode> touched)
+    {
+        nodes.remove(node.nodeRef);
+        folders.remove(node);
+        touched.add(node);
+        for (GeneratedNode child : node.children)
+        {
+            removeSubtree(child, touched);
+        }
+    }
+
+    private GeneratedNode createFolder(GeneratedNode parent)
+    {
+        GeneratedNode folder = createNode(parent, true);
+        folders.add(folder);
+        return folder;
+    }
+
+    private GeneratedNode createFile(GeneratedNode parent)
+    {
+        GeneratedNode file = createNode(parent, false);
+        assignContent(file);
+        return file;
+    }
+
+    private GeneratedNode createNode(GeneratedNode parent, boolean folder)
+    {
+        GeneratedNode node = new GeneratedNode();
+        node.nodeRef = STORE_PREFIX + UUID.randomUUID();
+        node.folder = folder;
+        node.name = nextName(folder);
+        node.parent = parent;
+        parent.children.add(node);
+        nodes.put(node.nodeRef, node);
+        return node;
+    }
+
+    private void assignContent(GeneratedNode file)
+    {
+        file.contentUrl = "store://loadtest/" + generation + "/" + UUID.randomUUID() + ".bin";
+        long range = Math.max(0L, maxContentSize - minContentSize);
+        file.size = minContentSize + (range == 0 ? 0 : (long) (random.nextDouble() * range));
+    }
+
+    private String nextName(boolean folder)
+    {
+        nameCounter++;
+        return folder ? "folder-" + nameCounter : "file-" + nameCounter + ".bin";
+    }
+
+    private void writeManifest(File manifestFile, List<GeneratedNode> changed, List<GeneratedNode> deleted)
+            throws IOException
+    {
+        File parentDir = manifestFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs())
+        {
+            throw new IOException("Unable to create directory " + parentDir);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(manifestFile));
+        try
+        {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.setPrefix(XFER_PREFIX, XFER_URI);
+            writer.setPrefix(CM_PREFIX, CM_URI);
+            startElement(writer, ManifestModel.LOCALNAME_TRANSFER_MAINIFEST);
+            writer.writeNamespace(XFER_PREFIX, XFER_URI);
+            writer.writeNamespace(CM_PREFIX, CM_URI);
+
+            startElement(writer, ManifestModel.LOCALNAME_TRANSFER_HEADER);
+            textElement(writer, ManifestModel.LOCALNAME_HEADER_CREATED_DATE,
+                    OffsetDateTime.now(ZoneOffset.UTC).format(ISO8601));
+            textElement(writer, ManifestModel.LOCALNAME_HEADER_NODE_COUNT,
+                    Integer.toString(changed.size() + deleted.size()));
+            textElement(writer, ManifestModel.LOCALNAME_HEADER_REPOSITORY_ID, repositoryId);
+            if (sync)
+            {
+                startElement(writer, ManifestModel.LOCALNAME_HEADER_SYNC);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+
+            for (GeneratedNode node : changed)
+            {
+                startElement(writer, ManifestModel.LOCALNAME_ELEMENT_NODE);
+                writer.writeAttribute("nodeRef", node.nodeRef);
+                writer.writeAttribute("nodeType", node.folder ? TYPE_FOLDER : TYPE_CONTENT);
+                writer.writeAttribute("ancestorType", node.folder ? TYPE_FOLDER : TYPE_CONTENT);
+                writePrimaryParent(writer, node);
+
+                startElement(writer, ManifestModel.LOCALNAME_ELEMENT_PROPERTIES);
+                startElement(writer, ManifestModel.LOCALNAME_ELEMENT_PROPERTY);
+                writer.writeAttribute("name", PROP_NAME);
+                startElement(writer, ManifestModel.LOCALNAME_ELEMENT_VALUE_STRING);
+                writer.writeAttribute("className", String.class.getName());
+                writer.writeCharacters(node.name);
+                writer.writeEndElement();
+                writer.writeEndElement();
+                if (!node.folder)
+                {
+                    startElement(writer, ManifestModel.LOCALNAME_ELEMENT_PROPERTY);
+                    writer.writeAttribute("name", PROP_CONTENT);
+                    startElement(writer, ManifestModel.LOCALNAME_ELEMENT_CONTENT_HEADER);
+                    writer.writeAttribute("contentURL", node.contentUrl);
+                    writer.writeAttribute("mimetype", "application/octet-stream");
+                    writer.writeAttribute("size", Long.toString(node.size));
+                    writer.writeAttribute("encoding", "UTF-8");
+                    writer.writeAttribute("locale", "en_US_");
+                    writer.writeEndElement();
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+
+                writer.writeEndElement();
+            }
+            for (GeneratedNode node : deleted)
+            {
+                startElement(writer, ManifestModel.LOCALNAME_ELEMENT_DELETED_NODE);
+                writer.writeAttribute("nodeRef", node.nodeRef);
+                writePrimaryParent(writer, node);
+                writer.writeEndElement();
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Unable to write manifest " + manifestFile, e);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writePrimaryParent(XMLStreamWriter writer, GeneratedNode node) throws XMLStreamException
+    {
+        startElement(writer, ManifestModel.LOCALNAME_ELEMENT_PRIMARY_PARENT);
+        startElement(writer, ManifestModel.LOCALNAME_ELEMENT_PARENT_ASSOC);
+        writer.writeAttribute("from", node.parent.nodeRef);
+        writer.writeAttribute("type", ASSOC_CONTAINS);
+        writer.writeAttribute("isPrimary", "true");
+        writer.writeCharacters("{" + CM_URI + "}" + node.name);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void startElement(XMLStreamWriter writer, String localName) throws XMLStreamException
+    {
+        writer.writeStartElement(XFER_PREFIX, localName, XFER_URI);
+    }
+
+    private void textElement(XMLStreamWriter writer, String localName, String text) throws XMLStreamException
+    {
+        startElement(writer, localName);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Pseudo-random content of a fixed length
+     */
+    private static class GeneratedContentInputStream extends InputStream
+    {
+        private final Random random;
+        private long remaining;
+        private final byte[] buffer = new byte[8192];
+        private int bufferPos = buffer.length;
+
+        GeneratedContentInputStream(Random random, long size)
+        {
+            this.random = random;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read()
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            if (bufferPos == buffer.length)
+            {
+                random.nextBytes(buffer);
+                bufferPos = 0;
+            }
+            int count = (int) Math.min(Math.min(len, buffer.length - bufferPos), remaining);
+            System.arraycopy(buffer, bufferPos, b, off, count);
+            bufferPos += count;
+            remaining -= count;
+            return count;
+        }
+    }
+
+    public void setRootNodeRef(String rootNodeRef)
+    {
+        this.rootNodeRef = rootNodeRef;
+    }
+
+    public String getRootNodeRef()
+    {
+        return root != null ? root.nodeRef : rootNodeRef;
+    }
+
+    public void setRepositoryId(String repositoryId)
+    {
+        this.repositoryId = repositoryId;
+    }
+
+    public void setDepth(int depth)
+    {
+        this.depth = depth;
+    }
+
+    public void setFoldersPerFolder(int foldersPerFolder)
+    {
+        this.foldersPerFolder = foldersPerFolder;
+    }
+
+    public void setFilesPerFolder(int filesPerFolder)
+    {
+        this.filesPerFolder = filesPerFolder;
+    }
+
+    public void setNodeCount(int nodeCount)
+    {
+        this.nodeCount = nodeCount;
+    }
+
+    public void setRenameRatio(double renameRatio)
+    {
+        this.renameRatio = renameRatio;
+    }
+
+    public void setMoveRatio(double moveRatio)
+    {
+        this.moveRatio = moveRatio;
+    }
+
+    public void setDeleteRatio(double deleteRatio)
+    {
+        this.deleteRatio = deleteRatio;
+    }
+
+    public void setModifyRatio(double modifyRatio)
+    {
+        this.modifyRatio = modifyRatio;
+    }
+
+    public void setCreateRatio(double createRatio)
+    {
+        this.createRatio = createRatio;
+    }
+
+    public void setMinContentSize(long minContentSize)
+    {
+        this.minContentSize = minContentSize;
+    }
+
+    public void setMaxContentSize(long maxContentSize)
+    {
+        this.maxContentSize = maxContentSize;
+    }
+
+    public void setSync(boolean sync)
+    {
+        this.sync = sync;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver Distribution
+ * %%
+ * Copyright (C) 2005 - 2017 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
+import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+import org.alfresco.repo.transfer.manifest.XMLTransferManifestReader;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Test that the manifests of the load generator are read by the manifest reader of the repository as they were
+ * configured
+ */
+public class FileTransferManifestGeneratorTest extends TestCase
+{
+    private File folder;
+
+    /**
+     * The nodes, deletes and moves that were parsed from one manifest
+     */
+    private static class ParsedManifest
+    {
+        private TransferManifestHeader header;
+        private final Map<NodeRef, NodeRef> parents = new HashMap<NodeRef, NodeRef>();
+        private final Map<NodeRef, String> contentUrls = new HashMap<NodeRef, String>();
+        private final List<NodeRef> deleted = new ArrayList<NodeRef>();
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        folder = Files.createTempDirectory("manifestgenerator").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * The first manifest creates the configured number of nodes, and the next one deletes and moves as many nodes as
+     * its ratios ask for
+     */
+    public void testGeneratedManifests() throws Exception
+    {
+        FileTransferManifestGenerator generator = new FileTransferManifestGenerator();
+        generator.setDepth(2);
+        generator.setFoldersPerFolder(3);
+        generator.setFilesPerFolder(10);
+        generator.setNodeCount(40);
+        generator.setRenameRatio(0);
+        generator.setModifyRatio(0);
+        generator.setCreateRatio(0);
+        generator.setDeleteRatio(0.1);
+        generator.setMoveRatio(0.1);
+
+        FileTransferManifestGenerator.GeneratedManifest generated = generator.generate(new File(folder,
+                "snapshot1.xml"));
+        ParsedManifest created = parse(generated.getFile());
+        assertEquals(40, generated.getNodeCount());
+        assertEquals(40, created.header.getNodeCount());
+        assertEquals(40, created.parents.size());
+        assertEquals(0, created.deleted.size());
+        assertEquals(generated.getContentParts().size(), created.contentUrls.size());
+        for (String contentUrl : created.contentUrls.values())
+        {
+            assertTrue(contentUrl, generated.getContentParts().containsKey(
+                    FileTransferManifestGenerator.partName(contentUrl)));
+        }
+        assertTrue(created.parents.containsValue(new NodeRef(generator.getRootNodeRef())));
+
+        generated = generator.generate(new File(folder, "snapshot2.xml"));
+        ParsedManifest changed = parse(generated.getFile());
+        assertEquals(8, generated.getNodeCount());
+        assertEquals(8, changed.header.getNodeCount());
+        assertEquals(4, changed.deleted.size());
+        assertEquals(4, changed.parents.size());
+        assertTrue(generated.getContentParts().isEmpty());
+        for (NodeRef deleted : changed.deleted)
+        {
+            assertTrue(created.parents.containsKey(deleted));
+        }
+        for (Map.Entry<NodeRef, NodeRef> moved : changed.parents.entrySet())
+        {
+            assertTrue(created.parents.containsKey(moved.getKey()));
+            assertFalse(changed.deleted.contains(moved.getValue()));
+            assertFalse(moved.getValue().equals(created.parents.get(moved.getKey())));
+        }
+    }
+
+    private ParsedManifest parse(File manifest) throws Exception
+    {
+        final ParsedManifest parsed = new ParsedManifest();
+        InputStream in = new BufferedInputStream(new FileInputStream(manifest));
+        try
+        {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, new XMLTransferManifestReader(
+                    new TransferManifestProcessor()
+                    {
+                        public void startTransferManifest()
+                        {
+                        }
+
+                        public void processTransferManifiestHeader(TransferManifestHeader header)
+                        {
+                            parsed.header = header;
+                        }
+
+                        public void processTransferManifestNode(TransferManifestNormalNode node)
+                        {
+                            parsed.parents.put(node.getNodeRef(), node.getPrimaryParentAssoc().getParentRef());
+                            ContentData content = (ContentData) node.getProperties().get(ContentModel.PROP_CONTENT);
+                            if (content != null)
+                            {
+                                parsed.contentUrls.put(node.getNodeRef(), content.getContentUrl());
+                            }
+                        }
+
+                        public void processTransferManifestNode(TransferManifestDeletedNode node)
+                        {
+                            parsed.deleted.add(node.getNodeRef());
+                        }
+
+                        public void endTransferManifest()
+                        {
+                        }
+                    }));
+        }
+        finally
+        {
+            in.close();
+        }
+        return parsed;
+    }
+}
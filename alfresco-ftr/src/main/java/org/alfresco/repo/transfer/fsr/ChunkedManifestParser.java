@@ -0,0 +1,378 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.repo.transfer.manifest.ManifestModel;
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
+import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Parses a large snapshot on several threads.
+ * <p>
+ * The snapshot is read as a stream, decompressed first if it was stored compressed, and cut into chunks of about the
+ * configured size, each ending where a node or deleted node element starts. Every chunk after the first is given the
+ * snapshot's prolog and root start tag, and every chunk before the last the root end tag, so that each is a manifest
+ * of its own and is parsed by the {@link FileTransferManifestParser} as usual. The nodes parsed from a chunk are
+ * passed to the processor only once those of all the chunks before it have been, so the processor sees them in
+ * manifest order. Reading and cutting the stream is done by the calling thread; a limited number of chunks, each held
+ * in memory, are parsed ahead of the processor.
+ */
+public class ChunkedManifestParser implements ManifestModel
+{
+    private final static Log log = LogFactory.getLog(ChunkedManifestParser.class);
+
+    /**
+     * How far into the snapshot its root start tag is looked for, and the least size of a chunk
+     */
+    private static final int SEARCH_WINDOW = 1024 * 1024;
+
+    private final FileTransferManifestParser parser;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int maxChunksAhead;
+
+    public ChunkedManifestParser(FileTransferManifestParser parser, ExecutorService executor, long chunkSize,
+            int maxChunksAhead)
+    {
+        this.parser = parser;
+        this.executor = executor;
+        this.chunkSize = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(SEARCH_WINDOW, chunkSize));
+        this.maxChunksAhead = Math.max(1, maxChunksAhead);
+    }
+
+    /**
+     * Parse a snapshot, passing its header and nodes to the processor in manifest order. A snapshot whose root start
+     * tag is not found near its start is parsed as one stream.
+     * 
+     * @param in the snapshot, closed by the caller
+     */
+    public void parse(InputStream in, TransferManifestProcessor processor) throws Exception
+    {
+        ChunkReader reader = new ChunkReader(in);
+        byte[] prolog = reader.readProlog();
+        if (prolog == null)
+        {
+            parser.parse(reader.remainder(), processor);
+            return;
+        }
+        String prefix = getPrefix(prolog);
+        reader.setNodeTags(("<" + prefix + LOCALNAME_ELEMENT_NODE).getBytes("UTF-8"),
+                ("<" + prefix + LOCALNAME_ELEMENT_DELETED_NODE).getBytes("UTF-8"));
+        byte[] epilog = ("</" + prefix + LOCALNAME_TRANSFER_MAINIFEST + ">").getBytes("UTF-8");
+        if (log.isDebugEnabled())
+        {
+            log.debug("Parsing snapshot in chunks of " + chunkSize + " bytes");
+        }
+
+        Deque<Future<List<Object>>> chunks = new ArrayDeque<Future<List<Object>>>();
+        try
+        {
+            processor.startTransferManifest();
+            boolean first = true;
+            while (!reader.isFinished() || !chunks.isEmpty())
+            {
+                while (!reader.isFinished() && chunks.size() < maxChunksAhead)
+                {
+                    byte[] chunk = reader.nextChunk();
+                    chunks.addLast(executor.submit(new ChunkParser(chunk, first ? null : prolog,
+                            reader.isFinished() ? null : epilog)));
+                    first = false;
+                }
+                ManifestEvents.dispatch(getChunk(chunks.removeFirst()), processor);
+            }
+            processor.endTransferManifest();
+        }
+        finally
+        {
+            for (Future<List<Object>> chunk : chunks)
+            {
+                chunk.cancel(true);
+            }
+        }
+    }
+
+    private List<Object> getChunk(Future<List<Object>> chunk) throws Exception
+    {
+        try
+        {
+            return chunk.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the namespace prefix of the root element, with its colon
+     */
+    private String getPrefix(byte[] prolog) throws IOException
+    {
+        String text = new String(prolog, "UTF-8");
+        int rootStart = text.lastIndexOf('<') + 1;
+        int nameEnd = rootStart;
+        while (nameEnd < text.length() && !Character.isWhitespace(text.charAt(nameEnd)) && text.charAt(nameEnd) != '>')
+        {
+            nameEnd++;
+        }
+        String rootName = text.substring(rootStart, nameEnd);
+        int colon = rootName.indexOf(':');
+        return colon < 0 ? "" : rootName.substring(0, colon + 1);
+    }
+
+    /**
+     * Cuts a snapshot stream into chunks that end where a node or deleted node element starts
+     */
+    private class ChunkReader
+    {
+        private final InputStream in;
+        private byte[] buffer = new byte[SEARCH_WINDOW];
+        private int length;
+        private boolean eof;
+        private byte[][] nodeTags;
+        private int maxTagLength;
+
+        ChunkReader(InputStream in)
+        {
+            this.in = in;
+        }
+
+        void setNodeTags(byte[]... nodeTags)
+        {
+            this.nodeTags = nodeTags;
+            for (byte[] tag : nodeTags)
+            {
+                maxTagLength = Math.max(maxTagLength, tag.length + 1);
+            }
+        }
+
+        /**
+         * @return the snapshot up to the end of the root start tag, left in the first chunk, or null if there isn't
+         *         one near the start or the manifest is empty
+         */
+        byte[] readProlog() throws IOException
+        {
+            fill(SEARCH_WINDOW);
+            for (int i = 0; i < length - 1; i++)
+            {
+                if (buffer[i] == '<' && Character.isLetter(buffer[i + 1]))
+                {
+                    for (int j = i + 1; j < length; j++)
+                    {
+                        if (buffer[j] == '>')
+                        {
+                            // An empty manifest has nothing to cut
+                            return buffer[j - 1] == '/' ? null : Arrays.copyOf(buffer, j + 1);
+                        }
+                    }
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the whole snapshot, what has been read of it followed by the rest
+         */
+        InputStream remainder()
+        {
+            return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), in);
+        }
+
+        boolean isFinished()
+        {
+            return eof && length == 0;
+        }
+
+        /**
+         * @return the next chunk: at least chunkSize bytes, up to the next node start tag, or the rest of the
+         *         snapshot
+         */
+        byte[] nextChunk() throws IOException
+        {
+            int searchFrom = chunkSize;
+            while (true)
+            {
+                fill(searchFrom + SEARCH_WINDOW);
+                // Leave a tag that straddles the end of what has been read to the next search
+                int limit = eof ? length : length - maxTagLength;
+                for (int i = Math.max(searchFrom, 1); i < limit; i++)
+                {
+                    if (buffer[i] == '<' && isNodeTagAt(i))
+                    {
+                        return take(i);
+                    }
+                }
+                if (eof)
+                {
+                    return take(length);
+                }
+                searchFrom = Math.max(searchFrom, limit);
+            }
+        }
+
+        private byte[] take(int end)
+        {
+            byte[] chunk = Arrays.copyOf(buffer, end);
+            System.arraycopy(buffer, end, buffer, 0, length - end);
+            length -= end;
+            return chunk;
+        }
+
+        private boolean isNodeTagAt(int offset)
+        {
+            for (byte[] tag : nodeTags)
+            {
+                if (offset + tag.length < length && isTagAt(offset, tag))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isTagAt(int offset, byte[] tag)
+        {
+            for (int i = 1; i < tag.length; i++)
+            {
+                if (buffer[offset + i] != tag[i])
+                {
+                    return false;
+                }
+            }
+            byte next = buffer[offset + tag.length];
+            return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+        }
+
+        /**
+         * Read until the buffer holds at least target bytes or the stream ends
+         */
+        private void fill(int target) throws IOException
+        {
+            if (target > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.max(target, buffer.length * 2));
+            }
+            while (!eof && length < target)
+            {
+                int read = in.read(buffer, length, target - length);
+                if (read < 0)
+                {
+                    eof = true;
+                }
+                else
+                {
+                    length += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses one chunk of the snapshot, keeping the header and nodes found in it
+     */
+    private class ChunkParser implements Callable<List<Object>>, TransferManifestProcessor
+    {
+        private final byte[] chunk;
+        private final byte[] prolog;
+        private final byte[] epilog;
+        private final List<Object> events = new ArrayList<Object>();
+
+        ChunkParser(byte[] chunk, byte[] prolog, byte[] epilog)
+        {
+            this.chunk = chunk;
+            this.prolog = prolog;
+            this.epilog = epilog;
+        }
+
+        public List<Object> call() throws Exception
+        {
+            Vector<InputStream> parts = new Vector<InputStream>(3);
+            if (prolog != null)
+            {
+                parts.add(new ByteArrayInputStream(prolog));
+            }
+            parts.add(new ByteArrayInputStream(chunk));
+            if (epilog != null)
+            {
+                parts.add(new ByteArrayInputStream(epilog));
+            }
+            parser.parse(new SequenceInputStream(parts.elements()), this);
+            return events;
+        }
+
+        public void startTransferManifest()
+        {
+        }
+
+        public void processTransferManifiestHeader(TransferManifestHeader header)
+        {
+            events.add(header);
+        }
+
+        public void processTransferManifestNode(TransferManifestNormalNode node)
+        {
+            events.add(node);
+        }
+
+        public void processTransferManifestNode(TransferManifestDeletedNode node)
+        {
+            events.add(node);
+        }
+
+        public void endTransferManifest()
+        {
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only journal of the file system and database changes made while a transfer is committed.
+ * <p>
+ * Each commit writes its own journal file. Before a change is made the commit records what it is about to do: a node
+ * created under a temporary name, a folder moved or renamed, a node deleted. Records are forced to disk in batches of
+ * <code>syncBatchSize</code> and before each phase of the commit. When the commit completes its journal is removed, so
+ * the journals found at startup are those of commits interrupted by a crash, and are replayed or rolled back by
+ * {@link CommitJournalRecovery}.
+ * <p>
+ * A record is one line of tab separated, escaped, fields. A line that was not completely written is ignored.
+ */
+public class CommitJournal
+{
+    private static final Log log = LogFactory.getLog(CommitJournal.class);
+
+    private static final String MSG_JOURNAL_WRITE_FAILED = "ftr.commitJournalWriteFailed";
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /** The commit of the transfer has started: transferId, source repository id */
+    public static final String BEGIN = "B";
+
+    /** A node is being created under a temporary name: nodeRef, isFolder, folder, tempName, newName, replaced path */
+    public static final String TEMP = "T";
+
+    /** A folder is being moved: nodeRef, current path, new parent path, new name, new parent nodeRef */
+    public static final String MOVE = "M";
+
+    /** A node and everything below it is being deleted: nodeRef, its name */
+    public static final String DELETE = "D";
+
+    private String directory;
+    private int syncBatchSize = 100;
+    private boolean enabled = true;
+
+    private File journalFolder;
+
+    public void init()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        journalFolder = new File(directory);
+        if (!journalFolder.exists() && !journalFolder.mkdirs())
+        {
+            log.error("Unable to create commit journal folder " + journalFolder.getAbsolutePath()
+                    + ". Commits will not be journalled.");
+            journalFolder = null;
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled && journalFolder != null;
+    }
+
+    /**
+     * Start the journal of a commit.
+     */
+    public Transaction begin(String transferId, String sourceRepoId)
+    {
+        File file = getJournalFile(transferId);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file, true);
+            Transaction tx = new Transaction(file, out);
+            tx.append(BEGIN, transferId, sourceRepoId == null ? "" : sourceRepoId);
+            tx.sync();
+            return tx;
+        }
+        catch (IOException e)
+        {
+            throw new TransferException(MSG_JOURNAL_WRITE_FAILED, new Object[] { file.getPath() }, e);
+        }
+    }
+
+    /**
+     * @return the journals of commits that did not complete
+     */
+    public List<File> getIncompleteJournals()
+    {
+        List<File> journals = new ArrayList<File>();
+        if (isEnabled())
+        {
+            File[] files = journalFolder.listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    if (file.isFile() && file.getName().endsWith(JOURNAL_SUFFIX))
+                    {
+                        journals.add(file);
+                    }
+                }
+            }
+        }
+        return journals;
+    }
+
+    public File getJournalFile(String transferId)
+    {
+        return new File(journalFolder, new NodeRef(transferId).getId() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Read the complete records of a journal.
+     */
+    public static List<String[]> read(File journal) throws IOException
+    {
+        List<String[]> records = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+        try
+        {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1)
+            {
+                if (c == '\n')
+                {
+                    records.add(decode(line.toString()));
+                    line.setLength(0);
+                }
+                else
+                {
+                    line.append((char) c);
+                }
+            }
+            if (line.length() > 0)
+            {
+                log.warn("Ignoring incomplete last record of commit journal " + journal.getName());
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return records;
+    }
+
+    /**
+     * The journal of one commit. Not thread safe.
+     */
+    public class Transaction
+    {
+        private final File file;
+        private final FileOutputStream out;
+        private final Writer writer;
+        private int unsynced;
+
+        private Transaction(File file, FileOutputStream out) throws IOException
+        {
+            this.file = file;
+            this.out = out;
+            this.writer = new OutputStreamWriter(out, "UTF-8");
+        }
+
+        public void temp(String nodeRef, boolean isFolder, String folder, String tempName, String newName,
+                String replacedPath)
+        {
+            record(TEMP, nodeRef, Boolean.toString(isFolder), folder, tempName, newName,
+                    replacedPath == null ? "" : replacedPath);
+        }
+
+        /**
+         * Moves are forced to disk straight away: a move whose record is lost leaves nothing to find it by
+         */
+        public void move(String nodeRef, String currentPath, String newParentPath, String newName, String newParentRef)
+        {
+            record(MOVE, nodeRef, currentPath, newParentPath, newName, newParentRef);
+            sync();
+        }
+
+        public void delete(String nodeRef, String name)
+        {
+            record(DELETE, nodeRef, name);
+        }
+
+        /**
+         * Force the records written so far to disk
+         */
+        public void sync()
+        {
+            try
+            {
+                writer.flush();
+                out.getFD().sync();
+                unsynced = 0;
+            }
+            catch (IOException e)
+            {
+                throw new TransferException(MSG_JOURNAL_WRITE_FAILED, new Object[] { file.getPath() }, e);
+            }
+        }
+
+        /**
+         * The commit has completed and the journal is no longer needed
+         */
+        public void complete()
+        {
+            close();
+            if (!file.delete())
+            {
+                log.warn("Unable to delete commit journal " + file.getPath());
+            }
+        }
+
+        /**
+         * Close the journal, leaving it to be recovered
+         */
+        public void close()
+        {
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to close commit journal " + file.getPath(), e);
+            }
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        private void record(String... fields)
+        {
+            try
+            {
+                append(fields);
+                if (++unsynced >= syncBatchSize)
+                {
+                    sync();
+                }
+            }
+            catch (IOException e)
+            {
+                throw new TransferException(MSG_JOURNAL_WRITE_FAILED, new Object[] { file.getPath() }, e);
+            }
+        }
+
+        private void append(String... fields) throws IOException
+        {
+            writer.write(encode(fields));
+            writer.write('\n');
+        }
+    }
+
+    static String encode(String[] fields)
+    {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (i > 0)
+            {
+                line.append('\t');
+            }
+            String field = fields[i] == null ? "" : fields[i];
+            for (int j = 0; j < field.length(); j++)
+            {
+                char c = field.charAt(j);
+                switch (c)
+                {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    static String[] decode(String line)
+    {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c == '\t')
+            {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else if (c == '\\' && i + 1 < line.length())
+            {
+                char next = line.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else
+            {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    public void setDirectory(String directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @param syncBatchSize the number of records written between two forced writes to disk
+     */
+    public void setSyncBatchSize(int syncBatchSize)
+    {
+        this.syncBatchSize = Math.max(1, syncBatchSize);
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.alfresco.service.cmr.transfer.TransferProgress;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Brings the receiving folders and the database back into step after a commit that did not complete, using the
+ * {@link CommitJournal} of the commit.
+ * <p>
+ * Each journalled change is looked at against the current state of the database and the disk. A change that reached
+ * the database is replayed: temporary files and folders are renamed to their final names, moved folders have their
+ * records updated, and deletes are finished. A change that did not reach the database is rolled back: its temporary
+ * file or folder is removed. Running a recovery more than once has no further effect.
+ * <p>
+ * At startup, once the journals of interrupted commits have been recovered, the records of those commits still holding
+ * a temporary name are removed along with their files: a node named in their journals, or, as a change may have
+ * reached the database before its journal record reached the disk, a node from the source repository of one of them.
+ * The second rule only applies to a receiver that is not clustered, where no other commit can be running. Journals
+ * that belong to other nodes of a cluster are left to them, and so are their temporary records. A journal with a
+ * change that could not be recovered is kept with its temporary records, and tried again at the next startup.
+ */
+public class CommitJournalRecovery
+{
+    private static final Log log = LogFactory.getLog(CommitJournalRecovery.class);
+
+    private static final String MSG_COMMIT_INTERRUPTED = "ftr.commitInterrupted";
+
+    private static final String TEMP_NAME_PREFIX = ".ftr";
+
+    private static final Pattern TEMP_NAME = Pattern.compile("\\.ftr\\d+");
+
+    private final FileTransferReceiver receiver;
+    private final CommitJournal journal;
+    private final DbHelper dbHelper;
+    private final String pathPrefix;
+
+    //The nodes and source repositories of the commits recovered here
+    private final Set<String> recoveredNodeRefs = new HashSet<String>();
+    private final Set<String> recoveredSourceRepoIds = new HashSet<String>();
+
+    public CommitJournalRecovery(FileTransferReceiver receiver, CommitJournal journal)
+    {
+        this.receiver = receiver;
+        this.journal = journal;
+        this.dbHelper = receiver.getDbHelper();
+        this.pathPrefix = receiver.getDefaultReceivingroot();
+    }
+
+    /**
+     * Recover all commits that were interrupted. Called at startup, before any transfer is received.
+     */
+    public void recoverAll()
+    {
+        List<File> journals = journal.getIncompleteJournals();
+        if (journals.isEmpty())
+        {
+            return;
+        }
+        log.warn("Found " + journals.size() + " interrupted commit(s). Recovering...");
+        for (File journalFile : journals)
+        {
+            String transferId = recover(journalFile);
+            if (transferId != null)
+            {
+                markFailed(transferId);
+            }
+        }
+        removeTemporaryNodes();
+        log.warn("Recovery of interrupted commits is complete");
+    }
+
+    /**
+     * Recover the commit recorded in the journal and remove the journal. A journal with a record that could not be
+     * recovered is kept, so that the recovery is tried again at the next startup.
+     * 
+     * @return the transfer id of the commit, null if the journal does not hold one
+     */
+    public String recover(File journalFile)
+    {
+        List<String[]> records;
+        try
+        {
+            records = CommitJournal.read(journalFile);
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to read commit journal " + journalFile.getPath(), e);
+            return null;
+        }
+
+        String transferId = null;
+        String sourceRepoId = null;
+        for (String[] record : records)
+        {
+            if (CommitJournal.BEGIN.equals(record[0]) && record.length > 1)
+            {
+                transferId = record[1];
+                sourceRepoId = record.length > 2 && record[2].length() > 0 ? record[2] : null;
+            }
+        }
+        FileTransferCluster cluster = receiver.getCluster();
+        if (cluster != null && !cluster.isLocal(transferId))
+        {
+            log.warn("Commit journal " + journalFile.getPath() + " belongs to node " + cluster.getOwner(transferId)
+                    + ", leaving it to that node");
+            return null;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Recovering commit of transfer " + transferId + " from " + records.size() + " journal records");
+        }
+
+        int failures = 0;
+        Set<String> nodeRefs = new HashSet<String>();
+        for (String[] record : records)
+        {
+            try
+            {
+                if (CommitJournal.TEMP.equals(record[0]) && record.length >= 7)
+                {
+                    nodeRefs.add(record[1]);
+                    if (!recoverTemp(record[1], Boolean.parseBoolean(record[2]), record[3], record[4], record[5],
+                            record[6]))
+                    {
+                        failures++;
+                    }
+                }
+                else if (CommitJournal.MOVE.equals(record[0]) && record.length >= 6)
+                {
+                    recoverMove(record[1], record[2], record[3], record[4], record[5]);
+                }
+            }
+            catch (Exception e)
+            {
+                failures++;
+                log.error("Failed to recover journal record " + CommitJournal.encode(record), e);
+            }
+        }
+        //Deletes last, as a folder is renamed before it is deleted
+        for (String[] record : records)
+        {
+            try
+            {
+                if (CommitJournal.DELETE.equals(record[0]) && record.length >= 3
+                        && !recoverDelete(record[1], record[2]))
+                {
+                    failures++;
+                }
+            }
+            catch (Exception e)
+            {
+                failures++;
+                log.error("Failed to recover journal record " + CommitJournal.encode(record), e);
+            }
+        }
+
+        if (failures > 0)
+        {
+            //The temporary nodes of the commit are kept along with its journal for the next attempt
+            log.error(failures + " record(s) of commit journal " + journalFile.getPath()
+                    + " could not be recovered, keeping the journal");
+            return transferId;
+        }
+        recoveredNodeRefs.addAll(nodeRefs);
+        if (sourceRepoId != null && (cluster == null || !cluster.isClustered()))
+        {
+            recoveredSourceRepoIds.add(sourceRepoId);
+        }
+        if (!journalFile.delete())
+        {
+            log.warn("Unable to delete commit journal " + journalFile.getPath());
+        }
+        return transferId;
+    }
+
+    /**
+     * @return false if the change reached the database but its temporary node could not be given its final name
+     */
+    private boolean recoverTemp(String nodeRef, boolean isFolder, String folder, String tempName, String newName,
+            String replacedPath)
+    {
+        FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+        if (entity == null || !tempName.equals(entity.getContentName()))
+        {
+            //Roll back: the database does not refer to the temporary node
+            File tempNode = new File(folder, tempName);
+            if (tempNode.exists())
+            {
+                log.info("Removing temporary " + tempNode.getPath());
+                deleteFile(tempNode);
+            }
+            return true;
+        }
+
+        //Roll forward: the database refers to the temporary node, give it its final name. A folder that has already
+        //been renamed on disk has its record updated by the move that follows in the journal
+        String root = receiver.getVolumeRoot(isFolder ? null : entity.getVolume());
+        File tempNode = new File(root + entity.getPath() + tempName);
+        File target = new File(root + entity.getPath() + newName);
+        if (!tempNode.exists())
+        {
+            if (isFolder && target.exists())
+            {
+                receiver.renameFolderMirrors(entity.getPath() + tempName, entity.getPath() + newName);
+                return true;
+            }
+            log.warn("Temporary " + tempNode.getPath() + " of node " + nodeRef + " no longer exists");
+            return true;
+        }
+        if (!isFolder && replacedPath.length() != 0)
+        {
+            File replaced = new File(replacedPath);
+            if (replaced.exists() && !replaced.delete())
+            {
+                log.warn("Unable to delete replaced file " + replaced.getPath());
+            }
+        }
+        if (target.exists())
+        {
+            log.error("Unable to rename " + tempNode.getPath() + " to " + target.getPath() + ": target exists");
+            return false;
+        }
+        if (tempNode.renameTo(target))
+        {
+            log.info("Renamed " + tempNode.getPath() + " to " + target.getPath());
+            entity.setContentName(newName);
+            dbHelper.updateFileTransferInfoByNodeRef(entity);
+            if (isFolder)
+            {
+                receiver.renameFolderMirrors(entity.getPath() + tempName, entity.getPath() + newName);
+                dbHelper.updatePathOfChildren(nodeRef, entity.getPath() + newName + "/");
+            }
+            return true;
+        }
+        log.error("Unable to rename " + tempNode.getPath() + " to " + target.getPath());
+        return false;
+    }
+
+    private void recoverMove(String nodeRef, String currentPath, String newParentPath, String newName,
+            String newParentRef)
+    {
+        FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+        File source = new File(currentPath);
+        File target = new File(pathPrefix + newParentPath + newName);
+        if (entity == null || source.exists() || !target.exists())
+        {
+            //The folder was not moved
+            return;
+        }
+        if (!newName.equals(entity.getContentName()) || !newParentPath.equals(entity.getPath()))
+        {
+            //The mirrors on the receiving volumes are moved before the record is updated
+            receiver.renameFolderMirrors(entity.getPath() + entity.getContentName(), newParentPath + newName);
+            log.info("Recording move of folder " + currentPath + " to " + target.getPath());
+            entity.setContentName(newName);
+            entity.setPath(newParentPath);
+            entity.setParent(newParentRef);
+            dbHelper.updateFileTransferInfoByNodeRef(entity);
+        }
+        dbHelper.updatePathOfChildren(nodeRef, newParentPath + newName + "/");
+    }
+
+    /**
+     * @return false if the node is still to be deleted
+     */
+    private boolean recoverDelete(String nodeRef, String name)
+    {
+        FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+        if (entity != null && name.equals(entity.getContentName()))
+        {
+            log.info("Completing delete of " + receiver.getReceivedFile(entity).getPath());
+            return deleteNode(entity);
+        }
+        return true;
+    }
+
+    private void removeTemporaryNodes()
+    {
+        if (recoveredNodeRefs.isEmpty() && recoveredSourceRepoIds.isEmpty())
+        {
+            return;
+        }
+        for (FileTransferInfoEntity entity : dbHelper.findFileTransferInfoByContentNamePrefix(TEMP_NAME_PREFIX))
+        {
+            if (TEMP_NAME.matcher(entity.getContentName()).matches()
+                    && (recoveredNodeRefs.contains(entity.getNodeRef())
+                            || recoveredSourceRepoIds.contains(entity.getSourceRepoId())))
+            {
+                log.warn("Removing node " + entity.getNodeRef() + " left with temporary name "
+                        + receiver.getReceivedFile(entity).getPath());
+                deleteNode(entity);
+            }
+        }
+    }
+
+    /**
+     * Delete a node depth first, removing the records of nodes whose file has already gone
+     */
+    private boolean deleteNode(FileTransferInfoEntity entity)
+    {
+        boolean success = true;
+        if (entity.isFolder())
+        {
+            for (FileTransferInfoEntity child : dbHelper.findFileTransferInfoByParentNodeRef(entity.getNodeRef()))
+            {
+                success &= deleteNode(child);
+            }
+        }
+        File file = receiver.getReceivedFile(entity);
+        if (success && (receiver.deleteReceivedNode(entity) || !file.exists()))
+        {
+            dbHelper.deleteNodeByNodeRef(entity.getNodeRef());
+            return true;
+        }
+        log.error("Failed to delete file/folder " + file.getPath());
+        return false;
+    }
+
+    private void deleteFile(File file)
+    {
+        if (file.isDirectory())
+        {
+            File[] fileList = file.listFiles();
+            if (fileList != null)
+            {
+                for (File currentFile : fileList)
+                {
+                    deleteFile(currentFile);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    private void markFailed(String transferId)
+    {
+        try
+        {
+            TransferProgress progress = receiver.getProgressMonitor().getProgress(transferId);
+            if (progress.getStatus() == TransferProgress.Status.COMMITTING)
+            {
+                receiver.getProgressMonitor().logException(transferId, "Commit interrupted",
+                        new TransferException(MSG_COMMIT_INTERRUPTED, new Object[] { transferId }));
+                receiver.getProgressMonitor().updateStatus(transferId, TransferProgress.Status.ERROR);
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to update the status of transfer " + transferId, e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when no database connection has become free within the pool's wait time. It is transient: the request may
+ * be retried once the work holding the connections has finished.
+ */
+public class ConnectionPoolExhaustedException extends SQLTransientConnectionException
+{
+    private static final long serialVersionUID = -3860425734911652402L;
+
+    private final int maxActive;
+    private final long maxWait;
+
+    public ConnectionPoolExhaustedException(int maxActive, long maxWait, Throwable cause)
+    {
+        super("All " + maxActive + " database connections are in use; none was released within " + maxWait
+                + "ms", cause);
+        this.maxActive = maxActive;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return the size of the pool
+     */
+    public int getMaxActive()
+    {
+        return maxActive;
+    }
+
+    /**
+     * @return how long the request waited for a connection, in milliseconds
+     */
+    public long getMaxWait()
+    {
+        return maxWait;
+    }
+}
@@ -0,0 +1,843 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Verifies that the receiving root and the alf_file_transfer_info table agree, and optionally repairs what they
+ * disagree on.
+ * <p>
+ * The tree is split into units: the folders near the root are compared on their own (shallow units) and the subtrees
+ * below them are walked whole (deep units), the units being shared out between <code>parallelism</code> threads. Each
+ * folder is walked with {@link Files#walkFileTree}; when the walk leaves a folder its entries, sorted by name, are
+ * merged with the records of its children, also sorted by name. Only the folders on the current walk path are held in
+ * memory.
+ * <p>
+ * Differences found:
+ * <ul>
+ * <li>STALE_ROW: a record whose file or folder does not exist. Repaired by removing the record and those below it.</li>
+ * <li>ORPHAN_TEMP: a temporary (.ftrN) file or folder without a record. Repaired by deleting it.</li>
+ * <li>UNTRACKED: any other file or folder without a record. Reported only.</li>
+ * <li>TEMP_ROW: a record that still holds a temporary name. Reported only.</li>
+ * <li>TYPE_MISMATCH: a record of a folder for a file, or the reverse. Reported only.</li>
+ * <li>PATH_MISMATCH: a record whose path is not that of its folder. Repaired by correcting the path.</li>
+ * </ul>
+ * Files written to other receiving volumes (see {@link ReceivingVolumes}) are checked against their records by looking
+ * them up on their volume; the volumes are not walked, so untracked files on them are not reported.
+ * <p>
+ * Repairs are skipped while transfers are in progress on this receiver, and temporary files are only deleted once
+ * they are older than an hour. In a cluster, where the other nodes commit to the same root and database, a repairing
+ * scan holds the commit lock of the cluster from start to end, and repairs nothing more if it loses it. A repairing
+ * scan that cannot take the lock fails.
+ * <p>
+ * Progress is checkpointed after each unit, so a scan that is stopped, or interrupted by a restart, resumes with the
+ * units it had not finished. The scan can be throttled to <code>maxEntriesPerSecond</code>, either all the time or
+ * only during <code>throttleHours</code> (e.g. "8-18").
+ */
+public class ConsistencyScanner implements FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(ConsistencyScanner.class);
+
+    public enum Difference
+    {
+        STALE_ROW, ORPHAN_TEMP, UNTRACKED, TEMP_ROW, TYPE_MISMATCH, PATH_MISMATCH
+    }
+
+    private static final Pattern TEMP_NAME = Pattern.compile("\\.ftr\\d+");
+
+    private static final long MIN_TEMP_AGE_MS = 60L * 60L * 1000L;
+
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+    private static final String UNIT_SHALLOW = "S";
+    private static final String UNIT_DEEP = "D";
+    private static final String CHECKPOINT_START = "START";
+    private static final String CHECKPOINT_UNIT = "UNIT";
+    private static final String CHECKPOINT_DONE = "DONE";
+
+    private FileTransferReceiver receiver;
+    private int parallelism = 2;
+    private String checkpointFile;
+    private String reportDirectory;
+    private int maxEntriesPerSecond = 0;
+    private String throttleHours = "";
+
+    private volatile String status = "IDLE";
+    private volatile boolean stopRequested;
+    private volatile boolean repair;
+    private volatile String reportFile;
+    private volatile long startTime;
+    private volatile FileTransferCluster.CommitLock commitLock;
+    private Thread coordinator;
+
+    private final AtomicInteger unitsTotal = new AtomicInteger();
+    private final AtomicInteger unitsDone = new AtomicInteger();
+    private final AtomicLong entriesScanned = new AtomicLong();
+    private final AtomicLong directoriesScanned = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private final Map<Difference, AtomicLong> differences = new LinkedHashMap<Difference, AtomicLong>();
+
+    private long nextPermit;
+    private Writer reportWriter;
+    private FileOutputStream checkpointOut;
+    private Writer checkpointWriter;
+
+    private DbHelper dbHelper;
+    private String pathPrefix;
+
+    public ConsistencyScanner()
+    {
+        for (Difference difference : Difference.values())
+        {
+            differences.put(difference, new AtomicLong());
+        }
+    }
+
+    /**
+     * Start a scan in the background.
+     * 
+     * @param repair repair the differences that can be repaired
+     * @param resume carry on from the checkpoint of a scan that did not finish, if there is one
+     * @return false if a scan is already running
+     */
+    public synchronized boolean start(final boolean repair, final boolean resume)
+    {
+        if (coordinator != null && coordinator.isAlive())
+        {
+            return false;
+        }
+        this.repair = repair;
+        this.stopRequested = false;
+        this.status = "RUNNING";
+        coordinator = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    scan(resume);
+                }
+            }, "FileTransferConsistencyScanner");
+        coordinator.setDaemon(true);
+        coordinator.start();
+        return true;
+    }
+
+    /**
+     * Ask a running scan to stop. Its checkpoint is kept so that it can be resumed.
+     */
+    public void stop()
+    {
+        stopRequested = true;
+    }
+
+    public boolean isRunning()
+    {
+        Thread thread = coordinator;
+        return thread != null && thread.isAlive();
+    }
+
+    private void scan(boolean resume)
+    {
+        dbHelper = receiver.getDbHelper();
+        pathPrefix = receiver.getDefaultReceivingroot();
+        startTime = System.currentTimeMillis();
+        unitsTotal.set(0);
+        unitsDone.set(0);
+        entriesScanned.set(0);
+        directoriesScanned.set(0);
+        repaired.set(0);
+        for (AtomicLong count : differences.values())
+        {
+            count.set(0);
+        }
+        ExecutorService executor = null;
+        try
+        {
+            FileTransferCluster cluster = receiver.getCluster();
+            if (repair && cluster != null && cluster.isClustered())
+            {
+                //No node may commit while the root and the database are repaired
+                commitLock = cluster.acquireCommitLock();
+            }
+            List<String[]> units = new ArrayList<String[]>();
+            Set<String> done = new HashSet<String>();
+            File checkpoint = new File(checkpointFile);
+            if (resume && checkpoint.exists())
+            {
+                readCheckpoint(checkpoint, units, done);
+            }
+            if (units.isEmpty())
+            {
+                done.clear();
+                reportFile = "ftr-verify-" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()) + ".txt";
+                plan(units);
+                writeCheckpoint(checkpoint, units);
+            }
+            else
+            {
+                log.info("Resuming consistency scan: " + done.size() + " of " + units.size() + " units done");
+                checkpointOut = new FileOutputStream(checkpoint, true);
+                checkpointWriter = new OutputStreamWriter(checkpointOut, "UTF-8");
+            }
+            reportWriter = new OutputStreamWriter(new FileOutputStream(new File(reportDirectory, reportFile), true),
+                    "UTF-8");
+            unitsTotal.set(units.size());
+            unitsDone.set(done.size());
+
+            executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "FileTransferConsistencyScanner-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            for (final String[] unit : units)
+            {
+                if (done.contains(CommitJournal.encode(unit)))
+                {
+                    continue;
+                }
+                executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            scanUnit(unit);
+                        }
+                    });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+            {
+                // wait for the units to complete
+            }
+
+            if (stopRequested || unitsDone.get() < unitsTotal.get())
+            {
+                status = "STOPPED";
+                log.info("Consistency scan stopped. " + unitsDone.get() + " of " + unitsTotal.get()
+                        + " units done");
+            }
+            else
+            {
+                status = "COMPLETE";
+                closeCheckpoint();
+                checkpoint.delete();
+                log.info("Consistency scan complete in " + (System.currentTimeMillis() - startTime) + "ms. "
+                        + entriesScanned.get() + " entries, differences: " + differences);
+            }
+        }
+        catch (Throwable e)
+        {
+            status = "FAILED";
+            log.error("Consistency scan failed", e);
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+        }
+        finally
+        {
+            if (commitLock != null)
+            {
+                commitLock.release();
+                commitLock = null;
+            }
+            closeCheckpoint();
+            try
+            {
+                if (reportWriter != null)
+                {
+                    reportWriter.close();
+                }
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to close consistency report", e);
+            }
+        }
+    }
+
+    /**
+     * Split the tree into units: shallow units for the folders of the first levels, until there are enough folders
+     * to share out, then a deep unit for each folder of the last level.
+     */
+    private void plan(List<String[]> units)
+    {
+        int target = Math.max(1, parallelism) * 8;
+        List<String> level = new ArrayList<String>();
+        level.add("/");
+        for (int depth = 0; depth < MAX_PARTITION_DEPTH && level.size() < target; depth++)
+        {
+            List<String> next = new ArrayList<String>();
+            for (String relDir : level)
+            {
+                units.add(new String[] { UNIT_SHALLOW, relDir });
+                File[] children = new File(pathPrefix + relDir).listFiles();
+                if (children != null)
+                {
+                    for (File child : children)
+                    {
+                        if (child.isDirectory())
+                        {
+                            next.add(relDir + child.getName() + "/");
+                        }
+                    }
+                }
+            }
+            level = next;
+        }
+        for (String relDir : level)
+        {
+            units.add(new String[] { UNIT_DEEP, relDir });
+        }
+    }
+
+    private void scanUnit(String[] unit)
+    {
+        if (stopRequested)
+        {
+            return;
+        }
+        final boolean deep = UNIT_DEEP.equals(unit[0]);
+        final String unitDir = unit[1];
+        try
+        {
+            final List<FileTransferInfoEntity> unitRows = resolveChildren(unitDir);
+            if (unitRows == null)
+            {
+                //The folder has no record, it is reported by the unit of its parent
+                markDone(unit);
+                return;
+            }
+            final Deque<Frame> frames = new ArrayDeque<Frame>();
+            Path start = new File(pathPrefix + unitDir).toPath();
+            Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), deep ? Integer.MAX_VALUE : 1,
+                    new SimpleFileVisitor<Path>()
+                    {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                        {
+                            if (stopRequested)
+                            {
+                                return FileVisitResult.TERMINATE;
+                            }
+                            if (frames.isEmpty())
+                            {
+                                frames.push(new Frame(dir, unitDir, unitRows));
+                                return FileVisitResult.CONTINUE;
+                            }
+                            Frame parent = frames.peek();
+                            String name = dir.getFileName().toString();
+                            parent.entries.put(name, Boolean.TRUE);
+                            throttle();
+                            FileTransferInfoEntity row = parent.getRow(name);
+                            if (row == null || !row.isFolder())
+                            {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            frames.push(new Frame(dir, parent.relDir + name + "/", dbHelper
+                                    .findFileTransferInfoByParentNodeRef(row.getNodeRef())));
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        {
+                            frames.peek().entries.put(file.getFileName().toString(), attrs.isDirectory());
+                            entriesScanned.incrementAndGet();
+                            throttle();
+                            return stopRequested ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException exc)
+                        {
+                            log.warn("Unable to read " + file + ": " + exc.getMessage());
+                            if (!frames.isEmpty())
+                            {
+                                frames.peek().entries.put(file.getFileName().toString(), null);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                        {
+                            Frame frame = frames.pop();
+                            if (exc == null && !stopRequested)
+                            {
+                                compare(frame);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+            if (!stopRequested)
+            {
+                markDone(unit);
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Failed to scan " + pathPrefix + unitDir, e);
+        }
+    }
+
+    /**
+     * Merge the sorted entries of a folder with the sorted records of its children
+     */
+    private void compare(Frame frame)
+    {
+        directoriesScanned.incrementAndGet();
+        Iterator<Map.Entry<String, FileTransferInfoEntity>> dbIt = frame.getRows().entrySet().iterator();
+        for (FileTransferInfoEntity row : frame.volumeRows)
+        {
+            if (receiver.getReceivedFile(row).isFile())
+            {
+                inBoth(frame, Boolean.FALSE, row);
+            }
+            else
+            {
+                onlyInDatabase(row);
+            }
+        }
+        Iterator<Map.Entry<String, Boolean>> fsIt = frame.entries.entrySet().iterator();
+        Map.Entry<String, Boolean> fs = fsIt.hasNext() ? fsIt.next() : null;
+        Map.Entry<String, FileTransferInfoEntity> db = dbIt.hasNext() ? dbIt.next() : null;
+        while (fs != null || db != null)
+        {
+            int order = fs == null ? 1 : db == null ? -1 : fs.getKey().compareTo(db.getKey());
+            if (order < 0)
+            {
+                onlyOnDisk(frame, fs.getKey());
+                fs = fsIt.hasNext() ? fsIt.next() : null;
+            }
+            else if (order > 0)
+            {
+                onlyInDatabase(db.getValue());
+                db = dbIt.hasNext() ? dbIt.next() : null;
+            }
+            else
+            {
+                inBoth(frame, fs.getValue(), db.getValue());
+                fs = fsIt.hasNext() ? fsIt.next() : null;
+                db = dbIt.hasNext() ? dbIt.next() : null;
+            }
+        }
+    }
+
+    private void onlyOnDisk(Frame frame, String name)
+    {
+        File file = new File(frame.dir.toFile(), name);
+        if (!TEMP_NAME.matcher(name).matches())
+        {
+            report(Difference.UNTRACKED, file.getPath(), null, false);
+            return;
+        }
+        boolean fixed = false;
+        if (canRepair() && System.currentTimeMillis() - file.lastModified() > MIN_TEMP_AGE_MS)
+        {
+            fixed = deleteFile(file);
+        }
+        report(Difference.ORPHAN_TEMP, file.getPath(), null, fixed);
+    }
+
+    private void onlyInDatabase(FileTransferInfoEntity row)
+    {
+        boolean fixed = false;
+        if (canRepair())
+        {
+            deleteRows(row);
+            fixed = true;
+        }
+        report(Difference.STALE_ROW, receiver.getReceivedFile(row).getPath(), row.getNodeRef(), fixed);
+    }
+
+    private void inBoth(Frame frame, Boolean isDirectory, FileTransferInfoEntity row)
+    {
+        String path = receiver.getReceivedFile(row).getPath();
+        if (isDirectory != null && isDirectory.booleanValue() != row.isFolder())
+        {
+            report(Difference.TYPE_MISMATCH, path, row.getNodeRef(), false);
+        }
+        if (TEMP_NAME.matcher(row.getContentName()).matches())
+        {
+            report(Difference.TEMP_ROW, path, row.getNodeRef(), false);
+        }
+        if (!frame.relDir.equals(row.getPath()))
+        {
+            boolean fixed = false;
+            if (canRepair())
+            {
+                row.setPath(frame.relDir);
+                dbHelper.updateFileTransferInfoByNodeRef(row);
+                fixed = true;
+            }
+            report(Difference.PATH_MISMATCH, path, row.getNodeRef(), fixed);
+        }
+    }
+
+    private boolean canRepair()
+    {
+        FileTransferCluster.CommitLock lock = commitLock;
+        return repair && !receiver.hasActiveTransfers() && (lock == null || lock.isActive());
+    }
+
+    /**
+     * @return the records of the children of the folder, null if the folder has no record
+     */
+    private List<FileTransferInfoEntity> resolveChildren(String relDir)
+    {
+        //There is a root record for each root node a transfer has been received for. They all map to the root folder
+        List<FileTransferInfoEntity> children = new ArrayList<FileTransferInfoEntity>();
+        for (FileTransferInfoEntity root : dbHelper.findFileTransferInfoByParentNodeRef(""))
+        {
+            children.addAll(dbHelper.findFileTransferInfoByParentNodeRef(root.getNodeRef()));
+        }
+        for (String name : relDir.split("/"))
+        {
+            if (name.length() == 0)
+            {
+                continue;
+            }
+            FileTransferInfoEntity folder = null;
+            for (FileTransferInfoEntity child : children)
+            {
+                if (child.isFolder() && name.equals(child.getContentName()))
+                {
+                    folder = child;
+                    break;
+                }
+            }
+            if (folder == null)
+            {
+                return null;
+            }
+            children = dbHelper.findFileTransferInfoByParentNodeRef(folder.getNodeRef());
+        }
+        return children;
+    }
+
+    private void deleteRows(FileTransferInfoEntity row)
+    {
+        if (row.isFolder())
+        {
+            for (FileTransferInfoEntity child : dbHelper.findFileTransferInfoByParentNodeRef(row.getNodeRef()))
+            {
+                deleteRows(child);
+            }
+        }
+        dbHelper.deleteNodeByNodeRef(row.getNodeRef());
+    }
+
+    private boolean deleteFile(File file)
+    {
+        if (file.isDirectory())
+        {
+            File[] fileList = file.listFiles();
+            if (fileList != null)
+            {
+                for (File currentFile : fileList)
+                {
+                    deleteFile(currentFile);
+                }
+            }
+        }
+        return file.delete();
+    }
+
+    private void throttle()
+    {
+        if (maxEntriesPerSecond <= 0 || !inThrottleWindow())
+        {
+            return;
+        }
+        long interval = 1000000000L / maxEntriesPerSecond;
+        long permit;
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+            nextPermit = Math.max(nextPermit + interval, now);
+            permit = nextPermit;
+        }
+        long wait = permit - System.nanoTime();
+        if (wait > 0)
+        {
+            try
+            {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+            catch (InterruptedException e)
+            {
+                stopRequested = true;
+            }
+        }
+    }
+
+    private boolean inThrottleWindow()
+    {
+        if (throttleHours == null || throttleHours.trim().length() == 0)
+        {
+            return true;
+        }
+        String[] hours = throttleHours.trim().split("-");
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        int from = Integer.parseInt(hours[0].trim());
+        int to = Integer.parseInt(hours[1].trim());
+        return from <= to ? (hour >= from && hour < to) : (hour >= from || hour < to);
+    }
+
+    private synchronized void report(Difference difference, String path, String nodeRef, boolean fixed)
+    {
+        differences.get(difference).incrementAndGet();
+        if (fixed)
+        {
+            repaired.incrementAndGet();
+        }
+        try
+        {
+            reportWriter.write(CommitJournal.encode(new String[] { difference.name(), path,
+                    nodeRef == null ? "" : nodeRef, fixed ? "repaired" : "reported" }));
+            reportWriter.write('\n');
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to write to consistency report", e);
+        }
+    }
+
+    private void writeCheckpoint(File checkpoint, List<String[]> units) throws IOException
+    {
+        checkpointOut = new FileOutputStream(checkpoint, false);
+        checkpointWriter = new OutputStreamWriter(checkpointOut, "UTF-8");
+        checkpointWriter.write(CommitJournal.encode(new String[] { CHECKPOINT_START, reportFile }) + "\n");
+        for (String[] unit : units)
+        {
+            checkpointWriter.write(CommitJournal.encode(new String[] { CHECKPOINT_UNIT, unit[0], unit[1] }) + "\n");
+        }
+        checkpointWriter.flush();
+        checkpointOut.getFD().sync();
+    }
+
+    private void readCheckpoint(File checkpoint, List<String[]> units, Set<String> done) throws IOException
+    {
+        for (String[] record : CommitJournal.read(checkpoint))
+        {
+            if (CHECKPOINT_START.equals(record[0]) && record.length >= 2)
+            {
+                reportFile = record[1];
+            }
+            else if (CHECKPOINT_UNIT.equals(record[0]) && record.length >= 3)
+            {
+                units.add(new String[] { record[1], record[2] });
+            }
+            else if (CHECKPOINT_DONE.equals(record[0]) && record.length >= 3)
+            {
+                done.add(CommitJournal.encode(new String[] { record[1], record[2] }));
+            }
+        }
+        if (reportFile == null)
+        {
+            units.clear();
+        }
+    }
+
+    private synchronized void markDone(String[] unit)
+    {
+        unitsDone.incrementAndGet();
+        try
+        {
+            checkpointWriter.write(CommitJournal.encode(new String[] { CHECKPOINT_DONE, unit[0], unit[1] }) + "\n");
+            checkpointWriter.flush();
+            checkpointOut.getFD().sync();
+            reportWriter.flush();
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to write consistency scan checkpoint", e);
+        }
+    }
+
+    private synchronized void closeCheckpoint()
+    {
+        if (checkpointWriter != null)
+        {
+            try
+            {
+                checkpointWriter.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to close consistency scan checkpoint", e);
+            }
+            checkpointWriter = null;
+        }
+    }
+
+    public String getMetricsName()
+    {
+        return "verify";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("status", status);
+        metrics.put("repair", repair);
+        metrics.put("startTime", startTime);
+        metrics.put("report", reportFile == null ? "" : reportFile);
+        metrics.put("unitsTotal", unitsTotal.get());
+        metrics.put("unitsDone", unitsDone.get());
+        metrics.put("entriesScanned", entriesScanned.get());
+        metrics.put("directoriesScanned", directoriesScanned.get());
+        metrics.put("repaired", repaired.get());
+        for (Difference difference : Difference.values())
+        {
+            metrics.put(difference.name(), differences.get(difference).get());
+        }
+        return metrics;
+    }
+
+    /**
+     * A folder on the current walk path: its entries on disk so far and the records of its children
+     */
+    private static class Frame
+    {
+        final Path dir;
+        final String relDir;
+        final List<FileTransferInfoEntity> children;
+        final TreeMap<String, Boolean> entries = new TreeMap<String, Boolean>();
+        private TreeMap<String, FileTransferInfoEntity> rows;
+        //The records of files on other receiving volumes, which are not in rows
+        final List<FileTransferInfoEntity> volumeRows = new ArrayList<FileTransferInfoEntity>();
+
+        Frame(Path dir, String relDir, List<FileTransferInfoEntity> children)
+        {
+            this.dir = dir;
+            this.relDir = relDir;
+            this.children = children;
+        }
+
+        TreeMap<String, FileTransferInfoEntity> getRows()
+        {
+            if (rows == null)
+            {
+                rows = new TreeMap<String, FileTransferInfoEntity>();
+                for (FileTransferInfoEntity child : children)
+                {
+                    if (!child.isFolder() && child.getVolume() != null)
+                    {
+                        volumeRows.add(child);
+                    }
+                    else
+                    {
+                        rows.put(child.getContentName(), child);
+                    }
+                }
+            }
+            return rows;
+        }
+
+        FileTransferInfoEntity getRow(String name)
+        {
+            return getRows().get(name);
+        }
+    }
+
+    public void setReceiver(FileTransferReceiver receiver)
+    {
+        this.receiver = receiver;
+    }
+
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    public void setCheckpointFile(String checkpointFile)
+    {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setReportDirectory(String reportDirectory)
+    {
+        this.reportDirectory = reportDirectory;
+    }
+
+    /**
+     * @param maxEntriesPerSecond the most files and folders looked at per second, 0 for no limit
+     */
+    public void setMaxEntriesPerSecond(int maxEntriesPerSecond)
+    {
+        this.maxEntriesPerSecond = maxEntriesPerSecond;
+    }
+
+    /**
+     * @param throttleHours the hours, as "from-to", during which the scan is throttled. Empty to always throttle.
+     */
+    public void setThrottleHours(String throttleHours)
+    {
+        this.throttleHours = throttleHours;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Block signatures of received files and the deltas that rebuild a new version of a file from its current one, in the
+ * manner of rsync.
+ * <p>
+ * The signatures of a file are, for each block of blockSize bytes (the last may be shorter), the rsync rolling
+ * checksum of the block and its MD5. A sender that finds a block of the new version with the same signatures copies
+ * it from the current file; the rest is sent as data. A delta is a stream of:
+ * <ul>
+ * <li>the int {@link #MAGIC}, and the int block size, the long file size and the 16 byte
+ * {@link Signatures#getDigest digest} of the signatures it was made from;</li>
+ * <li>instructions, each a byte {@link #COPY} followed by the int index of the first block and the int number of
+ * blocks to copy from the current file, or a byte {@link #DATA} followed by the int length and that many bytes;</li>
+ * <li>the byte {@link #END} and the 16 byte MD5 of the new version.</li>
+ * </ul>
+ * All ints and longs are big-endian. A delta made from the signatures of other content than the current file, or
+ * that does not rebuild the new version it describes, is rejected.
+ */
+public class ContentDelta
+{
+    /**
+     * A delta is staged under the name of the content part it rebuilds with this suffix
+     */
+    public static final String DELTA_SUFFIX = ".delta";
+
+    public static final int MAGIC = 0x46545244;
+    public static final byte END = 0;
+    public static final byte COPY = 1;
+    public static final byte DATA = 2;
+
+    private static final int STRONG_LENGTH = 16;
+
+    /**
+     * The signatures of the blocks of a file
+     */
+    public static class Signatures
+    {
+        private final long size;
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[][] strong;
+
+        Signatures(long size, int blockSize, int[] weak, byte[][] strong)
+        {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public int getBlockSize()
+        {
+            return blockSize;
+        }
+
+        public int getBlockCount()
+        {
+            return weak.length;
+        }
+
+        /**
+         * @return the rolling checksum of a block
+         */
+        public int getWeak(int block)
+        {
+            return weak[block];
+        }
+
+        /**
+         * @return the MD5 of a block
+         */
+        public byte[] getStrong(int block)
+        {
+            return strong[block];
+        }
+
+        /**
+         * Write the long file size, the int block size, the int number of blocks and, for each block, its int
+         * rolling checksum and its 16 byte MD5
+         */
+        public void write(DataOutput out) throws IOException
+        {
+            out.writeLong(size);
+            out.writeInt(blockSize);
+            out.writeInt(weak.length);
+            for (int block = 0; block < weak.length; block++)
+            {
+                out.writeInt(weak[block]);
+                out.write(strong[block]);
+            }
+        }
+
+        /**
+         * @return the MD5 of the signatures as written by {@link #write}, which identifies the content they were
+         *         worked out from
+         */
+        public byte[] getDigest() throws IOException
+        {
+            MessageDigest md5 = newDigest("MD5");
+            DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), md5));
+            write(out);
+            out.flush();
+            return md5.digest();
+        }
+
+        public static Signatures read(DataInput in) throws IOException
+        {
+            long size = in.readLong();
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][STRONG_LENGTH];
+            for (int block = 0; block < count; block++)
+            {
+                weak[block] = in.readInt();
+                in.readFully(strong[block]);
+            }
+            return new Signatures(size, blockSize, weak, strong);
+        }
+    }
+
+    /**
+     * Work out the signatures of the blocks of a file
+     */
+    public static Signatures computeSignatures(File file, int blockSize) throws IOException
+    {
+        long size = file.length();
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        MessageDigest md5 = newDigest("MD5");
+        byte[] block = new byte[blockSize];
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+                readFully(in, block, length);
+                weak[i] = weakChecksum(block, 0, length);
+                md5.update(block, 0, length);
+                strong[i] = md5.digest();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return new Signatures(size, blockSize, weak, strong);
+    }
+
+    /**
+     * @return the rsync rolling checksum of the bytes: the sum of the bytes in the low 16 bits and the sum of the
+     *         running sums in the high 16 bits
+     */
+    public static int weakChecksum(byte[] bytes, int offset, int length)
+    {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++)
+        {
+            a += bytes[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Rebuild the new version of a file from its current version and a delta. Nothing should be kept of what was
+     * written if the delta is rejected.
+     *
+     * @param basisSignatures the signatures of the current version, which must be those the delta was made from
+     * @param digest updated with the bytes written, if not null
+     * @return the number of bytes written
+     * @throws IOException if the delta can't be read, was made from other content or does not rebuild the new
+     *             version it describes
+     */
+    public static long apply(File basis, Signatures basisSignatures, InputStream delta, OutputStream out,
+            MessageDigest digest) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta, 64 * 1024));
+        if (in.readInt() != MAGIC)
+        {
+            throw new IOException("Not a content delta");
+        }
+        int blockSize = in.readInt();
+        long basisSize = in.readLong();
+        byte[] signaturesDigest = new byte[STRONG_LENGTH];
+        in.readFully(signaturesDigest);
+        if (blockSize != basisSignatures.getBlockSize() || basisSize != basisSignatures.getSize()
+                || basisSize != basis.length() || !MessageDigest.isEqual(signaturesDigest,
+                        basisSignatures.getDigest()))
+        {
+            throw new IOException("Delta was made from other content than " + basis);
+        }
+        MessageDigest md5 = newDigest("MD5");
+        long written = 0L;
+        byte[] buffer = new byte[64 * 1024];
+        RandomAccessFile source = new RandomAccessFile(basis, "r");
+        try
+        {
+            while (true)
+            {
+                byte instruction = in.readByte();
+                long remaining;
+                if (instruction == END)
+                {
+                    break;
+                }
+                else if (instruction == COPY)
+                {
+                    long start = (long) in.readInt() * blockSize;
+                    long end = Math.min(basisSize, start + (long) in.readInt() * blockSize);
+                    if (start < 0 || start >= end)
+                    {
+                        throw new IOException("Delta copies blocks outside of " + basis);
+                    }
+                    source.seek(start);
+                    remaining = end - start;
+                    while (remaining > 0)
+                    {
+                        int read = (int) Math.min(buffer.length, remaining);
+                        source.readFully(buffer, 0, read);
+                        write(out, digest, md5, buffer, read);
+                        remaining -= read;
+                    }
+                    written += end - start;
+                }
+                else if (instruction == DATA)
+                {
+                    remaining = in.readInt();
+                    if (remaining < 0)
+                    {
+                        throw new IOException("Invalid delta data length " + remaining);
+                    }
+                    written += remaining;
+                    while (remaining > 0)
+                    {
+                        int read = (int) Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, read);
+                        write(out, digest, md5, buffer, read);
+                        remaining -= read;
+                    }
+                }
+                else
+                {
+                    throw new IOException("Unknown delta instruction " + instruction);
+                }
+            }
+            byte[] expected = new byte[STRONG_LENGTH];
+            in.readFully(expected);
+            if (!MessageDigest.isEqual(expected, md5.digest()))
+            {
+                throw new IOException("Content rebuilt from " + basis + " does not match its delta");
+            }
+        }
+        finally
+        {
+            source.close();
+        }
+        return written;
+    }
+
+    private static void write(OutputStream out, MessageDigest digest, MessageDigest md5, byte[] buffer, int length)
+            throws IOException
+    {
+        out.write(buffer, 0, length);
+        md5.update(buffer, 0, length);
+        if (digest != null)
+        {
+            digest.update(buffer, 0, length);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            int read = in.read(buffer, offset, length - offset);
+            if (read == -1)
+            {
+                throw new EOFException("File changed while its signatures were worked out");
+            }
+            offset += read;
+        }
+    }
+
+    static MessageDigest newDigest(String algorithm)
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform supports MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import org.alfresco.service.cmr.transfer.TransferException;
+
+/**
+ * Thrown when the upload of a content part stops before the end of the part. The bytes received so far remain
+ * staged and the upload can be resumed from {@link #getStagedLength()}; the transfer is not ended.
+ */
+public class ContentPartInterruptedException extends TransferException
+{
+    private static final long serialVersionUID = -2914402816934046418L;
+
+    private static final String MSG_CONTENT_PART_INTERRUPTED = "ftr.contentPartInterrupted";
+
+    private final String partName;
+    private final long stagedLength;
+
+    public ContentPartInterruptedException(String transferId, String partName, long stagedLength, Throwable cause)
+    {
+        super(MSG_CONTENT_PART_INTERRUPTED, new Object[] { transferId, partName, stagedLength }, cause);
+        this.partName = partName;
+        this.stagedLength = stagedLength;
+    }
+
+    public String getPartName()
+    {
+        return partName;
+    }
+
+    public long getStagedLength()
+    {
+        return stagedLength;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the block signatures of received files on disk, so that they are worked out once per version of a file rather
+ * than once per transfer.
+ * <p>
+ * Signatures are filed under the SHA-256 of the content they were worked out from, as recorded in
+ * alf_file_transfer_info, so a file whose content changes is never matched with the signatures of its old content,
+ * and files with the same content share their signatures. Files without a recorded checksum are not cached. When
+ * there are more than maxEntries signature files, the least recently used ones are removed.
+ */
+public class ContentSignatureCache
+{
+    private static final Log log = LogFactory.getLog(ContentSignatureCache.class);
+
+    private static final String SIGNATURE_SUFFIX = ".sig";
+
+    /**
+     * Number of signature files written between checks of maxEntries
+     */
+    private static final int EVICTION_INTERVAL = 100;
+
+    private String directory;
+    private int blockSize = 65536;
+    private int maxEntries = 10000;
+
+    private File cacheFolder;
+    private final AtomicInteger writesSinceEviction = new AtomicInteger();
+
+    public void init()
+    {
+        if (directory != null && directory.length() > 0)
+        {
+            cacheFolder = new File(directory);
+            if (!cacheFolder.exists() && !cacheFolder.mkdirs())
+            {
+                log.warn("Unable to create signature cache folder " + cacheFolder.getAbsolutePath()
+                        + ". Signatures will be worked out for every request.");
+                cacheFolder = null;
+            }
+        }
+    }
+
+    /**
+     * @param contentChecksum the recorded SHA-256 of the content of the file, or null if it isn't known
+     * @return the signatures of the file with the configured block size
+     */
+    public ContentDelta.Signatures getSignatures(File file, String contentChecksum) throws IOException
+    {
+        if (cacheFolder == null || contentChecksum == null)
+        {
+            return ContentDelta.computeSignatures(file, blockSize);
+        }
+        File signatureFile = new File(cacheFolder, contentChecksum + "-" + blockSize + SIGNATURE_SUFFIX);
+        ContentDelta.Signatures signatures = read(signatureFile);
+        if (signatures != null && signatures.getSize() == file.length())
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Using cached signatures of " + file);
+            }
+            signatureFile.setLastModified(System.currentTimeMillis());
+            return signatures;
+        }
+        signatures = ContentDelta.computeSignatures(file, blockSize);
+        write(signatureFile, signatures);
+        if (writesSinceEviction.incrementAndGet() >= EVICTION_INTERVAL)
+        {
+            writesSinceEviction.set(0);
+            evict();
+        }
+        return signatures;
+    }
+
+    private ContentDelta.Signatures read(File signatureFile)
+    {
+        if (!signatureFile.isFile())
+        {
+            return null;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(signatureFile)));
+            try
+            {
+                return ContentDelta.Signatures.read(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to read cached signatures " + signatureFile + ". They will be worked out again.", e);
+            return null;
+        }
+    }
+
+    private void write(File signatureFile, ContentDelta.Signatures signatures)
+    {
+        // Written under a temporary name so that a reader never sees a partial file
+        File tempFile = new File(cacheFolder, signatureFile.getName() + "." + Thread.currentThread().getId());
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try
+            {
+                signatures.write(out);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tempFile.renameTo(signatureFile))
+            {
+                signatureFile.delete();
+                if (!tempFile.renameTo(signatureFile))
+                {
+                    tempFile.delete();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to cache signatures " + signatureFile, e);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Remove the least recently used signature files beyond maxEntries
+     */
+    private void evict()
+    {
+        File[] files = cacheFolder.listFiles();
+        if (files == null || files.length <= maxEntries)
+        {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return Long.compare(lastModified[a], lastModified[b]);
+                }
+            });
+        int excess = files.length - maxEntries;
+        for (int i = 0; i < excess; i++)
+        {
+            files[order[i]].delete();
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Removed " + excess + " cached signature files");
+        }
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public void setDirectory(String directory)
+    {
+        this.directory = directory;
+    }
+
+    public void setBlockSize(int blockSize)
+    {
+        this.blockSize = blockSize;
+    }
+
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks the bytes of a partially staged content part.
+ * <p>
+ * A part is written to "&lt;partName&gt;.part" and only renamed to its final name once its upload completes. Each
+ * upload (the first one and each resume) that is interrupted appends a segment of offset, length and CRC32 to the
+ * "&lt;partName&gt;.part.ckpt" sidecar file. On resume the last segment is checked against the bytes on disk and
+ * dropped if it doesn't match, and the part file is truncated to the checkpointed length.
+ */
+public class ContentStagingCheckpoint
+{
+    private static final Log log = LogFactory.getLog(ContentStagingCheckpoint.class);
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String CHECKPOINT_SUFFIX = ".part.ckpt";
+
+    private final File partFile;
+    private final File checkpointFile;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * One contiguous range of staged bytes
+     */
+    public static class Segment
+    {
+        private final long offset;
+        private final long length;
+        private final long crc;
+
+        public Segment(long offset, long length, long crc)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public long getCrc()
+        {
+            return crc;
+        }
+    }
+
+    public ContentStagingCheckpoint(File stagingFolder, String partName)
+    {
+        this.partFile = new File(stagingFolder, partName + PART_SUFFIX);
+        this.checkpointFile = new File(stagingFolder, partName + CHECKPOINT_SUFFIX);
+    }
+
+    public File getPartFile()
+    {
+        return partFile;
+    }
+
+    public List<Segment> getSegments()
+    {
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * @return the number of bytes of the part that are safely staged
+     */
+    public long getStagedLength()
+    {
+        if (segments.isEmpty())
+        {
+            return 0L;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.offset + last.length;
+    }
+
+    /**
+     * Load the checkpoint, verify the last segment against the part file and truncate the part file to the verified
+     * length.
+     */
+    public void load() throws IOException
+    {
+        segments.clear();
+        if (!checkpointFile.exists() || !partFile.exists())
+        {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.trim().split(",");
+                if (fields.length != 3)
+                {
+                    // a torn last line
+                    break;
+                }
+                Segment segment = new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2], 16));
+                if (segment.offset != getStagedLength())
+                {
+                    break;
+                }
+                segments.add(segment);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // keep the segments read so far
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        int loaded = segments.size();
+        while (!segments.isEmpty() && !verify(segments.get(segments.size() - 1)))
+        {
+            Segment dropped = segments.remove(segments.size() - 1);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Dropping staged segment that doesn't match its checksum: " + partFile + " offset "
+                        + dropped.offset);
+            }
+        }
+        if (segments.size() != loaded)
+        {
+            writeAll();
+        }
+        truncate(getStagedLength());
+    }
+
+    /**
+     * Start writing from the given offset, which must be zero or the staged length. An offset of zero discards
+     * anything staged before.
+     */
+    public void truncate(long offset) throws IOException
+    {
+        if (offset == 0L)
+        {
+            segments.clear();
+            checkpointFile.delete();
+        }
+        if (partFile.exists() && partFile.length() != offset)
+        {
+            RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+            try
+            {
+                raf.setLength(offset);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Record a segment that has been written to the part file.
+     */
+    public void append(long offset, long length, long crc) throws IOException
+    {
+        if (length <= 0)
+        {
+            return;
+        }
+        Segment segment = new Segment(offset, length, crc);
+        segments.add(segment);
+        OutputStream out = new FileOutputStream(checkpointFile, true);
+        try
+        {
+            out.write(format(segment).getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * The part is complete: remove the checkpoint.
+     */
+    public void delete()
+    {
+        segments.clear();
+        checkpointFile.delete();
+    }
+
+    private void writeAll() throws IOException
+    {
+        OutputStream out = new FileOutputStream(checkpointFile, false);
+        try
+        {
+            for (Segment segment : segments)
+            {
+                out.write(format(segment).getBytes("UTF-8"));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private boolean verify(Segment segment) throws IOException
+    {
+        if (partFile.length() < segment.offset + segment.length)
+        {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(partFile);
+        try
+        {
+            long toSkip = segment.offset;
+            while (toSkip > 0)
+            {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0)
+                {
+                    return false;
+                }
+                toSkip -= skipped;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = segment.length;
+            while (remaining > 0)
+            {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1)
+                {
+                    return false;
+                }
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return crc.getValue() == segment.crc;
+    }
+
+    private static String format(Segment segment)
+    {
+        return segment.offset + "," + segment.length + "," + Long.toHexString(segment.crc) + "\n";
+    }
+}
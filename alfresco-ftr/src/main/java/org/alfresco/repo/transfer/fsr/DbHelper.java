@@ -34,12 +34,32 @@ public interface DbHelper
 
     List<FileTransferInfoEntity> findFileTransferInfoByParentNodeRef(final String nodeRef);
 
+    List<FileTransferInfoEntity> findFileTransferInfoByContentNamePrefix(final String prefix);
+
     void updateFileTransferInfoByNodeRef(final FileTransferInfoEntity modifiedEntity);
 
+    /**
+     * Update the records of several nodes in one transaction
+     */
+    void updateFileTransferInfoByNodeRefs(final List<FileTransferInfoEntity> modifiedEntities);
+
     void deleteNodeByNodeRef(final String nodeRef);
 
+    /**
+     * Delete the records of several nodes in one transaction
+     */
+    void deleteNodesByNodeRef(final List<String> nodeRefs);
+
     void createNodeInDB(final String nodeRef, final String parentNodeRef, final String path, final String name,
             final String contentUrl, final boolean isFolder);
+
+    /**
+     * Record a file together with the size and checksum of its content
+     *
+     * @param volume the receiving volume the file is written to, or null for the default receiving root
+     */
+    void createNodeInDB(final String nodeRef, final String parentNodeRef, final String path, final String name,
+            final String contentUrl, final long contentSize, final String contentChecksum, final String volume);
     
     void updatePathOfChildren(final String parentId, final String parentPath);
 }
\ No newline at end of file
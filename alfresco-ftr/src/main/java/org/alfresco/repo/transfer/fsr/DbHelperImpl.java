@@ -90,6 +90,23 @@ public class DbHelperImpl implements DbHelper
         return fileTransferInfoEntityList;
     }
 
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.transfer.fsr.DbHelper#findFileTransferInfoByContentNamePrefix(java.lang.String)
+     */
+    public List<FileTransferInfoEntity> findFileTransferInfoByContentNamePrefix(final String prefix)
+    {
+        RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
+
+        return txHelper.doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<List<FileTransferInfoEntity>>()
+                    {
+                        public List<FileTransferInfoEntity> execute() throws Throwable
+                        {
+                            return fileTransferInfoDAO.findFileTransferInfoByContentNamePrefix(prefix);
+                        }
+                    }, true, false);
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.repo.transfer.fsr.DbHelper#updateFileTransferInfoByNodeRef(org.alfresco.repo.transfer.fsr.FileTransferInfoEntity)
      */
@@ -107,6 +124,26 @@ public class DbHelperImpl implements DbHelper
             }, false, false);
     }
 
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.transfer.fsr.DbHelper#updateFileTransferInfoByNodeRefs(java.util.List)
+     */
+    public void updateFileTransferInfoByNodeRefs(final List<FileTransferInfoEntity> modifiedEntities)
+    {
+        RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
+
+        txHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (FileTransferInfoEntity modifiedEntity : modifiedEntities)
+                    {
+                        fileTransferInfoDAO.updateFileTransferInfoByNodeRef(modifiedEntity);
+                    }
+                    return null;
+                }
+            }, false, false);
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.repo.transfer.fsr.DbHelper#deleteNodeByNodeRef(java.lang.String)
      */
@@ -124,11 +161,44 @@ public class DbHelperImpl implements DbHelper
             }, false, false);
     }
 
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.transfer.fsr.DbHelper#deleteNodesByNodeRef(java.util.List)
+     */
+    public void deleteNodesByNodeRef(final List<String> nodeRefs)
+    {
+        RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
+
+        txHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    fileTransferInfoDAO.deleteFileTransferInfoByNodeRefs(nodeRefs);
+                    return null;
+                }
+            }, false, false);
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.repo.transfer.fsr.DbHelper#createNodeInDB(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String, boolean)
      */
     public void createNodeInDB(final String nodeRef, final String parentNodeRef, final String path, final String name, 
             final String contentUrl, final boolean isFolder)
+    {
+        createNodeInDB(nodeRef, parentNodeRef, path, name, contentUrl, isFolder, 0L, null, null);
+    }
+
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.transfer.fsr.DbHelper#createNodeInDB(java.lang.String, java.lang.String, java.lang.String, java.lang.String, java.lang.String, long, java.lang.String, java.lang.String)
+     */
+    public void createNodeInDB(final String nodeRef, final String parentNodeRef, final String path, final String name,
+            final String contentUrl, final long contentSize, final String contentChecksum, final String volume)
+    {
+        createNodeInDB(nodeRef, parentNodeRef, path, name, contentUrl, false, contentSize, contentChecksum, volume);
+    }
+
+    private void createNodeInDB(final String nodeRef, final String parentNodeRef, final String path,
+            final String name, final String contentUrl, final boolean isFolder, final long contentSize,
+            final String contentChecksum, final String volume)
     {
         RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
         txHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
@@ -136,7 +206,7 @@ public class DbHelperImpl implements DbHelper
                 public Void execute() throws Throwable
                 {
                     fileTransferInfoDAO.createFileTransferInfo(nodeRef, parentNodeRef, path, name,
-                            contentUrl, isFolder, sourceRepoId);
+                            contentUrl, isFolder, sourceRepoId, contentSize, contentChecksum, volume);
                     return null;
                 }
             }, false, false);
@@ -147,28 +217,15 @@ public class DbHelperImpl implements DbHelper
         RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
         txHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
             {
-                private void updatePath(String parentId, String parentPath)
+                public Void execute() throws Throwable
                 {
-                    fileTransferInfoDAO.updatePathOfChildren(parentId, parentPath);
-                    List<FileTransferInfoEntity> children = findFileTransferInfoByParentNodeRef(parentId);
-                    for (FileTransferInfoEntity child : children)
+                    if (log.isDebugEnabled())
                     {
-                        if (child.isFolder())
-                        {
-                            String childPath = parentPath + child.getContentName() + "/";
-                            if (log.isDebugEnabled())
-                            {
-                                log.debug("Updating child paths of node " + child.getNodeRef() + " (" + 
-                                        child.getContentName() + "). New parent path for children is " + childPath);
-                            }
-                            updatePath(child.getNodeRef(), childPath);
-                        }
+                        log.debug("Updating paths below node " + parentId + ". New parent path for children is "
+                                + parentPath);
                     }
-                }
-            
-                public Void execute() throws Throwable
-                {
-                    updatePath(parentId, parentPath);
+                    //In one go, so that a store that logs its changes writes the whole subtree as one change
+                    fileTransferInfoDAO.updatePathOfDescendants(parentId, parentPath);
                     return null;
                 }
             }, false, false);
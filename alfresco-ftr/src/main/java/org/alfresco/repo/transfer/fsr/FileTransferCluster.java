@@ -0,0 +1,288 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transfer.TransferModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Membership of this receiver in a cluster of receivers that share a database and a receiving root.
+ * <p>
+ * Each node is known by an id and the base URL at which the other nodes reach it. A transfer belongs to the node that
+ * began it, which holds its staging folder; the id of that node is part of the transfer id, so that any node can route
+ * the calls for a transfer to its owner. Transfers proceed on several nodes at a time, but their commits, which write
+ * to the shared root and database, are serialised by a commit lock held in the database through the
+ * {@link JobLockService}.
+ * <p>
+ * With no node id the receiver is not clustered and none of this applies.
+ */
+public class FileTransferCluster
+{
+    private static final Log log = LogFactory.getLog(FileTransferCluster.class);
+
+    /** Separates the owner node id from the rest of the id of a transfer */
+    public static final char OWNER_SEPARATOR = '~';
+
+    private static final String MSG_COMMIT_LOCK_LOST = "ftr.commitLockLost";
+
+    private static final QName COMMIT_LOCK = QName.createQName(TransferModel.TRANSFER_MODEL_1_0_URI,
+            "transfer.server.commit");
+
+    private String nodeId;
+    private Map<String, String> nodeUrls = new LinkedHashMap<String, String>();
+    private JobLockService jobLockService;
+    private SchemaBootstrap schemaBootstrap;
+    private long commitLockTimeToLive = 60000L;
+    private long commitLockRetryWait = 1000L;
+    private long commitLockWait = 30L * 60L * 1000L;
+
+    public boolean isClustered()
+    {
+        return nodeId != null;
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * @return the id of the node reference of a transfer begun on this node
+     */
+    public String ownedNodeId(String id)
+    {
+        return isClustered() ? nodeId + OWNER_SEPARATOR + id : id;
+    }
+
+    /**
+     * @return the id of the node that owns the transfer, null if the transfer id does not name one
+     */
+    public String getOwner(String transferId)
+    {
+        if (transferId == null || transferId.length() == 0)
+        {
+            return null;
+        }
+        String id = NodeRef.isNodeRef(transferId) ? new NodeRef(transferId).getId() : transferId;
+        int separator = id.indexOf(OWNER_SEPARATOR);
+        return separator > 0 ? id.substring(0, separator) : null;
+    }
+
+    /**
+     * @return true if the transfer is to be handled here, i.e. the receiver is not clustered, the transfer is owned
+     *         by this node or its owner is not known
+     */
+    public boolean isLocal(String transferId)
+    {
+        String owner = getOwner(transferId);
+        return !isClustered() || owner == null || owner.equals(nodeId);
+    }
+
+    /**
+     * @return the base URL of the node, null if it is not configured
+     */
+    public String getNodeUrl(String nodeId)
+    {
+        return nodeUrls.get(nodeId);
+    }
+
+    /**
+     * Wait for the commit lock of the cluster and keep it until the returned lock is released. Not clustered, there is
+     * nothing to wait for.
+     *
+     * @throws TransferException if the lock could not be taken within <code>commitLockWait</code>
+     */
+    public CommitLock acquireCommitLock()
+    {
+        if (!isClustered())
+        {
+            return new CommitLock(null);
+        }
+        //The lock table may still be being created or upgraded when the lock is taken during startup
+        if (schemaBootstrap != null)
+        {
+            schemaBootstrap.awaitSchema();
+        }
+        long deadline = System.currentTimeMillis() + commitLockWait;
+        while (true)
+        {
+            try
+            {
+                String token = jobLockService.getLock(COMMIT_LOCK, commitLockTimeToLive);
+                CommitLock lock = new CommitLock(token);
+                jobLockService.refreshLock(token, COMMIT_LOCK, commitLockTimeToLive, lock);
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Node " + nodeId + " holds the commit lock");
+                }
+                return lock;
+            }
+            catch (LockAcquisitionException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    throw new TransferException("ftr.commitLockUnavailable", new Object[] { nodeId }, e);
+                }
+                try
+                {
+                    Thread.sleep(commitLockRetryWait);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new TransferException("ftr.commitLockUnavailable", new Object[] { nodeId }, ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * The commit lock of the cluster, kept by refreshing it until it is released. A commit calls {@link #checkHeld()}
+     * between its phases, so that a node that lost the lock stops writing to the shared root and database.
+     */
+    public class CommitLock implements JobLockService.JobLockRefreshCallback
+    {
+        private final String token;
+        private volatile boolean active;
+
+        CommitLock(String token)
+        {
+            this.token = token;
+            this.active = token != null;
+        }
+
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        public void lockReleased()
+        {
+            if (active)
+            {
+                active = false;
+                log.error("Node " + nodeId + " lost the commit lock before the end of its commit");
+            }
+        }
+
+        /**
+         * @throws TransferException if the receiver is clustered and the lock was lost before it was released
+         */
+        public void checkHeld()
+        {
+            if (token != null && !active)
+            {
+                throw new TransferException(MSG_COMMIT_LOCK_LOST, new Object[] { nodeId });
+            }
+        }
+
+        public void release()
+        {
+            if (active)
+            {
+                active = false;
+                jobLockService.releaseLock(token, COMMIT_LOCK);
+            }
+        }
+    }
+
+    /**
+     * @param nodeId the id of this node, letters, digits, '-' and '_' only. Empty if the receiver is not clustered.
+     */
+    public void setNodeId(String nodeId)
+    {
+        nodeId = nodeId == null ? null : nodeId.trim();
+        if (nodeId != null && !nodeId.matches("[A-Za-z0-9_-]*"))
+        {
+            throw new IllegalArgumentException("Invalid cluster node id: " + nodeId);
+        }
+        this.nodeId = nodeId == null || nodeId.length() == 0 ? null : nodeId;
+    }
+
+    /**
+     * @param nodeUrls the base URLs of the nodes, as "nodeId=http://host:port/alfresco-ftr,..."
+     */
+    public void setNodeUrls(String nodeUrls)
+    {
+        this.nodeUrls = new LinkedHashMap<String, String>();
+        if (nodeUrls != null)
+        {
+            for (String entry : nodeUrls.split(","))
+            {
+                int eq = entry.indexOf('=');
+                if (eq > 0)
+                {
+                    String url = entry.substring(eq + 1).trim();
+                    while (url.endsWith("/"))
+                    {
+                        url = url.substring(0, url.length() - 1);
+                    }
+                    this.nodeUrls.put(entry.substring(0, eq).trim(), url);
+                }
+            }
+        }
+    }
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param schemaBootstrap the bootstrap of the tables, awaited before the commit lock is taken
+     */
+    public void setSchemaBootstrap(SchemaBootstrap schemaBootstrap)
+    {
+        this.schemaBootstrap = schemaBootstrap;
+    }
+
+    public void setCommitLockTimeToLive(long commitLockTimeToLive)
+    {
+        this.commitLockTimeToLive = commitLockTimeToLive;
+    }
+
+    public void setCommitLockRetryWait(long commitLockRetryWait)
+    {
+        this.commitLockRetryWait = commitLockRetryWait;
+    }
+
+    /**
+     * @param commitLockWait the time in milliseconds a commit waits for the commit lock before it fails
+     */
+    public void setCommitLockWait(long commitLockWait)
+    {
+        this.commitLockWait = commitLockWait;
+    }
+}
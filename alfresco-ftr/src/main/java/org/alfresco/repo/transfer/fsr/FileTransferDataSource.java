@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The connection pool of the File Transfer Receiver.
+ * <p>
+ * Unless its size is given, the pool holds a connection for each thread of the commit executor plus a headroom for
+ * the requests, the janitor and the consistency scanner running alongside a commit. The time taken to get each
+ * connection is measured and published through the metrics command, and a wait that runs out is reported as a
+ * {@link ConnectionPoolExhaustedException} rather than as a general pool error.
+ */
+public class FileTransferDataSource extends BasicDataSource implements FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(FileTransferDataSource.class);
+
+    private int poolSize = 0;
+    private int commitParallelism = 1;
+    private int poolHeadroom = 4;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong acquireNanos = new AtomicLong();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Size the pool. Called before the first connection is taken, which creates the pool.
+     */
+    public void init()
+    {
+        int size = poolSize > 0 ? poolSize : commitParallelism + poolHeadroom;
+        setMaxActive(size);
+        setMaxIdle(size);
+        if (log.isDebugEnabled())
+        {
+            log.debug("Database connection pool of " + size + " connections, waiting at most " + getMaxWait()
+                    + "ms for one; prepared statement pooling " + (isPoolPreparedStatements() ? "on" : "off"));
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            Connection connection = super.getConnection();
+            record(System.nanoTime() - start);
+            return connection;
+        }
+        catch (SQLException e)
+        {
+            if (e.getCause() instanceof NoSuchElementException)
+            {
+                exhausted.incrementAndGet();
+                log.warn("Database connection pool exhausted: " + getNumActive() + " of " + getMaxActive()
+                        + " connections in use");
+                throw new ConnectionPoolExhaustedException(getMaxActive(), getMaxWait(), e);
+            }
+            throw e;
+        }
+    }
+
+    private void record(long nanos)
+    {
+        acquired.incrementAndGet();
+        acquireNanos.addAndGet(nanos);
+        long max = maxAcquireNanos.get();
+        while (nanos > max && !maxAcquireNanos.compareAndSet(max, nanos))
+        {
+            max = maxAcquireNanos.get();
+        }
+    }
+
+    public String getMetricsName()
+    {
+        return "connectionPool";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        long count = acquired.get();
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("maxActive", getMaxActive());
+        metrics.put("active", getNumActive());
+        metrics.put("idle", getNumIdle());
+        metrics.put("acquired", count);
+        metrics.put("averageAcquireMicros", count == 0 ? 0L : acquireNanos.get() / count / 1000L);
+        metrics.put("maxAcquireMicros", maxAcquireNanos.get() / 1000L);
+        metrics.put("exhausted", exhausted.get());
+        metrics.put("preparedStatementPooling", isPoolPreparedStatements());
+        return metrics;
+    }
+
+    /**
+     * @param poolSize the number of connections; 0 to size the pool from the commit executor
+     */
+    public void setPoolSize(int poolSize)
+    {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param commitParallelism the number of threads of the commit executor, each holding a connection
+     */
+    public void setCommitParallelism(int commitParallelism)
+    {
+        this.commitParallelism = commitParallelism;
+    }
+
+    /**
+     * @param poolHeadroom the connections kept beyond those of the commit executor
+     */
+    public void setPoolHeadroom(int poolHeadroom)
+    {
+        this.poolHeadroom = poolHeadroom;
+    }
+}
@@ -40,16 +40,28 @@ public interface FileTransferInfoDAO
             String content_name,
             String contentUrl,
             boolean isFolder,
-            String sourceRepoId);
+            String sourceRepoId,
+            long contentSize,
+            String contentChecksum,
+            String volume);
 
     FileTransferInfoEntity findFileTransferInfoByNodeRef(String nodeRef);
 
     List<FileTransferInfoEntity> findFileTransferInfoByParentNodeRef(String nodeRef);
 
+    List<FileTransferInfoEntity> findFileTransferInfoByContentNamePrefix(String prefix);
+
+    /**
+     * @return up to maxResults entities with an id greater than afterId, in order of id
+     */
+    List<FileTransferInfoEntity> findFileTransferInfoAfterId(long afterId, int maxResults);
+
     void updateFileTransferInfoByNodeRef(FileTransferInfoEntity modifiedEntity);
 
     void deleteFileTransferInfoByNodeRef(String nodeRef);
 
+    void deleteFileTransferInfoByNodeRefs(List<String> nodeRefs);
+
     FileTransferNodeRenameEntity createFileTransferNodeRenameEntity(String noderef, String transferId, String newName);
 
     void deleteNodeRenameByTransferIdAndNodeRef(String transferId, String nodeRef);
@@ -57,4 +69,10 @@ public interface FileTransferInfoDAO
     List<FileTransferNodeRenameEntity> findFileTransferNodeRenameEntityByTransferId(String transferId);
 
     void updatePathOfChildren(String parentId, String newPath);
+
+    /**
+     * Set the path of every node below a folder: the children of the folder get newPath, and the children of each
+     * folder below it the path of that folder
+     */
+    void updatePathOfDescendants(String parentId, String newPath);
 }
@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.ibatis.session.RowBounds;
 import org.mybatis.spring.SqlSessionTemplate;
 
 public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
@@ -40,7 +41,10 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
     private static final String UPDATE_FTI_BY_NODEREF = "alfresco.filetransferinfo.update_FileTransferInfoByNodeRef";
     private static final String UPDATE_PATH_BY_PARENT = "alfresco.filetransferinfo.update_PathByParent";
     private static final String SELECT_FTI_BY_PARENT_NODEREF = "alfresco.filetransferinfo.select_FileTransferInfoByParentNodeRef";
+    private static final String SELECT_FTI_BY_CONTENT_NAME_PREFIX = "alfresco.filetransferinfo.select_FileTransferInfoByContentNamePrefix";
+    private static final String SELECT_FTI_AFTER_ID = "alfresco.filetransferinfo.select_FileTransferInfoAfterId";
     private static final String DELETE_FILE_TRANSFER_INFO_BY_NODEREF = "alfresco.filetransferinfo.delete_FileTransferInfoByNodeRef";
+    private static final String DELETE_FILE_TRANSFER_INFO_BY_NODEREFS = "alfresco.filetransferinfo.delete_FileTransferInfoByNodeRefs";
     private static final String INSERT_FTNR = "alfresco.filetransfer.insert.insert_FileTransferNodeRename";
     private static final String DELETE_FILE_TRANSFER_RENAME_BY_ID = "alfresco.filetransferinfo.delete_FileTransferNodeRenameByTransferId";
     private static final String SELECT_FILE_TRANSFER_RENAME_BY_TRANSFER_ID = "alfresco.filetransferinfo.select_FileTransferRenameByTransferId";
@@ -58,7 +62,10 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
             String content_name,
             String contentUrl,
             boolean isFolder,
-            String sourceRepoId)
+            String sourceRepoId,
+            long contentSize,
+            String contentChecksum,
+            String volume)
     {
         FileTransferInfoEntity entity = new FileTransferInfoEntity();
         entity.setNodeRef(nodeRef);
@@ -68,6 +75,9 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
         entity.setContentUrl(contentUrl);
         entity.setFolder(isFolder);
         entity.setSourceRepoId(sourceRepoId);
+        entity.setContentSize(contentSize);
+        entity.setContentChecksum(contentChecksum);
+        entity.setVolume(volume);
         template.insert(INSERT_FTI, entity);
         return entity;
     }
@@ -90,6 +100,21 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
         return template.selectList(SELECT_FTI_BY_PARENT_NODEREF, nodeRef);
     }
 
+    @SuppressWarnings("unchecked")
+    public List<FileTransferInfoEntity> findFileTransferInfoByContentNamePrefix(String prefix)
+    {
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("prefix", prefix + "%");
+        return template.selectList(SELECT_FTI_BY_CONTENT_NAME_PREFIX, params);
+    }
+
+    public List<FileTransferInfoEntity> findFileTransferInfoAfterId(long afterId, int maxResults)
+    {
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("afterId", afterId);
+        return template.selectList(SELECT_FTI_AFTER_ID, params, new RowBounds(0, maxResults));
+    }
+
     public void updateFileTransferInfoByNodeRef(FileTransferInfoEntity modifiedEntity)
     {
         template.update(UPDATE_FTI_BY_NODEREF,modifiedEntity);
@@ -102,6 +127,17 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
         template.delete(DELETE_FILE_TRANSFER_INFO_BY_NODEREF, params);
     }
 
+    public void deleteFileTransferInfoByNodeRefs(List<String> nodeRefs)
+    {
+        if (nodeRefs.isEmpty())
+        {
+            return;
+        }
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("nodeRefs", nodeRefs);
+        template.delete(DELETE_FILE_TRANSFER_INFO_BY_NODEREFS, params);
+    }
+
     public FileTransferNodeRenameEntity createFileTransferNodeRenameEntity(String noderef, String transferId, String newName)
     {
         FileTransferNodeRenameEntity newNameEntity = new FileTransferNodeRenameEntity();
@@ -137,4 +173,16 @@ public class FileTransferInfoDAOImpl implements FileTransferInfoDAO
         template.update(UPDATE_PATH_BY_PARENT, params);
     }
 
+    public void updatePathOfDescendants(String parentId, String newPath)
+    {
+        updatePathOfChildren(parentId, newPath);
+        for (FileTransferInfoEntity child : findFileTransferInfoByParentNodeRef(parentId))
+        {
+            if (child.isFolder())
+            {
+                updatePathOfDescendants(child.getNodeRef(), newPath + child.getContentName() + "/");
+            }
+        }
+    }
+
 }
@@ -35,6 +35,9 @@ public class FileTransferInfoEntity
     private String contentUrl;
     private boolean folder;
     private String sourceRepoId;
+    private long contentSize;
+    private String contentChecksum;
+    private String volume;
 
     public FileTransferInfoEntity()
     {
@@ -119,4 +122,40 @@ public class FileTransferInfoEntity
     {
         this.sourceRepoId = sourceRepoId;
     }
+
+    public long getContentSize()
+    {
+        return contentSize;
+    }
+
+    public void setContentSize(long contentSize)
+    {
+        this.contentSize = contentSize;
+    }
+
+    /**
+     * @return the SHA-256 of the file's content in hex, or null if it is not known
+     */
+    public String getContentChecksum()
+    {
+        return contentChecksum;
+    }
+
+    public void setContentChecksum(String contentChecksum)
+    {
+        this.contentChecksum = contentChecksum;
+    }
+
+    /**
+     * @return the name of the receiving volume the file is written to, or null for the default receiving root
+     */
+    public String getVolume()
+    {
+        return volume;
+    }
+
+    public void setVolume(String volume)
+    {
+        this.volume = volume;
+    }
 }
@@ -0,0 +1,230 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+import org.alfresco.repo.transfer.manifest.XMLTransferManifestReader;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Thread-safe parser for snapshot manifests.
+ * <p>
+ * The parser factories are looked up once and SAX parsers are pooled, so a commit or requisite does not pay for the
+ * service-loader lookup and parser construction each time. With the "stax" parser type manifests are read by the
+ * {@link StaxTransferManifestReader}, which shares QNames between manifests; the default "sax" parser type uses
+ * XMLTransferManifestReader as before.
+ * <p>
+ * Snapshots of at least parallelThresholdMB, compressed or not, are parsed in chunks on parallelism threads by the
+ * {@link ChunkedManifestParser}.
+ */
+public class FileTransferManifestParser
+{
+    private final static Log log = LogFactory.getLog(FileTransferManifestParser.class);
+
+    public static final String PARSER_TYPE_SAX = "sax";
+    public static final String PARSER_TYPE_STAX = "stax";
+
+    /**
+     * Don't let the QName cache grow without limit if the manifests carry many distinct QNames
+     */
+    private static final int MAX_CACHED_QNAMES = 10000;
+
+    private String parserType = PARSER_TYPE_SAX;
+    private int poolSize = 4;
+    private int parallelism = 1;
+    private long parallelThresholdMB = 256;
+    private long chunkSizeMB = 16;
+
+    private SAXParserFactory saxParserFactory;
+    private XMLInputFactory xmlInputFactory;
+    private BlockingQueue<SAXParser> saxParsers;
+    private final Map<String, QName> qnameCache = new ConcurrentHashMap<String, QName>();
+    private ChunkedManifestParser chunkedParser;
+    private volatile boolean initialised = false;
+
+    public synchronized void init()
+    {
+        if (initialised)
+        {
+            return;
+        }
+        if (!PARSER_TYPE_SAX.equals(parserType) && !PARSER_TYPE_STAX.equals(parserType))
+        {
+            throw new IllegalArgumentException("Unknown manifest parser type: " + parserType);
+        }
+        saxParserFactory = SAXParserFactory.newInstance();
+        saxParsers = new ArrayBlockingQueue<SAXParser>(Math.max(1, poolSize));
+
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        if (parallelism > 1)
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "FileTransferManifestParser-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            chunkedParser = new ChunkedManifestParser(this, executor, chunkSizeMB * 1024 * 1024, parallelism * 2);
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Manifest parser type: " + parserType + ", parallelism: " + parallelism);
+        }
+        initialised = true;
+    }
+
+    /**
+     * Parse a manifest, passing its header and nodes to the processor.
+     * 
+     * @param in the manifest, closed by the caller
+     * @param processor the manifest processor
+     */
+    public void parse(InputStream in, TransferManifestProcessor processor) throws Exception
+    {
+        if (!initialised)
+        {
+            init();
+        }
+
+        if (PARSER_TYPE_STAX.equals(parserType))
+        {
+            if (qnameCache.size() > MAX_CACHED_QNAMES)
+            {
+                qnameCache.clear();
+            }
+            new StaxTransferManifestReader(xmlInputFactory, qnameCache).parse(in, processor);
+        }
+        else
+        {
+            SAXParser parser = borrowSaxParser();
+            try
+            {
+                parser.parse(in, new XMLTransferManifestReader(processor));
+            }
+            finally
+            {
+                parser.reset();
+                saxParsers.offer(parser);
+            }
+        }
+    }
+
+    /**
+     * Parse a snapshot, in chunks on several threads if it is large enough for that to pay.
+     * 
+     * @param in the snapshot, uncompressed, closed by the caller
+     * @param size the uncompressed size of the snapshot, as far as it is known
+     */
+    public void parseSnapshot(InputStream in, long size, TransferManifestProcessor processor) throws Exception
+    {
+        if (!initialised)
+        {
+            init();
+        }
+
+        if (chunkedParser != null && size >= parallelThresholdMB * 1024 * 1024)
+        {
+            chunkedParser.parse(in, processor);
+        }
+        else
+        {
+            parse(in, processor);
+        }
+    }
+
+    private SAXParser borrowSaxParser() throws ParserConfigurationException, SAXException
+    {
+        SAXParser parser = saxParsers.poll();
+        if (parser == null)
+        {
+            // SAXParserFactory is not guaranteed to be thread-safe
+            synchronized (saxParserFactory)
+            {
+                parser = saxParserFactory.newSAXParser();
+            }
+        }
+        return parser;
+    }
+
+    public void setParserType(String parserType)
+    {
+        this.parserType = parserType == null ? PARSER_TYPE_SAX : parserType.trim().toLowerCase();
+    }
+
+    public String getParserType()
+    {
+        return parserType;
+    }
+
+    public void setPoolSize(int poolSize)
+    {
+        this.poolSize = poolSize;
+    }
+
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    public void setParallelThresholdMB(long parallelThresholdMB)
+    {
+        this.parallelThresholdMB = parallelThresholdMB;
+    }
+
+    public void setChunkSizeMB(long chunkSizeMB)
+    {
+        this.chunkSizeMB = chunkSizeMB;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.transaction.TransactionService;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Command line tool for the metadata stores of the File Transfer Receiver.
+ * <p>
+ * <code>migrate &lt;from&gt; &lt;to&gt;</code> copies the node records from one store ("sql" or "kv") to the other,
+ * which should be empty. It must run while the receiver is stopped; the renames of a commit in progress are not
+ * copied, so the receiver should have been stopped between transfers. The receiver is then switched to the new
+ * store with <code>fileTransferReceiver.metadataStore</code>.
+ * <p>
+ * <code>benchmark &lt;nodes&gt;</code> times the operations of a commit against both stores with records of its
+ * own, which it deletes afterwards. Both stores are those configured, so point
+ * <code>fileTransferReceiver.jdbcUrl</code> and <code>fileTransferReceiver.metadataDirectory</code> at scratch
+ * locations with system properties to leave a receiver's data untouched.
+ */
+public class FileTransferMetadataTool
+{
+    private static final int PAGE_SIZE = 1000;
+    private static final int CHILDREN_PER_FOLDER = 100;
+
+    public static void main(String[] args)
+    {
+        if (args.length == 3 && args[0].equals("migrate"))
+        {
+            run(args);
+        }
+        else if (args.length == 2 && args[0].equals("benchmark"))
+        {
+            run(args);
+        }
+        else
+        {
+            System.err.println("Usage: FileTransferMetadataTool migrate <sql|kv> <sql|kv>");
+            System.err.println("       FileTransferMetadataTool benchmark <nodes>");
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String[] args)
+    {
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("alfresco/fsr-bootstrap-context.xml");
+        try
+        {
+            RetryingTransactionHelper txHelper = ((TransactionService) context.getBean("transactionService"))
+                    .getRetryingTransactionHelper();
+            if (args[0].equals("migrate"))
+            {
+                Store from = new Store(args[1], context, txHelper);
+                Store to = new Store(args[2], context, txHelper);
+                if (from.name.equals(to.name))
+                {
+                    throw new IllegalArgumentException("Source and target store are both " + from.name);
+                }
+                migrate(from, to);
+            }
+            else
+            {
+                int nodes = Integer.parseInt(args[1]);
+                benchmark(new Store("sql", context, txHelper), nodes);
+                benchmark(new Store("kv", context, txHelper), nodes);
+            }
+        }
+        finally
+        {
+            context.close();
+        }
+    }
+
+    private static void migrate(final Store from, final Store to)
+    {
+        long start = System.currentTimeMillis();
+        long afterId = 0L;
+        long copied = 0L;
+        while (true)
+        {
+            final long pageAfterId = afterId;
+            List<FileTransferInfoEntity> page = from.inTransaction(
+                    new RetryingTransactionHelper.RetryingTransactionCallback<List<FileTransferInfoEntity>>()
+                    {
+                        public List<FileTransferInfoEntity> execute() throws Throwable
+                        {
+                            return from.dao.findFileTransferInfoAfterId(pageAfterId, PAGE_SIZE);
+                        }
+                    }, true);
+            if (page.isEmpty())
+            {
+                break;
+            }
+            final List<FileTransferInfoEntity> entities = page;
+            to.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (FileTransferInfoEntity entity : entities)
+                    {
+                        to.dao.createFileTransferInfo(entity.getNodeRef(), entity.getParent(), entity.getPath(),
+                                entity.getContentName(), entity.getContentUrl(), entity.isFolder(),
+                                entity.getSourceRepoId(), entity.getContentSize(), entity.getContentChecksum(),
+                                entity.getVolume());
+                    }
+                    return null;
+                }
+            }, false);
+            copied += page.size();
+            afterId = page.get(page.size() - 1).getId();
+            System.out.println("Copied " + copied + " node records");
+        }
+        System.out.println("Migrated " + copied + " node records from " + from.name + " to " + to.name + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static void benchmark(final Store store, final int nodes)
+    {
+        final String prefix = "benchmark-" + System.currentTimeMillis() + "-";
+        final String root = prefix + "root";
+        final List<String> nodeRefs = new ArrayList<String>(nodes);
+        for (int i = 0; i < nodes; i++)
+        {
+            nodeRefs.add(prefix + i);
+        }
+
+        long start = System.nanoTime();
+        store.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                store.dao.createFileTransferInfo(root, null, "/", root, null, true, "benchmark", 0L, null, null);
+                for (int i = 0; i < nodes; i++)
+                {
+                    boolean folder = i % CHILDREN_PER_FOLDER == 0;
+                    String parent = i < CHILDREN_PER_FOLDER ? root : nodeRefs.get(i / CHILDREN_PER_FOLDER * CHILDREN_PER_FOLDER);
+                    store.dao.createFileTransferInfo(nodeRefs.get(i), parent, "/" + parent + "/", "node" + i,
+                            folder ? null : "store://benchmark/" + i, folder, "benchmark", 0L, null, null);
+                }
+                return null;
+            }
+        }, false);
+        report(store, "create", nodes, start);
+
+        start = System.nanoTime();
+        store.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                for (String nodeRef : nodeRefs)
+                {
+                    store.dao.findFileTransferInfoByNodeRef(nodeRef);
+                }
+                return null;
+            }
+        }, true);
+        report(store, "lookup", nodes, start);
+
+        final List<String> folders = new ArrayList<String>();
+        folders.add(root);
+        for (int i = 0; i < nodes; i += CHILDREN_PER_FOLDER)
+        {
+            folders.add(nodeRefs.get(i));
+        }
+        start = System.nanoTime();
+        store.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                for (String folder : folders)
+                {
+                    store.dao.findFileTransferInfoByParentNodeRef(folder);
+                }
+                return null;
+            }
+        }, true);
+        report(store, "list children", folders.size(), start);
+
+        start = System.nanoTime();
+        store.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                for (String folder : folders)
+                {
+                    store.dao.updatePathOfChildren(folder, "/moved/" + folder + "/");
+                }
+                return null;
+            }
+        }, false);
+        report(store, "update child paths", folders.size(), start);
+
+        start = System.nanoTime();
+        store.inTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                for (int i = 0; i < nodes; i += PAGE_SIZE)
+                {
+                    store.dao.deleteFileTransferInfoByNodeRefs(nodeRefs.subList(i, Math.min(nodes, i + PAGE_SIZE)));
+                }
+                store.dao.deleteFileTransferInfoByNodeRef(root);
+                return null;
+            }
+        }, false);
+        report(store, "delete", nodes, start);
+    }
+
+    private static void report(Store store, String operation, int count, long startNanos)
+    {
+        long micros = Math.max(1L, (System.nanoTime() - startNanos) / 1000L);
+        System.out.println(String.format("%-4s %-20s %10d ops %10d ms %12.1f ops/s", store.name, operation, count,
+                micros / 1000L, count * 1000000.0 / micros));
+    }
+
+    /**
+     * One metadata store, by the prefix of its bean name
+     */
+    private static class Store
+    {
+        final String name;
+        final FileTransferInfoDAO dao;
+        final RetryingTransactionHelper txHelper;
+
+        Store(String name, ClassPathXmlApplicationContext context, RetryingTransactionHelper txHelper)
+        {
+            if (!name.equals("sql") && !name.equals("kv"))
+            {
+                throw new IllegalArgumentException("Unknown metadata store " + name);
+            }
+            this.name = name;
+            this.dao = (FileTransferInfoDAO) context.getBean(name + "FileTransferInfoDAO");
+            this.txHelper = txHelper;
+        }
+
+        <R> R inTransaction(RetryingTransactionHelper.RetryingTransactionCallback<R> callback, boolean readOnly)
+        {
+            return txHelper.doInTransaction(callback, readOnly, false);
+        }
+    }
+}
@@ -1,44 +1,55 @@
-/*
- * #%L
- * Alfresco File Transfer Receiver
- * %%
- * Copyright (C) 2005 - 2016 Alfresco Software Limited
- * %%
- * This file is part of the Alfresco software. 
- * If the software was purchased under a paid Alfresco license, the terms of 
- * the paid license agreement will prevail.  Otherwise, the software is 
- * provided under the following open source license terms:
- * 
- * Alfresco is free software: you can redistribute it and/or modify
- * it under the terms of the GNU Lesser General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * Alfresco is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU Lesser General Public License for more details.
- * 
- * You should have received a copy of the GNU Lesser General Public License
- * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
- * #L%
- */
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
 package org.alfresco.repo.transfer.fsr;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.alfresco.repo.descriptor.DescriptorDAO;
 import org.alfresco.repo.lock.JobLockService;
@@ -50,7 +61,6 @@ import org.alfresco.repo.transfer.TransferModel;
 import org.alfresco.repo.transfer.TransferProgressMonitor;
 import org.alfresco.repo.transfer.TransferVersionImpl;
 import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
-import org.alfresco.repo.transfer.manifest.XMLTransferManifestReader;
 import org.alfresco.repo.transfer.requisite.XMLTransferRequsiteWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.transfer.TransferException;
@@ -62,6 +72,13 @@ import org.alfresco.service.descriptor.Descriptor;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.alfresco.util.GUID;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.util.FileCopyUtils;
@@ -70,6 +87,7 @@ public class FileTransferReceiver implements TransferReceiver
 {
     private final static Log log = LogFactory.getLog(FileTransferReceiver.class);
     private static final String SNAPSHOT_FILE_NAME = "snapshot.xml";
+    private static final String COMPRESSED_SNAPSHOT_FILE_NAME = "snapshot.xml.gz";
 
     private static final String MSG_FAILED_TO_CREATE_STAGING_FOLDER = "transfer_service.receiver.failed_to_create_staging_folder";
     private static final String MSG_ERROR_WHILE_STARTING = "transfer_service.receiver.error_start";
@@ -80,6 +98,9 @@ public class FileTransferReceiver implements TransferReceiver
     private static final String MSG_ERROR_WHILE_ENDING_TRANSFER = "transfer_service.receiver.error_ending_transfer";
     private static final String MSG_ERROR_WHILE_STAGING_SNAPSHOT = "transfer_service.receiver.error_staging_snapshot";
     private static final String MSG_ERROR_WHILE_STAGING_CONTENT = "transfer_service.receiver.error_staging_content";
+    private static final String MSG_CONTENT_OFFSET_MISMATCH = "ftr.contentOffsetMismatch";
+    private static final String MSG_INVALID_ARCHIVE_ENTRY = "ftr.invalidArchiveEntry";
+    private static final String MSG_CONTENT_PART_BUSY = "ftr.contentPartBusy";
     private static final String MSG_NO_SNAPSHOT_RECEIVED = "transfer_service.receiver.no_snapshot_received";
     private static final String MSG_ERROR_WHILE_COMMITTING_TRANSFER = "transfer_service.receiver.error_committing_transfer";
     private static final String MSG_ERROR_WHILE_GENERATING_REQUISITE = "transfer_service.receiver.error_generating_requisite";
@@ -89,6 +110,9 @@ public class FileTransferReceiver implements TransferReceiver
     private static final String MSG_INCOMPATIBLE_VERSIONS = "transfer_service.incompatible_versions";
     
     private JobLockService jobLockService;
+
+    private TransferLockProvider lockProvider;
+
     /**
      * Reference to the TransactionService instance.
      */
@@ -128,8 +152,79 @@ public class FileTransferReceiver implements TransferReceiver
 
     private FileTransferManifestProcessorFactory manifestProcessorFactory;
 
+    private FileTransferManifestParser manifestParser = new FileTransferManifestParser();
+
+    /**
+     * Store snapshots gzip compressed in the staging folder? Matches fileTransferReceiver.compressSnapshot.
+     */
+    private boolean compressSnapshot = true;
+
+    /**
+     * Parse snapshots as they are staged, for their requisite and, up to manifestIndexMaxNodes nodes, their commit?
+     */
+    private boolean indexSnapshot = true;
+
+    private int manifestIndexMaxNodes = 10000;
+
+    private final Map<String, ManifestIndex> manifestIndexes = new ConcurrentHashMap<String, ManifestIndex>();
+
+    /**
+     * Number of threads used to delete folder trees and to process subtrees during commit. 1 commits sequentially.
+     */
+    private int commitParallelism = 1;
+
+    /**
+     * Whether the files of different top-level subtrees are written in parallel during commit
+     */
+    private boolean partitionedCommit = false;
+
+    /**
+     * Whether folder trees are deleted on the commit pool rather than one node at a time
+     */
+    private boolean parallelDelete = false;
+
+    /**
+     * Number of deleted nodes whose records are removed from the database in one transaction
+     */
+    private int deleteBatchSize = 500;
+
+    /**
+     * Number of renamed files whose records are updated in one transaction
+     */
+    private int renameBatchSize = 500;
+
+    private ForkJoinPool commitPool;
+
+    private StagingJanitor stagingJanitor;
+
+    private CommitJournal commitJournal;
+
+    private SchemaBootstrap schemaBootstrap;
+
+    private TransferThrottle transferThrottle;
+
+    private TransferAdmissionQueue admissionQueue;
+
+    private FileTransferCluster cluster;
+
     private Map<String, File> contents = new ConcurrentHashMap<String, File>();
 
+    private StagingLayout stagingLayout = new StagingLayout(2);
+
+    private ContentSignatureCache signatureCache = new ContentSignatureCache();
+
+    private ReceivingVolumes receivingVolumes = new ReceivingVolumes();
+
+    /**
+     * The checksums of the parts staged in one go, by part name, by transfer
+     */
+    private final ConcurrentMap<String, Map<String, String>> stagedChecksums = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * The parts being written, by staged file, so that two uploads of a part do not write to the same ".part" file
+     */
+    private final ConcurrentMap<File, String> partUploads = new ConcurrentHashMap<File, String>();
+
     private TransferProgressMonitor progressMonitor;
 
     private FileTransferInfoDAO fileTransferInfoDAO;
@@ -147,6 +242,41 @@ public class FileTransferReceiver implements TransferReceiver
     private List<FSRRunnable> postCommit;
     
 
+    /**
+     * Recover the commits that were interrupted by a crash, once the tables have been created or upgraded
+     */
+    public void init()
+    {
+        if (commitJournal != null && commitJournal.isEnabled() && !commitJournal.getIncompleteJournals().isEmpty())
+        {
+            if (schemaBootstrap != null)
+            {
+                schemaBootstrap.awaitSchema();
+            }
+            //No other node may commit while temporary nodes are swept
+            FileTransferCluster.CommitLock commitLock = cluster != null ? cluster.acquireCommitLock() : null;
+            try
+            {
+                new CommitJournalRecovery(this, commitJournal).recoverAll();
+            }
+            finally
+            {
+                if (commitLock != null)
+                {
+                    commitLock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a transfer holds its lock, i.e. is between begin and end
+     */
+    public boolean hasActiveTransfers()
+    {
+        return !locks.isEmpty();
+    }
+
     public void cancel(String transferId) throws TransferException
     {
         TransferProgress progress = getProgressMonitor().getProgress(transferId);
@@ -170,9 +300,23 @@ public class FileTransferReceiver implements TransferReceiver
         checkLock(transferId);
 
         final String fTransferId = transferId;
+        FileTransferCluster.CommitLock commitLock = null;
 
         try
         {
+            if (cluster != null)
+            {
+                try
+                {
+                    commitLock = cluster.acquireCommitLock();
+                }
+                catch (TransferException ex)
+                {
+                    progressMonitor.logException(transferId, "Unable to start commit", ex);
+                    progressMonitor.updateStatus(transferId, TransferProgress.Status.ERROR);
+                    throw ex;
+                }
+            }
             progressMonitor.updateStatus(transferId, TransferProgress.Status.COMMITTING);
 
             List<TransferManifestProcessor> commitProcessors = 
@@ -180,8 +324,6 @@ public class FileTransferReceiver implements TransferReceiver
 
             try
             {
-                SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-                SAXParser parser = saxParserFactory.newSAXParser();
                 File snapshotFile = getSnapshotFile(fTransferId);
 
                 if (snapshotFile.exists())
@@ -190,12 +332,23 @@ public class FileTransferReceiver implements TransferReceiver
                     {
                         log.debug("Processing manifest file:" + snapshotFile.getAbsolutePath());
                     }
-                    // We parse the file as many times as we have processors
+                    // We parse the file as many times as we have processors, unless it was kept when staged
+                    ManifestIndex index = manifestIndexes.get(fTransferId);
                     for (TransferManifestProcessor processor : commitProcessors)
                     {
-                        XMLTransferManifestReader reader = new XMLTransferManifestReader(processor);
-                        parser.parse(snapshotFile, reader);
-                        parser.reset();
+                        //Another node may have taken the commit lock while the last processor ran
+                        if (commitLock != null)
+                        {
+                            commitLock.checkHeld();
+                        }
+                        if (index != null && index.canReplay())
+                        {
+                            index.replay(processor);
+                        }
+                        else
+                        {
+                            parseSnapshot(snapshotFile, processor);
+                        }
                     }
                 }
                 else
@@ -236,6 +389,11 @@ public class FileTransferReceiver implements TransferReceiver
         }
         finally
         {
+            if (commitLock != null)
+            {
+                commitLock.release();
+            }
+
             /**
              * Clean up at the end of the transfer
              */
@@ -315,10 +473,20 @@ public class FileTransferReceiver implements TransferReceiver
             {
                 log.debug("releasing lock:" + lock.lockToken);
                 lock.releaseLock();
-                locks.remove(lock);
+                locks.remove(transferId);
+                if (admissionQueue != null)
+                {
+                    admissionQueue.released();
+                }
             }
 
+            manifestIndexes.remove(transferId);
+            stagedChecksums.remove(transferId);
             removeTempFolders(transferId);
+            if (transferThrottle != null)
+            {
+                transferThrottle.unregister(transferId);
+            }
         }
         catch (TransferException ex)
         {
@@ -340,20 +508,25 @@ public class FileTransferReceiver implements TransferReceiver
             if (snapshotFile.exists())
             {
                 log.debug("snapshot does exist");
-                SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-                SAXParser parser = saxParserFactory.newSAXParser();
                 OutputStreamWriter dest = new OutputStreamWriter(requsiteStream, "UTF-8");
 
                 XMLTransferRequsiteWriter writer = new XMLTransferRequsiteWriter(dest);
-                TransferManifestProcessor processor = manifestProcessorFactory.getRequsiteProcessor(
-                        FileTransferReceiver.this, transferId, writer);
-
-                XMLTransferManifestReader reader = new XMLTransferManifestReader(processor);
+                ManifestIndex index = manifestIndexes.get(transferId);
+                if (index != null && index.isComplete())
+                {
+                    log.debug("Using the requisite found while staging the snapshot");
+                    index.writeRequisite(writer, FileTransferReceiver.this, transferId);
+                }
+                else
+                {
+                    TransferManifestProcessor processor = manifestProcessorFactory.getRequsiteProcessor(
+                            FileTransferReceiver.this, transferId, writer);
 
-                /**
-                 * Now run the parser
-                 */
-                parser.parse(snapshotFile, reader);
+                    /**
+                     * Now run the parser
+                     */
+                    parseSnapshot(snapshotFile, processor);
+                }
 
                 /**
                  * And flush the destination in case any content remains in the writer.
@@ -469,18 +642,72 @@ public class FileTransferReceiver implements TransferReceiver
 
     public void saveContent(String transferId, String contentFileId, InputStream contentStream)
             throws TransferException
+    {
+        saveContent(transferId, contentFileId, contentStream, null, -1L);
+    }
+
+    /**
+     * Stage a content part, decoding it as it is written if it was sent with a Content-Encoding.
+     * <p>
+     * The part is written to a ".part" file and renamed once the stream has been read to its end. If reading the
+     * stream fails the bytes received so far are checkpointed and a {@link ContentPartInterruptedException} is
+     * thrown; the upload can then be resumed by sending the rest of the (decoded) part with the staged length as
+     * offset. An upload of a part that is being uploaded already is refused.
+     *
+     * @param contentEncoding gzip, deflate, identity or null
+     * @param offset the offset in the part of the first byte of the stream, or -1 to (re)start the part
+     */
+    public void saveContent(String transferId, String contentFileId, InputStream contentStream,
+            String contentEncoding, long offset) throws TransferException
     {
         Lock lock = checkLock(transferId);
+        File claimedPart = null;
         try
         {
-            File stagedFile = new File(getStagingFolder(transferId), contentFileId);
-            if (stagedFile.createNewFile())
+            File stagingFolder = getStagingFolder(transferId);
+            File stagedFile = stagingLayout.getPartFile(stagingFolder, contentFileId);
+            claimPart(transferId, contentFileId, stagedFile);
+            claimedPart = stagedFile;
+            if (!stagedFile.exists())
             {
-                int size = FileCopyUtils.copy(contentStream, new BufferedOutputStream(new FileOutputStream(stagedFile)));
+                ContentStagingCheckpoint checkpoint = new ContentStagingCheckpoint(
+                        stagingLayout.createPartFolder(stagingFolder, contentFileId), contentFileId);
+                checkpoint.load();
+                if (offset < 0)
+                {
+                    offset = 0L;
+                }
+                else if (offset != checkpoint.getStagedLength())
+                {
+                    throw new TransferException(MSG_CONTENT_OFFSET_MISMATCH, new Object[] { transferId,
+                            contentFileId, offset, checkpoint.getStagedLength() });
+                }
+                checkpoint.truncate(offset);
+
+                // The checksum of a resumed part is worked out from the staged file when it is needed
+                MessageDigest digest = offset == 0L ? newContentDigest() : null;
+                long size = stageContent(transferId, contentFileId, checkpoint, offset,
+                        TransferContentEncoding.decode(contentStream, contentEncoding), digest);
+
+                if (!checkpoint.getPartFile().renameTo(stagedFile))
+                {
+                    throw new TransferException(MSG_ERROR_WHILE_STAGING_CONTENT,
+                            new Object[] { transferId, contentFileId });
+                }
+                checkpoint.delete();
                 contents.put(contentFileId, stagedFile);
-                progressMonitor.logComment(transferId, "Received content file: " + contentFileId + "; Size = " + size);
+                if (digest != null)
+                {
+                    putStagedChecksum(transferId, contentFileId, toHex(digest.digest()));
+                }
+                progressMonitor.logComment(transferId, "Received content file: " + contentFileId + "; Size = "
+                        + (offset + size) + (offset > 0 ? "; Resumed at = " + offset : ""));
             }
         }
+        catch (TransferException ex)
+        {
+            throw ex;
+        }
         catch (Exception ex)
         {
             throw new TransferException(MSG_ERROR_WHILE_STAGING_CONTENT, 
@@ -488,154 +715,652 @@ public class FileTransferReceiver implements TransferReceiver
         }
         finally
         {
+            if (claimedPart != null)
+            {
+                partUploads.remove(claimedPart);
+            }
             lock.enableLockTimeout();
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Take the part for an upload, until it is removed from {@link #partUploads}
      *
-     * @see org.alfresco.service.cmr.transfer.TransferReceiver#nudgeLock(java.lang.String)
+     * @throws TransferException if another upload of the part is in progress
      */
-    public Lock checkLock(final String transferId) throws TransferException
+    private void claimPart(String transferId, String contentFileId, File stagedFile) throws TransferException
     {
-        if (transferId == null)
+        if (partUploads.putIfAbsent(stagedFile, contentFileId) != null)
         {
-            throw new IllegalArgumentException("checkLock: transferId = null");
+            throw new TransferException(MSG_CONTENT_PART_BUSY, new Object[] { transferId, contentFileId });
         }
+    }
 
-        Lock lock = locks.get(transferId);
-        if (lock != null)
+    /**
+     * Stage the content parts packed in a tar archive, each under the name of its entry.
+     * <p>
+     * The archive is unpacked in one pass, with a single lock check and progress comment for all its parts. Parts
+     * that are already staged are skipped. If the archive is cut off, the parts unpacked before are staged and the
+     * part being unpacked is checkpointed as if it had been sent on its own, so it can be resumed with saveContent.
+     *
+     * @param contentEncoding the encoding of the archive: gzip, deflate, identity or null
+     * @return the number of parts staged
+     */
+    public int saveContentArchive(String transferId, InputStream archiveStream, String contentEncoding)
+            throws TransferException
+    {
+        Lock lock = checkLock(transferId);
+        int count = 0;
+        long size = 0L;
+        String contentFileId = null;
+        File claimedPart = null;
+        try
         {
-            if (lock.isActive())
+            File stagingFolder = getStagingFolder(transferId);
+            TarArchiveInputStream archive = new TarArchiveInputStream(new BufferedInputStream(
+                    TransferContentEncoding.decode(archiveStream, contentEncoding), 64 * 1024));
+            try
             {
-                lock.suspendLockTimeout();
-                return lock;
+                TarArchiveEntry entry;
+                while ((entry = archive.getNextEntry()) != null)
+                {
+                    if (!entry.isFile())
+                    {
+                        continue;
+                    }
+                    contentFileId = entry.getName();
+                    if (contentFileId.length() == 0 || contentFileId.indexOf('/') >= 0
+                            || contentFileId.indexOf('\\') >= 0 || contentFileId.startsWith("."))
+                    {
+                        throw new TransferException(MSG_INVALID_ARCHIVE_ENTRY,
+                                new Object[] { transferId, contentFileId });
+                    }
+                    File stagedFile = stagingLayout.getPartFile(stagingFolder, contentFileId);
+                    claimPart(transferId, contentFileId, stagedFile);
+                    claimedPart = stagedFile;
+                    if (stagedFile.exists())
+                    {
+                        partUploads.remove(claimedPart);
+                        claimedPart = null;
+                        continue;
+                    }
+                    ContentStagingCheckpoint checkpoint = new ContentStagingCheckpoint(
+                            stagingLayout.createPartFolder(stagingFolder, contentFileId), contentFileId);
+                    checkpoint.truncate(0L);
+                    MessageDigest digest = newContentDigest();
+                    size += stageContent(transferId, contentFileId, checkpoint, 0L, new CloseShieldInputStream(
+                            archive), digest);
+                    if (!checkpoint.getPartFile().renameTo(stagedFile))
+                    {
+                        throw new TransferException(MSG_ERROR_WHILE_STAGING_CONTENT,
+                                new Object[] { transferId, contentFileId });
+                    }
+                    checkpoint.delete();
+                    contents.put(contentFileId, stagedFile);
+                    putStagedChecksum(transferId, contentFileId, toHex(digest.digest()));
+                    partUploads.remove(claimedPart);
+                    claimedPart = null;
+                    count++;
+                }
             }
-            else
+            finally
             {
-                log.debug("lock not active");
-                throw new TransferException(MSG_LOCK_TIMED_OUT, new Object[] { transferId });
+                archive.close();
             }
+            return count;
         }
-        else
+        catch (TransferException ex)
         {
-            log.debug("lock not found");
-            throw new TransferException(MSG_LOCK_NOT_FOUND, new Object[] { transferId });
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new TransferException(MSG_ERROR_WHILE_STAGING_CONTENT, 
+                    new Object[] { transferId, contentFileId }, ex);
+        }
+        finally
+        {
+            if (claimedPart != null)
+            {
+                partUploads.remove(claimedPart);
+            }
+            if (count > 0)
+            {
+                progressMonitor.logComment(transferId, "Received " + count + " content files in an archive; Size = "
+                        + size);
+            }
+            lock.enableLockTimeout();
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Append the stream to the part file, checkpointing what was written if the stream can't be read to its end.
      *
-     * @see org.alfresco.service.cmr.transfer.TransferReceiver#saveSnapshot(java.io.InputStream)
+     * @param digest updated with the bytes written, if not null
+     * @return the number of bytes written
      */
-    public void saveSnapshot(String transferId, InputStream openStream) throws TransferException
+    private long stageContent(String transferId, String contentFileId, ContentStagingCheckpoint checkpoint,
+            long offset, InputStream in, MessageDigest digest) throws IOException
     {
-        // Check that this transfer still owns the lock
-        Lock lock = checkLock(transferId);
+        CRC32 crc = new CRC32();
+        long written = 0L;
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(checkpoint.getPartFile(), offset > 0), 
+                buffer.length);
         try
         {
-            if (log.isDebugEnabled())
-            {
-                log.debug("Saving snapshot for transferId =" + transferId);
-            }
-
-            File snapshotFile = new File(getStagingFolder(transferId), SNAPSHOT_FILE_NAME);
-            try
+            while (true)
             {
-                if (snapshotFile.createNewFile())
+                int read;
+                try
+                {
+                    read = in.read(buffer);
+                }
+                catch (IOException e)
                 {
-                    int size = FileCopyUtils.copy(openStream, new BufferedOutputStream(new FileOutputStream(snapshotFile)));
-                    progressMonitor.logComment(transferId, "Received manifest file. Size = " + size);
+                    out.close();
+                    checkpoint.append(offset, written, crc.getValue());
                     if (log.isDebugEnabled())
                     {
-                        log.debug("Saved snapshot for transferId =" + transferId);
+                        log.debug("Content part interrupted: " + contentFileId + " staged " + (offset + written));
                     }
+                    throw new ContentPartInterruptedException(transferId, contentFileId, offset + written, e);
                 }
-            }
-            catch (Exception ex)
-            {
-                throw new TransferException(MSG_ERROR_WHILE_STAGING_SNAPSHOT, ex);
+                if (read == -1)
+                {
+                    break;
+                }
+                if (transferThrottle != null)
+                {
+                    transferThrottle.acquire(transferId, read);
+                }
+                out.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                if (digest != null)
+                {
+                    digest.update(buffer, 0, read);
+                }
+                written += read;
             }
         }
         finally
         {
-            lock.enableLockTimeout();
+            out.close();
+            in.close();
         }
+        return written;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see org.alfresco.repo.web.scripts.transfer.TransferReceiver#start()
+    /**
+     * Stage a delta that rebuilds a content part from the current version of the file, see {@link ContentDelta}.
+     * The delta is staged, and can be resumed, like a content part.
      */
-    public String start(String fromRepositoryId, boolean transferToSelf, TransferVersion fromVersion)
+    public void saveContentDelta(String transferId, String contentFileId, InputStream deltaStream,
+            String contentEncoding, long offset) throws TransferException
     {
-        log.debug("Start transfer");
-        sourceRepoId = fromRepositoryId;
-        /**
-         * Check that transfer is allowed to this repository
-         */
-        checkTransfer(fromRepositoryId, transferToSelf);
-
-        /**
-         * Check that the versions are compatible
-         */
-        TransferVersion toVersion = getVersion();
-
-        // just check the major version number are equal and if not null
-        if (fromVersion.getVersionMajor() == null || toVersion.getVersionMajor() == null
-                || !fromVersion.getVersionMajor().equals(toVersion.getVersionMajor()))
-        {
-            throw new TransferException(MSG_INCOMPATIBLE_VERSIONS, new Object[]
-            { "None", fromVersion, toVersion });
-        }
+        saveContent(transferId, contentFileId + ContentDelta.DELTA_SUFFIX, deltaStream, contentEncoding, offset);
+    }
 
-        /**
-         * First get the transfer lock for this domain
-         */
+    /**
+     * @return true if the part, or a delta for it, has been completely staged for the transfer
+     */
+    public boolean isContentStaged(String transferId, String contentFileId)
+    {
+        return getStagedContent(transferId, contentFileId).exists()
+                || getStagedContentDelta(transferId, contentFileId).exists();
+    }
 
-        String lockStr = "transfer.server.default";
-        QName lockQName = QName.createQName(TransferModel.TRANSFER_MODEL_1_0_URI, lockStr);
-        Lock lock = new Lock(lockQName);
+    /**
+     * @return the staged delta for a part, which exists if a delta has been completely staged instead of the part
+     */
+    public File getStagedContentDelta(String transferId, String contentFileId)
+    {
+        return getStagedContent(transferId, contentFileId + ContentDelta.DELTA_SUFFIX);
+    }
 
+    /**
+     * Rebuild a content part from its staged delta and the current version of the file.
+     *
+     * @param basis the current version of the file
+     * @param basisChecksum the recorded SHA-256 of the current version, or null if it isn't known
+     * @param target the file to write the new version to, deleted if the delta is rejected
+     * @return the SHA-256 of the new version in hex
+     * @throws IOException if the delta can't be applied, as when it was made from the signatures of another version
+     *             of the file
+     */
+    public String applyContentDelta(String transferId, String contentFileId, File basis, String basisChecksum,
+            File target) throws IOException
+    {
+        MessageDigest digest = newContentDigest();
+        ContentDelta.Signatures signatures = signatureCache.getSignatures(basis, basisChecksum);
+        InputStream delta = new FileInputStream(getStagedContentDelta(transferId, contentFileId));
         try
         {
-
-            lock.makeLock();
-
-            /**
-             * Transfer Lock held if we get this far
-             */
-            String transferId = null;
-
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+            boolean applied = false;
             try
             {
-                /**
-                 * Now create a transfer record and use its NodeRef as the transfer id
-                 */
-                final NodeRef relatedTransferRecord = createTransferRecord();
-                transferId = relatedTransferRecord.toString();
-                getTempFolder(transferId);
-                getStagingFolder(transferId);
+                long size = ContentDelta.apply(basis, signatures, delta, out, digest);
+                applied = true;
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Rebuilt content " + contentFileId + " of " + size + " bytes from " + basis);
+                }
             }
-            catch (Exception e)
+            finally
             {
-                if (log.isDebugEnabled())
+                out.close();
+                if (!applied)
                 {
-                    log.debug("Exception while starting transfer", e);
-                    log.debug("releasing lock - we never created the transfer id");
+                    target.delete();
                 }
-                lock.releaseLock();
-                throw new TransferException("Error while starting!", e);
             }
-
+        }
+        finally
+        {
+            delta.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Work out, or take from the signature cache, the block signatures of the received file of a node, so that the
+     * sender of a new version can send a delta instead of the whole file.
+     *
+     * @return the signatures, or null if no file has been received for the node
+     */
+    public ContentDelta.Signatures getContentSignatures(final String nodeRef) throws IOException
+    {
+        RetryingTransactionHelper txHelper = transactionService.getRetryingTransactionHelper();
+        FileTransferInfoEntity entity = txHelper.doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<FileTransferInfoEntity>()
+                {
+                    public FileTransferInfoEntity execute() throws Throwable
+                    {
+                        return fileTransferInfoDAO.findFileTransferInfoByNodeRef(nodeRef);
+                    }
+                }, true, false);
+        if (entity == null || entity.isFolder() || entity.getContentUrl() == null)
+        {
+            return null;
+        }
+        File file = getReceivedFile(entity);
+        if (!file.isFile())
+        {
+            return null;
+        }
+        return signatureCache.getSignatures(file, entity.getContentChecksum());
+    }
+
+    /**
+     * @return the SHA-256 of a completely staged part in hex, as recorded in alf_file_transfer_info
+     */
+    public String getStagedContentChecksum(String transferId, String contentFileId) throws IOException
+    {
+        Map<String, String> checksums = stagedChecksums.get(transferId);
+        String checksum = checksums == null ? null : checksums.get(contentFileId);
+        if (checksum == null)
+        {
+            MessageDigest digest = newContentDigest();
+            InputStream in = new FileInputStream(getStagedContent(transferId, contentFileId));
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            checksum = toHex(digest.digest());
+            putStagedChecksum(transferId, contentFileId, checksum);
+        }
+        return checksum;
+    }
+
+    private void putStagedChecksum(String transferId, String contentFileId, String checksum)
+    {
+        Map<String, String> checksums = stagedChecksums.get(transferId);
+        if (checksums == null)
+        {
+            checksums = new ConcurrentHashMap<String, String>();
+            Map<String, String> existing = stagedChecksums.putIfAbsent(transferId, checksums);
+            if (existing != null)
+            {
+                checksums = existing;
+            }
+        }
+        checksums.put(contentFileId, checksum);
+    }
+
+    private static MessageDigest newContentDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the staged part, which exists if the part has been completely staged for the transfer
+     */
+    public File getStagedContent(String transferId, String contentFileId)
+    {
+        return stagingLayout.getPartFile(getStagingFolder(transferId), contentFileId);
+    }
+
+    /**
+     * Report the staged content parts of a transfer.
+     *
+     * @param partNames the parts to report on, or null for all staged parts
+     * @return the staged length of each part that has been started, and null for those that are complete
+     */
+    public Map<String, Long> getStagedContentStatus(String transferId, Collection<String> partNames)
+            throws TransferException
+    {
+        Map<String, Long> staged = new TreeMap<String, Long>();
+        Map<String, Boolean> complete = listStagedContent(transferId, partNames);
+        File stagingFolder = getStagingFolder(transferId);
+        try
+        {
+            for (Map.Entry<String, Boolean> part : complete.entrySet())
+            {
+                if (part.getValue())
+                {
+                    staged.put(part.getKey(), null);
+                }
+                else
+                {
+                    ContentStagingCheckpoint checkpoint = new ContentStagingCheckpoint(
+                            stagingLayout.getPartFolder(stagingFolder, part.getKey()), part.getKey());
+                    checkpoint.load();
+                    staged.put(part.getKey(), checkpoint.getStagedLength());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new TransferException(MSG_ERROR_WHILE_STAGING_CONTENT, new Object[] { transferId, "" }, e);
+        }
+        return staged;
+    }
+
+    /**
+     * @return part name to true for complete parts, false for parts that have only partly been received
+     */
+    private Map<String, Boolean> listStagedContent(String transferId, Collection<String> partNames)
+    {
+        Map<String, Boolean> staged = new TreeMap<String, Boolean>();
+        File stagingFolder = getStagingFolder(transferId);
+        if (partNames != null)
+        {
+            for (String partName : partNames)
+            {
+                File partFolder = stagingLayout.getPartFolder(stagingFolder, partName);
+                if (new File(partFolder, partName).exists())
+                {
+                    staged.put(partName, Boolean.TRUE);
+                }
+                else if (new File(partFolder, partName + ContentStagingCheckpoint.PART_SUFFIX).exists())
+                {
+                    staged.put(partName, Boolean.FALSE);
+                }
+            }
+            return staged;
+        }
+        List<String> names = stagingLayout.listFileNames(stagingFolder);
+        for (String name : names)
+        {
+            if (name.equals(SNAPSHOT_FILE_NAME) || name.equals(COMPRESSED_SNAPSHOT_FILE_NAME)
+                    || name.endsWith(ContentStagingCheckpoint.CHECKPOINT_SUFFIX))
+            {
+                continue;
+            }
+            if (name.endsWith(ContentStagingCheckpoint.PART_SUFFIX))
+            {
+                staged.put(name.substring(0, name.length() - ContentStagingCheckpoint.PART_SUFFIX.length()),
+                        Boolean.FALSE);
+            }
+            else
+            {
+                staged.put(name, Boolean.TRUE);
+            }
+        }
+        return staged;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.alfresco.service.cmr.transfer.TransferReceiver#nudgeLock(java.lang.String)
+     */
+    public Lock checkLock(final String transferId) throws TransferException
+    {
+        if (transferId == null)
+        {
+            throw new IllegalArgumentException("checkLock: transferId = null");
+        }
+
+        Lock lock = locks.get(transferId);
+        if (lock != null)
+        {
+            if (lock.isActive())
+            {
+                lock.suspendLockTimeout();
+                return lock;
+            }
+            else
+            {
+                log.debug("lock not active");
+                throw new TransferException(MSG_LOCK_TIMED_OUT, new Object[] { transferId });
+            }
+        }
+        else
+        {
+            log.debug("lock not found");
+            throw new TransferException(MSG_LOCK_NOT_FOUND, new Object[] { transferId });
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.alfresco.service.cmr.transfer.TransferReceiver#saveSnapshot(java.io.InputStream)
+     */
+    public void saveSnapshot(String transferId, InputStream openStream) throws TransferException
+    {
+        saveSnapshot(transferId, openStream, null);
+    }
+
+    /**
+     * Stage the snapshot. If compressSnapshot is set the snapshot is stored gzip compressed; a snapshot that was sent
+     * gzip encoded is then stored as received.
+     *
+     * @param contentEncoding gzip, deflate, identity or null
+     */
+    public void saveSnapshot(String transferId, InputStream openStream, String contentEncoding)
+            throws TransferException
+    {
+        // Check that this transfer still owns the lock
+        Lock lock = checkLock(transferId);
+        try
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Saving snapshot for transferId =" + transferId);
+            }
+
+            File snapshotFile = new File(getStagingFolder(transferId), compressSnapshot ? COMPRESSED_SNAPSHOT_FILE_NAME
+                    : SNAPSHOT_FILE_NAME);
+            try
+            {
+                if (snapshotFile.createNewFile())
+                {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(snapshotFile));
+                    InputStream in = openStream;
+                    String storedEncoding = contentEncoding;
+                    if (!compressSnapshot
+                            || !TransferContentEncoding.GZIP.equals(TransferContentEncoding.normalise(contentEncoding)))
+                    {
+                        in = TransferContentEncoding.decode(openStream, contentEncoding);
+                        storedEncoding = null;
+                        if (compressSnapshot)
+                        {
+                            out = new GZIPOutputStream(out, 64 * 1024);
+                        }
+                    }
+                    long size;
+                    if (indexSnapshot)
+                    {
+                        size = stageAndIndexSnapshot(transferId, in, out, storedEncoding);
+                    }
+                    else
+                    {
+                        size = FileCopyUtils.copy(in, out);
+                    }
+                    progressMonitor.logComment(transferId, "Received manifest file. Size = " + size
+                            + (compressSnapshot ? "; Stored size = " + snapshotFile.length() : ""));
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Saved snapshot for transferId =" + transferId);
+                    }
+                }
+            }
+            catch (Exception ex)
+            {
+                throw new TransferException(MSG_ERROR_WHILE_STAGING_SNAPSHOT, ex);
+            }
+        }
+        finally
+        {
+            lock.enableLockTimeout();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.alfresco.repo.web.scripts.transfer.TransferReceiver#start()
+     */
+    public String start(String fromRepositoryId, boolean transferToSelf, TransferVersion fromVersion)
+    {
+        log.debug("Start transfer");
+        sourceRepoId = fromRepositoryId;
+        /**
+         * Check that transfer is allowed to this repository
+         */
+        checkTransfer(fromRepositoryId, transferToSelf);
+
+        /**
+         * Check that the versions are compatible
+         */
+        TransferVersion toVersion = getVersion();
+
+        // just check the major version number are equal and if not null
+        if (fromVersion.getVersionMajor() == null || toVersion.getVersionMajor() == null
+                || !fromVersion.getVersionMajor().equals(toVersion.getVersionMajor()))
+        {
+            throw new TransferException(MSG_INCOMPATIBLE_VERSIONS, new Object[]
+            { "None", fromVersion, toVersion });
+        }
+
+        /**
+         * First get the transfer lock for this domain
+         */
+
+        String lockStr = "transfer.server.default";
+        if (cluster != null && cluster.isClustered())
+        {
+            //Nodes take transfers independently, their commits are serialised by the commit lock of the cluster
+            lockStr = "transfer.server." + cluster.getNodeId();
+        }
+        QName lockQName = QName.createQName(TransferModel.TRANSFER_MODEL_1_0_URI, lockStr);
+        final Lock lock = new Lock(lockQName);
+
+        try
+        {
+
+            if (admissionQueue != null)
+            {
+                admissionQueue.admit(fromRepositoryId, new TransferAdmissionQueue.LockAttempt()
+                    {
+                        public boolean tryLock()
+                        {
+                            try
+                            {
+                                lock.makeLockOnce();
+                                return true;
+                            }
+                            catch (LockAcquisitionException lae)
+                            {
+                                return false;
+                            }
+                        }
+                    });
+            }
+            else
+            {
+                lock.makeLock();
+            }
+
+            /**
+             * Transfer Lock held if we get this far
+             */
+            String transferId = null;
+
+            try
+            {
+                /**
+                 * Now create a transfer record and use its NodeRef as the transfer id
+                 */
+                final NodeRef relatedTransferRecord = createTransferRecord();
+                transferId = relatedTransferRecord.toString();
+                getTempFolder(transferId);
+                getStagingFolder(transferId);
+            }
+            catch (Exception e)
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Exception while starting transfer", e);
+                    log.debug("releasing lock - we never created the transfer id");
+                }
+                lock.releaseLock();
+                if (admissionQueue != null)
+                {
+                    admissionQueue.released();
+                }
+                throw new TransferException("Error while starting!", e);
+            }
+
             /**
              * Here if we have begun a transfer and have a valid transfer id
              */
             lock.transferId = transferId;
             locks.put(transferId, lock);
+            if (transferThrottle != null)
+            {
+                transferThrottle.register(transferId, fromRepositoryId);
+            }
             log.info("transfer started: " + transferId);
             lock.enableLockTimeout();
             progressMonitor.logComment(transferId, "Started transfer");
@@ -651,14 +1376,31 @@ public class FileTransferReceiver implements TransferReceiver
 
     }
 
-    public void setJobLockService(JobLockService jobLockService)
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    public JobLockService getJobLockService()
+    {
+        return jobLockService;
+    }
+
+    /**
+     * @param lockProvider provides the transfer lock. If not set, the lock is taken from the job lock service.
+     */
+    public void setLockProvider(TransferLockProvider lockProvider)
     {
-        this.jobLockService = jobLockService;
+        this.lockProvider = lockProvider;
     }
 
-    public JobLockService getJobLockService()
+    public TransferLockProvider getLockProvider()
     {
-        return jobLockService;
+        if (lockProvider == null)
+        {
+            lockProvider = new JobLockServiceTransferLockProvider(jobLockService);
+        }
+        return lockProvider;
     }
 
     public void setLockRefreshTime(long lockRefreshTime)
@@ -716,13 +1458,27 @@ public class FileTransferReceiver implements TransferReceiver
          * Make the lock - called on main thread
          */
         public synchronized void makeLock()
+        {
+            makeLock(getLockRetryWait(), getLockRetryCount());
+        }
+
+        /**
+         * Make the lock with a single attempt, failing at once if it is held. For the admission queue, which does the
+         * waiting itself.
+         */
+        public synchronized void makeLockOnce()
+        {
+            makeLock(0L, 0);
+        }
+
+        private void makeLock(long retryWait, int retryCount)
         {
             if(log.isDebugEnabled())
             {
                 log.debug("makeLock" + lockQName);
             }
 
-            lockToken = getJobLockService().getLock(lockQName, getLockRefreshTime(), getLockRetryWait(), getLockRetryCount());
+            lockToken = getLockProvider().getLock(lockQName, getLockRefreshTime(), retryWait, retryCount);
 
             // Got the lock, so mark as active
             active = true;
@@ -732,7 +1488,7 @@ public class FileTransferReceiver implements TransferReceiver
                 log.debug("lock taken: name" + lockQName + " token:" +lockToken);
                 log.debug("register lock callback, target lock refresh time :" + getLockRefreshTime());
             }
-            getJobLockService().refreshLock(lockToken, lockQName, getLockRefreshTime(), this);
+            getLockProvider().refreshLock(lockToken, lockQName, getLockRefreshTime(), this);
             if (log.isDebugEnabled())
             {
                 log.debug("refreshLock callback registered");
@@ -795,7 +1551,7 @@ public class FileTransferReceiver implements TransferReceiver
             if (active)
             {
                 active = false;
-                getJobLockService().releaseLock(lockToken, lockQName);
+                getLockProvider().releaseLock(lockToken, lockQName);
             }
         }
 
@@ -835,6 +1591,10 @@ public class FileTransferReceiver implements TransferReceiver
             {
                 active = false;
                 log.info("transfer service: lock has timed out, timeout :" + lockQName);
+                if (admissionQueue != null)
+                {
+                    admissionQueue.released();
+                }
                 timeout(transferId);
             }
         }
@@ -909,7 +1669,14 @@ public class FileTransferReceiver implements TransferReceiver
             log.debug("delete staging folder " + transferId);
             // Delete the staging folder.
             stagingFolder = getStagingFolder(transferId);
-            deleteFile(stagingFolder);
+            if (stagingJanitor != null)
+            {
+                stagingJanitor.purge(stagingFolder);
+            }
+            else
+            {
+                deleteFile(stagingFolder);
+            }
             log.debug("Staging folder deleted");
         }
         catch (Exception ex)
@@ -966,7 +1733,99 @@ public class FileTransferReceiver implements TransferReceiver
 
     protected File getSnapshotFile(String transferId)
     {
-        return new File(getStagingFolder(transferId), SNAPSHOT_FILE_NAME);
+        File stagingFolder = getStagingFolder(transferId);
+        File compressedSnapshotFile = new File(stagingFolder, COMPRESSED_SNAPSHOT_FILE_NAME);
+        return compressedSnapshotFile.exists() ? compressedSnapshotFile : new File(stagingFolder, SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Copy the snapshot to the staging folder while the manifest parser reads the copied bytes into a
+     * {@link ManifestIndex}. A snapshot that cannot be indexed is still staged in full; it is then parsed when needed.
+     *
+     * @param storedEncoding the encoding of the bytes as stored, to be decoded for the parser
+     * @return the number of bytes read
+     */
+    private long stageAndIndexSnapshot(String transferId, InputStream in, OutputStream out, String storedEncoding)
+            throws IOException
+    {
+        CountingInputStream counted = new CountingInputStream(in);
+        TeeInputStream tee = new TeeInputStream(counted, out, true);
+        try
+        {
+            ManifestIndex index = new ManifestIndex(manifestProcessorFactory, this, transferId, manifestIndexMaxNodes);
+            try
+            {
+                InputStream parsed = TransferContentEncoding.decode(new CloseShieldInputStream(tee), storedEncoding);
+                manifestParser.parse(parsed, index);
+                //Read what the parser left, such as the gzip trailer, so that all of it is staged
+                IOUtils.skip(parsed, Long.MAX_VALUE);
+                manifestIndexes.put(transferId, index);
+            }
+            catch (Exception e)
+            {
+                log.warn("Unable to index the snapshot of transfer " + transferId
+                        + " while staging it; it will be parsed when needed: " + e.getMessage());
+            }
+            IOUtils.skip(tee, Long.MAX_VALUE);
+        }
+        finally
+        {
+            tee.close();
+        }
+        return counted.getByteCount();
+    }
+
+    /**
+     * Open a staged snapshot, decompressing it as it is read if it was stored compressed.
+     */
+    protected InputStream openSnapshot(File snapshotFile) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024);
+        if (snapshotFile.getName().equals(COMPRESSED_SNAPSHOT_FILE_NAME))
+        {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        return in;
+    }
+
+    private void parseSnapshot(File snapshotFile, TransferManifestProcessor processor) throws Exception
+    {
+        InputStream in = openSnapshot(snapshotFile);
+        try
+        {
+            manifestParser.parseSnapshot(in, getSnapshotSize(snapshotFile), processor);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the uncompressed size of a staged snapshot. For a compressed one this is the size in its gzip trailer,
+     *         which is only kept modulo 4GB, so no less than the stored size is taken.
+     */
+    protected long getSnapshotSize(File snapshotFile) throws IOException
+    {
+        long stored = snapshotFile.length();
+        if (!snapshotFile.getName().equals(COMPRESSED_SNAPSHOT_FILE_NAME) || stored < 4)
+        {
+            return stored;
+        }
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+        try
+        {
+            file.seek(stored - 4);
+            byte[] trailer = new byte[4];
+            file.readFully(trailer);
+            long size = (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 | (trailer[2] & 0xffL) << 16
+                    | (trailer[3] & 0xffL) << 24;
+            return Math.max(stored, size);
+        }
+        finally
+        {
+            file.close();
+        }
     }
 
     /**
@@ -983,7 +1842,12 @@ public class FileTransferReceiver implements TransferReceiver
      */
     private NodeRef createTransferRecord()
     {
-        return new NodeRef("workspace://SpaceStore/" + GUID.generate());
+        String id = GUID.generate();
+        if (cluster != null)
+        {
+            id = cluster.ownedNodeId(id);
+        }
+        return new NodeRef("workspace://SpaceStore/" + id);
     }
 
     public long getLockRetryWait()
@@ -1042,6 +1906,221 @@ public class FileTransferReceiver implements TransferReceiver
         this.manifestProcessorFactory = (FileTransferManifestProcessorFactory) manifestProcessorFactory;
     }
 
+    /**
+     * @param stagingShardLevels the number of levels of hashed folders the content parts are staged in
+     */
+    public void setStagingShardLevels(int stagingShardLevels)
+    {
+        this.stagingLayout = new StagingLayout(stagingShardLevels);
+    }
+
+    public int getStagingShardLevels()
+    {
+        return stagingLayout.getShardLevels();
+    }
+
+    public void setSignatureCache(ContentSignatureCache signatureCache)
+    {
+        this.signatureCache = signatureCache;
+    }
+
+    public void setIndexSnapshot(boolean indexSnapshot)
+    {
+        this.indexSnapshot = indexSnapshot;
+    }
+
+    public boolean isIndexSnapshot()
+    {
+        return indexSnapshot;
+    }
+
+    public void setManifestIndexMaxNodes(int manifestIndexMaxNodes)
+    {
+        this.manifestIndexMaxNodes = manifestIndexMaxNodes;
+    }
+
+    public int getManifestIndexMaxNodes()
+    {
+        return manifestIndexMaxNodes;
+    }
+
+    /**
+     * @return the index built while the snapshot of the transfer was staged, null if there is none
+     */
+    ManifestIndex getManifestIndex(String transferId)
+    {
+        return manifestIndexes.get(transferId);
+    }
+
+    public void setManifestParser(FileTransferManifestParser manifestParser)
+    {
+        this.manifestParser = manifestParser;
+    }
+
+    public FileTransferManifestParser getManifestParser()
+    {
+        return manifestParser;
+    }
+
+    public void setCompressSnapshot(boolean compressSnapshot)
+    {
+        this.compressSnapshot = compressSnapshot;
+    }
+
+    public boolean isCompressSnapshot()
+    {
+        return compressSnapshot;
+    }
+
+    /**
+     * @param stagingJanitor removes staging folders in the background. If not set they are deleted when the transfer
+     *            ends.
+     */
+    public void setStagingJanitor(StagingJanitor stagingJanitor)
+    {
+        this.stagingJanitor = stagingJanitor;
+    }
+
+    public void setTransferThrottle(TransferThrottle transferThrottle)
+    {
+        this.transferThrottle = transferThrottle;
+    }
+
+    /**
+     * @param cluster the cluster the receiver belongs to, if any
+     */
+    public void setCluster(FileTransferCluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    public FileTransferCluster getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * @param admissionQueue queues the requests to start a transfer while the transfer lock is held. If not set,
+     *            a request fails once the lock retries configured on the lock service are used up.
+     */
+    public void setAdmissionQueue(TransferAdmissionQueue admissionQueue)
+    {
+        this.admissionQueue = admissionQueue;
+    }
+
+    /**
+     * Copy content into the receiving folders, at the rate allowed to the transfer
+     */
+    public void copyContent(String transferId, File source, File target) throws IOException
+    {
+        if (transferThrottle != null)
+        {
+            transferThrottle.copy(transferId, source, target);
+        }
+        else
+        {
+            FileUtils.copyFile(source, target);
+        }
+    }
+
+    public void setCommitJournal(CommitJournal commitJournal)
+    {
+        this.commitJournal = commitJournal;
+    }
+
+    /**
+     * @param schemaBootstrap the bootstrap of the tables, awaited before interrupted commits are recovered
+     */
+    public void setSchemaBootstrap(SchemaBootstrap schemaBootstrap)
+    {
+        this.schemaBootstrap = schemaBootstrap;
+    }
+
+    /**
+     * @return the journal of commits, or null if commits are not journalled
+     */
+    public CommitJournal getCommitJournal()
+    {
+        return commitJournal != null && commitJournal.isEnabled() ? commitJournal : null;
+    }
+
+    /**
+     * A change of parallelism takes effect from the next commit
+     */
+    public synchronized void setCommitParallelism(int commitParallelism)
+    {
+        this.commitParallelism = commitParallelism;
+        if (commitPool != null && commitPool.getParallelism() != Math.max(1, commitParallelism))
+        {
+            commitPool.shutdown();
+            commitPool = null;
+        }
+    }
+
+    public int getCommitParallelism()
+    {
+        return commitParallelism;
+    }
+
+    public void setDeleteBatchSize(int deleteBatchSize)
+    {
+        this.deleteBatchSize = deleteBatchSize;
+    }
+
+    public int getDeleteBatchSize()
+    {
+        return deleteBatchSize;
+    }
+
+    public void setRenameBatchSize(int renameBatchSize)
+    {
+        this.renameBatchSize = renameBatchSize;
+    }
+
+    public int getRenameBatchSize()
+    {
+        return renameBatchSize;
+    }
+
+    /**
+     * @return the pool shared by the commits that delete folder trees and process subtrees in parallel, created on
+     *         first use
+     */
+    public synchronized ForkJoinPool getCommitPool()
+    {
+        if (commitPool == null)
+        {
+            commitPool = new ForkJoinPool(Math.max(1, commitParallelism));
+        }
+        return commitPool;
+    }
+
+    public void setParallelDelete(boolean parallelDelete)
+    {
+        this.parallelDelete = parallelDelete;
+    }
+
+    /**
+     * @return true if commits delete folder trees in parallel
+     */
+    public boolean isParallelDelete()
+    {
+        return parallelDelete && commitParallelism > 1;
+    }
+
+    public void setPartitionedCommit(boolean partitionedCommit)
+    {
+        this.partitionedCommit = partitionedCommit;
+    }
+
+    /**
+     * @return true if commits write the files of different top-level subtrees in parallel
+     */
+    public boolean isPartitionedCommit()
+    {
+        return partitionedCommit && commitParallelism > 1;
+    }
+
     public void setProgressMonitor(TransferProgressMonitor progressMonitor)
     {
         this.progressMonitor = progressMonitor;
@@ -1057,6 +2136,100 @@ public class FileTransferReceiver implements TransferReceiver
         this.defaultReceivingroot = defaultReceivingroot;
     }
 
+    public void setReceivingVolumes(ReceivingVolumes receivingVolumes)
+    {
+        this.receivingVolumes = receivingVolumes;
+    }
+
+    public ReceivingVolumes getReceivingVolumes()
+    {
+        return receivingVolumes;
+    }
+
+    /**
+     * @param volume the name of a receiving volume, or null
+     * @return the root of the volume, or the default receiving root for null
+     */
+    public String getVolumeRoot(String volume)
+    {
+        return volume == null ? defaultReceivingroot : receivingVolumes.getRoot(volume);
+    }
+
+    /**
+     * @return the file of a received file, on its volume, or the folder of a received folder in the default root
+     */
+    public File getReceivedFile(FileTransferInfoEntity entity)
+    {
+        return new File(getVolumeRoot(entity.isFolder() ? null : entity.getVolume()) + entity.getPath()
+                + entity.getContentName());
+    }
+
+    /**
+     * Delete the file of a received file, or the (empty) folder of a received folder along with its mirrors on the
+     * other receiving volumes.
+     *
+     * @return true if the file or folder was deleted
+     */
+    public boolean deleteReceivedNode(FileTransferInfoEntity entity)
+    {
+        if (entity.isFolder())
+        {
+            for (String root : receivingVolumes.getRoots())
+            {
+                File mirror = new File(root + entity.getPath() + entity.getContentName());
+                if (mirror.exists() && !mirror.delete())
+                {
+                    log.warn("Unable to delete folder " + mirror.getPath());
+                }
+            }
+        }
+        return getReceivedFile(entity).delete();
+    }
+
+    /**
+     * Rename the mirrors of a folder on the receiving volumes it exists on, once the folder itself has been renamed.
+     * Mirrors that have already been renamed are left as they are.
+     *
+     * @param fromPath the path of the folder relative to the receiving roots
+     * @param toPath the new path of the folder
+     */
+    public void renameFolderMirrors(String fromPath, String toPath)
+    {
+        for (String root : receivingVolumes.getRoots())
+        {
+            File source = new File(root + fromPath);
+            if (!source.isDirectory())
+            {
+                continue;
+            }
+            File target = new File(root + toPath);
+            target.getParentFile().mkdirs();
+            if (target.exists() || !source.renameTo(target))
+            {
+                log.error("Failed to move folder \"" + source.getPath() + "\" to \"" + target.getPath() + "\"");
+            }
+        }
+    }
+
+    /**
+     * Create the mirrors of the folders above a file on the receiving volume it is written to
+     *
+     * @param volume the volume, or null for the default receiving root, whose folders exist already
+     * @throws IOException if the volume is missing or full, or the folders can't be created
+     */
+    public void createVolumeFolders(String volume, String parentPath) throws IOException
+    {
+        if (volume != null)
+        {
+            receivingVolumes.checkVolume(volume);
+            Files.createDirectories(new File(getVolumeRoot(volume) + parentPath).toPath());
+        }
+    }
+
+    /**
+     * @deprecated use {@link #getStagedContent(String, String)}, which finds the parts of the given transfer
+     */
+    @Deprecated
     public Map<String, File> getContents()
     {
         return contents;
@@ -1082,6 +2255,14 @@ public class FileTransferReceiver implements TransferReceiver
         this.descriptorDAO = descriptorDAO;
     }
 
+    /**
+     * @return the repository the current transfer comes from
+     */
+    public String getSourceRepoId()
+    {
+        return sourceRepoId;
+    }
+
     public DbHelper getDbHelper()
     {
         return new DbHelperImpl(fileTransferInfoDAO, transactionService, sourceRepoId);
@@ -98,14 +98,15 @@ public class FileTransferReceiverRequisiteManifestProcessor extends AbstractMani
                 // Only ask for content if content is new or if contentUrl is modified
                 boolean contentisMissing = fileTransferReceiver.isContentNewOrModified(
                         node.getNodeRef().toString(), srcContent.getContentUrl());
-                if (contentisMissing)
+                String partName = TransferCommons.URLToPartName(srcContent.getContentUrl());
+                // Content already staged by an earlier upload in this transfer is not asked for again
+                if (contentisMissing && !fileTransferReceiver.isContentStaged(getTransferId(), partName))
                 {
                     if (log.isDebugEnabled())
                     {
                         log.debug("No node on destination, content is required: " + srcContent.getContentUrl());
                     }
-                    out.missingContent(node.getNodeRef(), ContentModel.PROP_CONTENT, 
-                            TransferCommons.URLToPartName(srcContent.getContentUrl()));
+                    out.missingContent(node.getNodeRef(), ContentModel.PROP_CONTENT, partName);
                 }
             }
         }
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Times the start of the receiver: the whole context, the phases reported to it and the initialisation of each
+ * bean. As a bean post processor it is created ahead of the other beans, so its creation marks the start. The
+ * timings are logged once the context has been refreshed and published through the metrics command.
+ */
+public class FileTransferStartupTimer implements BeanPostProcessor, ApplicationListener<ApplicationEvent>,
+        FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(FileTransferStartupTimer.class);
+
+    private final long created = System.currentTimeMillis();
+    private final Map<String, Long> initStarts = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> beanTimes = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private volatile long contextTime = -1L;
+    private int slowestBeans = 5;
+
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException
+    {
+        initStarts.put(beanName, System.currentTimeMillis());
+        return bean;
+    }
+
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException
+    {
+        Long start = initStarts.remove(beanName);
+        if (start != null)
+        {
+            beanTimes.put(beanName, System.currentTimeMillis() - start);
+        }
+        return bean;
+    }
+
+    /**
+     * Record the duration of a phase of the start that does not map to one bean
+     */
+    public void phase(String name, long millis)
+    {
+        phases.put(name, millis);
+        if (log.isDebugEnabled())
+        {
+            log.debug("Startup phase " + name + " took " + millis + "ms");
+        }
+    }
+
+    public void onApplicationEvent(ApplicationEvent event)
+    {
+        if (event instanceof ContextRefreshedEvent && contextTime < 0)
+        {
+            contextTime = System.currentTimeMillis() - created;
+            if (log.isInfoEnabled())
+            {
+                log.info("File Transfer Receiver context started in " + contextTime + "ms; phases " + phases
+                        + "; slowest beans " + getSlowestBeans());
+            }
+        }
+    }
+
+    private Map<String, Long> getSlowestBeans()
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(beanTimes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2)
+            {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        Map<String, Long> slowest = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(slowestBeans, entries.size())))
+        {
+            slowest.put(entry.getKey(), entry.getValue());
+        }
+        return slowest;
+    }
+
+    public String getMetricsName()
+    {
+        return "startup";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("contextTime", contextTime);
+        synchronized (phases)
+        {
+            for (Map.Entry<String, Long> phase : phases.entrySet())
+            {
+                metrics.put("phase." + phase.getKey(), phase.getValue());
+            }
+        }
+        for (Map.Entry<String, Long> bean : getSlowestBeans().entrySet())
+        {
+            metrics.put("bean." + bean.getKey(), bean.getValue());
+        }
+        return metrics;
+    }
+
+    /**
+     * @param slowestBeans the number of slowest beans reported
+     */
+    public void setSlowestBeans(int slowestBeans)
+    {
+        this.slowestBeans = slowestBeans;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Transfer locks held in memory, for a receiver that is the only one using its database. Taking, refreshing and
+ * releasing a lock does not touch the database.
+ * <p>
+ * As with the {@link org.alfresco.repo.lock.JobLockService}, a lock expires once its time to live has passed without
+ * a refresh, and a refresh callback is asked whether the lock is still active every half time to live; when it is
+ * not, the lock is released and the callback told.
+ */
+public class InMemoryTransferLockProvider implements TransferLockProvider
+{
+    private static final Log log = LogFactory.getLog(InMemoryTransferLockProvider.class);
+
+    private final ConcurrentMap<QName, HeldLock> locks = new ConcurrentHashMap<QName, HeldLock>();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "FileTransferLockRefresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    public String getLock(QName lockQName, long timeToLive, long retryWait, int retryCount)
+    {
+        String lockToken = GUID.generate();
+        for (int attempt = 0; ; attempt++)
+        {
+            long now = System.currentTimeMillis();
+            HeldLock candidate = new HeldLock(lockToken, now + timeToLive);
+            HeldLock held = locks.putIfAbsent(lockQName, candidate);
+            if (held == null || (held.expires < now && locks.replace(lockQName, held, candidate)))
+            {
+                if (held != null)
+                {
+                    held.cancelRefresh();
+                }
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Lock " + lockQName + " taken, token " + lockToken);
+                }
+                return lockToken;
+            }
+            if (attempt >= retryCount)
+            {
+                throw new LockAcquisitionException(lockQName, lockToken);
+            }
+            try
+            {
+                Thread.sleep(retryWait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new LockAcquisitionException(lockQName, lockToken);
+            }
+        }
+    }
+
+    public void refreshLock(final String lockToken, final QName lockQName, final long timeToLive,
+            final JobLockRefreshCallback callback)
+    {
+        final HeldLock held = locks.get(lockQName);
+        if (held == null || !held.token.equals(lockToken))
+        {
+            throw new LockAcquisitionException(lockQName, lockToken);
+        }
+        long period = Math.max(1L, timeToLive / 2L);
+        held.setRefresh(refresher.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    if (locks.get(lockQName) != held)
+                    {
+                        held.cancelRefresh();
+                        if (!held.released)
+                        {
+                            //Expired and taken by another
+                            callback.lockReleased();
+                        }
+                        return;
+                    }
+                    boolean active;
+                    try
+                    {
+                        active = callback.isActive();
+                    }
+                    catch (Throwable e)
+                    {
+                        log.warn("Lock callback failed, releasing lock " + lockQName, e);
+                        active = false;
+                    }
+                    if (active)
+                    {
+                        held.expires = System.currentTimeMillis() + timeToLive;
+                    }
+                    else
+                    {
+                        releaseLock(lockToken, lockQName);
+                        callback.lockReleased();
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS));
+    }
+
+    public boolean releaseLock(String lockToken, QName lockQName)
+    {
+        HeldLock held = locks.get(lockQName);
+        if (held != null && held.token.equals(lockToken) && locks.remove(lockQName, held))
+        {
+            held.released = true;
+            held.cancelRefresh();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Lock " + lockQName + " released, token " + lockToken);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop refreshing locks
+     */
+    public void destroy()
+    {
+        refresher.shutdownNow();
+    }
+
+    private static class HeldLock
+    {
+        final String token;
+        volatile long expires;
+        volatile boolean released;
+        private ScheduledFuture<?> refresh;
+
+        HeldLock(String token, long expires)
+        {
+            this.token = token;
+            this.expires = expires;
+        }
+
+        synchronized void setRefresh(ScheduledFuture<?> refresh)
+        {
+            if (this.refresh != null)
+            {
+                this.refresh.cancel(false);
+            }
+            this.refresh = refresh;
+        }
+
+        synchronized void cancelRefresh()
+        {
+            if (refresh != null)
+            {
+                refresh.cancel(false);
+                refresh = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Transfer locks held in the database by the {@link JobLockService}, for receivers that share their database with
+ * other receivers.
+ */
+public class JobLockServiceTransferLockProvider implements TransferLockProvider
+{
+    private JobLockService jobLockService;
+
+    public JobLockServiceTransferLockProvider()
+    {
+    }
+
+    public JobLockServiceTransferLockProvider(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    public String getLock(QName lockQName, long timeToLive, long retryWait, int retryCount)
+    {
+        return jobLockService.getLock(lockQName, timeToLive, retryWait, retryCount);
+    }
+
+    public void refreshLock(String lockToken, QName lockQName, long timeToLive, JobLockRefreshCallback callback)
+    {
+        jobLockService.refreshLock(lockToken, lockQName, timeToLive, callback);
+    }
+
+    public boolean releaseLock(String lockToken, QName lockQName)
+    {
+        return jobLockService.releaseLock(lockToken, lockQName);
+    }
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+}
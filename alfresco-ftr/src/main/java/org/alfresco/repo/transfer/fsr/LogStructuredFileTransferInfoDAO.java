@@ -0,0 +1,993 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DuplicateKeyException;
+
+/**
+ * Keeps the node records of the receiver in an embedded key-value store instead of the database.
+ * <p>
+ * All records are held in memory, indexed by node reference, by parent and by id. Every change is first appended to
+ * a log file as one frame holding all the records it writes, with a checksum, so that a change is either recovered
+ * entirely or not at all; on start the log is replayed and a torn frame at its end is cut off. When the log holds
+ * many more records than are live it is rewritten with only the live ones, into a new file that replaces it
+ * atomically.
+ * <p>
+ * The store belongs to one receiver: it cannot be shared by the nodes of a cluster.
+ */
+public class LogStructuredFileTransferInfoDAO implements FileTransferInfoDAO
+{
+    private static final Log log = LogFactory.getLog(LogStructuredFileTransferInfoDAO.class);
+
+    static final String LOG_FILE = "metadata.log";
+    private static final String COMPACT_FILE = "metadata.log.compact";
+
+    private static final byte PUT_INFO = 1;
+    private static final byte DELETE_INFO = 2;
+    private static final byte PUT_RENAME = 3;
+    private static final byte DELETE_RENAME = 4;
+    /**
+     * A node record with its content size and checksum. PUT_INFO records are still read from older logs
+     */
+    private static final byte PUT_INFO_CONTENT = 5;
+    /**
+     * A node record with its content size and checksum and its receiving volume
+     */
+    private static final byte PUT_INFO_VOLUME = 6;
+
+    private static final int FRAME_HEADER = 8;
+    private static final int MAX_FRAME = 256 * 1024 * 1024;
+    private static final int COMPACT_BATCH = 1000;
+
+    private File directory = new File("ftr-metadata");
+    private boolean syncWrites = true;
+    private int compactionRatio = 4;
+    private long minCompactionRecords = 100000L;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, FileTransferInfoEntity> byNodeRef = new HashMap<String, FileTransferInfoEntity>();
+    private final Map<String, Set<String>> byParent = new HashMap<String, Set<String>>();
+    private final TreeMap<Long, String> byId = new TreeMap<Long, String>();
+    private final Map<String, FileTransferNodeRenameEntity> renames = new HashMap<String, FileTransferNodeRenameEntity>();
+    private final Map<String, Set<String>> renamesByTransfer = new HashMap<String, Set<String>>();
+
+    private FileChannel channel;
+    //Set when a failed write could not be cut off the log, as the writes after it would be lost at the next start
+    private boolean unusable;
+    private long nextId = 1L;
+    private long logRecords = 0L;
+
+    /**
+     * Replay the log into memory and open it for appending
+     */
+    public void init()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new AlfrescoRuntimeException("Unable to create metadata directory " + directory.getPath());
+            }
+            File compactFile = new File(directory, COMPACT_FILE);
+            if (compactFile.exists() && !compactFile.delete())
+            {
+                log.warn("Unable to delete interrupted compaction " + compactFile.getPath());
+            }
+            File logFile = new File(directory, LOG_FILE);
+            long validLength = logFile.exists() ? replay(logFile) : 0L;
+            channel = new RandomAccessFile(logFile, "rw").getChannel();
+            if (channel.size() > validLength)
+            {
+                log.warn("Discarding " + (channel.size() - validLength) + " bytes of incomplete writes at the end of "
+                        + logFile.getPath());
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+            channel.position(validLength);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Loaded " + byNodeRef.size() + " node records and " + renames.size()
+                        + " renames from " + logFile.getPath());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to open metadata store in " + directory.getPath(), e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (channel != null)
+            {
+                channel.close();
+                channel = null;
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to close metadata store", e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FileTransferInfoEntity createFileTransferInfo(String nodeRef, String parent, String path,
+            String content_name, String contentUrl, boolean isFolder, String sourceRepoId, long contentSize,
+            String contentChecksum, String volume)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (byNodeRef.containsKey(nodeRef))
+            {
+                throw new DuplicateKeyException("Node " + nodeRef + " is already recorded");
+            }
+            FileTransferInfoEntity entity = new FileTransferInfoEntity();
+            entity.setId(nextId);
+            entity.setNodeRef(nodeRef);
+            entity.setParent(parent);
+            entity.setPath(path);
+            entity.setContentName(content_name);
+            entity.setContentUrl(contentUrl);
+            entity.setFolder(isFolder);
+            entity.setSourceRepoId(sourceRepoId);
+            entity.setContentSize(contentSize);
+            entity.setContentChecksum(contentChecksum);
+            entity.setVolume(volume);
+            Batch batch = new Batch();
+            batch.putInfo(entity);
+            write(batch);
+            return copy(entity);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FileTransferInfoEntity findFileTransferInfoByNodeRef(String nodeRef)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return copy(byNodeRef.get(nodeRef));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<FileTransferInfoEntity> findFileTransferInfoByParentNodeRef(String nodeRef)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Set<String> children = byParent.get(nodeRef);
+            if (children == null)
+            {
+                return new ArrayList<FileTransferInfoEntity>();
+            }
+            List<FileTransferInfoEntity> entities = new ArrayList<FileTransferInfoEntity>(children.size());
+            for (String child : children)
+            {
+                entities.add(copy(byNodeRef.get(child)));
+            }
+            return entities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<FileTransferInfoEntity> findFileTransferInfoByContentNamePrefix(String prefix)
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<FileTransferInfoEntity> entities = new ArrayList<FileTransferInfoEntity>();
+            for (FileTransferInfoEntity entity : byNodeRef.values())
+            {
+                if (entity.getContentName() != null && entity.getContentName().startsWith(prefix))
+                {
+                    entities.add(copy(entity));
+                }
+            }
+            return entities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<FileTransferInfoEntity> findFileTransferInfoAfterId(long afterId, int maxResults)
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<FileTransferInfoEntity> entities = new ArrayList<FileTransferInfoEntity>();
+            for (String nodeRef : byId.tailMap(afterId, false).values())
+            {
+                if (entities.size() >= maxResults)
+                {
+                    break;
+                }
+                entities.add(copy(byNodeRef.get(nodeRef)));
+            }
+            return entities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void updateFileTransferInfoByNodeRef(FileTransferInfoEntity modifiedEntity)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            FileTransferInfoEntity current = byNodeRef.get(modifiedEntity.getNodeRef());
+            if (current == null)
+            {
+                return;
+            }
+            FileTransferInfoEntity entity = copy(modifiedEntity);
+            entity.setId(current.getId());
+            Batch batch = new Batch();
+            batch.putInfo(entity);
+            write(batch);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteFileTransferInfoByNodeRef(String nodeRef)
+    {
+        deleteFileTransferInfoByNodeRefs(Collections.singletonList(nodeRef));
+    }
+
+    public void deleteFileTransferInfoByNodeRefs(List<String> nodeRefs)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Batch batch = new Batch();
+            for (String nodeRef : nodeRefs)
+            {
+                if (byNodeRef.containsKey(nodeRef))
+                {
+                    batch.deleteInfo(nodeRef);
+                }
+            }
+            write(batch);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FileTransferNodeRenameEntity createFileTransferNodeRenameEntity(String noderef, String transferId,
+            String newName)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (renames.containsKey(noderef))
+            {
+                throw new DuplicateKeyException("Node " + noderef + " is already being renamed");
+            }
+            FileTransferNodeRenameEntity entity = new FileTransferNodeRenameEntity();
+            entity.setId(nextId);
+            entity.setRenamedNodeRef(noderef);
+            entity.setTransferId(transferId);
+            entity.setNewName(newName);
+            Batch batch = new Batch();
+            batch.putRename(entity);
+            write(batch);
+            return copy(entity);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteNodeRenameByTransferIdAndNodeRef(String transferId, String nodeRef)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            FileTransferNodeRenameEntity entity = renames.get(nodeRef);
+            if (entity != null && entity.getTransferId().equals(transferId))
+            {
+                Batch batch = new Batch();
+                batch.deleteRename(transferId, nodeRef);
+                write(batch);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<FileTransferNodeRenameEntity> findFileTransferNodeRenameEntityByTransferId(String transferId)
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<FileTransferNodeRenameEntity> entities = new ArrayList<FileTransferNodeRenameEntity>();
+            Set<String> nodeRefs = renamesByTransfer.get(transferId);
+            if (nodeRefs != null)
+            {
+                for (String nodeRef : nodeRefs)
+                {
+                    entities.add(copy(renames.get(nodeRef)));
+                }
+            }
+            return entities;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void updatePathOfChildren(String parentId, String newPath)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Set<String> children = byParent.get(parentId);
+            if (children == null)
+            {
+                return;
+            }
+            Batch batch = new Batch();
+            for (String child : children)
+            {
+                FileTransferInfoEntity entity = copy(byNodeRef.get(child));
+                entity.setPath(newPath);
+                batch.putInfo(entity);
+            }
+            write(batch);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void updatePathOfDescendants(String parentId, String newPath)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Batch batch = new Batch();
+            List<String> parents = new ArrayList<String>();
+            List<String> paths = new ArrayList<String>();
+            parents.add(parentId);
+            paths.add(newPath);
+            for (int i = 0; i < parents.size(); i++)
+            {
+                Set<String> children = byParent.get(parents.get(i));
+                if (children == null)
+                {
+                    continue;
+                }
+                for (String child : children)
+                {
+                    FileTransferInfoEntity entity = copy(byNodeRef.get(child));
+                    entity.setPath(paths.get(i));
+                    batch.putInfo(entity);
+                    if (entity.isFolder())
+                    {
+                        parents.add(child);
+                        paths.add(paths.get(i) + entity.getContentName() + "/");
+                    }
+                }
+            }
+            //One frame, so that a crash leaves the whole subtree at either its old or its new path
+            write(batch);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append the batch to the log, then apply it. Called with the write lock held.
+     */
+    private void write(Batch batch)
+    {
+        if (batch.count == 0)
+        {
+            return;
+        }
+        if (unusable)
+        {
+            throw new AlfrescoRuntimeException("Metadata store in " + directory.getPath()
+                    + " takes no more writes after a failed write, the receiver must be restarted");
+        }
+        long position = -1L;
+        try
+        {
+            position = channel.position();
+            append(frame(batch));
+            if (syncWrites)
+            {
+                channel.force(false);
+            }
+        }
+        catch (IOException e)
+        {
+            discardFailedWrite(position);
+            throw new AlfrescoRuntimeException("Unable to write to metadata store in " + directory.getPath(), e);
+        }
+        apply(batch.toByteArray());
+        logRecords += batch.count;
+        if (logRecords > minCompactionRecords && logRecords > (long) compactionRatio * (byNodeRef.size() + renames.size()))
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Cut the frame of a failed write off the end of the log. Left there, it would end the log at the next start and
+     * the frames appended after it would be lost.
+     */
+    private void discardFailedWrite(long position)
+    {
+        try
+        {
+            if (position < 0L)
+            {
+                throw new IOException("Position of the failed write is not known");
+            }
+            channel.truncate(position);
+            channel.position(position);
+        }
+        catch (IOException e)
+        {
+            unusable = true;
+            log.error("Unable to remove a failed write from metadata store in " + directory.getPath()
+                    + ", no more writes will be taken", e);
+        }
+    }
+
+    /**
+     * Write a frame at the end of the log
+     */
+    void append(ByteBuffer frame) throws IOException
+    {
+        while (frame.hasRemaining())
+        {
+            channel.write(frame);
+        }
+    }
+
+    private static ByteBuffer frame(Batch batch)
+    {
+        byte[] payload = batch.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeFrame(FileChannel channel, Batch batch) throws IOException
+    {
+        ByteBuffer frame = frame(batch);
+        while (frame.hasRemaining())
+        {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * @return the length of the log up to the end of its last complete frame
+     */
+    private long replay(File logFile) throws IOException
+    {
+        long validLength = 0L;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+        try
+        {
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                if (length < 0 || length > MAX_FRAME)
+                {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int checksum;
+                try
+                {
+                    checksum = in.readInt();
+                    in.readFully(payload);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                {
+                    break;
+                }
+                logRecords += apply(payload);
+                validLength += FRAME_HEADER + length;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return validLength;
+    }
+
+    /**
+     * @return the number of records applied
+     */
+    private int apply(byte[] payload)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                byte type = in.readByte();
+                if (type == PUT_INFO || type == PUT_INFO_CONTENT || type == PUT_INFO_VOLUME)
+                {
+                    FileTransferInfoEntity entity = new FileTransferInfoEntity();
+                    entity.setId(in.readLong());
+                    entity.setNodeRef(readString(in));
+                    entity.setParent(readString(in));
+                    entity.setPath(readString(in));
+                    entity.setContentName(readString(in));
+                    entity.setContentUrl(readString(in));
+                    entity.setFolder(in.readBoolean());
+                    entity.setSourceRepoId(readString(in));
+                    if (type != PUT_INFO)
+                    {
+                        entity.setContentSize(in.readLong());
+                        entity.setContentChecksum(readString(in));
+                    }
+                    if (type == PUT_INFO_VOLUME)
+                    {
+                        entity.setVolume(readString(in));
+                    }
+                    putInfo(entity);
+                }
+                else if (type == DELETE_INFO)
+                {
+                    removeInfo(readString(in));
+                }
+                else if (type == PUT_RENAME)
+                {
+                    FileTransferNodeRenameEntity entity = new FileTransferNodeRenameEntity();
+                    entity.setId(in.readLong());
+                    entity.setRenamedNodeRef(readString(in));
+                    entity.setTransferId(readString(in));
+                    entity.setNewName(readString(in));
+                    putRename(entity);
+                }
+                else if (type == DELETE_RENAME)
+                {
+                    String transferId = readString(in);
+                    removeRename(transferId, readString(in));
+                }
+                else
+                {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+            return count;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Corrupt metadata store record in " + directory.getPath(), e);
+        }
+    }
+
+    private void putInfo(FileTransferInfoEntity entity)
+    {
+        FileTransferInfoEntity previous = byNodeRef.put(entity.getNodeRef(), entity);
+        if (previous != null)
+        {
+            byId.remove(previous.getId());
+            removeFromIndex(byParent, previous.getParent(), previous.getNodeRef());
+        }
+        byId.put(entity.getId(), entity.getNodeRef());
+        addToIndex(byParent, entity.getParent(), entity.getNodeRef());
+        nextId = Math.max(nextId, entity.getId() + 1);
+    }
+
+    private void removeInfo(String nodeRef)
+    {
+        FileTransferInfoEntity previous = byNodeRef.remove(nodeRef);
+        if (previous != null)
+        {
+            byId.remove(previous.getId());
+            removeFromIndex(byParent, previous.getParent(), nodeRef);
+        }
+    }
+
+    private void putRename(FileTransferNodeRenameEntity entity)
+    {
+        FileTransferNodeRenameEntity previous = renames.put(entity.getRenamedNodeRef(), entity);
+        if (previous != null)
+        {
+            removeFromIndex(renamesByTransfer, previous.getTransferId(), previous.getRenamedNodeRef());
+        }
+        addToIndex(renamesByTransfer, entity.getTransferId(), entity.getRenamedNodeRef());
+        nextId = Math.max(nextId, entity.getId() + 1);
+    }
+
+    private void removeRename(String transferId, String nodeRef)
+    {
+        FileTransferNodeRenameEntity previous = renames.get(nodeRef);
+        if (previous != null && previous.getTransferId().equals(transferId))
+        {
+            renames.remove(nodeRef);
+            removeFromIndex(renamesByTransfer, transferId, nodeRef);
+        }
+    }
+
+    private static void addToIndex(Map<String, Set<String>> index, String key, String value)
+    {
+        Set<String> values = index.get(key);
+        if (values == null)
+        {
+            values = new LinkedHashSet<String>();
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, String key, String value)
+    {
+        Set<String> values = index.get(key);
+        if (values != null)
+        {
+            values.remove(value);
+            if (values.isEmpty())
+            {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log with the live records only. Called with the write lock held, after a change was written, so a
+     * failure leaves the old log in use rather than failing the change.
+     */
+    private void compact()
+    {
+        File logFile = new File(directory, LOG_FILE);
+        File compactFile = new File(directory, COMPACT_FILE);
+        long start = System.currentTimeMillis();
+        try
+        {
+            FileChannel compacted = new RandomAccessFile(compactFile, "rw").getChannel();
+            try
+            {
+                compacted.truncate(0L);
+                Batch batch = new Batch();
+                for (FileTransferInfoEntity entity : byNodeRef.values())
+                {
+                    batch.putInfo(entity);
+                    if (batch.count >= COMPACT_BATCH)
+                    {
+                        writeFrame(compacted, batch);
+                        batch = new Batch();
+                    }
+                }
+                for (FileTransferNodeRenameEntity entity : renames.values())
+                {
+                    batch.putRename(entity);
+                    if (batch.count >= COMPACT_BATCH)
+                    {
+                        writeFrame(compacted, batch);
+                        batch = new Batch();
+                    }
+                }
+                if (batch.count > 0)
+                {
+                    writeFrame(compacted, batch);
+                }
+                compacted.force(true);
+            }
+            finally
+            {
+                compacted.close();
+            }
+            //Some platforms cannot replace a file that is open
+            channel.close();
+            try
+            {
+                Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                logRecords = byNodeRef.size() + renames.size();
+            }
+            finally
+            {
+                //The compacted log or, if it could not be moved, the old one
+                channel = new RandomAccessFile(logFile, "rw").getChannel();
+                channel.position(channel.size());
+            }
+            if (log.isDebugEnabled())
+            {
+                log.debug("Compacted metadata store to " + logRecords + " records in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to compact metadata store in " + directory.getPath(), e);
+            if (compactFile.exists() && !compactFile.delete())
+            {
+                log.warn("Unable to delete failed compaction " + compactFile.getPath());
+            }
+        }
+    }
+
+    private static FileTransferInfoEntity copy(FileTransferInfoEntity entity)
+    {
+        if (entity == null)
+        {
+            return null;
+        }
+        FileTransferInfoEntity copy = new FileTransferInfoEntity();
+        copy.setId(entity.getId());
+        copy.setNodeRef(entity.getNodeRef());
+        copy.setParent(entity.getParent());
+        copy.setPath(entity.getPath());
+        copy.setContentName(entity.getContentName());
+        copy.setContentUrl(entity.getContentUrl());
+        copy.setFolder(entity.isFolder());
+        copy.setSourceRepoId(entity.getSourceRepoId());
+        copy.setContentSize(entity.getContentSize());
+        copy.setContentChecksum(entity.getContentChecksum());
+        copy.setVolume(entity.getVolume());
+        return copy;
+    }
+
+    private static FileTransferNodeRenameEntity copy(FileTransferNodeRenameEntity entity)
+    {
+        FileTransferNodeRenameEntity copy = new FileTransferNodeRenameEntity();
+        copy.setId(entity.getId());
+        copy.setRenamedNodeRef(entity.getRenamedNodeRef());
+        copy.setTransferId(entity.getTransferId());
+        copy.setNewName(entity.getNewName());
+        return copy;
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The records of one change, written as one frame
+     */
+    private static class Batch
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count;
+
+        void putInfo(FileTransferInfoEntity entity)
+        {
+            try
+            {
+                out.writeByte(PUT_INFO_VOLUME);
+                out.writeLong(entity.getId());
+                writeString(entity.getNodeRef());
+                writeString(entity.getParent());
+                writeString(entity.getPath());
+                writeString(entity.getContentName());
+                writeString(entity.getContentUrl());
+                out.writeBoolean(entity.isFolder());
+                writeString(entity.getSourceRepoId());
+                out.writeLong(entity.getContentSize());
+                writeString(entity.getContentChecksum());
+                writeString(entity.getVolume());
+                count++;
+            }
+            catch (IOException e)
+            {
+                throw new AlfrescoRuntimeException("Unable to encode node record", e);
+            }
+        }
+
+        void deleteInfo(String nodeRef)
+        {
+            try
+            {
+                out.writeByte(DELETE_INFO);
+                writeString(nodeRef);
+                count++;
+            }
+            catch (IOException e)
+            {
+                throw new AlfrescoRuntimeException("Unable to encode node record", e);
+            }
+        }
+
+        void putRename(FileTransferNodeRenameEntity entity)
+        {
+            try
+            {
+                out.writeByte(PUT_RENAME);
+                out.writeLong(entity.getId());
+                writeString(entity.getRenamedNodeRef());
+                writeString(entity.getTransferId());
+                writeString(entity.getNewName());
+                count++;
+            }
+            catch (IOException e)
+            {
+                throw new AlfrescoRuntimeException("Unable to encode rename record", e);
+            }
+        }
+
+        void deleteRename(String transferId, String nodeRef)
+        {
+            try
+            {
+                out.writeByte(DELETE_RENAME);
+                writeString(transferId);
+                writeString(nodeRef);
+                count++;
+            }
+            catch (IOException e)
+            {
+                throw new AlfrescoRuntimeException("Unable to encode rename record", e);
+            }
+        }
+
+        private void writeString(String value) throws IOException
+        {
+            if (value == null)
+            {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+
+        byte[] toByteArray()
+        {
+            byte[] records = bytes.toByteArray();
+            ByteBuffer payload = ByteBuffer.allocate(4 + records.length);
+            payload.putInt(count);
+            payload.put(records);
+            return payload.array();
+        }
+    }
+
+    /**
+     * @param directory the directory of the log
+     */
+    public void setDirectory(String directory)
+    {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * @param syncWrites whether each change is forced to disk before it returns. Without it a crash of the machine,
+     *            though not of the receiver alone, can lose the latest changes.
+     */
+    public void setSyncWrites(boolean syncWrites)
+    {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * @param compactionRatio the number of records in the log per live record above which the log is compacted
+     */
+    public void setCompactionRatio(int compactionRatio)
+    {
+        this.compactionRatio = compactionRatio;
+    }
+
+    public void setMinCompactionRecords(long minCompactionRecords)
+    {
+        this.minCompactionRecords = minCompactionRecords;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.List;
+
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
+import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+
+/**
+ * The header and nodes of a manifest kept as they were parsed, by the {@link ManifestIndex} and the
+ * {@link ChunkedManifestParser}, to be passed to a processor later
+ */
+final class ManifestEvents
+{
+    private ManifestEvents()
+    {
+    }
+
+    /**
+     * Pass the header and nodes to the processor in order, as the parser would have
+     */
+    static void dispatch(List<Object> events, TransferManifestProcessor processor)
+    {
+        for (Object event : events)
+        {
+            if (event instanceof TransferManifestNormalNode)
+            {
+                processor.processTransferManifestNode((TransferManifestNormalNode) event);
+            }
+            else if (event instanceof TransferManifestDeletedNode)
+            {
+                processor.processTransferManifestNode((TransferManifestDeletedNode) event);
+            }
+            else
+            {
+                processor.processTransferManifiestHeader((TransferManifestHeader) event);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
+import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+import org.alfresco.repo.transfer.requisite.TransferRequsiteWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * What the receiver learns from a snapshot while it is being staged, so that the snapshot need not be parsed again.
+ * <p>
+ * The index runs the requisite processor as the snapshot streams in and records the content it finds missing;
+ * {@link #writeRequisite(TransferRequsiteWriter, FileTransferReceiver, String)} then writes the requisite without a
+ * parse, leaving out content staged since. It also keeps the parsed manifest, unless it has more than a configured
+ * number of nodes, so that {@link #replay(TransferManifestProcessor)} can feed the commit processors without a parse.
+ */
+public class ManifestIndex implements TransferManifestProcessor
+{
+    private final TransferManifestProcessor requisiteProcessor;
+    private final int maxNodes;
+    private final List<Object[]> missingContent = new ArrayList<Object[]>();
+    private List<Object> manifest = new ArrayList<Object>();
+    private int nodeCount;
+    private volatile boolean complete;
+
+    /**
+     * @param maxNodes the largest number of nodes whose manifest is kept for replay
+     */
+    public ManifestIndex(FileTransferManifestProcessorFactory factory, FileTransferReceiver receiver,
+            String transferId, int maxNodes)
+    {
+        this.maxNodes = maxNodes;
+        this.requisiteProcessor = factory.getRequsiteProcessor(receiver, transferId, new TransferRequsiteWriter()
+        {
+            public void startTransferRequsite()
+            {
+            }
+
+            public void missingContent(NodeRef node, QName qname, String name)
+            {
+                missingContent.add(new Object[] { node, qname, name });
+            }
+
+            public void endTransferRequsite()
+            {
+            }
+        });
+    }
+
+    public void startTransferManifest()
+    {
+        requisiteProcessor.startTransferManifest();
+    }
+
+    public void processTransferManifiestHeader(TransferManifestHeader header)
+    {
+        requisiteProcessor.processTransferManifiestHeader(header);
+        record(header);
+    }
+
+    public void processTransferManifestNode(TransferManifestNormalNode node)
+    {
+        requisiteProcessor.processTransferManifestNode(node);
+        record(node);
+    }
+
+    public void processTransferManifestNode(TransferManifestDeletedNode node)
+    {
+        requisiteProcessor.processTransferManifestNode(node);
+        record(node);
+    }
+
+    public void endTransferManifest()
+    {
+        requisiteProcessor.endTransferManifest();
+        complete = true;
+    }
+
+    private void record(Object event)
+    {
+        if (manifest != null)
+        {
+            if (!(event instanceof TransferManifestHeader) && ++nodeCount > maxNodes)
+            {
+                manifest = null;
+            }
+            else
+            {
+                manifest.add(event);
+            }
+        }
+    }
+
+    /**
+     * @return true if the whole snapshot has been indexed
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return true if the manifest has been kept and can be replayed
+     */
+    public boolean canReplay()
+    {
+        return complete && manifest != null;
+    }
+
+    /**
+     * Write the requisite of the snapshot
+     */
+    public void writeRequisite(TransferRequsiteWriter writer, FileTransferReceiver receiver, String transferId)
+    {
+        writer.startTransferRequsite();
+        for (Object[] content : missingContent)
+        {
+            String partName = (String) content[2];
+            // Content uploaded since the snapshot was staged is not asked for again
+            if (!receiver.isContentStaged(transferId, partName))
+            {
+                writer.missingContent((NodeRef) content[0], (QName) content[1], partName);
+            }
+        }
+        writer.endTransferRequsite();
+    }
+
+    /**
+     * Feed the manifest to a processor as a parse of the snapshot would
+     */
+    public void replay(TransferManifestProcessor processor)
+    {
+        processor.startTransferManifest();
+        ManifestEvents.dispatch(manifest, processor);
+        processor.endTransferManifest();
+    }
+}
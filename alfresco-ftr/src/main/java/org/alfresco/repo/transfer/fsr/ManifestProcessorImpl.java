@@ -29,6 +29,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,12 +63,26 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
 
     private static final String MSG_ERROR_COPYING_FILE = "ftr.errorCopyingFile";
 
+    private static final String MSG_COMMIT_PARTITION_FAILED = "ftr.commitPartitionFailed";
+
+    /**
+     * Number of files whose writes may be queued by a partitioned commit before they are carried out
+     */
+    private static final int MAX_QUEUED_FILES = 10000;
+
+    /**
+     * Number of files to rename in one folder above which the folder is listed rather than each file looked up
+     */
+    private static final int MIN_FILES_TO_LIST_FOLDER = 16;
+
     private Log log = LogFactory.getLog(ManifestProcessorImpl.class);
 
     private Map<String, List<NodeContext>> orphans = new TreeMap<String, List<NodeContext>>();
     private Map<String, NodeContext> foldersToDelete = new TreeMap<String, NodeContext>();
     private Map<String,NodeContext> tempFilesToRename = new TreeMap<String,NodeContext>();
     private Map<String,NodeContext> existingFilesToReplace = new TreeMap<String,NodeContext>();
+    //Files whose content URL has changed but whose bytes have not
+    private List<FileTransferInfoEntity> contentUrlUpdates = new ArrayList<FileTransferInfoEntity>();
     private Map<String, NodeContext> foldersToMove = new TreeMap<String,NodeContext>();
     private Set<String> receivedFolderIds = new TreeSet<String>();
     private Set<String> receivedFileIds = new TreeSet<String>();
@@ -78,6 +95,20 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
     private FileTransferReceiver fileTransferReceiver;
 
     private boolean isSync;
+
+    private CommitJournal.Transaction journal;
+
+    private PartitionedNodeProcessor partitionedProcessor;
+
+    //Set once a file write queued to a partition has failed: the whole commit is then rolled back
+    private boolean partitionFailed;
+
+    private ReceivingVolumes volumes;
+
+    private String sourceRepoId;
+
+    //The receiving volume of the files below each folder looked up, "" for the default receiving root
+    private Map<String, String> subtreeVolumes = new HashMap<String, String>();
     
     public ManifestProcessorImpl(TransferReceiver receiver, String transferId, DbHelper dbHelper)
     {
@@ -98,6 +129,18 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
     {
         processStartTime = System.currentTimeMillis();
         NodeContext.renamingCounter = 1;
+        volumes = fileTransferReceiver.getReceivingVolumes();
+        sourceRepoId = fileTransferReceiver.getSourceRepoId();
+        if (fileTransferReceiver.isPartitionedCommit())
+        {
+            partitionedProcessor = new PartitionedNodeProcessor(fileTransferReceiver.getCommitPool(),
+                    MAX_QUEUED_FILES);
+        }
+        CommitJournal commitJournal = fileTransferReceiver.getCommitJournal();
+        if (commitJournal != null)
+        {
+            journal = commitJournal.begin(getTransferId(), sourceRepoId);
+        }
         //Make sure we have the root node recorded...
         //The root node is the only one that has "" as its parent id
         
@@ -152,6 +195,18 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         {
             log.debug("Initial pass through manifest is complete. Post-processing has started.");
         }
+        flushPartitions();
+        if (journal != null)
+        {
+            journal.sync();
+        }
+
+        //Record the new content URLs of files whose bytes are unchanged
+        if (!contentUrlUpdates.isEmpty())
+        {
+            dbHelper.updateFileTransferInfoByNodeRefs(contentUrlUpdates);
+            contentUrlUpdates.clear();
+        }
         
         //Process any existing files that need to be replaced with new versions
         //Copy the collection first so we can safely remove processed files as we go. This helps
@@ -159,7 +214,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         Collection<NodeContext> filesToReplace = new ArrayList<NodeContext>(existingFilesToReplace.values());
         for (NodeContext fileToReplace : filesToReplace)
         {
-            if (switchFile(fileToReplace.nodeId, fileToReplace.newParentId, fileToReplace.tempName, fileToReplace.newContentUrl, pathPrefix))
+            if (switchFile(fileToReplace.nodeId, fileToReplace.newParentId, fileToReplace.tempName, fileToReplace.newContentUrl,
+                    fileToReplace.newContentSize, fileToReplace.newContentChecksum, fileToReplace.newVolume))
             {
                 //Record this node in the list of temp files to be renamed
                 tempFilesToRename.put(fileToReplace.nodeId, fileToReplace);
@@ -212,7 +268,7 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         }
         
         //If any folders need to be deleted then handle them now
-        removeDeletedFolders(pathPrefix);
+        removeDeletedFolders();
         
         //If we are dealing with a "sync" transfer then we now need to work out
         //if there are any implicit deletions required and process them if so.
@@ -239,7 +295,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                                     currentChild.getNodeRef() + " (" + currentChild.getPath() + 
                                     currentChild.getContentName() + ")"); 
                         }
-                        deleteNode(currentChild, pathPrefix);
+                        journalDelete(currentChild.getNodeRef(), currentChild.getContentName());
+                        deleteNode(currentChild);
                     }
                 }
             }
@@ -250,19 +307,26 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         }
         
         //Finally we need to run through all the new files with temporary names and rename them
-        renameTempFiles(pathPrefix);
+        renameTempFiles();
+
+        if (journal != null)
+        {
+            journal.complete();
+            journal = null;
+        }
         
         log.info("Completed processing manifest file. It took " + 
                 (System.currentTimeMillis() - processStartTime) + "ms");
     }
 
-    private void removeDeletedFolders(String pathPrefix)
+    private void removeDeletedFolders()
     {
+        String pathPrefix = fileTransferReceiver.getDefaultReceivingroot();
         Collection<NodeContext> folders = new ArrayList<NodeContext>(foldersToDelete.values());
         for (NodeContext folderToDelete : folders)
         {
             FileTransferInfoEntity folderEntity = dbHelper.findFileTransferInfoByNodeRef(folderToDelete.nodeId);
-            if (deleteNode(folderEntity, pathPrefix))
+            if (deleteNode(folderEntity))
             {
                 foldersToDelete.remove(folderToDelete.nodeId);
                 logDeleted(folderToDelete.nodeId, pathPrefix + folderToDelete.currentParentPath
@@ -272,8 +336,22 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
     }
 
     //Delete the supplied node, going depth-first if it is a folder
-    protected boolean deleteNode(FileTransferInfoEntity nodeToDelete, String pathPrefix)
+    protected boolean deleteNode(FileTransferInfoEntity nodeToDelete)
     {
+        if (nodeToDelete != null && nodeToDelete.isFolder() && fileTransferReceiver.isParallelDelete())
+        {
+            //Large trees: delete the subtrees in parallel and remove the records in batches
+            ParallelNodeDeleter deleter = new ParallelNodeDeleter(dbHelper, fileTransferReceiver,
+                    fileTransferReceiver.getCommitPool(), fileTransferReceiver.getDeleteBatchSize(),
+                    new ParallelNodeDeleter.DeletionListener()
+                    {
+                        public void nodeDeleted(String nodeRef, String path)
+                        {
+                            logDeleted(nodeRef, path);
+                        }
+                    });
+            return deleter.delete(nodeToDelete);
+        }
         boolean success = true;
         if (nodeToDelete != null)
         {
@@ -288,7 +366,7 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                     //Go depth first. Process folders first and files after....
                     if (child.isFolder())
                     {
-                        success &= deleteNode(child, pathPrefix);
+                        success &= deleteNode(child);
                         if (!success) return false;
                     }
                     else
@@ -300,17 +378,16 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 //We've now finished deleting the child folders. Now we'll delete the child files... 
                 for (FileTransferInfoEntity childFile : files)
                 {
-                    success &= deleteNode(childFile, pathPrefix);
+                    success &= deleteNode(childFile);
                     if (!success) return false;
                 }
             }
-            String path = pathPrefix + nodeToDelete.getPath() + nodeToDelete.getContentName();
-            File fileToDelete = new File(path);
+            String path = fileTransferReceiver.getReceivedFile(nodeToDelete).getPath();
             if (isDebugEnabled)
             {
                 log.debug("Attempting to delete file/folder " + path);
             }
-            if (fileToDelete.delete())
+            if (fileTransferReceiver.deleteReceivedNode(nodeToDelete))
             {
                 if (isDebugEnabled)
                 {
@@ -344,9 +421,20 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 log.debug("Attempting to move folder \"" + srcFolder.getPath() + "\" to " + 
                         destFolder.getPath() + "\"");
             }
+            if (journal != null)
+            {
+                journal.move(nodeEntity.getNodeRef(), srcFolder.getPath(), targetParentPath, newName,
+                        parentEntity.getNodeRef());
+            }
             successful = srcFolder.renameTo(destFolder);
             if (successful)
             {
+                if (volumes.isEnabled())
+                {
+                    fileTransferReceiver.renameFolderMirrors(currentParentPath + currentFolderName,
+                            targetParentPath + newName);
+                    subtreeVolumes.clear();
+                }
                 if (isDebugEnabled)
                 {
                     log.debug("Successfully moved folder. Updating database.");
@@ -365,7 +453,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         return successful;
     }
 
-    private boolean switchFile(String nodeId, String newParentId, String targetFileName, String newContentUrl, String pathPrefix)
+    private boolean switchFile(String nodeId, String newParentId, String targetFileName, String newContentUrl,
+            long newContentSize, String newContentChecksum, String newVolume)
     {
         boolean successful = false;
         
@@ -381,11 +470,18 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         {
             String currentParentPath = nodeEntity.getPath();
             String currentFileName = nodeEntity.getContentName();
+            File fileToDelete = fileTransferReceiver.getReceivedFile(nodeEntity);
             String newParentPath = parentEntity.getPath() + parentEntity.getContentName() + "/"; 
             nodeEntity.setContentName(targetFileName);
             nodeEntity.setParent(newParentId);
             nodeEntity.setPath(newParentPath);
             nodeEntity.setContentUrl(newContentUrl);
+            nodeEntity.setVolume(newVolume);
+            if (newContentChecksum != null)
+            {
+                nodeEntity.setContentSize(newContentSize);
+                nodeEntity.setContentChecksum(newContentChecksum);
+            }
             dbHelper.updateFileTransferInfoByNodeRef(nodeEntity);
             if (isDebugEnabled)
             {
@@ -395,8 +491,6 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
             }
             
             //Delete the now-obsolete file
-            String pathOfDeletedFile = pathPrefix + currentParentPath + currentFileName;
-            File fileToDelete = new File(pathOfDeletedFile);
             successful = fileToDelete.delete();
             if (isDebugEnabled)
             {
@@ -415,6 +509,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         {
             log.debug("Processing deleted node " + nodeId);
         }
+        //A delete may rename a folder that queued writes go to or read from
+        flushPartitions();
         boolean nodeIsRoot = nodeId.equals(fileTransferReceiver.getTransferRootNode());
         if (nodeIsRoot)
         {
@@ -427,9 +523,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         {
             NodeContext ctx = NodeContext.buildNodeContext(node, nodeEntity);
             String pathPrefix = fileTransferReceiver.getDefaultReceivingroot();
-            String pathOfDeletedFile = pathPrefix + nodeEntity.getPath()
-                    + nodeEntity.getContentName();
-            File fileToDelete = new File(pathOfDeletedFile);
+            File fileToDelete = fileTransferReceiver.getReceivedFile(nodeEntity);
+            String pathOfDeletedFile = fileToDelete.getPath();
             if (fileToDelete.isDirectory())
             {
                 if (isDebugEnabled)
@@ -438,6 +533,7 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 }
                 //Rename the folder to a temporary name to avoid any name conflicts that may occur later.
                 FileTransferInfoEntity parentEntity = dbHelper.findFileTransferInfoByNodeRef(nodeEntity.getParent());
+                journalDelete(nodeId, ctx.tempName);
                 if (moveFolder(nodeEntity, parentEntity, ctx.tempName, pathPrefix))
                 {
                     if (isDebugEnabled)
@@ -453,6 +549,7 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 {
                     log.debug("Processing request to delete file " + fileToDelete.getPath());
                 }
+                journalDelete(nodeId, nodeEntity.getContentName());
                 boolean success = fileToDelete.delete();
                 if (success)
                 {
@@ -553,6 +650,7 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 {
                     log.debug("Attempting to create a new folder: " + newFolder.getPath());
                 }
+                journalTemp(ctx, true, pathPrefix, null);
                 boolean success = newFolder.mkdir();
                 if (!success)
                 {
@@ -593,34 +691,184 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 }
             }
         }
-        else // isFile
+        else
+        {
+            ctx.newVolume = selectVolume(ctx);
+            if (partitionedProcessor != null)
+            {
+                //Files written to different volumes are written in parallel, even within one subtree
+                final NodeContext fileCtx = ctx;
+                String partition = PartitionedNodeProcessor.getPartition(ctx.newParentPath);
+                try
+                {
+                    partitionedProcessor.addToPartition(ctx.newVolume == null ? partition : ctx.newVolume + ":"
+                            + partition, new Runnable()
+                    {
+                        public void run()
+                        {
+                            processFile(fileCtx);
+                        }
+                    });
+                }
+                catch (RuntimeException e)
+                {
+                    throw partitionFailed(e);
+                }
+            }
+            else
+            {
+                processFile(ctx);
+            }
+        }
+    }
+
+    /**
+     * @return the receiving volume a new version of the file is to be written to, null for the default root
+     */
+    private String selectVolume(NodeContext ctx)
+    {
+        if (!volumes.isEnabled())
+        {
+            return null;
+        }
+        String volume = volumes.hasSubtreeRules() ? getSubtreeVolume(ctx.newParentId) : null;
+        return volume != null ? volume : volumes.getSourceVolume(sourceRepoId);
+    }
+
+    /**
+     * @return the volume named by the rule of the nearest folder at or above the given one, or null
+     */
+    private String getSubtreeVolume(String folderId)
+    {
+        List<String> visited = new ArrayList<String>();
+        String volume = null;
+        String nodeRef = folderId;
+        while (volume == null && nodeRef != null && nodeRef.length() > 0)
         {
+            volume = subtreeVolumes.get(nodeRef);
+            if (volume == null)
+            {
+                visited.add(nodeRef);
+                volume = volumes.getSubtreeVolume(nodeRef);
+                if (volume == null)
+                {
+                    FileTransferInfoEntity folder = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+                    nodeRef = folder == null ? null : folder.getParent();
+                }
+            }
+        }
+        if (volume == null)
+        {
+            volume = "";
+        }
+        for (String visitedRef : visited)
+        {
+            subtreeVolumes.put(visitedRef, volume);
+        }
+        return volume.length() == 0 ? null : volume;
+    }
+
+    /**
+     * Write a received file with a temporary name. Safe to call for files in different subtrees at once.
+     */
+    private void processFile(NodeContext ctx)
+    {
+        String tempName = ctx.tempName;
+        String pathPrefix = fileTransferReceiver.getVolumeRoot(ctx.newVolume);
+        String currentPrefix = ctx.isNew ? null : fileTransferReceiver.getVolumeRoot(ctx.currentVolume);
+        if (isDebugEnabled)
+        {
+            log.debug("This node represents a file");
+        }
+        String newContentUrl = ctx.newContentUrl;
+        boolean isContentModified = (ctx.isNew || (newContentUrl != null && !newContentUrl.equals(ctx.currentContentUrl)));
+        boolean isContentUrlModified = false;
+        if (isContentModified && !ctx.isNew && isContentUnchanged(ctx))
+        {
+            //The sender has a new version of the content with the same bytes: the file itself stays as it is
             if (isDebugEnabled)
             {
-                log.debug("This node represents a file");
+                log.debug("The content URL of this file has changed but its content has not.");
             }
-            String newContentUrl = ctx.newContentUrl;
-            boolean isContentModified = (ctx.isNew || (newContentUrl != null && !newContentUrl.equals(ctx.currentContentUrl)));
-            if (ctx.isNew && newContentUrl != null)
+            isContentModified = false;
+            isContentUrlModified = true;
+        }
+        if (ctx.isNew && newContentUrl != null)
+        {
+            if (isDebugEnabled)
+            {
+                log.debug("This file has never been received before");
+            }
+            //Copy the staged content file to the correct folder with a temporary name
+            //Note that we can't simply *move* the staged file, as it's possible that more than one node
+            //shares the same content URL (in the case of a copied node, for instance)
+            String contentKey = TransferCommons.URLToPartName(newContentUrl);
+            File stagedContent = fileTransferReceiver.getStagedContent(getTransferId(), contentKey);
+            File newFile = new File(pathPrefix + ctx.newParentPath, tempName);
+            if (isDebugEnabled)
+            {
+                log.debug("Attempting to copy from staged file to new file (" + 
+                        stagedContent.getPath() + " to " + newFile.getPath() + ")");
+            }
+            journalTemp(ctx, false, pathPrefix, null);
+            try
+            {
+                fileTransferReceiver.createVolumeFolders(ctx.newVolume, ctx.newParentPath);
+                fileTransferReceiver.copyContent(getTransferId(), stagedContent, newFile);
+            }
+            catch (IOException e)
+            {
+                log.error("Failed to copy content", e);
+                throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
+                        new Object[] {stagedContent.getPath(), newFile.getPath()}, e);
+            }
+            //Store in the database
+            if (isDebugEnabled)
+            {
+                log.debug("File copied successfully. Updating database.");
+            }
+            dbHelper.createNodeInDB(ctx.nodeId, ctx.newParentId, ctx.newParentPath,
+                    tempName, newContentUrl, stagedContent.length(), getStagedChecksum(contentKey, stagedContent),
+                    ctx.newVolume);
+            //Record the fact that we need to rename this file later
+            synchronized (tempFilesToRename)
+            {
+                tempFilesToRename.put(ctx.nodeId, ctx);
+            }
+        }
+        else if (!ctx.isNew)
+        {
+            if (isContentModified)
             {
                 if (isDebugEnabled)
                 {
-                    log.debug("This file has never been received before");
+                    log.debug("This file has been changed.");
                 }
-                //Copy the staged content file to the correct folder with a temporary name
-                //Note that we can't simply *move* the staged file, as it's possible that more than one node
-                //shares the same content URL (in the case of a copied node, for instance)
                 String contentKey = TransferCommons.URLToPartName(newContentUrl);
-                File stagedContent = fileTransferReceiver.getContents().get(contentKey);
+                File stagedContent = fileTransferReceiver.getStagedContent(getTransferId(), contentKey);
                 File newFile = new File(pathPrefix + ctx.newParentPath, tempName);
+                if (!stagedContent.exists()
+                        && fileTransferReceiver.getStagedContentDelta(getTransferId(), contentKey).exists())
+                {
+                    //The sender sent the changed blocks only: rebuild the file from its current version
+                    rebuildFile(ctx, contentKey, newFile, currentPrefix);
+                    synchronized (existingFilesToReplace)
+                    {
+                        existingFilesToReplace.put(ctx.nodeId, ctx);
+                    }
+                    return;
+                }
+                //Copy the staged content file to the correct folder with a temporary name
                 if (isDebugEnabled)
                 {
-                    log.debug("Attempting to copy from staged file to new file (" + 
+                    log.debug("Attempting to copy from current file to new file (" + 
                             stagedContent.getPath() + " to " + newFile.getPath() + ")");
                 }
+                journalTemp(ctx, false, pathPrefix, currentPrefix + ctx.currentParentPath + ctx.currentName);
                 try
                 {
-                    FileUtils.copyFile(stagedContent, newFile);
+                    fileTransferReceiver.createVolumeFolders(ctx.newVolume, ctx.newParentPath);
+                    fileTransferReceiver.copyContent(getTransferId(), stagedContent, newFile);
                 }
                 catch (IOException e)
                 {
@@ -628,102 +876,152 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                     throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
                             new Object[] {stagedContent.getPath(), newFile.getPath()}, e);
                 }
-                //Store in the database
+                ctx.newContentSize = stagedContent.length();
+                ctx.newContentChecksum = getStagedChecksum(contentKey, stagedContent);
+                //Record the fact that we need to rename this file, delete the original file, and update the database later
                 if (isDebugEnabled)
                 {
-                    log.debug("File copied successfully. Updating database.");
+                    log.debug("File copied successfully. Recording the need to switch files later.");
+                }
+                synchronized (existingFilesToReplace)
+                {
+                    existingFilesToReplace.put(ctx.nodeId, ctx);
                 }
-                dbHelper.createNodeInDB(ctx.nodeId, ctx.newParentId, ctx.newParentPath,
-                        tempName, newContentUrl, false);
-                //Record the fact that we need to rename this file later
-                tempFilesToRename.put(ctx.nodeId, ctx);
             }
-            else if (!ctx.isNew)
+            else if (ctx.hasMoved)
             {
-                if (isContentModified)
+                //Copy the current content to the correct folder with a temporary name
+                if (isDebugEnabled)
                 {
-                    if (isDebugEnabled)
-                    {
-                        log.debug("This file has been changed.");
-                    }
-                    //Copy the staged content file to the correct folder with a temporary name
-                    String contentKey = TransferCommons.URLToPartName(newContentUrl);
-                    File stagedContent = fileTransferReceiver.getContents().get(contentKey);
-                    File newFile = new File(pathPrefix + ctx.newParentPath, tempName);
-                    if (isDebugEnabled)
-                    {
-                        log.debug("Attempting to copy from current file to new file (" + 
-                                stagedContent.getPath() + " to " + newFile.getPath() + ")");
-                    }
-                    try
-                    {
-                        FileUtils.copyFile(stagedContent, newFile);
-                    }
-                    catch (IOException e)
-                    {
-                        log.error("Failed to copy content", e);
-                        throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
-                                new Object[] {stagedContent.getPath(), newFile.getPath()}, e);
-                    }
-                    //Record the fact that we need to rename this file, delete the original file, and update the database later
-                    if (isDebugEnabled)
-                    {
-                        log.debug("File copied successfully. Recording the need to switch files later.");
-                    }
-                    existingFilesToReplace.put(ctx.nodeId,ctx);
+                    log.debug("This file has been moved.");
                 }
-                else if (ctx.hasMoved)
+                File currentFile = new File(currentPrefix + ctx.currentParentPath, ctx.currentName);
+                File newFile = new File(pathPrefix + ctx.newParentPath, tempName);
+                if (isDebugEnabled)
+                {
+                    log.debug("Attempting to copy from current file to new file (" + 
+                            currentFile.getPath() + " to " + newFile.getPath() + ")");
+                }
+                journalTemp(ctx, false, pathPrefix, currentFile.getPath());
+                try
+                {
+                    fileTransferReceiver.createVolumeFolders(ctx.newVolume, ctx.newParentPath);
+                    fileTransferReceiver.copyContent(getTransferId(), currentFile, newFile);
+                }
+                catch (IOException e)
+                {
+                    log.error("Failed to copy content", e);
+                    throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
+                            new Object[] {currentFile.getPath(), newFile.getPath()}, e);
+                }
+                //Record the fact that we need to rename this file, delete the original file, and update the database later
+                if (isDebugEnabled)
+                {
+                    log.debug("File copied successfully. Recording the need to switch files later.");
+                }
+                synchronized (existingFilesToReplace)
                 {
-                    //Copy the current content to the correct folder with a temporary name
-                    if (isDebugEnabled)
-                    {
-                        log.debug("This file has been moved.");
-                    }
-                    File currentFile = new File(pathPrefix + ctx.currentParentPath, ctx.currentName);
-                    File newFile = new File(pathPrefix + ctx.newParentPath, tempName);
-                    if (isDebugEnabled)
-                    {
-                        log.debug("Attempting to copy from current file to new file (" + 
-                                currentFile.getPath() + " to " + newFile.getPath() + ")");
-                    }
-                    try
-                    {
-                        FileUtils.copyFile(currentFile, newFile);
-                    }
-                    catch (IOException e)
-                    {
-                        log.error("Failed to copy content", e);
-                        throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
-                                new Object[] {currentFile.getPath(), newFile.getPath()}, e);
-                    }
-                    //Record the fact that we need to rename this file, delete the original file, and update the database later
-                    if (isDebugEnabled)
-                    {
-                        log.debug("File copied successfully. Recording the need to switch files later.");
-                    }
                     existingFilesToReplace.put(ctx.nodeId, ctx);
                 }
-                else
+            }
+            else if (isContentUrlModified)
+            {
+                //Only the database needs to know about the new content URL
+                FileTransferInfoEntity nodeEntity = dbHelper.findFileTransferInfoByNodeRef(ctx.nodeId);
+                nodeEntity.setContentUrl(newContentUrl);
+                synchronized (contentUrlUpdates)
                 {
-                    //neither moved nor updated - we don't need to do anything with this file.
-                    if (isDebugEnabled)
-                    {
-                        log.debug("This file has been neither moved nor changed. Skipping.");
-                    }
+                    contentUrlUpdates.add(nodeEntity);
+                }
+            }
+            else
+            {
+                //neither moved nor updated - we don't need to do anything with this file.
+                if (isDebugEnabled)
+                {
+                    log.debug("This file has been neither moved nor changed. Skipping.");
                 }
             }
         }
     }
 
+    /**
+     * Write the new version of a changed file with its temporary name from the current version and a staged delta
+     */
+    private void rebuildFile(NodeContext ctx, String contentKey, File newFile, String currentPrefix)
+    {
+        File currentFile = new File(currentPrefix + ctx.currentParentPath, ctx.currentName);
+        if (isDebugEnabled)
+        {
+            log.debug("Attempting to rebuild new file from current file and delta (" + 
+                    currentFile.getPath() + " to " + newFile.getPath() + ")");
+        }
+        journalTemp(ctx, false, fileTransferReceiver.getVolumeRoot(ctx.newVolume), currentFile.getPath());
+        try
+        {
+            fileTransferReceiver.createVolumeFolders(ctx.newVolume, ctx.newParentPath);
+            ctx.newContentChecksum = fileTransferReceiver.applyContentDelta(getTransferId(), contentKey,
+                    currentFile, ctx.currentContentChecksum, newFile);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to rebuild content", e);
+            throw new TransferFatalException(MSG_ERROR_COPYING_FILE, 
+                    new Object[] {currentFile.getPath(), newFile.getPath()}, e);
+        }
+        ctx.newContentSize = newFile.length();
+    }
+
+    /**
+     * @return true if the staged content of the file has the size and checksum recorded for its current content
+     */
+    private boolean isContentUnchanged(NodeContext ctx)
+    {
+        if (ctx.currentContentChecksum == null || ctx.newContentUrl == null || ctx.newContentUrl.length() == 0)
+        {
+            return false;
+        }
+        String contentKey = TransferCommons.URLToPartName(ctx.newContentUrl);
+        File stagedContent = fileTransferReceiver.getStagedContent(getTransferId(), contentKey);
+        if (!stagedContent.exists() || stagedContent.length() != ctx.currentContentSize)
+        {
+            return false;
+        }
+        return ctx.currentContentChecksum.equals(getStagedChecksum(contentKey, stagedContent));
+    }
+
+    /**
+     * @return the checksum of a staged part, or null if it can't be read
+     */
+    private String getStagedChecksum(String contentKey, File stagedContent)
+    {
+        if (!stagedContent.isFile())
+        {
+            return null;
+        }
+        try
+        {
+            return fileTransferReceiver.getStagedContentChecksum(getTransferId(), contentKey);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to work out the checksum of staged content " + contentKey, e);
+            return null;
+        }
+    }
+
     @Override
     protected void localHandleException(TransferManifestNode node, Throwable ex)
     {
-        String pathPrefix = fileTransferReceiver.getDefaultReceivingroot();
-
         if (isDebugEnabled)
         {
             log.debug("Exception has occurred. Attempt to clean up has started.");
         }
+        if (partitionedProcessor != null)
+        {
+            //Writes still queued have not touched the disk or the database
+            partitionedProcessor.clear();
+        }
         
         //Remove any temporary files that haven't been recorded in the database yet
         for (NodeContext fileToReplace : existingFilesToReplace.values())
@@ -731,7 +1029,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
             FileTransferInfoEntity parentEntity = dbHelper.findFileTransferInfoByNodeRef(fileToReplace.newParentId);
             if (parentEntity != null)
             {
-                String tempFilePath = pathPrefix + parentEntity.getPath() + 
+                String tempFilePath = fileTransferReceiver.getVolumeRoot(fileToReplace.newVolume)
+                        + parentEntity.getPath() + 
                         parentEntity.getContentName() + "/" + fileToReplace.tempName;
                 if (isDebugEnabled)
                 {
@@ -756,11 +1055,17 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
             }
         }
         
+        //A failed partition leaves the writes of the others done: undo them rather than commit part of the manifest
+        if (partitionFailed)
+        {
+            rollBack();
+        }
+
         //If there are any folders that were part way through the process of being deleted then
         //have a last-ditch attempt to delete them now
         try
         {
-            removeDeletedFolders(pathPrefix);
+            removeDeletedFolders();
         }
         catch(Throwable t)
         {
@@ -770,22 +1075,100 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         //Finally we'll have a last-ditch attempt at renaming temporary files to their proper name.
         try
         {
-            renameTempFiles(pathPrefix);
+            renameTempFiles();
         }
         catch(Throwable t)
         {
             //Nothing really to do. 
         }
+
+        //Use the journal to put right whatever the steps above could not
+        if (journal != null)
+        {
+            journal.close();
+            new CommitJournalRecovery(fileTransferReceiver, fileTransferReceiver.getCommitJournal()).recover(journal
+                    .getFile());
+            journal = null;
+        }
     }
 
-    private void renameTempFiles(String pathPrefix)
+    /**
+     * Give the new and replaced files their proper names. The files are grouped by folder, each folder being read
+     * from the database once; the folders are renamed in parallel when the commit is partitioned. The records are
+     * then updated in batches, and the monitor told about the files of each batch once it has been stored.
+     */
+    private void renameTempFiles()
     {
-        Collection<NodeContext> filesToRename = new ArrayList<NodeContext>(tempFilesToRename.values());
-        for (NodeContext file : filesToRename)
+        Map<String, List<NodeContext>> filesByParent = new TreeMap<String, List<NodeContext>>();
+        for (NodeContext file : tempFilesToRename.values())
+        {
+            List<NodeContext> files = filesByParent.get(file.newParentId);
+            if (files == null)
+            {
+                files = new ArrayList<NodeContext>();
+                filesByParent.put(file.newParentId, files);
+            }
+            files.add(file);
+        }
+
+        final List<List<FileTransferInfoEntity>> renamed = new ArrayList<List<FileTransferInfoEntity>>();
+        if (partitionedProcessor != null && filesByParent.size() > 1)
+        {
+            PartitionedNodeProcessor renamer = new PartitionedNodeProcessor(fileTransferReceiver.getCommitPool(),
+                    Integer.MAX_VALUE);
+            for (final Map.Entry<String, List<NodeContext>> folder : filesByParent.entrySet())
+            {
+                final int index = renamed.size();
+                renamed.add(null);
+                renamer.addToPartition(folder.getKey(), new Runnable()
+                {
+                    public void run()
+                    {
+                        renamed.set(index, renameInFolder(folder.getKey(), folder.getValue()));
+                    }
+                });
+            }
+            try
+            {
+                renamer.flush();
+            }
+            finally
+            {
+                //Store whatever has been renamed on disk, even if some folder failed
+                storeRenamedFiles(renamed);
+            }
+        }
+        else
         {
-            FileTransferInfoEntity fileEntity = dbHelper.findFileTransferInfoByNodeRef(file.nodeId);
+            for (Map.Entry<String, List<NodeContext>> folder : filesByParent.entrySet())
+            {
+                renamed.add(renameInFolder(folder.getKey(), folder.getValue()));
+            }
+            storeRenamedFiles(renamed);
+        }
+    }
+
+    private List<FileTransferInfoEntity> renameInFolder(String parentId, List<NodeContext> files)
+    {
+        Map<String, FileTransferInfoEntity> children = new HashMap<String, FileTransferInfoEntity>();
+        if (files.size() >= MIN_FILES_TO_LIST_FOLDER)
+        {
+            for (FileTransferInfoEntity child : dbHelper.findFileTransferInfoByParentNodeRef(parentId))
+            {
+                children.put(child.getNodeRef(), child);
+            }
+        }
+        List<FileTransferInfoEntity> renamed = new ArrayList<FileTransferInfoEntity>(files.size());
+        for (NodeContext file : files)
+        {
+            FileTransferInfoEntity fileEntity = children.get(file.nodeId);
+            if (fileEntity == null)
+            {
+                fileEntity = dbHelper.findFileTransferInfoByNodeRef(file.nodeId);
+            }
             if (fileEntity != null)
             {
+                String pathPrefix = fileTransferReceiver.getVolumeRoot(fileEntity.getVolume());
                 File sourceFile = new File(pathPrefix + fileEntity.getPath() + file.tempName);
                 File targetFile = new File(pathPrefix + fileEntity.getPath() + file.newName);
                 if (isDebugEnabled)
@@ -795,24 +1178,8 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 }
                 if (sourceFile.renameTo(targetFile))
                 {
-                    if (isDebugEnabled)
-                    {
-                        log.debug("Rename succeeded. Updating database.");
-                    }
                     fileEntity.setContentName(file.newName);
-                    dbHelper.updateFileTransferInfoByNodeRef(fileEntity);
-                    tempFilesToRename.remove(file.nodeId);
-                    //Log the effect that this has had...
-                    if (file.isNew)
-                    {
-                        logCreated(file.nodeId, file.newParentId, 
-                                pathPrefix + fileEntity.getPath() + fileEntity.getContentName(), false);
-                    }
-                    else
-                    {
-                        logMoved(file.nodeId, pathPrefix + file.currentParentPath + file.currentName, 
-                                file.newParentId, pathPrefix + fileEntity.getPath() + fileEntity.getContentName());
-                    }
+                    renamed.add(fileEntity);
                 }
                 else
                 {
@@ -823,6 +1190,176 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
                 }
             }
         }
+        return renamed;
+    }
+
+    private void storeRenamedFiles(List<List<FileTransferInfoEntity>> renamed)
+    {
+        int batchSize = Math.max(1, fileTransferReceiver.getRenameBatchSize());
+        List<FileTransferInfoEntity> batch = new ArrayList<FileTransferInfoEntity>(batchSize);
+        for (List<FileTransferInfoEntity> folder : renamed)
+        {
+            if (folder == null)
+            {
+                continue;
+            }
+            for (FileTransferInfoEntity fileEntity : folder)
+            {
+                batch.add(fileEntity);
+                if (batch.size() == batchSize)
+                {
+                    storeRenameBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        storeRenameBatch(batch);
+    }
+
+    private void storeRenameBatch(List<FileTransferInfoEntity> batch)
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        if (isDebugEnabled)
+        {
+            log.debug("Renames succeeded. Updating database for " + batch.size() + " files.");
+        }
+        dbHelper.updateFileTransferInfoByNodeRefs(batch);
+        for (FileTransferInfoEntity fileEntity : batch)
+        {
+            NodeContext file = tempFilesToRename.remove(fileEntity.getNodeRef());
+            //Log the effect that this has had...
+            String path = fileTransferReceiver.getReceivedFile(fileEntity).getPath();
+            if (file.isNew)
+            {
+                logCreated(file.nodeId, file.newParentId, path, false);
+            }
+            else
+            {
+                logMoved(file.nodeId, fileTransferReceiver.getVolumeRoot(file.currentVolume)
+                        + file.currentParentPath + file.currentName, file.newParentId, path);
+            }
+        }
+    }
+
+    private void journalTemp(NodeContext ctx, boolean isFolder, String pathPrefix, String replacedPath)
+    {
+        if (journal != null)
+        {
+            synchronized (journal)
+            {
+                journal.temp(ctx.nodeId, isFolder, pathPrefix + ctx.newParentPath, ctx.tempName, ctx.newName,
+                        replacedPath);
+            }
+        }
+    }
+
+    private void flushPartitions()
+    {
+        if (partitionedProcessor != null)
+        {
+            try
+            {
+                partitionedProcessor.flush();
+            }
+            catch (RuntimeException e)
+            {
+                throw partitionFailed(e);
+            }
+        }
+    }
+
+    /**
+     * @return the failure of a partition as one that aborts the transfer
+     */
+    private TransferFatalException partitionFailed(RuntimeException e)
+    {
+        partitionFailed = true;
+        if (e instanceof TransferFatalException)
+        {
+            return (TransferFatalException) e;
+        }
+        return new TransferFatalException(MSG_COMMIT_PARTITION_FAILED, new Object[] {getTransferId()}, e);
+    }
+
+    /**
+     * Undo the changes a commit has made before its file writes failed. New files and folders are removed and folders
+     * renamed to be deleted get their names back. Moved and replaced files have only been copied so far, so they are
+     * left as they are once their copies are gone. Files deleted by the manifest before the failure stay deleted.
+     */
+    private void rollBack()
+    {
+        String pathPrefix = fileTransferReceiver.getDefaultReceivingroot();
+        for (NodeContext file : tempFilesToRename.values())
+        {
+            if (file.isNew)
+            {
+                File tempFile = new File(fileTransferReceiver.getVolumeRoot(file.newVolume) + file.newParentPath,
+                        file.tempName);
+                if (tempFile.exists() && !tempFile.delete())
+                {
+                    log.warn("Failed to delete temporary file " + tempFile.getPath());
+                }
+                dbHelper.deleteNodeByNodeRef(file.nodeId);
+            }
+        }
+        tempFilesToRename.clear();
+        existingFilesToReplace.clear();
+        contentUrlUpdates.clear();
+
+        for (NodeContext folder : foldersToDelete.values())
+        {
+            FileTransferInfoEntity folderEntity = dbHelper.findFileTransferInfoByNodeRef(folder.nodeId);
+            FileTransferInfoEntity parentEntity = folderEntity == null ? null : dbHelper
+                    .findFileTransferInfoByNodeRef(folderEntity.getParent());
+            if (!moveFolder(folderEntity, parentEntity, folder.currentName, pathPrefix))
+            {
+                log.error("Failed to restore folder " + pathPrefix + folder.currentParentPath + folder.currentName);
+            }
+        }
+        foldersToDelete.clear();
+
+        //New folders deepest first, so that each is empty by the time it is removed
+        List<NodeContext> newFolders = new ArrayList<NodeContext>();
+        for (NodeContext folder : foldersToMove.values())
+        {
+            if (folder.isNew)
+            {
+                newFolders.add(folder);
+            }
+        }
+        Collections.sort(newFolders, new Comparator<NodeContext>()
+        {
+            public int compare(NodeContext f1, NodeContext f2)
+            {
+                return f2.newParentPath.length() - f1.newParentPath.length();
+            }
+        });
+        for (NodeContext folder : newFolders)
+        {
+            FileTransferInfoEntity folderEntity = dbHelper.findFileTransferInfoByNodeRef(folder.nodeId);
+            if (folderEntity != null)
+            {
+                //A write that failed part way through may have left a file that was never recorded
+                if (!fileTransferReceiver.deleteReceivedNode(folderEntity))
+                {
+                    FileUtils.deleteQuietly(fileTransferReceiver.getReceivedFile(folderEntity));
+                }
+                dbHelper.deleteNodeByNodeRef(folder.nodeId);
+            }
+        }
+        foldersToMove.clear();
+        orphans.clear();
+    }
+
+    private void journalDelete(String nodeId, String name)
+    {
+        if (journal != null)
+        {
+            journal.delete(nodeId, name);
+        }
     }
 
     private void recordForSyncMode(NodeContext ctx)
@@ -931,11 +1468,17 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
         public String currentParentId;
         public String currentParentPath;
         public String currentContentUrl;
+        public long currentContentSize;
+        public String currentContentChecksum;
+        public String currentVolume;
 
         public String newName;
         public String newParentId;
         public String newParentPath;
         public String newContentUrl;
+        public long newContentSize;
+        public String newContentChecksum;
+        public String newVolume;
 
         public String tempName;
 
@@ -963,6 +1506,9 @@ public class ManifestProcessorImpl extends AbstractManifestProcessorBase
             result.currentParentPath = result.isNew ? null : nodeEntity.getPath();
             result.currentParentId = result.isNew ? null : nodeEntity.getParent();
             result.currentContentUrl = result.isNew ? null : nodeEntity.getContentUrl();
+            result.currentContentSize = result.isNew ? 0L : nodeEntity.getContentSize();
+            result.currentContentChecksum = result.isNew ? null : nodeEntity.getContentChecksum();
+            result.currentVolume = result.isNew ? null : nodeEntity.getVolume();
             result.currentName = result.isNew ? null : nodeEntity.getContentName();
     
             //Look up the target parent node id in our database and extract some info from what we find
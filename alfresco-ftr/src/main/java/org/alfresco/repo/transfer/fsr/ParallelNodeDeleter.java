@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Deletes a folder tree using a fork/join pool.
+ * <p>
+ * Each folder is a task that reads its children from the database, forks a task for each child folder and deletes its
+ * files in chunks, in parallel. A folder is deleted once all of its children have been. The database rows of deleted
+ * nodes are removed in batches, and only for nodes whose file or folder has actually been deleted, so the database
+ * stays consistent with the disk.
+ * <p>
+ * As with the sequential delete, the first failure stops the delete: no more files are deleted once a failure has
+ * been seen, the rows of the files that were deleted are removed, and {@link #delete(FileTransferInfoEntity)} returns
+ * false. The listener is called for each deleted node, one call at a time.
+ */
+public class ParallelNodeDeleter
+{
+    private static final Log log = LogFactory.getLog(ParallelNodeDeleter.class);
+
+    /**
+     * Number of files deleted by one task
+     */
+    private static final int FILES_PER_TASK = 128;
+
+    /**
+     * Told about each node that has been deleted from both disk and database
+     */
+    public interface DeletionListener
+    {
+        void nodeDeleted(String nodeRef, String path);
+    }
+
+    private final DbHelper dbHelper;
+    private final FileTransferReceiver receiver;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final DeletionListener listener;
+
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private volatile String failedPath;
+    private final List<String[]> pending = new ArrayList<String[]>();
+    private final Object flushLock = new Object();
+
+    public ParallelNodeDeleter(DbHelper dbHelper, FileTransferReceiver receiver, ForkJoinPool pool, int batchSize,
+            DeletionListener listener)
+    {
+        this.dbHelper = dbHelper;
+        this.receiver = receiver;
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+        this.listener = listener;
+    }
+
+    /**
+     * Delete the node and, if it is a folder, everything below it.
+     * 
+     * @return true if everything was deleted, false if a file or folder could not be deleted
+     */
+    public boolean delete(FileTransferInfoEntity node)
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            pool.invoke(new DeleteFolderTask(node));
+        }
+        finally
+        {
+            flush(drain(true));
+        }
+        if (failed.get())
+        {
+            log.error("Failed to delete file/folder " + failedPath);
+            return false;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Deleted " + receiver.getReceivedFile(node).getPath() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return true;
+    }
+
+    private class DeleteFolderTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileTransferInfoEntity folder;
+
+        DeleteFolderTask(FileTransferInfoEntity folder)
+        {
+            this.folder = folder;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (failed.get())
+            {
+                return;
+            }
+            if (folder.isFolder())
+            {
+                List<FileTransferInfoEntity> children = dbHelper.findFileTransferInfoByParentNodeRef(folder
+                        .getNodeRef());
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                List<FileTransferInfoEntity> files = new ArrayList<FileTransferInfoEntity>(FILES_PER_TASK);
+                for (FileTransferInfoEntity child : children)
+                {
+                    if (child.isFolder())
+                    {
+                        tasks.add(new DeleteFolderTask(child));
+                    }
+                    else
+                    {
+                        files.add(child);
+                        if (files.size() == FILES_PER_TASK)
+                        {
+                            tasks.add(new DeleteFilesTask(files));
+                            files = new ArrayList<FileTransferInfoEntity>(FILES_PER_TASK);
+                        }
+                    }
+                }
+                if (!files.isEmpty())
+                {
+                    tasks.add(new DeleteFilesTask(files));
+                }
+                invokeAll(tasks);
+            }
+            if (!failed.get())
+            {
+                deleteOne(folder);
+            }
+        }
+    }
+
+    private class DeleteFilesTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FileTransferInfoEntity> files;
+
+        DeleteFilesTask(List<FileTransferInfoEntity> files)
+        {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute()
+        {
+            for (FileTransferInfoEntity file : files)
+            {
+                if (failed.get())
+                {
+                    return;
+                }
+                deleteOne(file);
+            }
+        }
+    }
+
+    private void deleteOne(FileTransferInfoEntity node)
+    {
+        String path = receiver.getReceivedFile(node).getPath();
+        if (receiver.deleteReceivedNode(node))
+        {
+            List<String[]> batch = null;
+            synchronized (pending)
+            {
+                pending.add(new String[] { node.getNodeRef(), path });
+                if (pending.size() >= batchSize)
+                {
+                    batch = drain(false);
+                }
+            }
+            flush(batch);
+        }
+        else if (failed.compareAndSet(false, true))
+        {
+            failedPath = path;
+        }
+    }
+
+    private List<String[]> drain(boolean all)
+    {
+        synchronized (pending)
+        {
+            if (pending.isEmpty() || (!all && pending.size() < batchSize))
+            {
+                return null;
+            }
+            List<String[]> batch = new ArrayList<String[]>(pending);
+            pending.clear();
+            return batch;
+        }
+    }
+
+    private void flush(List<String[]> batch)
+    {
+        if (batch == null)
+        {
+            return;
+        }
+        List<String> nodeRefs = new ArrayList<String>(batch.size());
+        for (String[] deleted : batch)
+        {
+            nodeRefs.add(deleted[0]);
+        }
+        synchronized (flushLock)
+        {
+            dbHelper.deleteNodesByNodeRef(nodeRefs);
+            for (String[] deleted : batch)
+            {
+                listener.nodeDeleted(deleted[0], deleted[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the work of a commit for independent subtrees of the receiving root in parallel.
+ * <p>
+ * Work is queued under the top-level folder it falls in, and {@link #flush()} runs the queue of each subtree as one
+ * task of a fork/join pool, in the order it was queued. Different subtrees write to different folders, so they do
+ * not depend on each other; anything that may touch several subtrees, such as a move or a delete, must be done by
+ * the caller after a flush. The first failure stops each subtree before its next piece of work and is rethrown by
+ * the flush once all subtrees have stopped.
+ */
+public class PartitionedNodeProcessor
+{
+    private static final Log log = LogFactory.getLog(PartitionedNodeProcessor.class);
+
+    private final ForkJoinPool pool;
+    private final int maxQueued;
+    private Map<String, List<Runnable>> partitions = new LinkedHashMap<String, List<Runnable>>();
+    private int queued;
+
+    /**
+     * @param maxQueued the number of queued pieces of work that makes {@link #add(String, Runnable)} flush
+     */
+    public PartitionedNodeProcessor(ForkJoinPool pool, int maxQueued)
+    {
+        this.pool = pool;
+        this.maxQueued = Math.max(1, maxQueued);
+    }
+
+    /**
+     * @param parentPath the path of a folder relative to the receiving root, starting and ending with "/"
+     * @return the top-level folder of the path, or "/" for the root itself
+     */
+    public static String getPartition(String parentPath)
+    {
+        int end = parentPath.indexOf('/', 1);
+        return end < 0 ? "/" : parentPath.substring(0, end + 1);
+    }
+
+    /**
+     * Queue work for the subtree of a folder
+     * 
+     * @param parentPath the path of the folder written to, relative to the receiving root
+     */
+    public void add(String parentPath, Runnable work)
+    {
+        addToPartition(getPartition(parentPath), work);
+    }
+
+    /**
+     * Queue work for a partition chosen by the caller, such as a single folder, when the caller knows the pieces of
+     * work of different partitions to be independent
+     */
+    public void addToPartition(String partition, Runnable work)
+    {
+        List<Runnable> queue = partitions.get(partition);
+        if (queue == null)
+        {
+            queue = new ArrayList<Runnable>();
+            partitions.put(partition, queue);
+        }
+        queue.add(work);
+        if (++queued >= maxQueued)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Drop the queued work without running it
+     */
+    public void clear()
+    {
+        partitions = new LinkedHashMap<String, List<Runnable>>();
+        queued = 0;
+    }
+
+    /**
+     * Run all queued work and wait for it to finish
+     */
+    public void flush()
+    {
+        if (queued == 0)
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, List<Runnable>> toRun = partitions;
+        int count = queued;
+        clear();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(toRun.size());
+        for (final List<Runnable> queue : toRun.values())
+        {
+            tasks.add(new RecursiveAction()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute()
+                {
+                    for (Runnable work : queue)
+                    {
+                        if (failure.get() != null)
+                        {
+                            return;
+                        }
+                        try
+                        {
+                            work.run();
+                        }
+                        catch (RuntimeException e)
+                        {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+        if (log.isDebugEnabled())
+        {
+            log.debug("Processed " + count + " nodes in " + toRun.size() + " subtrees in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+    }
+}
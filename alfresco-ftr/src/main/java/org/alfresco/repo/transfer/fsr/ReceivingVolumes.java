@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Receiving roots, on other disks than the default receiving root, that received files can be spread across.
+ * <p>
+ * Each file records the volume it was written to, so it stays there when it, or a folder above it, is moved or
+ * renamed, and those moves remain renames on one device. Folders are recorded against the default receiving root and
+ * are mirrored on each volume that holds files below them: a folder is created on a volume when a file is first
+ * written below it, and is renamed and deleted on every volume it exists on.
+ * <p>
+ * The volume a new or rewritten file is written to is chosen by rules:
+ * <ul>
+ * <li>"node:nodeRef=volume" sends the files below the folder with that nodeRef to the volume. The rule of the
+ * nearest folder above a file applies.</li>
+ * <li>"source:repositoryId=volume" sends the files received from that repository to the volume.</li>
+ * </ul>
+ * Files that no rule applies to are written to the default receiving root.
+ * <p>
+ * A file is not written to a volume whose root is missing, as when its disk is not mounted, or whose free space is
+ * below minFreeSpaceMB: the transfer fails instead, and can be sent again once the volume is back or has room.
+ */
+public class ReceivingVolumes
+{
+    private static final Log log = LogFactory.getLog(ReceivingVolumes.class);
+
+    private static final String NODE_RULE = "node:";
+    private static final String SOURCE_RULE = "source:";
+
+    private Map<String, String> roots = Collections.emptyMap();
+    private Map<String, String> subtreeRules = Collections.emptyMap();
+    private Map<String, String> sourceRules = Collections.emptyMap();
+    private long minFreeSpaceMB = 0L;
+
+    public void init()
+    {
+        for (Map.Entry<String, String> volume : roots.entrySet())
+        {
+            File root = new File(volume.getValue());
+            if (!root.exists() && !root.mkdirs())
+            {
+                log.error("Unable to create the root of receiving volume " + volume.getKey() + ": "
+                        + root.getAbsolutePath());
+            }
+        }
+        checkRules(subtreeRules);
+        checkRules(sourceRules);
+    }
+
+    private void checkRules(Map<String, String> rules)
+    {
+        for (Map.Entry<String, String> rule : rules.entrySet())
+        {
+            if (!roots.containsKey(rule.getValue()))
+            {
+                throw new IllegalArgumentException("Unknown receiving volume " + rule.getValue() + " in rule for "
+                        + rule.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return true if there are volumes other than the default receiving root
+     */
+    public boolean isEnabled()
+    {
+        return !roots.isEmpty();
+    }
+
+    /**
+     * @return true if some folders have their files sent to a volume
+     */
+    public boolean hasSubtreeRules()
+    {
+        return !subtreeRules.isEmpty();
+    }
+
+    /**
+     * @return the root of a volume
+     */
+    public String getRoot(String volume)
+    {
+        String root = roots.get(volume);
+        if (root == null)
+        {
+            throw new IllegalArgumentException("Unknown receiving volume " + volume);
+        }
+        return root;
+    }
+
+    /**
+     * Check that a file can be written to a volume
+     *
+     * @throws IOException if the root of the volume is missing or its free space is below minFreeSpaceMB
+     */
+    public void checkVolume(String volume) throws IOException
+    {
+        File root = new File(getRoot(volume));
+        if (!root.isDirectory())
+        {
+            throw new IOException("The root of receiving volume " + volume + " is missing: " + root.getAbsolutePath());
+        }
+        long usableMB = root.getUsableSpace() / (1024L * 1024L);
+        if (usableMB < minFreeSpaceMB)
+        {
+            throw new IOException("Receiving volume " + volume + " is full: " + usableMB + "MB free, "
+                    + minFreeSpaceMB + "MB required");
+        }
+    }
+
+    /**
+     * @return the roots of the volumes other than the default receiving root
+     */
+    public Collection<String> getRoots()
+    {
+        return roots.values();
+    }
+
+    /**
+     * @return the volume the files below the folder are sent to, or null if no rule names the folder
+     */
+    public String getSubtreeVolume(String folderNodeRef)
+    {
+        return subtreeRules.get(folderNodeRef);
+    }
+
+    /**
+     * @return the volume the files received from the repository are sent to, or null if no rule names it
+     */
+    public String getSourceVolume(String sourceRepoId)
+    {
+        return sourceRepoId == null ? null : sourceRules.get(sourceRepoId);
+    }
+
+    /**
+     * @param volumes the volumes, as "name=directory,..."
+     */
+    public void setVolumes(String volumes)
+    {
+        this.roots = parse(volumes);
+    }
+
+    /**
+     * @param rules the rules, as "node:nodeRef=volume,source:repositoryId=volume,..."
+     */
+    public void setRules(String rules)
+    {
+        this.subtreeRules = new LinkedHashMap<String, String>();
+        this.sourceRules = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> rule : parse(rules).entrySet())
+        {
+            if (rule.getKey().startsWith(NODE_RULE))
+            {
+                subtreeRules.put(rule.getKey().substring(NODE_RULE.length()), rule.getValue());
+            }
+            else if (rule.getKey().startsWith(SOURCE_RULE))
+            {
+                sourceRules.put(rule.getKey().substring(SOURCE_RULE.length()), rule.getValue());
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown receiving volume rule " + rule.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param minFreeSpaceMB the free space below which no more files are written to a volume
+     */
+    public void setMinFreeSpaceMB(long minFreeSpaceMB)
+    {
+        this.minFreeSpaceMB = minFreeSpaceMB;
+    }
+
+    /**
+     * Parse "key=value,..."
+     */
+    static Map<String, String> parse(String list)
+    {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        if (list != null)
+        {
+            for (String entry : list.split(","))
+            {
+                int eq = entry.lastIndexOf('=');
+                if (eq > 0)
+                {
+                    map.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+                }
+            }
+        }
+        return map;
+    }
+}
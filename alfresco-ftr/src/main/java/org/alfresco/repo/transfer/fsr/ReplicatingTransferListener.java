@@ -0,0 +1,1318 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.alfresco.service.cmr.transfer.TransferProgress.Status;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Replicates the changes committed to the receiving root to other directories, such as the docroots of several local
+ * web servers.
+ * <p>
+ * The creates, moves and deletes reported for a transfer are collected as it commits and, once it has ended, are
+ * replayed on each target. Every target has its own worker thread, so the targets are updated in parallel while the
+ * change sets are applied to each one in commit order. The commit itself does not wait for the replication.
+ * <p>
+ * Files are hard linked into the targets when they are on the same file system as the received files, and copied
+ * otherwise. The receiver never rewrites a received file in place (a new version is written to a temporary file and
+ * renamed over it), so a linked file keeps its content until the next change to it is replayed. Each file is replaced
+ * by a rename, so the web servers never see a partly written file. On a target whose file system can't rename
+ * atomically, files are replaced by plain moves instead, and a web server may briefly find a replaced file missing.
+ * <p>
+ * Each change set is written to the queue directory before it is handed to the targets, and each target records the
+ * last change set it has applied, so the change sets that a stop left unapplied are applied when the receiver starts
+ * again. A commit that was interrupted while its changes were collected leaves no change set: its changes are caught
+ * up by a full resync of every target instead, which copies what is missing or out of date from the receiving roots
+ * and deletes what is in none of them. A target without a record of what it has applied, such as one just added to
+ * the configuration, is resynced the same way, and a resync can be asked for through the replication command.
+ * Without a queue directory the change sets are only held in memory, and those not yet applied when the receiver
+ * stops are lost.
+ * <p>
+ * A change that fails on a target is logged and counted against that target, and the rest of the change set is
+ * still applied. The paths it touched are retried every retryDelay milliseconds, each being brought in line with the
+ * receiving roots as they are by then, until the retry succeeds or a resync covers them. The progress and failures
+ * of each target are published through the metrics command.
+ */
+public class ReplicatingTransferListener implements TransferListener, FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(ReplicatingTransferListener.class);
+
+    private static final String REPLICA_SUFFIX = ".ftr-replica";
+    private static final String CHANGE_SET_SUFFIX = ".changes";
+    private static final String COLLECTING_SUFFIX = ".collecting";
+    private static final String APPLIED_SUFFIX = ".applied";
+    private static final String RETRY_SUFFIX = ".retry";
+    private static final String RESYNC_SUFFIX = ".resync";
+    private static final Pattern CHANGE_SET_NAME = Pattern.compile("\\d+\\" + CHANGE_SET_SUFFIX);
+    private static final Pattern TEMP_NAME = Pattern.compile(".*\\.ftr\\d+");
+
+    private enum ChangeType
+    {
+        CREATED, UPDATED, MOVED, DELETED
+    }
+
+    /**
+     * A change to the receiving root, with paths relative to the root they were made in
+     */
+    private static class Change
+    {
+        private final ChangeType type;
+        private final Path root;
+        private final String path;
+        private final String oldPath;
+
+        private Change(ChangeType type, Path root, String path, String oldPath)
+        {
+            this.type = type;
+            this.root = root;
+            this.path = path;
+            this.oldPath = oldPath;
+        }
+    }
+
+    /**
+     * The changes of one transfer, numbered in the order the transfers ended
+     */
+    private static class ChangeSet
+    {
+        private final long sequence;
+        private final String transferId;
+        private final List<Change> changes;
+
+        private ChangeSet(long sequence, String transferId, List<Change> changes)
+        {
+            this.sequence = sequence;
+            this.transferId = transferId;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * A replication target, with its worker and its progress
+     */
+    private static class Target
+    {
+        private final String name;
+        private final Path root;
+        private ScheduledThreadPoolExecutor worker;
+        private volatile boolean useLinks;
+        private volatile boolean useAtomicMoves = true;
+
+        //The last change set applied, and the paths whose last change failed
+        private volatile long appliedSequence;
+        private final Set<String> retryPaths = Collections.synchronizedSet(new LinkedHashSet<String>());
+        private final AtomicBoolean retryScheduled = new AtomicBoolean();
+        private final AtomicBoolean resyncPending = new AtomicBoolean();
+
+        private final AtomicInteger pendingChangeSets = new AtomicInteger();
+        private final AtomicLong appliedChangeSets = new AtomicLong();
+        private final AtomicLong appliedChanges = new AtomicLong();
+        private final AtomicLong failedChanges = new AtomicLong();
+        private final AtomicLong linkedFiles = new AtomicLong();
+        private final AtomicLong copiedFiles = new AtomicLong();
+        private final AtomicLong retriedPaths = new AtomicLong();
+        private final AtomicLong resyncs = new AtomicLong();
+        private volatile String lastTransferId;
+        private volatile long lastAppliedTime;
+        private volatile String lastError;
+
+        private Target(String name, Path root, boolean useLinks)
+        {
+            this.name = name;
+            this.root = root;
+            this.useLinks = useLinks;
+        }
+    }
+
+    private String rootDirectory;
+    private ReceivingVolumes receivingVolumes;
+    private Map<String, String> targetDirectories = Collections.emptyMap();
+    private boolean hardLinks = true;
+    private String queueDirectory;
+    private long retryDelay = 60000L;
+
+    private final List<Target> targets = new ArrayList<Target>();
+    private final List<Path> sourceRoots = new ArrayList<Path>();
+    private final ConcurrentHashMap<String, List<Change>> changeSets = new ConcurrentHashMap<String, List<Change>>();
+
+    //The queued change sets, guarded by queueLock
+    private final Object queueLock = new Object();
+    private File queueFolder;
+    private long lastSequence;
+    private final TreeSet<Long> queuedSequences = new TreeSet<Long>();
+
+    public void init()
+    {
+        sourceRoots.add(Paths.get(rootDirectory).toAbsolutePath().normalize());
+        if (receivingVolumes != null)
+        {
+            for (String volumeRoot : receivingVolumes.getRoots())
+            {
+                sourceRoots.add(Paths.get(volumeRoot).toAbsolutePath().normalize());
+            }
+        }
+        //Match the most specific root first, in case one root lies inside another
+        Collections.sort(sourceRoots, new Comparator<Path>()
+            {
+                public int compare(Path a, Path b)
+                {
+                    return b.getNameCount() - a.getNameCount();
+                }
+            });
+
+        for (Map.Entry<String, String> entry : targetDirectories.entrySet())
+        {
+            final Target target = new Target(entry.getKey(), Paths.get(entry.getValue()).toAbsolutePath().normalize(),
+                    hardLinks);
+            if (sourceRoots.contains(target.root))
+            {
+                throw new IllegalArgumentException("Replication target " + target.name
+                        + " is a receiving root: " + target.root);
+            }
+            try
+            {
+                Files.createDirectories(target.root);
+            }
+            catch (IOException e)
+            {
+                log.error("Unable to create replication target " + target.name + ": " + target.root, e);
+            }
+            target.worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "FileTransferReplication-" + target.name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            target.worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            targets.add(target);
+        }
+        if (!targets.isEmpty())
+        {
+            log.info("Replicating committed changes to " + targets.size() + " target(s)");
+            if (queueDirectory != null && queueDirectory.length() > 0)
+            {
+                queueFolder = new File(queueDirectory);
+                recoverQueue();
+            }
+            else
+            {
+                log.warn("No replication queue directory is set, changes not yet replicated when the receiver "
+                        + "stops will be lost");
+            }
+        }
+    }
+
+    /**
+     * Apply the change sets that some target had not applied when the receiver stopped, resume the retries, and
+     * resync the targets whose changes can't be replayed
+     */
+    private void recoverQueue()
+    {
+        if (!queueFolder.isDirectory() && !queueFolder.mkdirs())
+        {
+            throw new AlfrescoRuntimeException("Unable to create the replication queue directory: " + queueFolder);
+        }
+        boolean interrupted = false;
+        File[] files = queueFolder.listFiles();
+        for (File file : files == null ? new File[0] : files)
+        {
+            if (CHANGE_SET_NAME.matcher(file.getName()).matches())
+            {
+                queuedSequences.add(Long.valueOf(file.getName().substring(0,
+                        file.getName().length() - CHANGE_SET_SUFFIX.length())));
+            }
+            else if (file.getName().endsWith(COLLECTING_SUFFIX))
+            {
+                interrupted = true;
+            }
+        }
+        lastSequence = queuedSequences.isEmpty() ? 0L : queuedSequences.last();
+
+        Map<Long, ChangeSet> loaded = new HashMap<Long, ChangeSet>();
+        synchronized (queueLock)
+        {
+            for (Target target : targets)
+            {
+                Long applied = readApplied(target);
+                boolean resync = interrupted || applied == null || getQueueFile(target, RESYNC_SUFFIX).exists();
+                target.appliedSequence = applied == null ? lastSequence : applied;
+                for (Long sequence : queuedSequences.tailSet(target.appliedSequence, false))
+                {
+                    ChangeSet changeSet = loaded.get(sequence);
+                    if (changeSet == null && !loaded.containsKey(sequence))
+                    {
+                        changeSet = load(sequence);
+                        loaded.put(sequence, changeSet);
+                    }
+                    if (changeSet == null)
+                    {
+                        //Unreadable, so its changes are caught up by the resync that follows the others
+                        resync = true;
+                    }
+                    else
+                    {
+                        submit(target, changeSet);
+                    }
+                }
+                target.retryPaths.addAll(readRetryPaths(target));
+                if (resync)
+                {
+                    requestResync(target);
+                }
+                else
+                {
+                    scheduleRetry(target);
+                }
+            }
+        }
+        if (!loaded.isEmpty())
+        {
+            log.info("Replicating " + loaded.size() + " queued change set(s) left from before the last stop");
+        }
+        if (interrupted)
+        {
+            log.warn("A commit was interrupted while its changes were being replicated, resyncing all targets");
+            //The resync markers written above now stand in for the interrupted commits
+            for (File file : files)
+            {
+                if (file.getName().endsWith(COLLECTING_SUFFIX) && !file.delete())
+                {
+                    log.warn("Unable to delete replication marker " + file);
+                }
+            }
+        }
+        purgeChangeSets();
+    }
+
+    public void destroy()
+    {
+        for (Target target : targets)
+        {
+            target.worker.shutdown();
+        }
+    }
+
+    public void created(String transferId, NodeRef sourceNode, NodeRef parentNode, String newPath, boolean orphan)
+            throws TransferException
+    {
+        record(transferId, ChangeType.CREATED, newPath, null);
+    }
+
+    public void deleted(String transferId, NodeRef sourceNode, String path) throws TransferException
+    {
+        record(transferId, ChangeType.DELETED, path, null);
+    }
+
+    public void moved(String transferId, NodeRef sourceNode, String oldPath, NodeRef newParent, String newPath)
+            throws TransferException
+    {
+        record(transferId, ChangeType.MOVED, newPath, oldPath);
+    }
+
+    public void updated(String transferId, NodeRef sourceNode, String path) throws TransferException
+    {
+        record(transferId, ChangeType.UPDATED, path, null);
+    }
+
+    public void statusChanged(String transferId, Status status) throws TransferException
+    {
+        if (status != Status.COMPLETE && status != Status.ERROR && status != Status.CANCELLED)
+        {
+            return;
+        }
+        //A failed commit may still have changed the receiving root, so its changes are replicated too
+        List<Change> changes = changeSets.remove(transferId);
+        if (changes == null)
+        {
+            return;
+        }
+        List<Change> snapshot;
+        synchronized (changes)
+        {
+            snapshot = new ArrayList<Change>(changes);
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Replicating " + snapshot.size() + " changes of transfer " + transferId + " to "
+                    + targets.size() + " target(s)");
+        }
+        boolean queued = true;
+        synchronized (queueLock)
+        {
+            //Numbered and submitted under the lock, so that every target applies the change sets in the same order
+            ChangeSet changeSet = new ChangeSet(++lastSequence, transferId, snapshot);
+            if (queueFolder != null)
+            {
+                queued = store(changeSet);
+            }
+            for (Target target : targets)
+            {
+                submit(target, changeSet);
+            }
+        }
+        //Unless the change set could not be queued, in which case the marker resyncs the targets after a restart
+        File marker = getCollectingMarker(transferId);
+        if (queued && marker != null && !marker.delete())
+        {
+            log.warn("Unable to delete replication marker " + marker);
+        }
+    }
+
+    private void record(String transferId, ChangeType type, String path, String oldPath)
+    {
+        if (targets.isEmpty())
+        {
+            return;
+        }
+        Path absolutePath = Paths.get(path).toAbsolutePath().normalize();
+        Path root = getSourceRoot(absolutePath);
+        if (root == null)
+        {
+            log.warn("Not replicating change to " + path + ", it is outside the receiving roots");
+            return;
+        }
+        String relativeOldPath = null;
+        if (oldPath != null)
+        {
+            Path absoluteOldPath = Paths.get(oldPath).toAbsolutePath().normalize();
+            Path oldRoot = getSourceRoot(absoluteOldPath);
+            relativeOldPath = oldRoot == null ? null : oldRoot.relativize(absoluteOldPath).toString();
+        }
+        List<Change> changes = changeSets.get(transferId);
+        if (changes == null)
+        {
+            changes = Collections.synchronizedList(new ArrayList<Change>());
+            List<Change> existing = changeSets.putIfAbsent(transferId, changes);
+            if (existing != null)
+            {
+                changes = existing;
+            }
+            else
+            {
+                markCollecting(transferId);
+            }
+        }
+        changes.add(new Change(type, root, root.relativize(absolutePath).toString(), relativeOldPath));
+    }
+
+    /**
+     * Leave a marker for as long as the changes of a transfer are only held in memory, so that a restart knows that
+     * some changes were lost
+     */
+    private void markCollecting(String transferId)
+    {
+        File marker = getCollectingMarker(transferId);
+        if (marker == null)
+        {
+            return;
+        }
+        try
+        {
+            if (!marker.createNewFile() && log.isDebugEnabled())
+            {
+                log.debug("Replication marker already exists: " + marker);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to create replication marker " + marker, e);
+        }
+    }
+
+    private File getCollectingMarker(String transferId)
+    {
+        if (queueFolder == null)
+        {
+            return null;
+        }
+        return new File(queueFolder, transferId.replaceAll("[^A-Za-z0-9_-]", "_") + COLLECTING_SUFFIX);
+    }
+
+    /**
+     * Write a change set to the queue directory
+     * 
+     * @return false if it could not be written
+     */
+    private boolean store(ChangeSet changeSet)
+    {
+        File file = new File(queueFolder, changeSet.sequence + CHANGE_SET_SUFFIX);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            try
+            {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                writer.write(CommitJournal.encode(new String[] { changeSet.transferId }));
+                writer.write('\n');
+                for (Change change : changeSet.changes)
+                {
+                    writer.write(CommitJournal.encode(new String[] { change.type.name(), change.root.toString(),
+                            change.path, change.oldPath }));
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+            queuedSequences.add(changeSet.sequence);
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to queue the changes of transfer " + changeSet.transferId
+                    + ", the targets will be resynced if the receiver stops before they are replicated", e);
+            if (!file.delete() && file.exists())
+            {
+                log.warn("Unable to delete incomplete change set " + file);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the queued change set, or null if it can't be read
+     */
+    private ChangeSet load(long sequence)
+    {
+        File file = new File(queueFolder, sequence + CHANGE_SET_SUFFIX);
+        try
+        {
+            List<String[]> records = CommitJournal.read(file);
+            if (records.isEmpty())
+            {
+                throw new IOException("No transfer record");
+            }
+            List<Change> changes = new ArrayList<Change>(records.size() - 1);
+            for (String[] record : records.subList(1, records.size()))
+            {
+                if (record.length != 4)
+                {
+                    throw new IOException("Malformed change record");
+                }
+                changes.add(new Change(ChangeType.valueOf(record[0]), Paths.get(record[1]), record[2],
+                        record[3].length() == 0 ? null : record[3]));
+            }
+            return new ChangeSet(sequence, records.get(0)[0], changes);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            log.error("Unable to read queued change set " + file + ", resyncing instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the change sets that every target has applied
+     */
+    private void purgeChangeSets()
+    {
+        if (queueFolder == null)
+        {
+            return;
+        }
+        synchronized (queueLock)
+        {
+            long applied = Long.MAX_VALUE;
+            for (Target target : targets)
+            {
+                applied = Math.min(applied, target.appliedSequence);
+            }
+            Iterator<Long> sequences = queuedSequences.headSet(applied, true).iterator();
+            while (sequences.hasNext())
+            {
+                File file = new File(queueFolder, sequences.next() + CHANGE_SET_SUFFIX);
+                if (!file.delete() && file.exists())
+                {
+                    log.warn("Unable to delete replicated change set " + file);
+                    break;
+                }
+                sequences.remove();
+            }
+        }
+    }
+
+    private Path getSourceRoot(Path path)
+    {
+        for (Path root : sourceRoots)
+        {
+            if (path.startsWith(root) && !path.equals(root))
+            {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private void submit(final Target target, final ChangeSet changeSet)
+    {
+        target.pendingChangeSets.incrementAndGet();
+        target.worker.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        apply(target, changeSet);
+                    }
+                    finally
+                    {
+                        target.pendingChangeSets.decrementAndGet();
+                    }
+                }
+            });
+    }
+
+    private void apply(Target target, ChangeSet changeSet)
+    {
+        String transferId = changeSet.transferId;
+        long failuresBefore = target.failedChanges.get();
+        for (Change change : changeSet.changes)
+        {
+            try
+            {
+                apply(target, change);
+                target.appliedChanges.incrementAndGet();
+            }
+            catch (Throwable t)
+            {
+                target.failedChanges.incrementAndGet();
+                target.lastError = transferId + ": " + change.type + " " + change.path + ": " + t.toString();
+                log.error("Failed to replicate " + change.type + " of " + change.path + " to target " + target.name
+                        + " (transfer " + transferId + "), retrying in " + retryDelay + "ms", t);
+                target.retryPaths.add(change.path);
+                if (change.oldPath != null)
+                {
+                    target.retryPaths.add(change.oldPath);
+                }
+            }
+        }
+        target.appliedChangeSets.incrementAndGet();
+        target.lastTransferId = transferId;
+        target.lastAppliedTime = System.currentTimeMillis();
+        long failures = target.failedChanges.get() - failuresBefore;
+        if (failures > 0)
+        {
+            log.warn("Replicated transfer " + transferId + " to target " + target.name + " with " + failures
+                    + " failed change(s) out of " + changeSet.changes.size());
+            storeRetryPaths(target);
+            scheduleRetry(target);
+        }
+        else if (log.isDebugEnabled())
+        {
+            log.debug("Replicated transfer " + transferId + " to target " + target.name + ": "
+                    + changeSet.changes.size() + " change(s)");
+        }
+        target.appliedSequence = changeSet.sequence;
+        storeApplied(target);
+        purgeChangeSets();
+    }
+
+    private void scheduleRetry(final Target target)
+    {
+        if (target.retryPaths.isEmpty() || target.worker.isShutdown()
+                || !target.retryScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        target.worker.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    target.retryScheduled.set(false);
+                    retry(target);
+                }
+            }, retryDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Bring the paths whose changes failed in line with the receiving roots
+     */
+    private void retry(Target target)
+    {
+        List<String> paths;
+        synchronized (target.retryPaths)
+        {
+            paths = new ArrayList<String>(target.retryPaths);
+        }
+        int retried = 0;
+        for (String path : paths)
+        {
+            try
+            {
+                reconcile(target, path);
+                target.retryPaths.remove(path);
+                target.retriedPaths.incrementAndGet();
+                retried++;
+            }
+            catch (Throwable t)
+            {
+                target.lastError = "retry " + path + ": " + t.toString();
+                log.warn("Failed again to replicate " + path + " to target " + target.name + ", retrying in "
+                        + retryDelay + "ms: " + t.toString());
+            }
+        }
+        if (retried > 0)
+        {
+            log.info("Replicated " + retried + " of " + paths.size() + " failed path(s) to target " + target.name);
+            storeRetryPaths(target);
+        }
+        scheduleRetry(target);
+    }
+
+    /**
+     * Bring a path of a target in line with whichever receiving root holds it, deleting it if none does
+     */
+    private void reconcile(Target target, String path) throws IOException
+    {
+        Path dest = target.root.resolve(path);
+        for (Path root : sourceRoots)
+        {
+            Path source = root.resolve(path);
+            if (Files.exists(source, LinkOption.NOFOLLOW_LINKS))
+            {
+                replicate(target, source, dest);
+                return;
+            }
+        }
+        deleteTree(dest);
+    }
+
+    /**
+     * Resync a target with the receiving roots, after the change sets already submitted to it
+     * 
+     * @return false if there is no such target
+     */
+    public boolean resync(String targetName)
+    {
+        for (Target target : targets)
+        {
+            if (target.name.equals(targetName))
+            {
+                requestResync(target);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resync every target with the receiving roots
+     */
+    public void resyncAll()
+    {
+        for (Target target : targets)
+        {
+            requestResync(target);
+        }
+    }
+
+    private void requestResync(final Target target)
+    {
+        File marker = getQueueFile(target, RESYNC_SUFFIX);
+        try
+        {
+            if (marker != null && !marker.exists() && !marker.createNewFile())
+            {
+                log.warn("Unable to create replication marker " + marker);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to create replication marker " + marker, e);
+        }
+        if (target.resyncPending.compareAndSet(false, true))
+        {
+            target.worker.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        runResync(target);
+                    }
+                });
+        }
+    }
+
+    private void runResync(final Target target)
+    {
+        target.resyncPending.set(false);
+        long start = System.currentTimeMillis();
+        try
+        {
+            syncTarget(target);
+            target.retryPaths.clear();
+            storeRetryPaths(target);
+            storeApplied(target);
+            File marker = getQueueFile(target, RESYNC_SUFFIX);
+            if (marker != null && !marker.delete() && marker.exists())
+            {
+                log.warn("Unable to delete replication marker " + marker);
+            }
+            target.resyncs.incrementAndGet();
+            log.info("Resynced replication target " + target.name + " in " + (System.currentTimeMillis() - start)
+                    + "ms");
+        }
+        catch (Throwable t)
+        {
+            target.lastError = "resync: " + t.toString();
+            log.error("Failed to resync replication target " + target.name + ", retrying in " + retryDelay + "ms", t);
+            if (!target.worker.isShutdown() && target.resyncPending.compareAndSet(false, true))
+            {
+                target.worker.schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            runResync(target);
+                        }
+                    }, retryDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Copy into a target what is missing or out of date in it, and delete from it what is in none of the receiving
+     * roots
+     */
+    private void syncTarget(final Target target) throws IOException
+    {
+        for (final Path root : sourceRoots)
+        {
+            if (!Files.isDirectory(root))
+            {
+                continue;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+                {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+                    {
+                        //A root inside this one is synced on its own
+                        if (!dir.equals(root) && (sourceRoots.contains(dir) || isTemporary(dir)))
+                        {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        Files.createDirectories(target.root.resolve(root.relativize(dir).toString()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                    {
+                        if (!isTemporary(file))
+                        {
+                            replicateFile(target, file, target.root.resolve(root.relativize(file).toString()));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        }
+        Files.walkFileTree(target.root, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+                {
+                    if (!dir.equals(target.root) && !isReceived(target.root.relativize(dir).toString()))
+                    {
+                        deleteTree(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    if (!isReceived(target.root.relativize(file).toString()))
+                    {
+                        Files.deleteIfExists(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+    }
+
+    /**
+     * @return true if a receiving root holds the path, as other than a temporary file
+     */
+    private boolean isReceived(String path)
+    {
+        for (Path root : sourceRoots)
+        {
+            Path source = root.resolve(path);
+            if (!isTemporary(source) && Files.exists(source, LinkOption.NOFOLLOW_LINKS))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTemporary(Path path)
+    {
+        return TEMP_NAME.matcher(path.getFileName().toString()).matches();
+    }
+
+    private File getQueueFile(Target target, String suffix)
+    {
+        if (queueFolder == null)
+        {
+            return null;
+        }
+        return new File(queueFolder, target.name + suffix);
+    }
+
+    /**
+     * @return the last change set the target applied before the receiver stopped, or null if there is no record
+     */
+    private Long readApplied(Target target)
+    {
+        File file = getQueueFile(target, APPLIED_SUFFIX);
+        if (!file.exists())
+        {
+            return null;
+        }
+        try
+        {
+            List<String[]> records = CommitJournal.read(file);
+            return records.isEmpty() ? null : Long.valueOf(records.get(0)[0]);
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            log.error("Unable to read replication progress " + file + ", resyncing target " + target.name, e);
+            return null;
+        }
+    }
+
+    private void storeApplied(Target target)
+    {
+        File file = getQueueFile(target, APPLIED_SUFFIX);
+        if (file != null)
+        {
+            write(file, Collections.singletonList(Long.toString(target.appliedSequence)));
+        }
+    }
+
+    private List<String> readRetryPaths(Target target)
+    {
+        List<String> paths = new ArrayList<String>();
+        File file = getQueueFile(target, RETRY_SUFFIX);
+        if (file.exists())
+        {
+            try
+            {
+                for (String[] record : CommitJournal.read(file))
+                {
+                    paths.add(record[0]);
+                }
+            }
+            catch (IOException e)
+            {
+                log.error("Unable to read failed replication paths " + file + ", resync target " + target.name
+                        + " to replicate them", e);
+            }
+        }
+        return paths;
+    }
+
+    private void storeRetryPaths(Target target)
+    {
+        File file = getQueueFile(target, RETRY_SUFFIX);
+        if (file == null)
+        {
+            return;
+        }
+        List<String> paths;
+        synchronized (target.retryPaths)
+        {
+            paths = new ArrayList<String>(target.retryPaths);
+        }
+        if (paths.isEmpty())
+        {
+            if (!file.delete() && file.exists())
+            {
+                log.warn("Unable to delete " + file);
+            }
+        }
+        else
+        {
+            write(file, paths);
+        }
+    }
+
+    /**
+     * Replace a file of the queue directory with one record per value
+     */
+    private void write(File file, List<String> values)
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(temp);
+            try
+            {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                for (String value : values)
+                {
+                    writer.write(CommitJournal.encode(new String[] { value }));
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to write " + file, e);
+        }
+    }
+
+    private void apply(Target target, Change change) throws IOException
+    {
+        Path source = change.root.resolve(change.path);
+        Path dest = target.root.resolve(change.path);
+        switch (change.type)
+        {
+            case DELETED:
+                deleteTree(dest);
+                break;
+            case MOVED:
+                boolean renamed = false;
+                if (change.oldPath != null && !change.oldPath.equals(change.path))
+                {
+                    Path oldDest = target.root.resolve(change.oldPath);
+                    if (Files.exists(oldDest, LinkOption.NOFOLLOW_LINKS))
+                    {
+                        Files.createDirectories(dest.getParent());
+                        deleteTree(dest);
+                        move(target, oldDest, dest);
+                        renamed = true;
+                    }
+                }
+                //A moved file may also have new content, and a folder missing on the target is copied in full
+                if (!renamed || !Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS))
+                {
+                    replicate(target, source, dest);
+                }
+                break;
+            default:
+                replicate(target, source, dest);
+                break;
+        }
+    }
+
+    /**
+     * Bring the file or folder at dest up to date with the one at source, which later changes may have removed
+     */
+    private void replicate(final Target target, final Path source, final Path dest) throws IOException
+    {
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS))
+        {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+                {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+                    {
+                        Files.createDirectories(dest.resolve(source.relativize(dir).toString()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                    {
+                        replicateFile(target, file, dest.resolve(source.relativize(file).toString()));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        }
+        else if (Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS))
+        {
+            replicateFile(target, source, dest);
+        }
+        else if (log.isDebugEnabled())
+        {
+            log.debug("Not replicating " + source + " to target " + target.name + ", it no longer exists");
+        }
+    }
+
+    private void replicateFile(Target target, Path source, Path dest) throws IOException
+    {
+        if (isCurrent(source, dest))
+        {
+            return;
+        }
+        Files.createDirectories(dest.getParent());
+        Path temp = dest.resolveSibling(dest.getFileName() + REPLICA_SUFFIX);
+        Files.deleteIfExists(temp);
+        boolean linked = false;
+        if (target.useLinks)
+        {
+            try
+            {
+                Files.createLink(temp, source);
+                linked = true;
+            }
+            catch (NoSuchFileException e)
+            {
+                //Removed by a later change, which will be replayed in turn
+                return;
+            }
+            catch (UnsupportedOperationException | FileSystemException e)
+            {
+                target.useLinks = false;
+                log.info("Unable to hard link received files into replication target " + target.name
+                        + ", copying them instead: " + e.toString());
+            }
+        }
+        if (!linked)
+        {
+            try
+            {
+                Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            catch (NoSuchFileException e)
+            {
+                return;
+            }
+        }
+        move(target, temp, dest);
+        (linked ? target.linkedFiles : target.copiedFiles).incrementAndGet();
+    }
+
+    /**
+     * Rename source to dest, replacing dest, atomically unless the file system of the target does not support it
+     */
+    private void move(Target target, Path source, Path dest) throws IOException
+    {
+        if (target.useAtomicMoves)
+        {
+            try
+            {
+                moveAtomically(source, dest);
+                return;
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                target.useAtomicMoves = false;
+                log.info("Unable to move files atomically in replication target " + target.name
+                        + ", replacing them with plain moves instead: " + e.toString());
+            }
+        }
+        Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @throws AtomicMoveNotSupportedException if the file system can't move the file atomically
+     */
+    protected void moveAtomically(Path source, Path dest) throws IOException
+    {
+        Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if dest is a link to source, or a copy of it with the same size and modification time
+     */
+    private boolean isCurrent(Path source, Path dest) throws IOException
+    {
+        if (!Files.isRegularFile(dest, LinkOption.NOFOLLOW_LINKS))
+        {
+            return false;
+        }
+        try
+        {
+            if (Files.isSameFile(source, dest))
+            {
+                return true;
+            }
+            return Files.size(source) == Files.size(dest)
+                    && Files.getLastModifiedTime(source).toMillis() == Files.getLastModifiedTime(dest).toMillis();
+        }
+        catch (NoSuchFileException e)
+        {
+            return false;
+        }
+    }
+
+    private void deleteTree(Path path) throws IOException
+    {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+        {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+                {
+                    if (e != null)
+                    {
+                        throw e;
+                    }
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+    }
+
+    public String getMetricsName()
+    {
+        return "replication";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("targets", targets.size());
+        metrics.put("collectingTransfers", changeSets.size());
+        synchronized (queueLock)
+        {
+            metrics.put("queuedChangeSets", queuedSequences.size());
+        }
+        for (Target target : targets)
+        {
+            String prefix = target.name + ".";
+            metrics.put(prefix + "directory", target.root.toString());
+            metrics.put(prefix + "pendingChangeSets", target.pendingChangeSets.get());
+            metrics.put(prefix + "appliedChangeSets", target.appliedChangeSets.get());
+            metrics.put(prefix + "appliedChanges", target.appliedChanges.get());
+            metrics.put(prefix + "failedChanges", target.failedChanges.get());
+            metrics.put(prefix + "linkedFiles", target.linkedFiles.get());
+            metrics.put(prefix + "copiedFiles", target.copiedFiles.get());
+            metrics.put(prefix + "appliedSequence", target.appliedSequence);
+            metrics.put(prefix + "retryPaths", target.retryPaths.size());
+            metrics.put(prefix + "retriedPaths", target.retriedPaths.get());
+            metrics.put(prefix + "resyncPending", target.resyncPending.get());
+            metrics.put(prefix + "resyncs", target.resyncs.get());
+            metrics.put(prefix + "hardLinks", target.useLinks);
+            metrics.put(prefix + "atomicMoves", target.useAtomicMoves);
+            metrics.put(prefix + "lastTransferId", target.lastTransferId == null ? "" : target.lastTransferId);
+            metrics.put(prefix + "lastAppliedTime", target.lastAppliedTime);
+            metrics.put(prefix + "lastError", target.lastError == null ? "" : target.lastError);
+        }
+        return metrics;
+    }
+
+    public void setRootDirectory(String rootDirectory)
+    {
+        this.rootDirectory = rootDirectory;
+    }
+
+    public void setReceivingVolumes(ReceivingVolumes receivingVolumes)
+    {
+        this.receivingVolumes = receivingVolumes;
+    }
+
+    /**
+     * @param targets the target directories, as "name=directory,..."
+     */
+    public void setTargets(String targets)
+    {
+        this.targetDirectories = ReceivingVolumes.parse(targets);
+    }
+
+    /**
+     * @param hardLinks false to always copy files into the targets, so that they can be modified there
+     */
+    public void setHardLinks(boolean hardLinks)
+    {
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * @param queueDirectory where the change sets are kept until every target has applied them, or empty to only
+     *            hold them in memory
+     */
+    public void setQueueDirectory(String queueDirectory)
+    {
+        this.queueDirectory = queueDirectory;
+    }
+
+    /**
+     * @param retryDelay milliseconds between retries of the changes that failed on a target
+     */
+    public void setRetryDelay(long retryDelay)
+    {
+        this.retryDelay = retryDelay;
+    }
+}
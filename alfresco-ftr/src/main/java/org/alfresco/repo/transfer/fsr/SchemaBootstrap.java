@@ -32,6 +32,11 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.ibatis.SerializableTypeHandler;
@@ -46,6 +51,14 @@ import org.springframework.core.io.support.ResourcePatternResolver;
 import org.springframework.extensions.surf.util.AbstractLifecycleBean;
 
 
+/**
+ * Creates the tables of the receiver, or adds the columns of later versions to them, once the context has been
+ * refreshed. With <code>asyncStartup</code> the check starts in the background as soon as this bean is created.
+ * <p>
+ * Either way, a bean that touches the database before the context has been refreshed, from its init method or from a
+ * thread of its own, must call {@link #awaitSchema()} first: the receiver before it recovers interrupted commits, and
+ * the cluster before it takes the commit lock.
+ */
 public class SchemaBootstrap extends AbstractLifecycleBean
 {
     private static Log log = LogFactory.getLog(SchemaBootstrap.class);
@@ -53,50 +66,126 @@ public class SchemaBootstrap extends AbstractLifecycleBean
     private BasicDataSource dataSource;
     // creation script URL
     private String creationScript;
+    // upgrade script URLs by the table.column they add
+    private Map<String, String> upgradeScripts = Collections.emptyMap();
+    // check the schema while the rest of the context is created
+    private boolean asyncStartup = false;
+    private FileTransferStartupTimer startupTimer;
+    // checks the schema once, whichever of the startup thread or the first caller of awaitSchema runs it
+    private final FutureTask<Void> bootstrapTask = new FutureTask<Void>(new Callable<Void>()
+    {
+        public Void call() throws Exception
+        {
+            bootstrapSchema();
+            return null;
+        }
+    });
 
     public void init()
     {
         // empty
         SerializableTypeHandler.setSerializableType(Types.BLOB);
+        if (asyncStartup)
+        {
+            // the first connection boots an embedded database, which takes a while: let it overlap the creation of
+            // the web script runtime. The result is awaited when the context has been refreshed.
+            Thread thread = new Thread(bootstrapTask, "FTR-SchemaBootstrap");
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
 
     // @Override
     protected void onBootstrap(ApplicationEvent arg0)
     {
-        Connection con = null;
+        awaitSchema();
+    }
 
-        // create DB if necessary this is done by the jDBC driver configured with option
-        // create=true
+    /**
+     * Wait until the tables have been created or upgraded, checking them in the calling thread if that has not been
+     * started. A bean that uses the database from its init method must call this first, as the schema is otherwise
+     * only checked once the context has been refreshed.
+     */
+    public void awaitSchema()
+    {
         try
         {
-            // create DB if necessary this is done by the jDBC driver configured with option
-            // create=true. If DB exist it does not recreate it.
-            con = dataSource.getConnection();
-            con.close();
-            con = null;
-            createDBTables();
+            bootstrapTask.run();
+            bootstrapTask.get();
         }
-        catch (SQLException e)
+        catch (ExecutionException e)
         {
-            if (log.isDebugEnabled())
+            Throwable cause = e.getCause();
+            throw schemaFailure(cause instanceof SQLException ? "Error in DB creation or connection"
+                    : "Error in DB creation", cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw schemaFailure("Interrupted while waiting for DB creation", e);
+        }
+        catch (RuntimeException e)
+        {
+            throw schemaFailure("Error in DB creation", e);
+        }
+    }
+
+    /**
+     * The receiver cannot run without its tables, so any failure to check or create them is logged and stops the
+     * startup
+     */
+    private static AlfrescoRuntimeException schemaFailure(String message, Throwable cause)
+    {
+        log.error(message + ": " + cause.getMessage(), cause);
+        return cause instanceof AlfrescoRuntimeException ? (AlfrescoRuntimeException) cause
+                : new AlfrescoRuntimeException(message, cause);
+    }
+
+    /**
+     * A query on a missing table or column fails with an SQL state of class 42, syntax error or access rule
+     * violation. Any other failure is not a sign of a missing table.
+     */
+    private static boolean isMissingObject(SQLException e)
+    {
+        return e.getSQLState() != null && e.getSQLState().startsWith("42");
+    }
+
+    private static void closeStatement(Statement st)
+    {
+        if (st != null)
+        {
+            try
             {
-                log.debug("Error in DB creation or connection:" + e.getMessage());
+                st.close();
+            }
+            catch (SQLException e)
+            {
+                throw new AlfrescoRuntimeException("Error in closing statement", e);
             }
-
         }
-        catch (Exception e)
+    }
+
+    /**
+     * Check for the tables and create them if they are missing, all on one connection. The database itself is
+     * created if necessary by the JDBC driver configured with option create=true; if it exists it is not recreated.
+     */
+    protected void bootstrapSchema() throws SQLException
+    {
+        long start = System.currentTimeMillis();
+        Connection con = dataSource.getConnection();
+        try
         {
-            if (log.isDebugEnabled())
+            if (startupTimer != null)
             {
-                log.debug("Error in DB creation:" + e.getMessage());
+                startupTimer.phase("database", System.currentTimeMillis() - start);
             }
+            createDBTables(con);
         }
         finally
         {
             try
             {
-                if (con != null)
-                    con.close();
+                con.close();
             }
             catch (SQLException e)
             {
@@ -106,18 +195,24 @@ public class SchemaBootstrap extends AbstractLifecycleBean
                 }
             }
         }
-
+        if (startupTimer != null)
+        {
+            startupTimer.phase("schema", System.currentTimeMillis() - start);
+        }
     }
 
     /**
      * Execute database creation script.
      */
-    protected void createDBTables()
+    protected void createDBTables(Connection con)
     {
 
         // check if tables in DB exist?
-        if (isDBInitialized())
+        if (isDBInitialized(con))
+        {
+            upgradeDBTables(con);
             return;
+        }
         Resource resourceScript = rpr.getResource(creationScript);
         if (!resourceScript.exists())
         {
@@ -130,74 +225,107 @@ public class SchemaBootstrap extends AbstractLifecycleBean
         }
 
         // execute script
-        executeSript(resourceScript);
+        executeSript(con, resourceScript);
 
     }
 
-    protected boolean isDBInitialized()
+    /**
+     * Execute the upgrade scripts whose column is missing, for a database created by an earlier version.
+     */
+    protected void upgradeDBTables(Connection con)
+    {
+        for (Map.Entry<String, String> upgrade : upgradeScripts.entrySet())
+        {
+            String column = upgrade.getKey();
+            int dot = column.indexOf('.');
+            if (hasColumn(con, column.substring(0, dot), column.substring(dot + 1)))
+            {
+                continue;
+            }
+            Resource resourceScript = rpr.getResource(upgrade.getValue());
+            if (!resourceScript.exists())
+            {
+                throw new AlfrescoRuntimeException("Upgrade script " + upgrade.getValue() + " not found!");
+            }
+            log.info("Adding column " + column + " to the database");
+            executeSript(con, resourceScript);
+        }
+    }
+
+    protected boolean hasColumn(Connection con, String table, String column)
     {
-        Connection con = null;
         Statement st = null;
         try
         {
-            // check if table "" exist. If exist, consider DB tables already there.
-            con = dataSource.getConnection();
-            // We create a table...
             st = con.createStatement();
-            st.execute("select count(*) from version");
+            st.execute("select " + column + " from " + table + " where 1 = 0");
             return true;
         }
-        catch (Exception e)
+        catch (SQLException e)
         {
+            if (!isMissingObject(e))
+            {
+                throw new AlfrescoRuntimeException("Error in hasColumn", e);
+            }
             if (log.isDebugEnabled())
             {
-                log.debug("Error in isDBInitialized:" + e.getMessage());
+                log.debug("Error in hasColumn:" + e.getMessage());
             }
         }
         finally
         {
-            if (st != null)
+            closeStatement(st);
+        }
+        return false;
+    }
+
+    protected boolean isDBInitialized(Connection con)
+    {
+        Statement st = null;
+        try
+        {
+            // check if table "version" exist. If exist, consider DB tables already there.
+            st = con.createStatement();
+            st.execute("select count(*) from version");
+            return true;
+        }
+        catch (SQLException e)
+        {
+            if (!isMissingObject(e))
             {
-                try
-                {
-                    st.close();
-                }
-                catch (Exception e)
-                {
-                }
+                throw new AlfrescoRuntimeException("Error in isDBInitialized", e);
             }
-            if (con != null)
+            if (log.isDebugEnabled())
             {
-                try
-                {
-                    con.close();
-                }
-                catch (Exception e)
-                {
-                }
+                log.debug("Error in isDBInitialized:" + e.getMessage());
             }
         }
+        finally
+        {
+            closeStatement(st);
+        }
         return false;
     }
 
-    protected void executeSript(Resource resourceScript)
+    protected void executeSript(Connection con, Resource resourceScript)
     {
         BufferedReader reader = null;
         try
         {
             // run the creation script with autocommit true and stop on error.
-            ScriptRunner runner = new ScriptRunner(dataSource.getConnection());
+            ScriptRunner runner = new ScriptRunner(con);
             runner.setLogWriter(null);
             runner.setAutoCommit(true);
             runner.setStopOnError(true);
             reader = new BufferedReader(new InputStreamReader(resourceScript.getInputStream(), "UTF-8"));
             runner.runScript(reader);
         }
-        catch (SQLException sql)
+        catch (IOException io)
         {
-            throw new AlfrescoRuntimeException("Creation script " + creationScript + " failed!", sql);
+            throw new AlfrescoRuntimeException("Script " + resourceScript.getDescription() + " could not be read",
+                    io);
         }
-        catch (IOException io)
+        finally
         {
             if (reader != null)
             {
@@ -205,11 +333,12 @@ public class SchemaBootstrap extends AbstractLifecycleBean
                 {
                     reader.close();
                 }
-                catch (Exception e)
+                catch (IOException e)
                 {
+                    throw new AlfrescoRuntimeException("Error in closing script " + resourceScript.getDescription(),
+                            e);
                 }
             }
-            throw new AlfrescoRuntimeException("Creation script " + creationScript + " could not optain reader!!");
         }
     }
 
@@ -232,4 +361,27 @@ public class SchemaBootstrap extends AbstractLifecycleBean
         this.creationScript = creationScript;
     }
 
+    /**
+     * @param upgradeScripts the URLs of the scripts to execute on an existing database, by the table.column each
+     *            adds; a script is executed if its column is missing
+     */
+    public void setUpgradeScripts(Map<String, String> upgradeScripts)
+    {
+        this.upgradeScripts = upgradeScripts;
+    }
+
+    /**
+     * @param asyncStartup true to check the schema in the background from the creation of this bean, rather than
+     *            when the context has been refreshed
+     */
+    public void setAsyncStartup(boolean asyncStartup)
+    {
+        this.asyncStartup = asyncStartup;
+    }
+
+    public void setStartupTimer(FileTransferStartupTimer startupTimer)
+    {
+        this.startupTimer = startupTimer;
+    }
+
 }
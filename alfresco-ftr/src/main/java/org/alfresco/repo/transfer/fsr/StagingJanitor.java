@@ -0,0 +1,479 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Removes the staging folders of ended transfers and old transfer reports in the background.
+ * <p>
+ * A staging folder that is no longer needed is renamed into the trash folder of the staging root, which is a single
+ * atomic rename, and is deleted later by a low priority daemon thread. The same thread applies the retention rules to
+ * the transfer reports (by age and by total size, oldest first) and measures the disk space used by the staging
+ * area, which is published as a metric.
+ * <p>
+ * The shard folders of a staging folder (see {@link StagingLayout}) are deleted on purgeParallelism threads.
+ */
+public class StagingJanitor implements FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(StagingJanitor.class);
+
+    static final String TRASH_FOLDER_NAME = ".trash";
+
+    private static final String REPORT_SUFFIX = "_report";
+
+    /**
+     * Reports modified more recently than this are never removed by the size rule, they may still be written to
+     */
+    private static final long MIN_REPORT_AGE_MS = 60L * 60L * 1000L;
+
+    private String rootStagingDirectory;
+    private String reportDirectory;
+    private long purgeInterval = 60000L;
+    private int reportMaxAgeDays = 30;
+    private long reportMaxTotalSizeMB = 512L;
+    private int purgeParallelism = 1;
+
+    private File trashFolder;
+    private Thread worker;
+    private ExecutorService purgeExecutor;
+    private volatile boolean running;
+    private final Object signal = new Object();
+    private boolean pending;
+
+    private final AtomicLong trashedFolders = new AtomicLong();
+    private final AtomicLong purgedFolders = new AtomicLong();
+    private final AtomicLong purgedReports = new AtomicLong();
+    private volatile long stagingBytes;
+    private volatile long stagingFiles;
+    private volatile long stagingFolders;
+    private volatile long trashBytes;
+    private volatile long reportBytes;
+    private volatile long lastScanTime;
+
+    public void init()
+    {
+        trashFolder = new File(rootStagingDirectory, TRASH_FOLDER_NAME);
+        if (!trashFolder.exists() && !trashFolder.mkdirs())
+        {
+            log.warn("Unable to create staging trash folder " + trashFolder.getAbsolutePath()
+                    + ". Staging folders will be deleted synchronously.");
+            trashFolder = null;
+        }
+        if (purgeParallelism > 1)
+        {
+            purgeExecutor = Executors.newFixedThreadPool(purgeParallelism, new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "FileTransferStagingPurge-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        }
+        running = true;
+        worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    runJanitor();
+                }
+            }, "FileTransferStagingJanitor");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    public void destroy()
+    {
+        running = false;
+        synchronized (signal)
+        {
+            signal.notifyAll();
+        }
+        if (purgeExecutor != null)
+        {
+            purgeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Remove a staging folder. The folder is moved to the trash and deleted in the background; if it cannot be moved it
+     * is deleted before returning.
+     */
+    public void purge(File stagingFolder)
+    {
+        if (!stagingFolder.exists())
+        {
+            return;
+        }
+        if (trashFolder != null && running)
+        {
+            File target = new File(trashFolder, stagingFolder.getName() + "-" + System.nanoTime());
+            if (stagingFolder.renameTo(target))
+            {
+                trashedFolders.incrementAndGet();
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Moved staging folder " + stagingFolder + " to trash");
+                }
+                synchronized (signal)
+                {
+                    pending = true;
+                    signal.notifyAll();
+                }
+                return;
+            }
+            log.debug("Unable to move staging folder " + stagingFolder + " to trash, deleting it now");
+        }
+        deleteStagingFolder(stagingFolder);
+    }
+
+    /**
+     * Delete a staging folder, deleting its shard folders in parallel
+     */
+    private boolean deleteStagingFolder(File stagingFolder)
+    {
+        File[] children = stagingFolder.listFiles();
+        if (purgeExecutor != null && children != null && children.length > 1)
+        {
+            List<Future<?>> deletions = new ArrayList<Future<?>>(children.length);
+            for (final File child : children)
+            {
+                if (child.isDirectory())
+                {
+                    deletions.add(purgeExecutor.submit(new Runnable()
+                        {
+                            public void run()
+                            {
+                                deleteFile(child);
+                            }
+                        }));
+                }
+            }
+            for (Future<?> deletion : deletions)
+            {
+                try
+                {
+                    deletion.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (ExecutionException e)
+                {
+                    log.warn("Unable to delete part of staging folder " + stagingFolder, e.getCause());
+                }
+            }
+        }
+        return deleteFile(stagingFolder);
+    }
+
+    private void runJanitor()
+    {
+        while (running)
+        {
+            try
+            {
+                emptyTrash();
+                applyReportRetention();
+                measure();
+            }
+            catch (Throwable e)
+            {
+                log.warn("Staging janitor run failed", e);
+            }
+            synchronized (signal)
+            {
+                if (!pending && running)
+                {
+                    try
+                    {
+                        signal.wait(purgeInterval);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                pending = false;
+            }
+        }
+    }
+
+    private void emptyTrash()
+    {
+        if (trashFolder == null)
+        {
+            return;
+        }
+        File[] trashed = trashFolder.listFiles();
+        if (trashed == null)
+        {
+            return;
+        }
+        for (File folder : trashed)
+        {
+            if (deleteStagingFolder(folder))
+            {
+                purgedFolders.incrementAndGet();
+            }
+            else
+            {
+                log.warn("Unable to delete trashed staging folder " + folder.getAbsolutePath());
+            }
+        }
+    }
+
+    private void applyReportRetention()
+    {
+        if (reportDirectory == null || (reportMaxAgeDays <= 0 && reportMaxTotalSizeMB <= 0))
+        {
+            return;
+        }
+        File[] reports = new File(reportDirectory).listFiles();
+        if (reports == null)
+        {
+            return;
+        }
+        reports = filterReports(reports);
+        Arrays.sort(reports, new Comparator<File>()
+            {
+                public int compare(File f1, File f2)
+                {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+            });
+
+        long now = System.currentTimeMillis();
+        long maxAge = reportMaxAgeDays * 24L * 60L * 60L * 1000L;
+        long total = 0;
+        for (File report : reports)
+        {
+            total += report.length();
+        }
+        long maxTotal = reportMaxTotalSizeMB * 1024L * 1024L;
+        for (File report : reports)
+        {
+            long age = now - report.lastModified();
+            boolean tooOld = reportMaxAgeDays > 0 && age > maxAge;
+            boolean overSize = reportMaxTotalSizeMB > 0 && total > maxTotal && age > MIN_REPORT_AGE_MS;
+            if (!tooOld && !overSize)
+            {
+                continue;
+            }
+            long length = report.length();
+            if (report.delete())
+            {
+                total -= length;
+                purgedReports.incrementAndGet();
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Removed transfer report " + report.getName());
+                }
+            }
+        }
+        reportBytes = total;
+    }
+
+    private File[] filterReports(File[] files)
+    {
+        int count = 0;
+        File[] reports = new File[files.length];
+        for (File file : files)
+        {
+            if (file.isFile() && file.getName().endsWith(REPORT_SUFFIX))
+            {
+                reports[count++] = file;
+            }
+        }
+        return Arrays.copyOf(reports, count);
+    }
+
+    private void measure()
+    {
+        File root = new File(rootStagingDirectory);
+        File[] folders = root.listFiles();
+        long bytes = 0;
+        long files = 0;
+        long folderCount = 0;
+        if (folders != null)
+        {
+            for (File folder : folders)
+            {
+                if (folder.getName().equals(TRASH_FOLDER_NAME))
+                {
+                    continue;
+                }
+                long[] usage = new long[2];
+                measure(folder, usage);
+                bytes += usage[0];
+                files += usage[1];
+                folderCount++;
+            }
+        }
+        long[] trashUsage = new long[2];
+        if (trashFolder != null)
+        {
+            measure(trashFolder, trashUsage);
+        }
+        stagingBytes = bytes;
+        stagingFiles = files;
+        stagingFolders = folderCount;
+        trashBytes = trashUsage[0];
+        lastScanTime = System.currentTimeMillis();
+    }
+
+    private void measure(File file, long[] usage)
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    measure(child, usage);
+                }
+            }
+        }
+        else
+        {
+            usage[0] += file.length();
+            usage[1]++;
+        }
+    }
+
+    private boolean deleteFile(File file)
+    {
+        if (file.isDirectory())
+        {
+            File[] fileList = file.listFiles();
+            if (fileList != null)
+            {
+                for (File currentFile : fileList)
+                {
+                    deleteFile(currentFile);
+                }
+            }
+        }
+        return file.delete();
+    }
+
+    public String getMetricsName()
+    {
+        return "staging";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("stagingBytes", stagingBytes);
+        metrics.put("stagingFiles", stagingFiles);
+        metrics.put("stagingFolders", stagingFolders);
+        metrics.put("trashBytes", trashBytes);
+        metrics.put("trashedFolders", trashedFolders.get());
+        metrics.put("purgedFolders", purgedFolders.get());
+        metrics.put("reportBytes", reportBytes);
+        metrics.put("purgedReports", purgedReports.get());
+        metrics.put("lastScanTime", lastScanTime);
+        return metrics;
+    }
+
+    public long getStagingBytes()
+    {
+        return stagingBytes;
+    }
+
+    public void setRootStagingDirectory(String rootStagingDirectory)
+    {
+        this.rootStagingDirectory = rootStagingDirectory;
+    }
+
+    /**
+     * @param reportDirectory the folder holding the transfer reports, null to keep reports forever
+     */
+    public void setReportDirectory(String reportDirectory)
+    {
+        this.reportDirectory = reportDirectory;
+    }
+
+    /**
+     * @param purgeInterval the time, in ms, between two runs when nothing has been trashed
+     */
+    public void setPurgeInterval(long purgeInterval)
+    {
+        this.purgeInterval = purgeInterval;
+    }
+
+    /**
+     * @param reportMaxAgeDays reports older than this are removed, 0 to disable
+     */
+    public void setReportMaxAgeDays(int reportMaxAgeDays)
+    {
+        this.reportMaxAgeDays = reportMaxAgeDays;
+    }
+
+    /**
+     * @param purgeParallelism the number of threads deleting the shard folders of a staging folder, 1 for one at a time
+     */
+    public void setPurgeParallelism(int purgeParallelism)
+    {
+        this.purgeParallelism = purgeParallelism;
+    }
+
+    /**
+     * @param reportMaxTotalSizeMB the oldest reports are removed while the reports use more than this, 0 to disable
+     */
+    public void setReportMaxTotalSizeMB(long reportMaxTotalSizeMB)
+    {
+        this.reportMaxTotalSizeMB = reportMaxTotalSizeMB;
+    }
+}
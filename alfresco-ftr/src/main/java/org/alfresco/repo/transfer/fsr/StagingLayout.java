@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Where the content parts of a transfer are staged within its staging folder.
+ * <p>
+ * Parts are spread over shardLevels levels of folders named after successive bytes of a hash of the part name, in
+ * hex, so that no folder holds more than a few thousand parts even for transfers of hundreds of thousands of them.
+ * With no shard levels the parts are staged in the staging folder itself. The snapshot is always staged in the
+ * staging folder. The layout must not be changed while transfers are in progress.
+ */
+public class StagingLayout
+{
+    /**
+     * Each level shards by one byte of the hash
+     */
+    private static final int MAX_SHARD_LEVELS = 4;
+
+    private final int shardLevels;
+
+    public StagingLayout(int shardLevels)
+    {
+        if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS)
+        {
+            throw new IllegalArgumentException("Staging shard levels must be between 0 and " + MAX_SHARD_LEVELS
+                    + ": " + shardLevels);
+        }
+        this.shardLevels = shardLevels;
+    }
+
+    public int getShardLevels()
+    {
+        return shardLevels;
+    }
+
+    /**
+     * @return the folder in which the part is staged, which may not exist yet
+     */
+    public File getPartFolder(File stagingFolder, String partName)
+    {
+        if (shardLevels == 0)
+        {
+            return stagingFolder;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(partName.getBytes(StandardCharsets.UTF_8));
+        long hash = crc.getValue();
+        StringBuilder path = new StringBuilder(shardLevels * 3);
+        for (int level = 0; level < shardLevels; level++)
+        {
+            int shard = (int) (hash >>> (8 * level)) & 0xff;
+            if (level > 0)
+            {
+                path.append(File.separatorChar);
+            }
+            path.append(Character.forDigit(shard >> 4, 16)).append(Character.forDigit(shard & 0xf, 16));
+        }
+        return new File(stagingFolder, path.toString());
+    }
+
+    /**
+     * @return the staged part, which may not exist
+     */
+    public File getPartFile(File stagingFolder, String partName)
+    {
+        return new File(getPartFolder(stagingFolder, partName), partName);
+    }
+
+    /**
+     * @return the folder in which the part is staged, created if need be
+     */
+    public File createPartFolder(File stagingFolder, String partName)
+    {
+        File partFolder = getPartFolder(stagingFolder, partName);
+        // Another part of the same shard may be creating it at the same time
+        if (!partFolder.mkdirs() && !partFolder.isDirectory())
+        {
+            throw new IllegalStateException("Unable to create staging folder " + partFolder);
+        }
+        return partFolder;
+    }
+
+    /**
+     * @return the names of the files staged in the part folders, including those of partly staged parts
+     */
+    public List<String> listFileNames(File stagingFolder)
+    {
+        List<String> names = new ArrayList<String>();
+        listFileNames(stagingFolder, 0, names);
+        return names;
+    }
+
+    private void listFileNames(File folder, int level, List<String> names)
+    {
+        File[] files = folder.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (File file : files)
+        {
+            if (level < shardLevels)
+            {
+                if (file.isDirectory())
+                {
+                    listFileNames(file, level + 1, names);
+                }
+            }
+            else if (file.isFile())
+            {
+                names.add(file.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transfer.TransferModel;
+import org.alfresco.repo.transfer.manifest.ManifestModel;
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
+import org.alfresco.repo.transfer.manifest.TransferManifestNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+
+/**
+ * Pull (StAX) reader for transfer manifests.
+ * <p>
+ * Unlike XMLTransferManifestReader this reads only the parts of the manifest that the File Transfer Receiver uses:
+ * the header, node references and types, the primary parent association and the cm:name and cm:content properties.
+ * Aspects, other properties and other associations are skipped without being materialised. QNames and repeated
+ * strings such as mimetypes are shared between nodes, as are the references of parent nodes.
+ * <p>
+ * A reader is not thread-safe and is used for a single manifest.
+ */
+public class StaxTransferManifestReader implements ManifestModel
+{
+    private static final String STRING_CLASS_NAME = String.class.getName();
+
+    private static final Set<QName> RETAINED_PROPERTIES = new HashSet<QName>(Arrays.asList(
+            ContentModel.PROP_NAME, ContentModel.PROP_CONTENT));
+
+    private final XMLInputFactory factory;
+    private final Map<String, QName> qnameCache;
+    private final Map<String, NodeRef> parentRefs = new HashMap<String, NodeRef>();
+    private final Map<String, String> strings = new HashMap<String, String>();
+    private final Map<String, Locale> locales = new HashMap<String, Locale>();
+
+    private TransferManifestHeader header;
+    private TransferManifestNode node;
+    private Map<QName, Serializable> properties;
+    private QName property;
+    private boolean inPrimaryParent;
+
+    /**
+     * @param factory a configured, namespace aware, factory
+     * @param qnameCache QNames shared between readers, keyed by their "{uri}localName" form
+     */
+    public StaxTransferManifestReader(XMLInputFactory factory, Map<String, QName> qnameCache)
+    {
+        this.factory = factory;
+        this.qnameCache = qnameCache;
+    }
+
+    /**
+     * Read the manifest, calling the processor as each header and node is completed.
+     */
+    public void parse(InputStream in, TransferManifestProcessor processor) throws XMLStreamException
+    {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try
+        {
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    startElement(reader, processor);
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    endElement(reader, processor);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void startElement(XMLStreamReader reader, TransferManifestProcessor processor) throws XMLStreamException
+    {
+        if (!TransferModel.TRANSFER_MODEL_1_0_URI.equals(reader.getNamespaceURI()))
+        {
+            skipElement(reader);
+            return;
+        }
+
+        String localName = reader.getLocalName();
+        if (LOCALNAME_TRANSFER_MAINIFEST.equals(localName))
+        {
+            processor.startTransferManifest();
+        }
+        else if (LOCALNAME_TRANSFER_HEADER.equals(localName))
+        {
+            header = new TransferManifestHeader();
+        }
+        else if (header != null && LOCALNAME_HEADER_CREATED_DATE.equals(localName))
+        {
+            header.setCreatedDate(ISO8601DateFormat.parse(reader.getElementText().trim()));
+        }
+        else if (header != null && LOCALNAME_HEADER_NODE_COUNT.equals(localName))
+        {
+            header.setNodeCount(Integer.parseInt(reader.getElementText().trim()));
+        }
+        else if (header != null && LOCALNAME_HEADER_REPOSITORY_ID.equals(localName))
+        {
+            header.setRepositoryId(reader.getElementText().trim());
+        }
+        else if (header != null && LOCALNAME_HEADER_SYNC.equals(localName))
+        {
+            header.setSync(true);
+        }
+        else if (header != null && LOCALNAME_HEADER_RONLY.equals(localName))
+        {
+            header.setReadOnly(true);
+        }
+        else if (LOCALNAME_ELEMENT_NODE.equals(localName))
+        {
+            TransferManifestNormalNode normalNode = new TransferManifestNormalNode();
+            normalNode.setNodeRef(new NodeRef(reader.getAttributeValue(null, "nodeRef")));
+            normalNode.setType(qname(reader.getAttributeValue(null, "nodeType")));
+            normalNode.setAncestorType(qname(reader.getAttributeValue(null, "ancestorType")));
+            properties = new HashMap<QName, Serializable>(4);
+            normalNode.setProperties(properties);
+            node = normalNode;
+        }
+        else if (LOCALNAME_ELEMENT_DELETED_NODE.equals(localName))
+        {
+            TransferManifestDeletedNode deletedNode = new TransferManifestDeletedNode();
+            deletedNode.setNodeRef(new NodeRef(reader.getAttributeValue(null, "nodeRef")));
+            node = deletedNode;
+        }
+        else if (node != null && LOCALNAME_ELEMENT_PRIMARY_PARENT.equals(localName))
+        {
+            inPrimaryParent = true;
+        }
+        else if (inPrimaryParent && LOCALNAME_ELEMENT_PARENT_ASSOC.equals(localName))
+        {
+            NodeRef parentRef = parentRef(reader.getAttributeValue(null, "from"));
+            QName typeQName = qname(reader.getAttributeValue(null, "type"));
+            boolean isPrimary = Boolean.parseBoolean(reader.getAttributeValue(null, "isPrimary"));
+            QName assocQName = QName.createQName(reader.getElementText().trim());
+            node.setPrimaryParentAssoc(new ChildAssociationRef(typeQName, parentRef, assocQName, node.getNodeRef(),
+                    isPrimary, -1));
+        }
+        else if (properties != null && LOCALNAME_ELEMENT_PROPERTIES.equals(localName))
+        {
+            // properties are read one at a time
+        }
+        else if (properties != null && LOCALNAME_ELEMENT_PROPERTY.equals(localName))
+        {
+            property = qname(reader.getAttributeValue(null, "name"));
+            if (!RETAINED_PROPERTIES.contains(property))
+            {
+                property = null;
+                skipElement(reader);
+            }
+        }
+        else if (property != null && LOCALNAME_ELEMENT_VALUE_STRING.equals(localName))
+        {
+            String className = reader.getAttributeValue(null, "className");
+            if (className == null || STRING_CLASS_NAME.equals(className))
+            {
+                properties.put(property, reader.getElementText());
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        else if (property != null && LOCALNAME_ELEMENT_CONTENT_HEADER.equals(localName))
+        {
+            String size = reader.getAttributeValue(null, "size");
+            properties.put(property, new ContentData(reader.getAttributeValue(null, "contentURL"),
+                    intern(reader.getAttributeValue(null, "mimetype")),
+                    size == null ? 0L : Long.parseLong(size),
+                    intern(reader.getAttributeValue(null, "encoding")),
+                    locale(reader.getAttributeValue(null, "locale"))));
+            skipElement(reader);
+        }
+        else if (!LOCALNAME_TRANSFER_MAINIFEST.equals(localName))
+        {
+            skipElement(reader);
+        }
+    }
+
+    private void endElement(XMLStreamReader reader, TransferManifestProcessor processor)
+    {
+        if (!TransferModel.TRANSFER_MODEL_1_0_URI.equals(reader.getNamespaceURI()))
+        {
+            return;
+        }
+
+        String localName = reader.getLocalName();
+        if (LOCALNAME_TRANSFER_HEADER.equals(localName))
+        {
+            processor.processTransferManifiestHeader(header);
+            header = null;
+        }
+        else if (LOCALNAME_ELEMENT_NODE.equals(localName))
+        {
+            processor.processTransferManifestNode((TransferManifestNormalNode) node);
+            node = null;
+            properties = null;
+        }
+        else if (LOCALNAME_ELEMENT_DELETED_NODE.equals(localName))
+        {
+            processor.processTransferManifestNode((TransferManifestDeletedNode) node);
+            node = null;
+        }
+        else if (LOCALNAME_ELEMENT_PRIMARY_PARENT.equals(localName))
+        {
+            inPrimaryParent = false;
+        }
+        else if (LOCALNAME_ELEMENT_PROPERTY.equals(localName))
+        {
+            property = null;
+        }
+        else if (LOCALNAME_TRANSFER_MAINIFEST.equals(localName))
+        {
+            processor.endTransferManifest();
+        }
+    }
+
+    /**
+     * Move the reader to the end of the current element, ignoring its content
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                depth--;
+            }
+        }
+    }
+
+    private QName qname(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        QName qname = qnameCache.get(value);
+        if (qname == null)
+        {
+            qname = QName.createQName(value);
+            qnameCache.put(value, qname);
+        }
+        return qname;
+    }
+
+    private NodeRef parentRef(String value)
+    {
+        NodeRef nodeRef = parentRefs.get(value);
+        if (nodeRef == null)
+        {
+            nodeRef = new NodeRef(value);
+            parentRefs.put(value, nodeRef);
+        }
+        return nodeRef;
+    }
+
+    private String intern(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        String interned = strings.get(value);
+        if (interned == null)
+        {
+            strings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+
+    private Locale locale(String value)
+    {
+        if (value == null || value.length() == 0)
+        {
+            return null;
+        }
+        Locale locale = locales.get(value);
+        if (locale == null)
+        {
+            String[] parts = value.split("_", 3);
+            locale = new Locale(parts[0], parts.length > 1 ? parts[1] : "", parts.length > 2 ? parts[2] : "");
+            locales.put(value, locale);
+        }
+        return locale;
+    }
+}
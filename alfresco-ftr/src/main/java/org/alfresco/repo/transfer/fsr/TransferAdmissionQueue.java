@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Queues the requests to start a transfer while the transfer lock is held, instead of leaving each sender to retry
+ * on its own.
+ * <p>
+ * Requests are served in order of arrival, those from the source repositories listed in
+ * <code>prioritySources</code> first. Only the request at the head of the queue tries to take the lock, and it does
+ * so as soon as the lock is released. A request that has not got the lock after <code>maxWait</code> milliseconds is
+ * answered with a {@link TransferQueuedException} giving its position and an estimate of its wait; its place is kept
+ * for <code>reservationGrace</code> milliseconds beyond that estimate so that the sender's next attempt resumes from
+ * where it was. The estimate is based on a moving average of the time the lock has been held by past transfers.
+ */
+public class TransferAdmissionQueue implements FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(TransferAdmissionQueue.class);
+
+    /**
+     * One attempt to take the transfer lock. It returns at once if the lock is held, without retrying.
+     */
+    public interface LockAttempt
+    {
+        /**
+         * @return true if the lock has been taken
+         */
+        boolean tryLock();
+    }
+
+    private int maxQueueLength = 100;
+    private long maxWait = 30000L;
+    private long pollInterval = 1000L;
+    private long reservationGrace = 30000L;
+    private Set<String> prioritySources = new HashSet<String>();
+
+    private final List<Ticket> queue = new ArrayList<Ticket>();
+    private long nextSeq = 0L;
+    private long averageHoldTime = 60000L;
+    private long heldSince = 0L;
+    private long granted = 0L;
+    private long rejected = 0L;
+
+    /**
+     * Wait for the turn of the request and take the lock
+     *
+     * @param sourceRepoId the repository the transfer comes from
+     * @param attempt takes the lock
+     * @throws TransferQueuedException if the lock could not be taken in time
+     */
+    public void admit(String sourceRepoId, LockAttempt attempt)
+    {
+        String source = sourceRepoId == null ? "" : sourceRepoId;
+        Ticket ticket;
+        synchronized (this)
+        {
+            prune();
+            ticket = reclaim(source);
+            if (ticket == null)
+            {
+                if (queue.size() >= maxQueueLength)
+                {
+                    rejected++;
+                    throw new TransferQueuedException(queue.size() + 1, estimateWait(queue.size()));
+                }
+                ticket = new Ticket(source, prioritySources.contains(source) ? 0 : 1, nextSeq++);
+                insert(ticket);
+            }
+            ticket.attached = true;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Start request from " + source + " queued at position " + (position(ticket) + 1));
+        }
+
+        long deadline = System.currentTimeMillis() + maxWait;
+        boolean admitted = false;
+        try
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    while (firstAttached() != ticket)
+                    {
+                        waitUntil(ticket, deadline, maxWait);
+                    }
+                }
+                if (attempt.tryLock())
+                {
+                    synchronized (this)
+                    {
+                        queue.remove(ticket);
+                        heldSince = System.currentTimeMillis();
+                        granted++;
+                        notifyAll();
+                    }
+                    admitted = true;
+                    return;
+                }
+                synchronized (this)
+                {
+                    //The lock is held. Wait for its release, polling in case it is released elsewhere in the cluster
+                    waitUntil(ticket, deadline, pollInterval);
+                }
+            }
+        }
+        finally
+        {
+            if (!admitted)
+            {
+                synchronized (this)
+                {
+                    ticket.attached = false;
+                    ticket.expires = System.currentTimeMillis() + estimateWait(position(ticket)) + reservationGrace;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the transfer lock has been released, at the end of a transfer or on its time out
+     */
+    public synchronized void released()
+    {
+        if (heldSince > 0L)
+        {
+            long held = System.currentTimeMillis() - heldSince;
+            averageHoldTime = (averageHoldTime * 3L + held) / 4L;
+            heldSince = 0L;
+        }
+        notifyAll();
+    }
+
+    private void waitUntil(Ticket ticket, long deadline, long interval)
+    {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0L)
+        {
+            int position = position(ticket);
+            throw new TransferQueuedException(position + 1, estimateWait(position));
+        }
+        try
+        {
+            wait(Math.min(remaining, interval));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            int position = position(ticket);
+            throw new TransferQueuedException(position + 1, estimateWait(position));
+        }
+    }
+
+    /**
+     * @param position the number of requests ahead
+     * @return the estimated wait in milliseconds
+     */
+    private long estimateWait(int position)
+    {
+        long current = averageHoldTime;
+        if (heldSince > 0L)
+        {
+            current = Math.max(0L, averageHoldTime - (System.currentTimeMillis() - heldSince));
+        }
+        return current + position * averageHoldTime;
+    }
+
+    private void insert(Ticket ticket)
+    {
+        int index = 0;
+        while (index < queue.size() && queue.get(index).compareTo(ticket) < 0)
+        {
+            index++;
+        }
+        queue.add(index, ticket);
+    }
+
+    private Ticket reclaim(String source)
+    {
+        for (Ticket ticket : queue)
+        {
+            if (!ticket.attached && ticket.source.equals(source))
+            {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    private Ticket firstAttached()
+    {
+        for (Ticket ticket : queue)
+        {
+            if (ticket.attached)
+            {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    private int position(Ticket ticket)
+    {
+        int index = queue.indexOf(ticket);
+        return index < 0 ? 0 : index;
+    }
+
+    /**
+     * Drop the places kept for senders that have not come back in time
+     */
+    private void prune()
+    {
+        long now = System.currentTimeMillis();
+        for (Iterator<Ticket> i = queue.iterator(); i.hasNext();)
+        {
+            Ticket ticket = i.next();
+            if (!ticket.attached && ticket.expires < now)
+            {
+                i.remove();
+            }
+        }
+    }
+
+    public String getMetricsName()
+    {
+        return "admission";
+    }
+
+    public synchronized Map<String, Object> getMetrics()
+    {
+        prune();
+        int waiting = 0;
+        for (Ticket ticket : queue)
+        {
+            if (ticket.attached)
+            {
+                waiting++;
+            }
+        }
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("queueLength", queue.size());
+        metrics.put("waiting", waiting);
+        metrics.put("reserved", queue.size() - waiting);
+        metrics.put("averageHoldTime", averageHoldTime);
+        metrics.put("granted", granted);
+        metrics.put("rejected", rejected);
+        return metrics;
+    }
+
+    private static class Ticket implements Comparable<Ticket>
+    {
+        final String source;
+        final int priority;
+        final long seq;
+        boolean attached;
+        long expires;
+
+        Ticket(String source, int priority, long seq)
+        {
+            this.source = source;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        public int compareTo(Ticket other)
+        {
+            if (priority != other.priority)
+            {
+                return priority < other.priority ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    public void setMaxQueueLength(int maxQueueLength)
+    {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    /**
+     * @param maxWait the time in milliseconds a start request waits for the lock before it is answered
+     */
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+    public void setPollInterval(long pollInterval)
+    {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param reservationGrace the time in milliseconds beyond its estimated wait that the place of an answered request
+     *            is kept
+     */
+    public void setReservationGrace(long reservationGrace)
+    {
+        this.reservationGrace = reservationGrace;
+    }
+
+    /**
+     * @param prioritySources the source repositories served first, as "repositoryId,..."
+     */
+    public void setPrioritySources(String prioritySources)
+    {
+        this.prioritySources = new HashSet<String>();
+        if (prioritySources != null)
+        {
+            for (String source : prioritySources.split(","))
+            {
+                if (source.trim().length() > 0)
+                {
+                    this.prioritySources.add(source.trim());
+                }
+            }
+        }
+    }
+}
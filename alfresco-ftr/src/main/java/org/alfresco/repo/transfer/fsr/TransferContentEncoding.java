@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.alfresco.service.cmr.transfer.TransferException;
+
+/**
+ * The HTTP content codings accepted on inbound snapshot and content parts.
+ * <p>
+ * gzip and deflate are decoded as the stream is read, so content is decompressed straight into its staging file.
+ * zstd is not supported as there is no zstd codec on the receiver's classpath.
+ */
+public final class TransferContentEncoding
+{
+    private static final String MSG_UNSUPPORTED_CONTENT_ENCODING = "ftr.unsupportedContentEncoding";
+
+    public static final String IDENTITY = "identity";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TransferContentEncoding()
+    {
+    }
+
+    /**
+     * Normalise a Content-Encoding header value.
+     * 
+     * @return IDENTITY, GZIP or DEFLATE
+     * @throws TransferException if the coding is not supported
+     */
+    public static String normalise(String contentEncoding) throws TransferException
+    {
+        if (contentEncoding == null)
+        {
+            return IDENTITY;
+        }
+        String coding = contentEncoding.trim().toLowerCase();
+        if (coding.length() == 0 || IDENTITY.equals(coding))
+        {
+            return IDENTITY;
+        }
+        if (GZIP.equals(coding) || "x-gzip".equals(coding))
+        {
+            return GZIP;
+        }
+        if (DEFLATE.equals(coding))
+        {
+            return DEFLATE;
+        }
+        throw new TransferException(MSG_UNSUPPORTED_CONTENT_ENCODING, new Object[] { contentEncoding });
+    }
+
+    /**
+     * Wrap a stream so that reading it returns the decoded bytes.
+     * 
+     * @param in the encoded stream
+     * @param contentEncoding the Content-Encoding of the stream, may be null
+     */
+    public static InputStream decode(InputStream in, String contentEncoding) throws IOException
+    {
+        String coding = normalise(contentEncoding);
+        if (GZIP.equals(coding))
+        {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (DEFLATE.equals(coding))
+        {
+            // RFC 7230 deflate is zlib wrapped, but some clients send a raw deflate stream
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int b0 = pushback.read();
+            int b1 = pushback.read();
+            if (b1 != -1)
+            {
+                pushback.unread(b1);
+            }
+            if (b0 != -1)
+            {
+                pushback.unread(b0);
+            }
+            boolean zlib = b0 != -1 && b1 != -1 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(pushback, inflater, BUFFER_SIZE)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return in;
+    }
+}
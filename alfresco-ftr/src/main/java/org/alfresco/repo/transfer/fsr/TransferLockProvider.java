@@ -0,0 +1,58 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Provides the transfer lock to the {@link FileTransferReceiver}. The contract is that of the
+ * {@link org.alfresco.repo.lock.JobLockService} methods the receiver uses: a lock is taken with a time to live, kept
+ * for as long as its refresh callback reports it active, and released explicitly or when the callback reports it
+ * inactive, in which case the callback is told.
+ */
+public interface TransferLockProvider
+{
+    /**
+     * Take the lock, retrying if it is held
+     *
+     * @param retryCount the number of retries, 0 for a single attempt
+     * @return the token of the lock
+     * @throws LockAcquisitionException if the lock is still held after the retries
+     */
+    String getLock(QName lockQName, long timeToLive, long retryWait, int retryCount);
+
+    /**
+     * Keep the lock until the callback reports it inactive
+     */
+    void refreshLock(String lockToken, QName lockQName, long timeToLive, JobLockRefreshCallback callback);
+
+    /**
+     * @return true if the lock was held with the given token and is now released
+     */
+    boolean releaseLock(String lockToken, QName lockQName);
+}
@@ -0,0 +1,65 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import org.alfresco.service.cmr.transfer.TransferException;
+
+/**
+ * Thrown when a request to start a transfer has not been given the transfer lock in time. The sender should try
+ * again after {@link #getEstimatedWait()}; its place in the queue is kept until then.
+ */
+public class TransferQueuedException extends TransferException
+{
+    private static final long serialVersionUID = 5170935566412380922L;
+
+    private static final String MSG_TRANSFER_QUEUED = "ftr.transferQueued";
+
+    private final int queuePosition;
+    private final long estimatedWait;
+
+    public TransferQueuedException(int queuePosition, long estimatedWait)
+    {
+        super(MSG_TRANSFER_QUEUED, new Object[] { queuePosition, estimatedWait });
+        this.queuePosition = queuePosition;
+        this.estimatedWait = estimatedWait;
+    }
+
+    /**
+     * @return the position of the request in the queue, 1 being next
+     */
+    public int getQueuePosition()
+    {
+        return queuePosition;
+    }
+
+    /**
+     * @return the estimated wait in milliseconds
+     */
+    public long getEstimatedWait()
+    {
+        return estimatedWait;
+    }
+}
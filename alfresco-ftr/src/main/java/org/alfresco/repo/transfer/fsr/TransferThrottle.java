@@ -0,0 +1,394 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.transfer.fsr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the rate at which transfers write content to disk, when content is received and when it is copied into
+ * place during commit.
+ * <p>
+ * There is a token bucket for the receiver as a whole and one for each source repository; a write of n bytes takes n
+ * tokens from both. A limit of 0 means no limit. When writes wait for tokens, those of a higher priority class are
+ * served first. The class of a transfer is URGENT while it has written less than <code>smallTransferBytes</code>, so
+ * that small publishes are not held up behind large ones, and after that the class configured for its source
+ * repository, NORMAL by default. URGENT writes are not held to the limit of their source repository.
+ * <p>
+ * The rates actually achieved are published as metrics.
+ */
+public class TransferThrottle implements FileTransferMetricsProvider
+{
+    private static final Log log = LogFactory.getLog(TransferThrottle.class);
+
+    public enum Priority
+    {
+        URGENT, NORMAL, BULK
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private long globalBytesPerSecond = 0L;
+    private long defaultSourceBytesPerSecond = 0L;
+    private Map<String, Long> sourceBytesPerSecond = new HashMap<String, Long>();
+    private Map<String, String> sourcePriorities = new HashMap<String, String>();
+    private long smallTransferBytes = 10L * 1024L * 1024L;
+
+    private TokenBucket globalBucket;
+    private final ConcurrentHashMap<String, TokenBucket> sourceBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final Map<String, TransferState> transfers = new ConcurrentHashMap<String, TransferState>();
+
+    public void init()
+    {
+        globalBucket = new TokenBucket(globalBytesPerSecond);
+    }
+
+    /**
+     * Start throttling a transfer
+     */
+    public void register(String transferId, String sourceRepoId)
+    {
+        transfers.put(transferId, new TransferState(sourceRepoId == null ? "" : sourceRepoId));
+    }
+
+    public void unregister(String transferId)
+    {
+        transfers.remove(transferId);
+    }
+
+    /**
+     * Wait until the transfer may write the given number of bytes
+     */
+    public void acquire(String transferId, long bytes)
+    {
+        TransferState transfer = transfers.get(transferId);
+        if (transfer == null)
+        {
+            //Not registered, e.g. begun before a restart. Only the global limit applies
+            getGlobalBucket().acquire(bytes, Priority.NORMAL);
+            return;
+        }
+        Priority priority = getPriority(transfer);
+        try
+        {
+            if (priority != Priority.URGENT)
+            {
+                getSourceBucket(transfer.sourceRepoId).acquire(bytes, priority);
+            }
+            else
+            {
+                getSourceBucket(transfer.sourceRepoId).record(bytes);
+            }
+            getGlobalBucket().acquire(bytes, priority);
+        }
+        finally
+        {
+            transfer.written.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Copy a file at the rate allowed to the transfer, keeping its last modified time
+     */
+    public void copy(String transferId, File source, File target) throws IOException
+    {
+        InputStream in = new FileInputStream(source);
+        try
+        {
+            OutputStream out = new FileOutputStream(target);
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    acquire(transferId, read);
+                    out.write(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    private Priority getPriority(TransferState transfer)
+    {
+        if (transfer.written.get() < smallTransferBytes)
+        {
+            return Priority.URGENT;
+        }
+        String priority = sourcePriorities.get(transfer.sourceRepoId);
+        if (priority != null)
+        {
+            try
+            {
+                return Priority.valueOf(priority.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Unknown priority class " + priority + " for source repository " + transfer.sourceRepoId);
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    private TokenBucket getGlobalBucket()
+    {
+        if (globalBucket == null)
+        {
+            init();
+        }
+        return globalBucket;
+    }
+
+    private TokenBucket getSourceBucket(String sourceRepoId)
+    {
+        TokenBucket bucket = sourceBuckets.get(sourceRepoId);
+        if (bucket == null)
+        {
+            Long rate = sourceBytesPerSecond.get(sourceRepoId);
+            bucket = new TokenBucket(rate == null ? defaultSourceBytesPerSecond : rate.longValue());
+            TokenBucket existing = sourceBuckets.putIfAbsent(sourceRepoId, bucket);
+            if (existing != null)
+            {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    public String getMetricsName()
+    {
+        return "throttle";
+    }
+
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        TokenBucket global = getGlobalBucket();
+        metrics.put("globalLimit", globalBytesPerSecond);
+        metrics.put("globalRate", global.getRate());
+        for (Priority priority : Priority.values())
+        {
+            metrics.put("waiting." + priority.name(), global.getWaiting(priority));
+        }
+        for (Map.Entry<String, TokenBucket> source : sourceBuckets.entrySet())
+        {
+            metrics.put("source." + source.getKey() + ".limit", source.getValue().bytesPerSecond);
+            metrics.put("source." + source.getKey() + ".rate", source.getValue().getRate());
+        }
+        for (Map.Entry<String, TransferState> transfer : transfers.entrySet())
+        {
+            metrics.put("transfer." + transfer.getKey() + ".written", transfer.getValue().written.get());
+            metrics.put("transfer." + transfer.getKey() + ".priority", getPriority(transfer.getValue()).name());
+        }
+        return metrics;
+    }
+
+    private static class TransferState
+    {
+        final String sourceRepoId;
+        final AtomicLong written = new AtomicLong();
+
+        TransferState(String sourceRepoId)
+        {
+            this.sourceRepoId = sourceRepoId;
+        }
+    }
+
+    /**
+     * A token bucket holding up to one second of tokens. A take larger than the tokens available runs the bucket
+     * into debt, which later takes wait for. Also measures the rate of the takes.
+     */
+    static class TokenBucket
+    {
+        private static final long RATE_WINDOW_MS = 1000L;
+
+        final long bytesPerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private final int[] waiting = new int[Priority.values().length];
+
+        private long windowStart = System.currentTimeMillis();
+        private long windowBytes;
+        private long rate;
+
+        TokenBucket(long bytesPerSecond)
+        {
+            this.bytesPerSecond = bytesPerSecond;
+            this.tokens = bytesPerSecond;
+        }
+
+        synchronized void acquire(long bytes, Priority priority)
+        {
+            if (bytesPerSecond > 0)
+            {
+                waiting[priority.ordinal()]++;
+                try
+                {
+                    while (true)
+                    {
+                        refill();
+                        if (tokens > 0 && !isHigherPriorityWaiting(priority))
+                        {
+                            tokens -= bytes;
+                            break;
+                        }
+                        long waitMs = tokens > 0 ? 1L : Math.max(1L, (long) (-tokens * 1000d / bytesPerSecond));
+                        wait(Math.min(waitMs, 100L));
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    waiting[priority.ordinal()]--;
+                    notifyAll();
+                }
+            }
+            record(bytes);
+        }
+
+        synchronized void record(long bytes)
+        {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= RATE_WINDOW_MS)
+            {
+                rate = windowBytes * 1000L / (now - windowStart);
+                windowStart = now;
+                windowBytes = 0L;
+            }
+            windowBytes += bytes;
+        }
+
+        synchronized long getRate()
+        {
+            long elapsed = System.currentTimeMillis() - windowStart;
+            return elapsed >= 2 * RATE_WINDOW_MS ? 0L : rate;
+        }
+
+        synchronized int getWaiting(Priority priority)
+        {
+            return waiting[priority.ordinal()];
+        }
+
+        private boolean isHigherPriorityWaiting(Priority priority)
+        {
+            for (int i = 0; i < priority.ordinal(); i++)
+            {
+                if (waiting[i] > 0)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void refill()
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9d);
+            lastRefill = now;
+        }
+    }
+
+    public void setGlobalBytesPerSecond(long globalBytesPerSecond)
+    {
+        this.globalBytesPerSecond = globalBytesPerSecond;
+    }
+
+    public void setDefaultSourceBytesPerSecond(long defaultSourceBytesPerSecond)
+    {
+        this.defaultSourceBytesPerSecond = defaultSourceBytesPerSecond;
+    }
+
+    /**
+     * @param sourceBytesPerSecond limits of particular source repositories, as "repositoryId=bytesPerSecond,..."
+     */
+    public void setSourceBytesPerSecond(String sourceBytesPerSecond)
+    {
+        this.sourceBytesPerSecond = new HashMap<String, Long>();
+        for (Map.Entry<String, String> limit : parse(sourceBytesPerSecond).entrySet())
+        {
+            this.sourceBytesPerSecond.put(limit.getKey(), Long.valueOf(limit.getValue()));
+        }
+    }
+
+    /**
+     * @param sourcePriorities priority classes (URGENT, NORMAL or BULK) of particular source repositories, as
+     *            "repositoryId=class,..."
+     */
+    public void setSourcePriorities(String sourcePriorities)
+    {
+        this.sourcePriorities = parse(sourcePriorities);
+    }
+
+    private static Map<String, String> parse(String list)
+    {
+        Map<String, String> map = new HashMap<String, String>();
+        if (list != null)
+        {
+            for (String entry : list.split(","))
+            {
+                int eq = entry.indexOf('=');
+                if (eq > 0)
+                {
+                    map.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @param smallTransferBytes the number of bytes a transfer writes as URGENT before taking the class of its source
+     */
+    public void setSmallTransferBytes(long smallTransferBytes)
+    {
+        this.smallTransferBytes = smallTransferBytes;
+    }
+}
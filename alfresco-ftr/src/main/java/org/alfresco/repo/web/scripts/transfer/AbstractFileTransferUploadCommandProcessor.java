@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.alfresco.repo.transfer.fsr.FileTransferReceiver;
+import org.alfresco.repo.transfer.fsr.TransferContentEncoding;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.servlet.ServletRequestContext;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.WrappingWebScriptRequest;
+import org.springframework.extensions.webscripts.servlet.WebScriptServletRequest;
+
+/**
+ * Base for the command processors that receive multipart uploads.
+ * <p>
+ * Parts are streamed to the receiver as they are read from the request, together with their Content-Encoding, so
+ * compressed parts are only decoded once, into the staging folder. A Content-Encoding on the request itself applies to
+ * the whole multipart body and is decoded before the parts are read.
+ */
+public abstract class AbstractFileTransferUploadCommandProcessor implements TransferScopedCommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(AbstractFileTransferUploadCommandProcessor.class);
+
+    private static final String MSG_CAUGHT_UNEXPECTED_EXCEPTION = "transfer_service.receiver.caught_unexpected_exception";
+
+    protected static final String CONTENT_ENCODING = "Content-Encoding";
+    protected static final String PARAM_TRANSFER_ID = "transferId";
+
+    private FileTransferReceiver receiver;
+
+    public int process(WebScriptRequest req, WebScriptResponse resp)
+    {
+        WebScriptServletRequest webScriptServletRequest = unwrap(req);
+        if (webScriptServletRequest == null)
+        {
+            logger.debug("bad request, not a servlet request");
+            resp.setStatus(Status.STATUS_BAD_REQUEST);
+            return Status.STATUS_BAD_REQUEST;
+        }
+        HttpServletRequest servletRequest = webScriptServletRequest.getHttpServletRequest();
+
+        String transferId = servletRequest.getParameter(PARAM_TRANSFER_ID);
+        try
+        {
+            if (ServletFileUpload.isMultipartContent(servletRequest))
+            {
+                ServletFileUpload upload = new ServletFileUpload();
+                FileItemIterator iter = upload.getItemIterator(new DecodingRequestContext(servletRequest));
+                Map<String, String> fields = new HashMap<String, String>();
+                while (iter.hasNext())
+                {
+                    FileItemStream item = iter.next();
+                    if (item.isFormField())
+                    {
+                        String value = Streams.asString(item.openStream(), "UTF-8").trim();
+                        if (PARAM_TRANSFER_ID.equals(item.getFieldName()))
+                        {
+                            transferId = value;
+                        }
+                        else
+                        {
+                            fields.put(item.getFieldName(), value);
+                        }
+                    }
+                    else
+                    {
+                        if (transferId == null)
+                        {
+                            logger.debug("bad request, no transferId before part " + item.getFieldName());
+                            resp.setStatus(Status.STATUS_BAD_REQUEST);
+                            return Status.STATUS_BAD_REQUEST;
+                        }
+                        String contentEncoding = item.getHeaders() == null ? null : item.getHeaders().getHeader(
+                                CONTENT_ENCODING);
+                        processPart(transferId, item, contentEncoding, fields);
+                    }
+                }
+            }
+            return complete(transferId, resp);
+        }
+        catch (Exception ex)
+        {
+            logger.debug("exception caught", ex);
+            if (transferId != null && !isResumable(ex))
+            {
+                logger.debug("ending transfer", ex);
+                receiver.end(transferId);
+            }
+            if (ex instanceof TransferException)
+            {
+                throw (TransferException) ex;
+            }
+            throw new TransferException(MSG_CAUGHT_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+    /**
+     * Handle one file part of the upload.
+     * 
+     * @param contentEncoding the part's Content-Encoding, or null
+     * @param fields the form fields that preceded the part, other than the transferId
+     */
+    protected abstract void processPart(String transferId, FileItemStream item, String contentEncoding,
+            Map<String, String> fields) throws Exception;
+
+    /**
+     * @return true if the failure leaves the transfer able to carry on, in which case it is not ended
+     */
+    protected boolean isResumable(Exception ex)
+    {
+        return false;
+    }
+
+    /**
+     * Called once all the parts have been processed.
+     */
+    protected abstract int complete(String transferId, WebScriptResponse resp) throws Exception;
+
+    protected static WebScriptServletRequest unwrap(WebScriptRequest req)
+    {
+        WebScriptRequest current = req;
+        while (current != null)
+        {
+            if (current instanceof WebScriptServletRequest)
+            {
+                return (WebScriptServletRequest) current;
+            }
+            current = current instanceof WrappingWebScriptRequest ? ((WrappingWebScriptRequest) current).getNext()
+                    : null;
+        }
+        return null;
+    }
+
+    /**
+     * Request context that decodes the request body if the request has a Content-Encoding
+     */
+    private static class DecodingRequestContext extends ServletRequestContext
+    {
+        private final String contentEncoding;
+
+        DecodingRequestContext(HttpServletRequest request)
+        {
+            super(request);
+            this.contentEncoding = TransferContentEncoding.normalise(request.getHeader(CONTENT_ENCODING));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return TransferContentEncoding.decode(super.getInputStream(), contentEncoding);
+        }
+
+        @Override
+        public long contentLength()
+        {
+            return TransferContentEncoding.IDENTITY.equals(contentEncoding) ? super.contentLength() : -1L;
+        }
+
+        @Override
+        @Deprecated
+        public int getContentLength()
+        {
+            return TransferContentEncoding.IDENTITY.equals(contentEncoding) ? super.getContentLength() : -1;
+        }
+    }
+
+    public void setReceiver(FileTransferReceiver receiver)
+    {
+        this.receiver = receiver;
+    }
+
+    protected FileTransferReceiver getReceiver()
+    {
+        return receiver;
+    }
+}
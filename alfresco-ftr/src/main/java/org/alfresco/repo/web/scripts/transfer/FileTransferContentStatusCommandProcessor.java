@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.alfresco.repo.transfer.fsr.FileTransferReceiver;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the content-status command. Reports which content parts of a transfer are completely staged
+ * and, for parts whose upload was interrupted, how many bytes are staged so that the upload can be resumed from there.
+ * <p>
+ * The optional, repeatable, partName parameter restricts the report to the given parts.
+ */
+public class FileTransferContentStatusCommandProcessor implements TransferScopedCommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferContentStatusCommandProcessor.class);
+
+    private static final String MSG_CAUGHT_UNEXPECTED_EXCEPTION = "transfer_service.receiver.caught_unexpected_exception";
+
+    private FileTransferReceiver receiver;
+
+    public int process(WebScriptRequest req, WebScriptResponse resp)
+    {
+        String transferId = req.getParameter("transferId");
+        if (transferId == null)
+        {
+            logger.debug("transferId is missing");
+            resp.setStatus(Status.STATUS_BAD_REQUEST);
+            return Status.STATUS_BAD_REQUEST;
+        }
+
+        try
+        {
+            String[] partNames = req.getParameterValues("partName");
+            Map<String, Long> staged = receiver.getStagedContentStatus(transferId,
+                    partNames == null ? null : Arrays.asList(partNames));
+
+            JSONArray complete = new JSONArray();
+            JSONObject partial = new JSONObject();
+            for (Map.Entry<String, Long> part : staged.entrySet())
+            {
+                if (part.getValue() == null)
+                {
+                    complete.put(part.getKey());
+                }
+                else
+                {
+                    partial.put(part.getKey(), part.getValue().longValue());
+                }
+            }
+            JSONObject result = new JSONObject();
+            result.put("transferId", transferId);
+            result.put("complete", complete);
+            result.put("partial", partial);
+
+            String response = result.toString();
+            resp.setStatus(Status.STATUS_OK);
+            resp.setContentType("application/json");
+            resp.setContentEncoding("UTF-8");
+            resp.addHeader("Content-Length", "" + response.getBytes("UTF-8").length);
+            Writer writer = resp.getWriter();
+            writer.write(response);
+            writer.close();
+            return Status.STATUS_OK;
+        }
+        catch (TransferException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.debug("exception caught", ex);
+            throw new TransferException(MSG_CAUGHT_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+    public void setReceiver(FileTransferReceiver receiver)
+    {
+        this.receiver = receiver;
+    }
+}
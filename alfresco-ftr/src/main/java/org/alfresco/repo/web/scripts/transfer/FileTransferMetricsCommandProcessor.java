@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.transfer.fsr.FileTransferMetricsProvider;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the metrics command. Returns a JSON object holding, for each metrics provider, an object of
+ * its current metrics.
+ */
+public class FileTransferMetricsCommandProcessor implements CommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferMetricsCommandProcessor.class);
+
+    private static final String MSG_CAUGHT_UNEXPECTED_EXCEPTION = "transfer_service.receiver.caught_unexpected_exception";
+
+    private List<FileTransferMetricsProvider> providers;
+
+    public int process(WebScriptRequest req, WebScriptResponse resp)
+    {
+        try
+        {
+            JSONObject result = new JSONObject();
+            for (FileTransferMetricsProvider provider : providers)
+            {
+                JSONObject metrics = new JSONObject();
+                for (Map.Entry<String, Object> metric : provider.getMetrics().entrySet())
+                {
+                    metrics.put(metric.getKey(), metric.getValue());
+                }
+                result.put(provider.getMetricsName(), metrics);
+            }
+
+            String response = result.toString();
+            resp.setStatus(Status.STATUS_OK);
+            resp.setContentType("application/json");
+            resp.setContentEncoding("UTF-8");
+            resp.addHeader("Content-Length", "" + response.getBytes("UTF-8").length);
+            Writer writer = resp.getWriter();
+            writer.write(response);
+            writer.close();
+            return Status.STATUS_OK;
+        }
+        catch (TransferException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.debug("exception caught", ex);
+            throw new TransferException(MSG_CAUGHT_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+    public void setProviders(List<FileTransferMetricsProvider> providers)
+    {
+        this.providers = providers;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.util.Map;
+
+import org.alfresco.repo.transfer.fsr.ContentPartInterruptedException;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the post-content-archive command. Each file part is a tar archive, decoded according to its
+ * Content-Encoding, whose entries are staged as content parts under their entry names.
+ * <p>
+ * Sending many small content parts this way saves a request, a lock check and a progress comment for each of them.
+ * An archive that is cut off does not end the transfer: the parts unpacked before are kept, and the part being
+ * unpacked can be resumed with the post-content command.
+ */
+public class FileTransferPostContentArchiveCommandProcessor extends AbstractFileTransferUploadCommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferPostContentArchiveCommandProcessor.class);
+
+    @Override
+    protected void processPart(String transferId, FileItemStream item, String contentEncoding,
+            Map<String, String> fields) throws Exception
+    {
+        int count = getReceiver().saveContentArchive(transferId, item.openStream(), contentEncoding);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("got content archive Mime Part : " + item.getFieldName() + " Content-Encoding : "
+                    + contentEncoding + " parts : " + count);
+        }
+    }
+
+    @Override
+    protected boolean isResumable(Exception ex)
+    {
+        return ex instanceof ContentPartInterruptedException;
+    }
+
+    @Override
+    protected int complete(String transferId, WebScriptResponse resp)
+    {
+        resp.setStatus(Status.STATUS_OK);
+        return Status.STATUS_OK;
+    }
+}
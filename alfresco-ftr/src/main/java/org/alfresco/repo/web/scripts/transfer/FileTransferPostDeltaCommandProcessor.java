@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.util.Map;
+
+import org.alfresco.repo.transfer.fsr.ContentPartInterruptedException;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the post-delta command. Each file part is a delta (see
+ * {@link org.alfresco.repo.transfer.fsr.ContentDelta}) made against the signatures returned by the signatures
+ * command, staged in place of the content part it is named after and applied to the current file at commit.
+ * <p>
+ * As with post-content, an "offset" form field before a file part resumes that part.
+ */
+public class FileTransferPostDeltaCommandProcessor extends AbstractFileTransferUploadCommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferPostDeltaCommandProcessor.class);
+
+    private static final String PARAM_OFFSET = "offset";
+
+    @Override
+    protected void processPart(String transferId, FileItemStream item, String contentEncoding,
+            Map<String, String> fields) throws Exception
+    {
+        String partName = item.getName() != null ? item.getName() : item.getFieldName();
+        String offset = fields.remove(PARAM_OFFSET);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("got delta Mime Part : " + partName + " Content-Encoding : " + contentEncoding
+                    + (offset != null ? " offset : " + offset : ""));
+        }
+        getReceiver().saveContentDelta(transferId, partName, item.openStream(), contentEncoding,
+                offset != null ? Long.parseLong(offset) : -1L);
+    }
+
+    @Override
+    protected boolean isResumable(Exception ex)
+    {
+        return ex instanceof ContentPartInterruptedException;
+    }
+
+    @Override
+    protected int complete(String transferId, WebScriptResponse resp)
+    {
+        resp.setStatus(Status.STATUS_OK);
+        return Status.STATUS_OK;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the post-snapshot command. The snapshot part is staged, decoded according to its
+ * Content-Encoding, and the requisite is written to the response.
+ */
+public class FileTransferPostSnapshotCommandProcessor extends AbstractFileTransferUploadCommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferPostSnapshotCommandProcessor.class);
+
+    @Override
+    protected void processPart(String transferId, FileItemStream item, String contentEncoding,
+            Map<String, String> fields) throws Exception
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("got snapshot Mime Part : " + item.getFieldName() + " Content-Encoding : " + contentEncoding);
+        }
+        getReceiver().saveSnapshot(transferId, item.openStream(), contentEncoding);
+    }
+
+    @Override
+    protected int complete(String transferId, WebScriptResponse resp) throws Exception
+    {
+        if (transferId == null)
+        {
+            resp.setStatus(Status.STATUS_BAD_REQUEST);
+            return Status.STATUS_BAD_REQUEST;
+        }
+        logger.debug("success");
+        resp.setStatus(Status.STATUS_OK);
+        resp.setContentType("text/xml");
+        resp.setContentEncoding("utf-8");
+        OutputStream out = resp.getOutputStream();
+        try
+        {
+            getReceiver().generateRequsite(transferId, out);
+        }
+        finally
+        {
+            out.close();
+        }
+        return Status.STATUS_OK;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+
+import org.alfresco.repo.transfer.fsr.ContentDelta;
+import org.alfresco.repo.transfer.fsr.FileTransferReceiver;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the signatures command. Returns the block signatures of the received file of the node given
+ * by the nodeRef parameter, in the binary form written by {@link ContentDelta.Signatures#write}, so that the sender
+ * of a changed file that the requisite asks for can post a delta instead of the whole file. Returns 404 if no file
+ * has been received for the node.
+ */
+public class FileTransferSignaturesCommandProcessor implements CommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferSignaturesCommandProcessor.class);
+
+    private static final String MSG_CAUGHT_UNEXPECTED_EXCEPTION = "transfer_service.receiver.caught_unexpected_exception";
+
+    private FileTransferReceiver receiver;
+
+    public int process(WebScriptRequest req, WebScriptResponse resp)
+    {
+        String nodeRef = req.getParameter("nodeRef");
+        if (nodeRef == null)
+        {
+            logger.debug("nodeRef is missing");
+            resp.setStatus(Status.STATUS_BAD_REQUEST);
+            return Status.STATUS_BAD_REQUEST;
+        }
+
+        try
+        {
+            ContentDelta.Signatures signatures = receiver.getContentSignatures(nodeRef);
+            if (signatures == null)
+            {
+                resp.setStatus(Status.STATUS_NOT_FOUND);
+                return Status.STATUS_NOT_FOUND;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + signatures.getBlockCount() * 20);
+            signatures.write(new DataOutputStream(bytes));
+
+            resp.setStatus(Status.STATUS_OK);
+            resp.setContentType("application/octet-stream");
+            resp.addHeader("Content-Length", "" + bytes.size());
+            OutputStream out = resp.getOutputStream();
+            bytes.writeTo(out);
+            out.close();
+            return Status.STATUS_OK;
+        }
+        catch (TransferException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.debug("exception caught", ex);
+            throw new TransferException(MSG_CAUGHT_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+    public void setReceiver(FileTransferReceiver receiver)
+    {
+        this.receiver = receiver;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.Writer;
+import java.util.Map;
+
+import org.alfresco.repo.transfer.fsr.ConsistencyScanner;
+import org.alfresco.service.cmr.transfer.TransferException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Command processor for the verify command, which drives the consistency scan of the receiving root against the
+ * database.
+ * <p>
+ * The action parameter is one of "start" (the default), "stop" or "status". A start accepts the optional parameters
+ * repair (default false) and resume (default true). The response is the state of the scan, as JSON.
+ */
+public class FileTransferVerifyCommandProcessor implements CommandProcessor
+{
+    private static final Log logger = LogFactory.getLog(FileTransferVerifyCommandProcessor.class);
+
+    private static final String MSG_CAUGHT_UNEXPECTED_EXCEPTION = "transfer_service.receiver.caught_unexpected_exception";
+
+    private ConsistencyScanner scanner;
+
+    public int process(WebScriptRequest req, WebScriptResponse resp)
+    {
+        try
+        {
+            String action = req.getParameter("action");
+            int status = Status.STATUS_OK;
+            if (action == null || "start".equals(action))
+            {
+                boolean repair = Boolean.parseBoolean(req.getParameter("repair"));
+                String resume = req.getParameter("resume");
+                if (!scanner.start(repair, resume == null || Boolean.parseBoolean(resume)))
+                {
+                    status = Status.STATUS_CONFLICT;
+                }
+            }
+            else if ("stop".equals(action))
+            {
+                scanner.stop();
+            }
+            else if (!"status".equals(action))
+            {
+                logger.debug("unknown action " + action);
+                resp.setStatus(Status.STATUS_BAD_REQUEST);
+                return Status.STATUS_BAD_REQUEST;
+            }
+
+            JSONObject result = new JSONObject();
+            for (Map.Entry<String, Object> metric : scanner.getMetrics().entrySet())
+            {
+                result.put(metric.getKey(), metric.getValue());
+            }
+
+            String response = result.toString();
+            resp.setStatus(status);
+            resp.setContentType("application/json");
+            resp.setContentEncoding("UTF-8");
+            resp.addHeader("Content-Length", "" + response.getBytes("UTF-8").length);
+            Writer writer = resp.getWriter();
+            writer.write(response);
+            writer.close();
+            return status;
+        }
+        catch (TransferException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.debug("exception caught", ex);
+            throw new TransferException(MSG_CAUGHT_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+    public void setScanner(ConsistencyScanner scanner)
+    {
+        this.scanner = scanner;
+    }
+}
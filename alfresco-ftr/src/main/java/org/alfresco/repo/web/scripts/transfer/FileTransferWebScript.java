@@ -29,6 +29,8 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.alfresco.repo.transfer.fsr.ConnectionPoolExhaustedException;
+import org.alfresco.repo.transfer.fsr.TransferQueuedException;
 import org.alfresco.service.cmr.transfer.TransferException;
 import org.alfresco.util.json.ExceptionJsonSerializer;
 import org.alfresco.util.json.JsonSerializer;
@@ -62,6 +64,14 @@ public class FileTransferWebScript extends AbstractWebScript
         this.processors = new TreeMap<String,CommandProcessor>(processors);
     }
 
+    /**
+     * @return true if the processor of the command works on the staging folder of a transfer
+     */
+    public boolean isTransferScoped(String command)
+    {
+        return processors.get(command) instanceof TransferScopedCommandProcessor;
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.web.scripts.WebScript#execute(org.alfresco.web.scripts.WebScriptRequest, org.alfresco.web.scripts.WebScriptResponse)
      */
@@ -108,8 +118,26 @@ public class FileTransferWebScript extends AbstractWebScript
                     try
                     {
                         log.debug("transfer exception caught", ex);
-                        res.setStatus(Status.STATUS_INTERNAL_SERVER_ERROR);
                         JSONObject errorObject = errorSerializer.serialize(ex);
+                        if (ex instanceof TransferQueuedException)
+                        {
+                            //The transfer lock is held. Tell the sender when to come back rather than let it guess
+                            TransferQueuedException queued = (TransferQueuedException) ex;
+                            res.setStatus(Status.STATUS_SERVICE_UNAVAILABLE);
+                            res.addHeader("Retry-After", "" + Math.max(1L, (queued.getEstimatedWait() + 999L) / 1000L));
+                            errorObject.put("queuePosition", queued.getQueuePosition());
+                            errorObject.put("estimatedWait", queued.getEstimatedWait());
+                        }
+                        else if (isPoolExhausted(ex))
+                        {
+                            //Every database connection is in use. The sender may retry rather than fail the transfer
+                            res.setStatus(Status.STATUS_SERVICE_UNAVAILABLE);
+                            res.addHeader("Retry-After", "1");
+                        }
+                        else
+                        {
+                            res.setStatus(Status.STATUS_INTERNAL_SERVER_ERROR);
+                        }
                         String error = errorObject.toString();
 
                         res.setContentType("application/json");
@@ -133,4 +161,15 @@ public class FileTransferWebScript extends AbstractWebScript
         }
     }
 
+    private static boolean isPoolExhausted(Throwable ex)
+    {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof ConnectionPoolExhaustedException)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,419 @@
+/*
+ * #%L
+ * Alfresco File Transfer Receiver
+ * %%
+ * Copyright (C) 2005 - 2016 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.repo.web.scripts.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.repo.transfer.fsr.FileTransferCluster;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Routes the calls for a transfer to the node of the cluster that owns it, so that the receivers of a cluster can sit
+ * behind a load balancer without session affinity.
+ * <p>
+ * The transfer id of a call is read from its parameters or, for a multipart upload, from the "transferId" field at the
+ * start of the body, which is buffered so that it can still be read in full here or forwarded. A call for a transfer
+ * owned by another node is forwarded to that node and its response relayed. The commands routed are those whose
+ * processors are {@link TransferScopedCommandProcessor}s, together with the <code>routedCommands</code>, which name
+ * the stock processors of the transfer service that work on a transfer. Commands that do not depend on the staging
+ * folder of a transfer, such as begin and status, are handled by whichever node receives them.
+ */
+public class TransferAffinityFilter implements Filter
+{
+    private static final Log log = LogFactory.getLog(TransferAffinityFilter.class);
+
+    /** Set on forwarded calls, which are never forwarded again */
+    public static final String FORWARDED_HEADER = "X-Alfresco-FTR-Forwarded-By";
+
+    private static final String PARAM_TRANSFER_ID = "transferId";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileTransferCluster cluster;
+    private FileTransferWebScript webScript;
+    private Set<String> routedCommands = new HashSet<String>(Arrays.asList("prepare", "commit", "abort", "messages",
+            "report"));
+    private int peekSize = BUFFER_SIZE;
+    private int connectTimeout = 10000;
+    private int readTimeout = 0;
+
+    public void init(FilterConfig filterConfig) throws ServletException
+    {
+    }
+
+    public void destroy()
+    {
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException
+    {
+        if (cluster == null || !cluster.isClustered() || !(request instanceof HttpServletRequest))
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String path = httpRequest.getPathInfo();
+        String command = path == null ? "" : path.substring(path.lastIndexOf('/') + 1);
+        if (!isRouted(command) || httpRequest.getHeader(FORWARDED_HEADER) != null)
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String contentType = httpRequest.getContentType();
+        boolean multipart = contentType != null && contentType.toLowerCase().startsWith("multipart/");
+        String transferId;
+        HttpServletRequest routedRequest = httpRequest;
+        if (multipart)
+        {
+            BufferedRequest buffered = new BufferedRequest(httpRequest, peekSize);
+            //The query string only; the body is left alone
+            transferId = httpRequest.getParameter(PARAM_TRANSFER_ID);
+            if (transferId == null)
+            {
+                transferId = findField(buffered.peek(), PARAM_TRANSFER_ID);
+            }
+            routedRequest = buffered;
+        }
+        else
+        {
+            transferId = httpRequest.getParameter(PARAM_TRANSFER_ID);
+        }
+
+        if (cluster.isLocal(transferId))
+        {
+            chain.doFilter(routedRequest, response);
+            return;
+        }
+        forward(routedRequest, multipart, cluster.getOwner(transferId), (HttpServletResponse) response);
+    }
+
+    /**
+     * @return true if the calls of the command are routed to the node that owns their transfer
+     */
+    public boolean isRouted(String command)
+    {
+        return routedCommands.contains(command) || (webScript != null && webScript.isTransferScoped(command));
+    }
+
+    private void forward(HttpServletRequest request, boolean multipart, String owner, HttpServletResponse response)
+            throws IOException
+    {
+        String baseUrl = cluster.getNodeUrl(owner);
+        if (baseUrl == null)
+        {
+            log.error("No URL is configured for cluster node " + owner);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Unknown cluster node " + owner);
+            return;
+        }
+        StringBuilder target = new StringBuilder(baseUrl).append(request.getServletPath()).append(
+                request.getPathInfo());
+        if (multipart && request.getQueryString() != null)
+        {
+            target.append('?').append(request.getQueryString());
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Forwarding " + request.getPathInfo() + " to node " + owner + " at " + target);
+        }
+
+        HttpURLConnection connection;
+        try
+        {
+            connection = (HttpURLConnection) new URL(target.toString()).openConnection();
+            connection.setRequestMethod(request.getMethod());
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setDoOutput(true);
+            connection.setRequestProperty(FORWARDED_HEADER, cluster.getNodeId());
+            if (request.getHeader("Authorization") != null)
+            {
+                connection.setRequestProperty("Authorization", request.getHeader("Authorization"));
+            }
+
+            OutputStream out;
+            InputStream body;
+            if (multipart)
+            {
+                connection.setRequestProperty("Content-Type", request.getContentType());
+                if (request.getContentLength() >= 0)
+                {
+                    connection.setFixedLengthStreamingMode(request.getContentLength());
+                }
+                else
+                {
+                    connection.setChunkedStreamingMode(BUFFER_SIZE);
+                }
+                out = connection.getOutputStream();
+                body = request.getInputStream();
+            }
+            else
+            {
+                //The parameters have been read, from the query string and the body alike. Send them all in the body
+                byte[] form = encodeParameters(request.getParameterMap());
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+                connection.setFixedLengthStreamingMode(form.length);
+                out = connection.getOutputStream();
+                body = new ByteArrayInputStream(form);
+            }
+            try
+            {
+                copy(body, out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to forward " + request.getPathInfo() + " to cluster node " + owner, e);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Cluster node " + owner
+                    + " is unreachable");
+            return;
+        }
+
+        int status = connection.getResponseCode();
+        response.setStatus(status);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet())
+        {
+            String name = header.getKey();
+            if (name == null || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")
+                    || name.equalsIgnoreCase("Keep-Alive"))
+            {
+                continue;
+            }
+            for (String value : header.getValue())
+            {
+                response.addHeader(name, value);
+            }
+        }
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null)
+        {
+            try
+            {
+                copy(in, response.getOutputStream());
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    private static byte[] encodeParameters(Map<String, String[]> parameters) throws UnsupportedEncodingException
+    {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet())
+        {
+            for (String value : parameter.getValue())
+            {
+                if (form.length() > 0)
+                {
+                    form.append('&');
+                }
+                form.append(URLEncoder.encode(parameter.getKey(), "UTF-8")).append('=').append(
+                        URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+        return form.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the value of a form field found in the start of a multipart body, null if it is not there
+     */
+    static String findField(byte[] head, String name)
+    {
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        int field = text.indexOf("name=\"" + name + "\"");
+        if (field < 0)
+        {
+            return null;
+        }
+        int start = text.indexOf("\r\n\r\n", field);
+        if (start < 0)
+        {
+            return null;
+        }
+        start += 4;
+        int end = text.indexOf("\r\n", start);
+        if (end < 0)
+        {
+            return null;
+        }
+        return new String(head, start, end - start, StandardCharsets.UTF_8).trim();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * A request whose body can be looked at before it is read
+     */
+    private static class BufferedRequest extends HttpServletRequestWrapper
+    {
+        private final int peekSize;
+        private BufferedInputStream in;
+        private ServletInputStream stream;
+
+        BufferedRequest(HttpServletRequest request, int peekSize)
+        {
+            super(request);
+            this.peekSize = peekSize;
+        }
+
+        /**
+         * @return up to <code>peekSize</code> bytes from the start of the body, which is left unread
+         */
+        byte[] peek() throws IOException
+        {
+            getInputStream();
+            byte[] head = new byte[peekSize];
+            in.mark(peekSize);
+            int length = 0;
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) != -1)
+            {
+                length += read;
+            }
+            in.reset();
+            return Arrays.copyOf(head, length);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            if (stream == null)
+            {
+                in = new BufferedInputStream(super.getInputStream(), peekSize);
+                stream = new ServletInputStream()
+                    {
+                        @Override
+                        public int read() throws IOException
+                        {
+                            return in.read();
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException
+                        {
+                            return in.read(b, off, len);
+                        }
+
+                        @Override
+                        public int available() throws IOException
+                        {
+                            return in.available();
+                        }
+                    };
+            }
+            return stream;
+        }
+    }
+
+    public void setCluster(FileTransferCluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @param webScript the transfer web script, whose transfer scoped commands are routed
+     */
+    public void setWebScript(FileTransferWebScript webScript)
+    {
+        this.webScript = webScript;
+    }
+
+    /**
+     * @param routedCommands the commands routed to the owner of their transfer, as "command,...", besides those of the
+     *            {@link TransferScopedCommandProcessor}s
+     */
+    public void setRoutedCommands(String routedCommands)
+    {
+        this.routedCommands = new HashSet<String>();
+        for (String command : routedCommands.split(","))
+        {
+            if (command.trim().length() > 0)
+            {
+                this.routedCommands.add(command.trim());
+            }
+        }
+    }
+
+    public void setPeekSize(int peekSize)
+    {
+        this.peekSize = peekSize;
+    }
+
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param readTimeout the time in milliseconds to wait for the owner to respond, 0 to wait as long as it takes
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+}
@@ -49,6 +49,9 @@ CREATE TABLE alf_file_transfer_info (
   contentUrl VARCHAR(2048) NOT NULL,
   isFolder BOOLEAN,
   sourceRepoId VARCHAR(255) NOT NULL,
+  contentSize BIGINT,
+  contentChecksum VARCHAR(64),
+  volume VARCHAR(255),
   CONSTRAINT idx_nodeRef UNIQUE (nodeRef)
 );
 
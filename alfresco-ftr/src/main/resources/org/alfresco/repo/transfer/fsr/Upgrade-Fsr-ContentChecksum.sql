@@ -0,0 +1,4 @@
+ALTER TABLE alf_file_transfer_info ADD COLUMN contentSize BIGINT;
+
+ALTER TABLE alf_file_transfer_info ADD COLUMN contentChecksum VARCHAR(64);
+
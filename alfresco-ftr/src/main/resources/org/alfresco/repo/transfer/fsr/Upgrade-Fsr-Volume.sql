@@ -0,0 +1,2 @@
+ALTER TABLE alf_file_transfer_info ADD COLUMN volume VARCHAR(255);
+
@@ -27,35 +27,80 @@ package org.alfresco.repo.transfer.fsr;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transfer.TransferCommons;
+import org.alfresco.repo.transfer.TransferProgressMonitor;
+import org.alfresco.repo.transfer.manifest.TransferManifestDeletedNode;
 import org.alfresco.repo.transfer.manifest.TransferManifestHeader;
 import org.alfresco.repo.transfer.manifest.TransferManifestNode;
 import org.alfresco.repo.transfer.manifest.TransferManifestNormalNode;
+import org.alfresco.repo.transfer.manifest.TransferManifestProcessor;
 import org.alfresco.repo.transfer.manifest.XMLTransferManifestWriter;
+import org.alfresco.repo.web.scripts.transfer.CommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferContentStatusCommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferMetricsCommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferPostContentArchiveCommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferPostContentCommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferPostDeltaCommandProcessor;
+import org.alfresco.repo.web.scripts.transfer.FileTransferWebScript;
+import org.alfresco.repo.web.scripts.transfer.TransferAffinityFilter;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.transfer.TransferException;
+import org.alfresco.service.cmr.transfer.TransferProgress;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.util.GUID;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingStatement;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -63,6 +108,7 @@ import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionException;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.util.FileCopyUtils;
 
 public class FileTransferReceiverTest extends TestCase
 {
@@ -296,10 +342,17 @@ public class FileTransferReceiverTest extends TestCase
 
                 ftTransferReceiver.saveSnapshot(transferId, new ByteArrayInputStream(snapshot.getBytes("UTF-8")));
 
-                File stagingFolder = ftTransferReceiver.getStagingFolder(transferId);
-                snapshotFile = new File(stagingFolder, "snapshot.xml");
+                snapshotFile = ftTransferReceiver.getSnapshotFile(transferId);
                 assertTrue(snapshotFile.exists());
-                assertEquals(snapshot.getBytes("UTF-8").length, snapshotFile.length());
+                InputStream staged = ftTransferReceiver.openSnapshot(snapshotFile);
+                try
+                {
+                    assertEquals(snapshot, IOUtils.toString(staged, "UTF-8"));
+                }
+                finally
+                {
+                    staged.close();
+                }
                 
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 ftTransferReceiver.generateRequsite(transferId, baos);
@@ -318,6 +371,66 @@ public class FileTransferReceiverTest extends TestCase
         }
     }
 
+    /**
+     * The snapshot reads back as sent whether it is stored compressed or not, and whether or not it was sent gzip
+     * encoded.
+     */
+    public void testSaveSnapshotCompressedAndPlain() throws Exception
+    {
+        boolean compressSnapshot = ftTransferReceiver.isCompressSnapshot();
+        try
+        {
+            for (boolean compress : new boolean[] {true, false})
+            {
+                for (boolean gzipEncoded : new boolean[] {true, false})
+                {
+                    ftTransferReceiver.setCompressSnapshot(compress);
+                    String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+                    try
+                    {
+                        List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+                        nodes.add(createContentNode(companytHome, "roundTrip.txt"));
+                        String snapshot = createSnapshot(nodes, false);
+                        byte[] sent = snapshot.getBytes("UTF-8");
+                        if (gzipEncoded)
+                        {
+                            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                            GZIPOutputStream out = new GZIPOutputStream(gzipped);
+                            out.write(sent);
+                            out.close();
+                            sent = gzipped.toByteArray();
+                        }
+                        ftTransferReceiver.saveSnapshot(transferId, new ByteArrayInputStream(sent),
+                                gzipEncoded ? "gzip" : null);
+
+                        File snapshotFile = ftTransferReceiver.getSnapshotFile(transferId);
+                        assertEquals(compress, snapshotFile.getName().endsWith(".gz"));
+                        InputStream staged = ftTransferReceiver.openSnapshot(snapshotFile);
+                        try
+                        {
+                            assertEquals(snapshot, IOUtils.toString(staged, "UTF-8"));
+                        }
+                        finally
+                        {
+                            staged.close();
+                        }
+                        ByteArrayOutputStream requsite = new ByteArrayOutputStream();
+                        ftTransferReceiver.generateRequsite(transferId, requsite);
+                        assertTrue(requsite.size() > 0);
+                    }
+                    finally
+                    {
+                        ftTransferReceiver.end(transferId);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setCompressSnapshot(compressSnapshot);
+        }
+    }
+
     public void testSaveContent() throws Exception
     {
         try
@@ -327,7 +440,7 @@ public class FileTransferReceiverTest extends TestCase
             {
                 String contentId = "mytestcontent";
                 ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes));
-                File contentFile = new File(ftTransferReceiver.getStagingFolder(transferId), contentId);
+                File contentFile = ftTransferReceiver.getStagedContent(transferId, contentId);
                 assertTrue(contentFile.exists());
                 assertEquals(dummyContentBytes.length, contentFile.length());
             }
@@ -341,6 +454,260 @@ public class FileTransferReceiverTest extends TestCase
         }
     }
 
+    public void testResumeContent() throws Exception
+    {
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            String contentId = "myresumedcontent";
+            int cutOff = dummyContentBytes.length / 2;
+            // A stream that fails half way, as when the connection drops
+            InputStream broken = new FilterInputStream(new ByteArrayInputStream(dummyContentBytes, 0, cutOff))
+            {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    int read = super.read(b, off, len);
+                    if (read == -1)
+                    {
+                        throw new IOException("Connection reset");
+                    }
+                    return read;
+                }
+            };
+            try
+            {
+                ftTransferReceiver.saveContent(transferId, contentId, broken, null, -1L);
+                fail("The interrupted upload should have been reported");
+            }
+            catch (ContentPartInterruptedException e)
+            {
+                assertEquals(cutOff, e.getStagedLength());
+            }
+            assertFalse(ftTransferReceiver.isContentStaged(transferId, contentId));
+            assertEquals(Long.valueOf(cutOff),
+                    ftTransferReceiver.getStagedContentStatus(transferId, null).get(contentId));
+
+            ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes, cutOff,
+                    dummyContentBytes.length - cutOff), null, cutOff);
+            assertTrue(ftTransferReceiver.isContentStaged(transferId, contentId));
+            File contentFile = ftTransferReceiver.getStagedContent(transferId, contentId);
+            assertTrue(Arrays.equals(dummyContentBytes, readBytesFromFile(contentFile)));
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+        }
+    }
+
+    /**
+     * A resume must start where the checkpoint says the staged bytes end, and a checkpoint that no longer matches the
+     * staged bytes, or can't be read, is dropped so that the part has to be sent again from the start.
+     */
+    public void testResumeContentWithBadCheckpoint() throws Exception
+    {
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            String contentId = "mybadcheckpoint";
+            int cutOff = dummyContentBytes.length / 2;
+            interruptUpload(transferId, contentId, cutOff);
+
+            // Mismatched offset
+            try
+            {
+                ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes,
+                        cutOff - 1, dummyContentBytes.length - cutOff + 1), null, cutOff - 1);
+                fail("A resume at the wrong offset should have been rejected");
+            }
+            catch (TransferException e)
+            {
+                // Expected
+            }
+            assertEquals(Long.valueOf(cutOff),
+                    ftTransferReceiver.getStagedContentStatus(transferId, null).get(contentId));
+
+            // Staged bytes that no longer match their checksum
+            File partFile = new File(ftTransferReceiver.getStagedContent(transferId, contentId).getParentFile(),
+                    contentId + ContentStagingCheckpoint.PART_SUFFIX);
+            RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+            try
+            {
+                raf.write(dummyContentBytes[0] ^ 0xff);
+            }
+            finally
+            {
+                raf.close();
+            }
+            assertEquals(Long.valueOf(0L),
+                    ftTransferReceiver.getStagedContentStatus(transferId, null).get(contentId));
+            try
+            {
+                ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes,
+                        cutOff, dummyContentBytes.length - cutOff), null, cutOff);
+                fail("A resume after a corrupt checkpoint should have been rejected");
+            }
+            catch (TransferException e)
+            {
+                // Expected
+            }
+
+            // A checkpoint that can't be parsed
+            String otherContentId = "myunreadablecheckpoint";
+            interruptUpload(transferId, otherContentId, cutOff);
+            File checkpointFile = new File(ftTransferReceiver.getStagedContent(transferId, otherContentId)
+                    .getParentFile(), otherContentId + ContentStagingCheckpoint.CHECKPOINT_SUFFIX);
+            FileCopyUtils.copy("not,a,checkpoint\n".getBytes("UTF-8"), checkpointFile);
+            assertEquals(Long.valueOf(0L),
+                    ftTransferReceiver.getStagedContentStatus(transferId, null).get(otherContentId));
+
+            // Both parts can be sent again from the start
+            for (String id : new String[] {contentId, otherContentId})
+            {
+                ftTransferReceiver.saveContent(transferId, id, new ByteArrayInputStream(dummyContentBytes), null, -1L);
+                assertTrue(ftTransferReceiver.isContentStaged(transferId, id));
+                assertTrue(Arrays.equals(dummyContentBytes,
+                        readBytesFromFile(ftTransferReceiver.getStagedContent(transferId, id))));
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+        }
+    }
+
+    /**
+     * Ending a transfer discards its partly staged parts, and they can't be resumed.
+     */
+    public void testResumeContentAfterTransferEnded() throws Exception
+    {
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        String contentId = "myendedcontent";
+        int cutOff = dummyContentBytes.length / 2;
+        File stagingFolder = ftTransferReceiver.getStagingFolder(transferId);
+        try
+        {
+            interruptUpload(transferId, contentId, cutOff);
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+        }
+        assertFalse(stagingFolder.exists());
+        try
+        {
+            ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes, cutOff,
+                    dummyContentBytes.length - cutOff), null, cutOff);
+            fail("Resumed a part of a transfer that has ended");
+        }
+        catch (TransferException e)
+        {
+            // Expected
+        }
+        assertFalse(stagingFolder.exists());
+    }
+
+    /**
+     * A part being uploaded can't be uploaded a second time at once, as both would write to the same ".part" file;
+     * once the first upload has ended the part is taken as staged.
+     */
+    public void testConcurrentContentUpload() throws Exception
+    {
+        final String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            final String contentId = "myconcurrentcontent";
+            final CountDownLatch reading = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            // A stream that stalls half way, as on a slow connection
+            final InputStream slow = new FilterInputStream(new ByteArrayInputStream(dummyContentBytes))
+            {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    reading.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IOException(e);
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread first = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        ftTransferReceiver.saveContent(transferId, contentId, slow, null, -1L);
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.set(e);
+                    }
+                }
+            });
+            first.start();
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            try
+            {
+                ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(new byte[10]), null,
+                        -1L);
+                fail("Second upload of a part written while the first was in progress");
+            }
+            catch (TransferException e)
+            {
+                // Expected
+            }
+            release.countDown();
+            first.join(10000L);
+            assertNull(failure.get());
+            assertTrue(ftTransferReceiver.isContentStaged(transferId, contentId));
+
+            ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(new byte[10]), null, -1L);
+            assertTrue(Arrays.equals(dummyContentBytes,
+                    readBytesFromFile(ftTransferReceiver.getStagedContent(transferId, contentId))));
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+        }
+    }
+
+    /**
+     * Send the first cutOff bytes of the dummy content as the given part, as if the connection then dropped.
+     */
+    private void interruptUpload(String transferId, String contentId, int cutOff) throws Exception
+    {
+        InputStream broken = new FilterInputStream(new ByteArrayInputStream(dummyContentBytes, 0, cutOff))
+        {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int read = super.read(b, off, len);
+                if (read == -1)
+                {
+                    throw new IOException("Connection reset");
+                }
+                return read;
+            }
+        };
+        try
+        {
+            ftTransferReceiver.saveContent(transferId, contentId, broken, null, -1L);
+            fail("The interrupted upload should have been reported");
+        }
+        catch (ContentPartInterruptedException e)
+        {
+            assertEquals(cutOff, e.getStagedLength());
+        }
+    }
+
     public void testBasicCommitContent() throws Exception
     {
         TransferManifestNormalNode node = null;
@@ -982,83 +1349,3139 @@ public class FileTransferReceiverTest extends TestCase
 
     }
 
-    private ArrayList<TransferManifestNode> copyList(List<TransferManifestNode> src)
-    {
-        ArrayList<TransferManifestNode> aCopy = new ArrayList<TransferManifestNode>();
-
-        for(int i = 0; i < src.size(); i++)
-            aCopy.add(src.get(i));
-
-        return aCopy;
-    }
-
-
-
-    public static byte[] readBytesFromFile(File file) throws IOException
+    /**
+     * A parallel delete that can't delete a node part way through the tree stops, and leaves a record for every
+     * file and folder that is still on disk and none for those that have gone.
+     */
+    public void testParallelDeleteFailurePartWayThroughTree() throws Exception
     {
-        FileInputStream fileinputstream = new FileInputStream(file);
-        long l = file.length();
-
-        if (l > Integer.MAX_VALUE)
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        String root = ftTransferReceiver.getDefaultReceivingroot();
+        String topName = "PD_" + GUID.generate();
+        String topRef = createReceivedNode(companytHome.toString(), "/", topName, true);
+        List<String> nodeRefs = new ArrayList<String>();
+        nodeRefs.add(topRef);
+        String failingRef = null;
+        for (String folderName : new String[] {"A", "B", "C"})
         {
-            throw new IOException("File too big for loading into a byte array!");
+            String folderPath = "/" + topName + "/";
+            String folderRef = createReceivedNode(topRef, folderPath, folderName, true);
+            nodeRefs.add(folderRef);
+            for (int i = 0; i < 20; i++)
+            {
+                String fileRef = createReceivedNode(folderRef, folderPath + folderName + "/", "f" + i + ".txt",
+                        false);
+                nodeRefs.add(fileRef);
+                if (folderName.equals("B") && i == 10)
+                {
+                    failingRef = fileRef;
+                }
+            }
         }
 
-        byte byteArray[] = new byte[(int) l];
-
-        int i = 0;
-
-        for (int j = 0; (i < byteArray.length) && (j = fileinputstream.read(byteArray, i, byteArray.length - i)) >= 0; i += j);
+        final String undeletable = failingRef;
+        FileTransferReceiver failingReceiver = new FileTransferReceiver()
+        {
+            @Override
+            public boolean deleteReceivedNode(FileTransferInfoEntity entity)
+            {
+                return !entity.getNodeRef().equals(undeletable) && super.deleteReceivedNode(entity);
+            }
+        };
+        failingReceiver.setDefaultReceivingroot(root);
+        failingReceiver.setReceivingVolumes(ftTransferReceiver.getReceivingVolumes());
+        final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+        ParallelNodeDeleter.DeletionListener listener = new ParallelNodeDeleter.DeletionListener()
+        {
+            public void nodeDeleted(String nodeRef, String path)
+            {
+                reported.add(nodeRef);
+            }
+        };
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            ParallelNodeDeleter deleter = new ParallelNodeDeleter(dbHelper, failingReceiver, pool, 7, listener);
+            assertFalse(deleter.delete(dbHelper.findFileTransferInfoByNodeRef(topRef)));
+
+            File failingFile = new File(root + "/" + topName + "/B/f10.txt");
+            assertTrue(failingFile.exists());
+            assertNotNull(dbHelper.findFileTransferInfoByNodeRef(failingRef));
+            assertTrue(new File(root + "/" + topName).exists());
+            for (String nodeRef : nodeRefs)
+            {
+                FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+                boolean reportedDeleted = reported.contains(nodeRef);
+                assertEquals(nodeRef, reportedDeleted, entity == null);
+                if (entity != null)
+                {
+                    assertTrue(failingReceiver.getReceivedFile(entity).exists());
+                }
+            }
 
-        if (i < byteArray.length)
+            // Once the node can be deleted the rest of the tree goes too
+            deleter = new ParallelNodeDeleter(dbHelper, ftTransferReceiver, pool, 7, listener);
+            assertTrue(deleter.delete(dbHelper.findFileTransferInfoByNodeRef(topRef)));
+            assertFalse(new File(root + "/" + topName).exists());
+            for (String nodeRef : nodeRefs)
+            {
+                assertNull(dbHelper.findFileTransferInfoByNodeRef(nodeRef));
+            }
+            assertEquals(nodeRefs.size(), reported.size());
+        }
+        finally
         {
-            throw new IOException("Could not completely read the file " + file.getName());
+            pool.shutdown();
         }
-        fileinputstream.close();
-        return byteArray;
     }
 
     /**
-     * @return TransferManifestNormalNode
+     * A manifest that deletes a folder tree in parallel and moves a file out of that tree: the file survives at its
+     * new place and the rest of the tree is deleted.
      */
-    private TransferManifestNormalNode createContentNode(NodeRef parentFolder, String nodeName) throws Exception
+    public void testParallelDeleteWithRenameInSameManifest() throws Exception
     {
-        TransferManifestNormalNode node = new TransferManifestNormalNode();
-        String uuid = GUID.generate();
-        NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, uuid);
-        node.setNodeRef(nodeRef);
-        node.setUuid(uuid);
-        byte[] dummyContent = "This is some dummy content.".getBytes("UTF-8");
-
-        node.setType(ContentModel.TYPE_CONTENT);
-        node.setAncestorType(ContentModel.TYPE_CONTENT);
-
-        /**
-         * Get guest home
-         */
-
-        List<ChildAssociationRef> parents = new ArrayList<ChildAssociationRef>();
-        ChildAssociationRef primaryAssoc = new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, parentFolder, QName
-                .createQName(NamespaceService.CONTENT_MODEL_1_0_URI, nodeName), node.getNodeRef(), true, -1);
-        parents.add(primaryAssoc);
-        node.setParentAssocs(parents);
-        node.setParentPath(null);
-        node.setPrimaryParentAssoc(primaryAssoc);
-
-        Map<QName, Serializable> props = new HashMap<QName, Serializable>();
-        props.put(ContentModel.PROP_NODE_UUID, uuid);
-        props.put(ContentModel.PROP_NAME, nodeName);
-        ContentData contentData = new ContentData("/" + uuid, "text/plain", dummyContent.length, "UTF-8");
-        props.put(ContentModel.PROP_CONTENT, contentData);
-        node.setProperties(props);
-
-        return node;
+        int commitParallelism = ftTransferReceiver.getCommitParallelism();
+        boolean parallelDelete = ftTransferReceiver.isParallelDelete();
+        try
+        {
+            ftTransferReceiver.setCommitParallelism(4);
+            ftTransferReceiver.setParallelDelete(true);
+
+            String suffix = GUID.generate();
+            TransferManifestNormalNode deletedFolder = createFolderNode(companytHome, "DEL_" + suffix);
+            TransferManifestNormalNode destFolder = createFolderNode(companytHome, "DEST_" + suffix);
+            TransferManifestNormalNode subFolder = createFolderNode(deletedFolder.getNodeRef(), "SUB");
+            TransferManifestNormalNode keptFile = createContentNode(deletedFolder.getNodeRef(), "keep.txt");
+            List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+            List<TransferManifestNormalNode> contentNodes = new ArrayList<TransferManifestNormalNode>();
+            nodes.add(deletedFolder);
+            nodes.add(destFolder);
+            nodes.add(subFolder);
+            nodes.add(keptFile);
+            contentNodes.add(keptFile);
+            for (int i = 0; i < 10; i++)
+            {
+                TransferManifestNormalNode file = createContentNode(i % 2 == 0 ? deletedFolder.getNodeRef()
+                        : subFolder.getNodeRef(), "gone" + i + ".txt");
+                nodes.add(file);
+                contentNodes.add(file);
+            }
+            commitNodes(nodes, false, contentNodes);
+            String root = ftTransferReceiver.getDefaultReceivingroot();
+            assertTrue(new File(root + "/DEL_" + suffix + "/keep.txt").exists());
+
+            // The delete comes first in the manifest, the move and rename of the file after it
+            keptFile.getProperties().put(ContentModel.PROP_NAME, "kept.txt");
+            modifyParentNode(destFolder.getNodeRef(), keptFile);
+            nodes = new ArrayList<TransferManifestNode>();
+            nodes.add(createDeletedNode(deletedFolder));
+            nodes.add(destFolder);
+            nodes.add(keptFile);
+            commitNodes(nodes, false, Collections.<TransferManifestNormalNode> emptyList());
+
+            assertFalse(new File(root + "/DEL_" + suffix).exists());
+            File kept = new File(root + "/DEST_" + suffix + "/kept.txt");
+            assertTrue(kept.exists());
+            assertEquals(dummyContent, new String(readBytesFromFile(kept), "UTF-8"));
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(deletedFolder.getNodeRef().toString()));
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(subFolder.getNodeRef().toString()));
+            for (TransferManifestNormalNode file : contentNodes)
+            {
+                FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef()
+                        .toString());
+                if (file == keptFile)
+                {
+                    assertEquals("kept.txt", entity.getContentName());
+                    assertEquals("/DEST_" + suffix + "/", entity.getPath());
+                }
+                else
+                {
+                    assertNull(entity);
+                }
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setCommitParallelism(commitParallelism);
+            ftTransferReceiver.setParallelDelete(parallelDelete);
+        }
     }
 
     /**
-     * @return TransferManifestNormalNode
+     * A partitioned commit of new folders whose children come before them in the manifest, with files in the root
+     * and in two top-level folders, so in three partitions, and fewer files in a rename batch than in the commit
      */
-    private TransferManifestNormalNode createFolderNode(NodeRef parentFolder, String nodeName) throws Exception
+    public void testPartitionedCommitAcrossPartitions() throws Exception
+    {
+        int commitParallelism = ftTransferReceiver.getCommitParallelism();
+        boolean partitionedCommit = ftTransferReceiver.isPartitionedCommit();
+        int renameBatchSize = ftTransferReceiver.getRenameBatchSize();
+        try
+        {
+            ftTransferReceiver.setCommitParallelism(4);
+            ftTransferReceiver.setPartitionedCommit(true);
+            ftTransferReceiver.setRenameBatchSize(2);
+            assertTrue(ftTransferReceiver.isPartitionedCommit());
+
+            String suffix = GUID.generate();
+            TransferManifestNormalNode folderA = createFolderNode(companytHome, "A_" + suffix);
+            TransferManifestNormalNode folderB = createFolderNode(folderA.getNodeRef(), "B");
+            TransferManifestNormalNode folderC = createFolderNode(companytHome, "C_" + suffix);
+            TransferManifestNormalNode fileA = createContentNode(folderA.getNodeRef(), "a.txt");
+            TransferManifestNormalNode fileB1 = createContentNode(folderB.getNodeRef(), "b1.txt");
+            TransferManifestNormalNode fileB2 = createContentNode(folderB.getNodeRef(), "b2.txt");
+            TransferManifestNormalNode fileC = createContentNode(folderC.getNodeRef(), "c.txt");
+            TransferManifestNormalNode fileRoot = createContentNode(companytHome, "r_" + suffix + ".txt");
+
+            // Children first: B and its files wait for A, and the files of C are in their own partition
+            List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+            nodes.add(fileB1);
+            nodes.add(folderB);
+            nodes.add(fileB2);
+            nodes.add(folderA);
+            nodes.add(fileA);
+            nodes.add(fileRoot);
+            nodes.add(folderC);
+            nodes.add(fileC);
+            List<TransferManifestNormalNode> contentNodes = Arrays.asList(fileA, fileB1, fileB2, fileC, fileRoot);
+            commitNodes(nodes, false, contentNodes);
+
+            String root = ftTransferReceiver.getDefaultReceivingroot();
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            Map<TransferManifestNormalNode, String> expectedPaths = new HashMap<TransferManifestNormalNode, String>();
+            expectedPaths.put(folderA, "/");
+            expectedPaths.put(folderB, "/A_" + suffix + "/");
+            expectedPaths.put(folderC, "/");
+            expectedPaths.put(fileA, "/A_" + suffix + "/");
+            expectedPaths.put(fileB1, "/A_" + suffix + "/B/");
+            expectedPaths.put(fileB2, "/A_" + suffix + "/B/");
+            expectedPaths.put(fileC, "/C_" + suffix + "/");
+            expectedPaths.put(fileRoot, "/");
+            for (Map.Entry<TransferManifestNormalNode, String> expected : expectedPaths.entrySet())
+            {
+                TransferManifestNormalNode node = expected.getKey();
+                String name = (String) node.getProperties().get(ContentModel.PROP_NAME);
+                FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(node.getNodeRef().toString());
+                assertNotNull(name, entity);
+                assertEquals(name, entity.getContentName());
+                assertEquals(name, expected.getValue(), entity.getPath());
+                File file = new File(root + expected.getValue() + name);
+                assertTrue(file.getPath(), file.exists());
+                if (contentNodes.contains(node))
+                {
+                    assertEquals(dummyContent, new String(readBytesFromFile(file), "UTF-8"));
+                }
+            }
+            for (String folder : new String[] {"/A_" + suffix, "/A_" + suffix + "/B", "/C_" + suffix})
+            {
+                for (String child : new File(root + folder).list())
+                {
+                    assertFalse(folder + "/" + child, child.startsWith(".ftr"));
+                }
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setCommitParallelism(commitParallelism);
+            ftTransferReceiver.setPartitionedCommit(partitionedCommit);
+            ftTransferReceiver.setRenameBatchSize(renameBatchSize);
+        }
+    }
+
+    /**
+     * A partitioned commit in which one file can't be written is rolled back as a whole, including the files other
+     * partitions wrote and the folder the manifest deleted first
+     */
+    public void testPartitionedCommitFailureRollsBack() throws Exception
+    {
+        int commitParallelism = ftTransferReceiver.getCommitParallelism();
+        boolean partitionedCommit = ftTransferReceiver.isPartitionedCommit();
+        try
+        {
+            ftTransferReceiver.setCommitParallelism(4);
+            ftTransferReceiver.setPartitionedCommit(true);
+
+            String suffix = GUID.generate();
+            TransferManifestNormalNode oldFolder = createFolderNode(companytHome, "OLD_" + suffix);
+            TransferManifestNormalNode oldFile = createContentNode(oldFolder.getNodeRef(), "old.txt");
+            TransferManifestNormalNode keptFile = createContentNode(companytHome, "keep_" + suffix + ".txt");
+            List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+            nodes.add(oldFolder);
+            nodes.add(oldFile);
+            nodes.add(keptFile);
+            commitNodes(nodes, false, Arrays.asList(oldFile, keptFile));
+
+            String root = ftTransferReceiver.getDefaultReceivingroot();
+            List<String> rootBefore = Arrays.asList(new File(root).list());
+
+            TransferManifestNormalNode newFolder = createFolderNode(companytHome, "NEW_" + suffix);
+            List<TransferManifestNormalNode> contentNodes = new ArrayList<TransferManifestNormalNode>();
+            nodes = new ArrayList<TransferManifestNode>();
+            nodes.add(createDeletedNode(oldFolder));
+            nodes.add(newFolder);
+            for (int i = 0; i < 4; i++)
+            {
+                TransferManifestNormalNode file = createContentNode(newFolder.getNodeRef(), "n" + i + ".txt");
+                nodes.add(file);
+                contentNodes.add(file);
+            }
+            TransferManifestNormalNode rootFile = createContentNode(companytHome, "r_" + suffix + ".txt");
+            nodes.add(rootFile);
+            contentNodes.add(rootFile);
+            modifyParentNode(newFolder.getNodeRef(), keptFile);
+            nodes.add(keptFile);
+            // No content is sent for the last file, so its partition fails once the others have been written
+            TransferManifestNormalNode badFile = createContentNode(newFolder.getNodeRef(), "bad.txt");
+            nodes.add(badFile);
+
+            String transferId = stageNodes(nodes, false, contentNodes);
+            try
+            {
+                ftTransferReceiver.commit(transferId);
+                fail("Commit should have failed");
+            }
+            catch (TransferException ex)
+            {
+                // Expected
+            }
+            assertEquals(TransferProgress.Status.ERROR, ftTransferReceiver.getProgressMonitor()
+                    .getProgress(transferId).getStatus());
+
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            FileTransferInfoEntity oldFolderEntity = dbHelper.findFileTransferInfoByNodeRef(oldFolder.getNodeRef()
+                    .toString());
+            assertEquals("OLD_" + suffix, oldFolderEntity.getContentName());
+            assertTrue(new File(root + "/OLD_" + suffix + "/old.txt").exists());
+            assertEquals("/OLD_" + suffix + "/", dbHelper.findFileTransferInfoByNodeRef(
+                    oldFile.getNodeRef().toString()).getPath());
+
+            FileTransferInfoEntity keptEntity = dbHelper.findFileTransferInfoByNodeRef(keptFile.getNodeRef()
+                    .toString());
+            assertEquals("/", keptEntity.getPath());
+            assertEquals("keep_" + suffix + ".txt", keptEntity.getContentName());
+            assertTrue(new File(root + "/keep_" + suffix + ".txt").exists());
+
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(newFolder.getNodeRef().toString()));
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(badFile.getNodeRef().toString()));
+            for (TransferManifestNormalNode file : contentNodes)
+            {
+                assertNull(dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString()));
+            }
+            assertFalse(new File(root + "/NEW_" + suffix).exists());
+            assertFalse(new File(root + "/r_" + suffix + ".txt").exists());
+            for (String child : new File(root).list())
+            {
+                assertTrue(child, rootBefore.contains(child));
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setCommitParallelism(commitParallelism);
+            ftTransferReceiver.setPartitionedCommit(partitionedCommit);
+        }
+    }
+
+    /**
+     * The janitor moves a purged staging folder to its trash and empties the trash in the background, and removes
+     * the transfer reports that are too old
+     */
+    public void testStagingJanitor() throws Exception
+    {
+        File root = createScratchFolder("staging");
+        File reports = new File(root, "reports");
+        StagingJanitor janitor = new StagingJanitor();
+        janitor.setRootStagingDirectory(root.getPath());
+        janitor.setReportDirectory(reports.getPath());
+        janitor.setReportMaxAgeDays(30);
+        janitor.setReportMaxTotalSizeMB(0);
+        janitor.setPurgeInterval(100);
+        janitor.setPurgeParallelism(2);
+        try
+        {
+            File staging = new File(root, GUID.generate());
+            for (int i = 0; i < 3; i++)
+            {
+                File shard = new File(staging, "shard" + i);
+                assertTrue(shard.mkdirs());
+                FileCopyUtils.copy(dummyContentBytes, new File(shard, "part" + i));
+            }
+            assertTrue(reports.mkdirs());
+            File oldReport = new File(reports, "old_report");
+            File newReport = new File(reports, "new_report");
+            File other = new File(reports, "old.txt");
+            for (File file : new File[] {oldReport, newReport, other})
+            {
+                FileCopyUtils.copy(dummyContentBytes, file);
+            }
+            long old = System.currentTimeMillis() - 40L * 24L * 60L * 60L * 1000L;
+            assertTrue(oldReport.setLastModified(old));
+            assertTrue(other.setLastModified(old));
+
+            janitor.init();
+            janitor.purge(staging);
+            assertFalse(staging.exists());
+            File trash = new File(root, StagingJanitor.TRASH_FOLDER_NAME);
+            for (int i = 0; i < 100 && ((Long) janitor.getMetrics().get("purgedFolders") < 1
+                    || trash.list().length > 0 || oldReport.exists()); i++)
+            {
+                Thread.sleep(100);
+            }
+            assertEquals(1L, janitor.getMetrics().get("trashedFolders"));
+            assertEquals(1L, janitor.getMetrics().get("purgedFolders"));
+            assertEquals(0, trash.list().length);
+            assertFalse(oldReport.exists());
+            assertTrue(newReport.exists());
+            assertTrue(other.exists());
+        }
+        finally
+        {
+            janitor.destroy();
+        }
+
+        // Once stopped, a staging folder is deleted before purge returns
+        File staging = new File(root, GUID.generate());
+        assertTrue(new File(staging, "shard").mkdirs());
+        janitor.purge(staging);
+        assertFalse(staging.exists());
+        assertEquals(0, new File(root, StagingJanitor.TRASH_FOLDER_NAME).list().length);
+        FileUtils.deleteDirectory(root);
+    }
+
+    /**
+     * Journal records survive any character in their fields, and a last record that was only partly written is ignored
+     */
+    public void testCommitJournal() throws Exception
+    {
+        File folder = createScratchFolder("journal");
+        CommitJournal journal = new CommitJournal();
+        journal.setDirectory(folder.getPath());
+        journal.setSyncBatchSize(2);
+        journal.init();
+        assertTrue(journal.isEnabled());
+
+        String transferId = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()).toString();
+        CommitJournal.Transaction tx = journal.begin(transferId, "repo 1");
+        tx.temp("node1", false, "/a\tb/", ".ftr1", "new\nname\\x", null);
+        tx.delete("node2", ".ftr2");
+        tx.close();
+        File journalFile = journal.getJournalFile(transferId);
+        assertEquals(Collections.singletonList(journalFile), journal.getIncompleteJournals());
+
+        List<String[]> records = CommitJournal.read(journalFile);
+        assertEquals(3, records.size());
+        assertTrue(Arrays.equals(new String[] {CommitJournal.BEGIN, transferId, "repo 1"}, records.get(0)));
+        assertTrue(Arrays.equals(new String[] {CommitJournal.TEMP, "node1", "false", "/a\tb/", ".ftr1",
+                "new\nname\\x", ""}, records.get(1)));
+        assertTrue(Arrays.equals(new String[] {CommitJournal.DELETE, "node2", ".ftr2"}, records.get(2)));
+
+        // A crash part way through a record
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try
+        {
+            raf.seek(raf.length());
+            raf.write("D\tnode3".getBytes("UTF-8"));
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertEquals(3, CommitJournal.read(journalFile).size());
+
+        tx = journal.begin(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()).toString(), null);
+        tx.complete();
+        assertFalse(tx.getFile().exists());
+        assertEquals(1, journal.getIncompleteJournals().size());
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Recovery rolls forward a change that reached the database, rolls back one that did not, finishes a folder
+     * delete, and removes the temporary records of the recovered commit's source repository, but not of others
+     */
+    public void testCommitJournalRecovery() throws Exception
+    {
+        File folder = createScratchFolder("journal");
+        CommitJournal journal = new CommitJournal();
+        journal.setDirectory(folder.getPath());
+        journal.init();
+        String root = ftTransferReceiver.getDefaultReceivingroot();
+        String rootRef = companytHome.toString();
+        String suffix = GUID.generate();
+        long temp = System.nanoTime();
+
+        String otherTransferId = ftTransferReceiver.start("other " + suffix, true, ftTransferReceiver.getVersion());
+        String otherTemp = createReceivedNode(rootRef, "/", ".ftr" + temp++, false);
+        ftTransferReceiver.end(otherTransferId);
+
+        String transferId = ftTransferReceiver.start("repo " + suffix, true, ftTransferReceiver.getVersion());
+        try
+        {
+            String forwardName = ".ftr" + temp++;
+            String forward = createReceivedNode(rootRef, "/", forwardName, false);
+            String backName = ".ftr" + temp++;
+            FileCopyUtils.copy(dummyContentBytes, new File(root + "/" + backName));
+            String back = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()).toString();
+            String deletedName = ".ftr" + temp++;
+            String deleted = createReceivedNode(rootRef, "/", deletedName, true);
+            String deletedChild = createReceivedNode(deleted, "/" + deletedName + "/", "child.txt", false);
+            String unjournalled = createReceivedNode(rootRef, "/", ".ftr" + temp++, false);
+
+            CommitJournal.Transaction tx = journal.begin(transferId, ftTransferReceiver.getSourceRepoId());
+            tx.temp(forward, false, root + "/", forwardName, "forward_" + suffix + ".txt", null);
+            tx.temp(back, false, root + "/", backName, "back_" + suffix + ".txt", null);
+            tx.delete(deleted, deletedName);
+            tx.close();
+
+            new CommitJournalRecovery(ftTransferReceiver, journal).recoverAll();
+
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            assertEquals("forward_" + suffix + ".txt", dbHelper.findFileTransferInfoByNodeRef(forward)
+                    .getContentName());
+            assertTrue(new File(root + "/forward_" + suffix + ".txt").exists());
+            assertFalse(new File(root + "/" + forwardName).exists());
+            assertFalse(new File(root + "/" + backName).exists());
+            assertFalse(new File(root + "/back_" + suffix + ".txt").exists());
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(deleted));
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(deletedChild));
+            assertFalse(new File(root + "/" + deletedName).exists());
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(unjournalled));
+            assertFalse(journal.getJournalFile(transferId).exists());
+
+            FileTransferInfoEntity other = dbHelper.findFileTransferInfoByNodeRef(otherTemp);
+            assertNotNull(other);
+            File otherFile = ftTransferReceiver.getReceivedFile(other);
+            assertTrue(otherFile.exists());
+            assertTrue(otherFile.delete());
+            dbHelper.deleteNodeByNodeRef(otherTemp);
+            dbHelper.deleteNodeByNodeRef(forward);
+            assertTrue(new File(root + "/forward_" + suffix + ".txt").delete());
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * A clustered node leaves the journals of the other nodes and their temporary records alone
+     */
+    public void testCommitJournalRecoveryInCluster() throws Exception
+    {
+        File folder = createScratchFolder("journal");
+        CommitJournal journal = new CommitJournal();
+        journal.setDirectory(folder.getPath());
+        journal.init();
+        FileTransferCluster previous = ftTransferReceiver.getCluster();
+        FileTransferCluster cluster = new FileTransferCluster();
+        cluster.setNodeId("node1");
+        String rootRef = companytHome.toString();
+        long temp = System.nanoTime();
+        try
+        {
+            ftTransferReceiver.setCluster(cluster);
+            String otherName = ".ftr" + temp++;
+            String otherNode = createReceivedNode(rootRef, "/", otherName, false);
+            String unjournalled = createReceivedNode(rootRef, "/", ".ftr" + temp++, false);
+            String localName = ".ftr" + temp++;
+            String localNode = createReceivedNode(rootRef, "/", localName, false);
+
+            String otherTransferId = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "node2"
+                    + FileTransferCluster.OWNER_SEPARATOR + GUID.generate()).toString();
+            CommitJournal.Transaction tx = journal.begin(otherTransferId, ftTransferReceiver.getSourceRepoId());
+            tx.temp(otherNode, false, ftTransferReceiver.getDefaultReceivingroot() + "/", otherName, "other.txt",
+                    null);
+            tx.close();
+            String localTransferId = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE,
+                    cluster.ownedNodeId(GUID.generate())).toString();
+            tx = journal.begin(localTransferId, ftTransferReceiver.getSourceRepoId());
+            tx.delete(localNode, localName);
+            tx.close();
+
+            new CommitJournalRecovery(ftTransferReceiver, journal).recoverAll();
+
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(localNode));
+            assertFalse(journal.getJournalFile(localTransferId).exists());
+            assertTrue(journal.getJournalFile(otherTransferId).exists());
+            for (String nodeRef : new String[] {otherNode, unjournalled})
+            {
+                FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(nodeRef);
+                assertNotNull(entity);
+                assertTrue(ftTransferReceiver.getReceivedFile(entity).delete());
+                dbHelper.deleteNodeByNodeRef(nodeRef);
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setCluster(previous);
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * A journal with a change that cannot be recovered is kept along with the temporary record of the change, and the
+     * recovery completes at the next attempt
+     */
+    public void testCommitJournalRecoveryKeepsFailedJournal() throws Exception
+    {
+        File folder = createScratchFolder("journal");
+        CommitJournal journal = new CommitJournal();
+        journal.setDirectory(folder.getPath());
+        journal.init();
+        String root = ftTransferReceiver.getDefaultReceivingroot();
+        String suffix = GUID.generate();
+        String transferId = ftTransferReceiver.start("repo " + suffix, true, ftTransferReceiver.getVersion());
+        File target = new File(root + "/forward_" + suffix + ".txt");
+        try
+        {
+            String tempName = ".ftr" + System.nanoTime();
+            String forward = createReceivedNode(companytHome.toString(), "/", tempName, false);
+            CommitJournal.Transaction tx = journal.begin(transferId, ftTransferReceiver.getSourceRepoId());
+            tx.temp(forward, false, root + "/", tempName, target.getName(), null);
+            tx.close();
+            //The final name is taken, so the temporary file cannot be renamed
+            FileCopyUtils.copy(dummyContentBytes, target);
+
+            new CommitJournalRecovery(ftTransferReceiver, journal).recoverAll();
+
+            DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+            assertTrue(journal.getJournalFile(transferId).exists());
+            assertEquals(tempName, dbHelper.findFileTransferInfoByNodeRef(forward).getContentName());
+            assertTrue(new File(root + "/" + tempName).exists());
+
+            assertTrue(target.delete());
+            new CommitJournalRecovery(ftTransferReceiver, journal).recoverAll();
+
+            assertFalse(journal.getJournalFile(transferId).exists());
+            assertEquals(target.getName(), dbHelper.findFileTransferInfoByNodeRef(forward).getContentName());
+            assertTrue(target.exists());
+            assertFalse(new File(root + "/" + tempName).exists());
+            dbHelper.deleteNodeByNodeRef(forward);
+        }
+        finally
+        {
+            target.delete();
+            ftTransferReceiver.end(transferId);
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * A scan reports the differences between the receiving root and the database, and a repairing scan fixes those
+     * that can be fixed
+     */
+    public void testConsistencyScanner() throws Exception
+    {
+        File folder = createScratchFolder("verify");
+        ConsistencyScanner scanner = new ConsistencyScanner();
+        scanner.setReceiver(ftTransferReceiver);
+        scanner.setParallelism(2);
+        scanner.setCheckpointFile(new File(folder, "verify.checkpoint").getPath());
+        scanner.setReportDirectory(folder.getPath());
+
+        String root = ftTransferReceiver.getDefaultReceivingroot();
+        String rootRef = companytHome.toString();
+        String suffix = GUID.generate();
+        String folderRef = createReceivedNode(rootRef, "/", "F_" + suffix, true);
+        String stale = createReceivedNode(folderRef, "/F_" + suffix + "/", "stale.txt", false);
+        assertTrue(new File(root + "/F_" + suffix + "/stale.txt").delete());
+        String misplaced = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()).toString();
+        FileCopyUtils.copy(dummyContentBytes, new File(root + "/F_" + suffix + "/misplaced.txt"));
+        ftTransferReceiver.getDbHelper().createNodeInDB(misplaced, folderRef, "/W_" + suffix + "/",
+                "misplaced.txt", "/misplaced.txt", false);
+        File untracked = new File(root + "/F_" + suffix + "/untracked.txt");
+        FileCopyUtils.copy(dummyContentBytes, untracked);
+        File orphanTemp = new File(root + "/F_" + suffix + "/.ftr" + System.nanoTime());
+        FileCopyUtils.copy(dummyContentBytes, orphanTemp);
+        assertTrue(orphanTemp.setLastModified(System.currentTimeMillis() - 2L * 60L * 60L * 1000L));
+
+        Map<String, String[]> found = runScan(scanner, false, folder, suffix);
+        assertEquals("STALE_ROW", found.get("stale.txt")[0]);
+        assertEquals(stale, found.get("stale.txt")[2]);
+        assertEquals("PATH_MISMATCH", found.get("misplaced.txt")[0]);
+        assertEquals("UNTRACKED", found.get("untracked.txt")[0]);
+        assertEquals("ORPHAN_TEMP", found.get(orphanTemp.getName())[0]);
+        for (String[] record : found.values())
+        {
+            assertEquals("reported", record[3]);
+        }
+        assertTrue(orphanTemp.exists());
+        assertNotNull(ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(stale));
+
+        found = runScan(scanner, true, folder, suffix);
+        assertEquals("repaired", found.get("stale.txt")[3]);
+        assertEquals("repaired", found.get("misplaced.txt")[3]);
+        assertEquals("reported", found.get("untracked.txt")[3]);
+        assertEquals("repaired", found.get(orphanTemp.getName())[3]);
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        assertNull(dbHelper.findFileTransferInfoByNodeRef(stale));
+        assertEquals("/F_" + suffix + "/", dbHelper.findFileTransferInfoByNodeRef(misplaced).getPath());
+        assertFalse(orphanTemp.exists());
+        assertTrue(untracked.exists());
+
+        // Nothing left to repair in the folder but the untracked file
+        found = runScan(scanner, true, folder, suffix);
+        assertEquals(Collections.singleton("untracked.txt"), found.keySet());
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * In a cluster a repairing scan fails while another node holds the commit lock, and holds the lock itself while it
+     * repairs, so that no node can commit until it ends
+     */
+    public void testConsistencyScannerInCluster() throws Exception
+    {
+        File folder = createScratchFolder("verify");
+        ConsistencyScanner scanner = new ConsistencyScanner();
+        scanner.setReceiver(ftTransferReceiver);
+        scanner.setCheckpointFile(new File(folder, "verify.checkpoint").getPath());
+        scanner.setReportDirectory(folder.getPath());
+        JobLockService jobLockService = (JobLockService) context.getBean("jobLockService");
+        FileTransferCluster previous = ftTransferReceiver.getCluster();
+        FileTransferCluster cluster = new FileTransferCluster();
+        cluster.setNodeId("node1");
+        cluster.setJobLockService(jobLockService);
+        cluster.setCommitLockRetryWait(100L);
+        cluster.setCommitLockWait(500L);
+        FileTransferCluster other = new FileTransferCluster();
+        other.setNodeId("node2");
+        other.setJobLockService(jobLockService);
+        other.setCommitLockRetryWait(100L);
+        other.setCommitLockWait(500L);
+
+        String suffix = GUID.generate();
+        String folderRef = createReceivedNode(companytHome.toString(), "/", "F_" + suffix, true);
+        String stale = createReceivedNode(folderRef, "/F_" + suffix + "/", "stale.txt", false);
+        assertTrue(new File(ftTransferReceiver.getDefaultReceivingroot() + "/F_" + suffix + "/stale.txt").delete());
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        try
+        {
+            ftTransferReceiver.setCluster(cluster);
+            FileTransferCluster.CommitLock otherLock = other.acquireCommitLock();
+            try
+            {
+                assertTrue(scanner.start(true, false));
+                for (int i = 0; i < 600 && scanner.isRunning(); i++)
+                {
+                    Thread.sleep(100);
+                }
+                assertEquals("FAILED", scanner.getMetrics().get("status"));
+                assertNotNull(dbHelper.findFileTransferInfoByNodeRef(stale));
+            }
+            finally
+            {
+                otherLock.release();
+            }
+
+            // Slowed down, the scan still holds the lock when the other node tries to commit
+            scanner.setMaxEntriesPerSecond(1);
+            assertTrue(scanner.start(true, false));
+            Thread.sleep(200L);
+            try
+            {
+                other.acquireCommitLock().release();
+                fail("Node committed while the scan was repairing");
+            }
+            catch (TransferException e)
+            {
+                // Expected
+            }
+            scanner.stop();
+            for (int i = 0; i < 600 && scanner.isRunning(); i++)
+            {
+                Thread.sleep(100);
+            }
+            other.acquireCommitLock().release();
+            scanner.setMaxEntriesPerSecond(0);
+
+            Map<String, String[]> found = runScan(scanner, true, folder, suffix);
+            assertEquals("repaired", found.get("stale.txt")[3]);
+            assertNull(dbHelper.findFileTransferInfoByNodeRef(stale));
+            other.acquireCommitLock().release();
+        }
+        finally
+        {
+            ftTransferReceiver.setCluster(previous);
+            assertTrue(new File(ftTransferReceiver.getDefaultReceivingroot() + "/F_" + suffix).delete());
+            dbHelper.deleteNodeByNodeRef(folderRef);
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * Run a scan to its end and return the records of its report about the folder of the given suffix, by file name
+     */
+    private Map<String, String[]> runScan(ConsistencyScanner scanner, boolean repair, File reportDirectory,
+            String suffix) throws Exception
+    {
+        assertTrue(scanner.start(repair, false));
+        for (int i = 0; i < 600 && scanner.isRunning(); i++)
+        {
+            Thread.sleep(100);
+        }
+        assertFalse(scanner.isRunning());
+        assertEquals("COMPLETE", scanner.getMetrics().get("status"));
+        Map<String, String[]> found = new HashMap<String, String[]>();
+        File report = new File(reportDirectory, (String) scanner.getMetrics().get("report"));
+        for (String[] record : CommitJournal.read(report))
+        {
+            File file = new File(record[1]);
+            if (file.getParentFile().getName().endsWith(suffix))
+            {
+                found.put(file.getName(), record);
+            }
+        }
+        // A scan in the same second would append to the same report
+        assertTrue(report.delete());
+        return found;
+    }
+
+    /**
+     * A transfer is URGENT, and not held to the limit of its source, until it has written a small transfer's worth;
+     * after that it takes the class of its source. Copies keep the content and last modified time of their source.
+     */
+    public void testTransferThrottlePriorities() throws Exception
+    {
+        TransferThrottle throttle = new TransferThrottle();
+        throttle.setDefaultSourceBytesPerSecond(1000L);
+        throttle.setSourcePriorities("bulkRepo=bulk, badRepo=fastest");
+        throttle.setSmallTransferBytes(100000L);
+        throttle.init();
+        throttle.register("t1", "bulkRepo");
+        throttle.register("t2", "badRepo");
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++)
+        {
+            throttle.acquire("t1", 9000L);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+        assertEquals("URGENT", throttle.getMetrics().get("transfer.t1.priority"));
+        throttle.acquire("t1", 10000L);
+        assertEquals(100000L, throttle.getMetrics().get("transfer.t1.written"));
+        assertEquals("BULK", throttle.getMetrics().get("transfer.t1.priority"));
+        throttle.acquire("t2", 100000L);
+        assertEquals("NORMAL", throttle.getMetrics().get("transfer.t2.priority"));
+
+        File folder = createScratchFolder("throttle");
+        File source = new File(folder, "source");
+        FileCopyUtils.copy(dummyContentBytes, source);
+        assertTrue(source.setLastModified(1000000000000L));
+        File target = new File(folder, "target");
+        throttle.register("t3", "otherRepo");
+        throttle.copy("t3", source, target);
+        assertTrue(Arrays.equals(dummyContentBytes, FileCopyUtils.copyToByteArray(target)));
+        assertEquals(source.lastModified(), target.lastModified());
+        assertEquals((long) dummyContentBytes.length, throttle.getMetrics().get("transfer.t3.written"));
+
+        throttle.unregister("t1");
+        assertNull(throttle.getMetrics().get("transfer.t1.written"));
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Once past a small transfer's worth, writes are held to the limit of their source repository
+     */
+    public void testTransferThrottleLimitsRate() throws Exception
+    {
+        TransferThrottle throttle = new TransferThrottle();
+        throttle.setSourceBytesPerSecond("slowRepo=1000000");
+        throttle.setSmallTransferBytes(0L);
+        throttle.init();
+        throttle.register("slow", "slowRepo");
+        throttle.register("fast", "fastRepo");
+
+        // The bucket starts with a second's worth, the next two seconds' worth have to wait
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++)
+        {
+            throttle.acquire("slow", 100000L);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + "ms", elapsed >= 1500L);
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++)
+        {
+            throttle.acquire("fast", 100000L);
+        }
+        elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + "ms", elapsed < 1000L);
+        assertEquals(1000000L, throttle.getMetrics().get("source.slowRepo.limit"));
+    }
+
+    /**
+     * Senders that ask to start while the lock is held are queued, and each is admitted in turn as soon as the lock is
+     * released rather than after the retries of the lock provider
+     */
+    public void testAdmissionQueueAdmitsInOrder() throws Exception
+    {
+        long lockRetryWait = ftTransferReceiver.getLockRetryWait();
+        int lockRetryCount = ftTransferReceiver.getLockRetryCount();
+        TransferAdmissionQueue queue = new TransferAdmissionQueue();
+        queue.setMaxWait(60000L);
+        queue.setPollInterval(60000L);
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, String> transferIds = Collections.synchronizedMap(new HashMap<String, String>());
+        String firstId = null;
+        try
+        {
+            // A sender retrying on its own would wait this long between attempts
+            ftTransferReceiver.setLockRetryWait(30000L);
+            ftTransferReceiver.setLockRetryCount(2);
+            ftTransferReceiver.setAdmissionQueue(queue);
+            firstId = ftTransferReceiver.start("first", true, ftTransferReceiver.getVersion());
+
+            List<Thread> senders = new ArrayList<Thread>();
+            for (final String source : new String[] {"second", "third"})
+            {
+                Thread sender = new Thread(new Runnable()
+                    {
+                        public void run()
+                        {
+                            String transferId = ftTransferReceiver.start(source, true, ftTransferReceiver.getVersion());
+                            transferIds.put(source, transferId);
+                            admitted.add(source);
+                        }
+                    });
+                sender.start();
+                senders.add(sender);
+                waitFor(queue, "waiting", senders.size());
+            }
+            assertTrue(admitted.isEmpty());
+
+            long released = System.currentTimeMillis();
+            ftTransferReceiver.end(firstId);
+            firstId = null;
+            for (int i = 0; i < 100 && admitted.isEmpty(); i++)
+            {
+                Thread.sleep(50);
+            }
+            assertEquals(Collections.singletonList("second"), admitted);
+            assertTrue(System.currentTimeMillis() - released < 10000L);
+            waitFor(queue, "waiting", 1);
+
+            ftTransferReceiver.end(transferIds.get("second"));
+            for (Thread sender : senders)
+            {
+                sender.join(10000L);
+            }
+            assertEquals(Arrays.asList("second", "third"), admitted);
+            ftTransferReceiver.end(transferIds.get("third"));
+            assertEquals(3L, queue.getMetrics().get("granted"));
+            assertEquals(0, queue.getMetrics().get("queueLength"));
+        }
+        finally
+        {
+            if (firstId != null)
+            {
+                ftTransferReceiver.end(firstId);
+            }
+            ftTransferReceiver.setAdmissionQueue((TransferAdmissionQueue) context.getBean("transferAdmissionQueue"));
+            ftTransferReceiver.setLockRetryWait(lockRetryWait);
+            ftTransferReceiver.setLockRetryCount(lockRetryCount);
+        }
+    }
+
+    private void waitFor(FileTransferMetricsProvider provider, String metric, int value) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && !Integer.valueOf(value).equals(provider.getMetrics().get(metric)); i++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(value, provider.getMetrics().get(metric));
+    }
+
+    /**
+     * A lock held in memory is refused to others until it is released or its time to live passes without a refresh
+     */
+    public void testInMemoryLockExpiryAndRelease() throws Exception
+    {
+        InMemoryTransferLockProvider provider = new InMemoryTransferLockProvider();
+        QName lockQName = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "lock" + GUID.generate());
+        try
+        {
+            String token = provider.getLock(lockQName, 300L, 0L, 0);
+            try
+            {
+                provider.getLock(lockQName, 300L, 0L, 0);
+                fail("Lock taken twice");
+            }
+            catch (LockAcquisitionException e)
+            {
+                // Expected
+            }
+            assertFalse(provider.releaseLock("not the token", lockQName));
+
+            // Not refreshed, so taken by the next attempt after it expires
+            long start = System.currentTimeMillis();
+            String next = provider.getLock(lockQName, 300L, 50L, 100);
+            assertTrue(System.currentTimeMillis() - start >= 250L);
+            assertFalse(next.equals(token));
+            assertFalse(provider.releaseLock(token, lockQName));
+
+            assertTrue(provider.releaseLock(next, lockQName));
+            assertFalse(provider.releaseLock(next, lockQName));
+            start = System.currentTimeMillis();
+            assertTrue(provider.releaseLock(provider.getLock(lockQName, 300L, 0L, 0), lockQName));
+            assertTrue(System.currentTimeMillis() - start < 250L);
+        }
+        finally
+        {
+            provider.destroy();
+        }
+    }
+
+    /**
+     * A refreshed lock outlives its time to live while its callback says it is active, and is released, with the
+     * callback told, once it says it is not
+     */
+    public void testInMemoryLockRefresh() throws Exception
+    {
+        InMemoryTransferLockProvider provider = new InMemoryTransferLockProvider();
+        QName lockQName = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "lock" + GUID.generate());
+        final AtomicBoolean active = new AtomicBoolean(true);
+        final CountDownLatch released = new CountDownLatch(1);
+        try
+        {
+            String token = provider.getLock(lockQName, 200L, 0L, 0);
+            provider.refreshLock(token, lockQName, 200L, new JobLockRefreshCallback()
+                {
+                    public boolean isActive()
+                    {
+                        return active.get();
+                    }
+
+                    public void lockReleased()
+                    {
+                        released.countDown();
+                    }
+                });
+            Thread.sleep(700L);
+            try
+            {
+                provider.getLock(lockQName, 200L, 0L, 0);
+                fail("Refreshed lock taken");
+            }
+            catch (LockAcquisitionException e)
+            {
+                // Expected
+            }
+
+            active.set(false);
+            assertTrue(released.await(2L, TimeUnit.SECONDS));
+            assertFalse(provider.releaseLock(token, lockQName));
+            assertTrue(provider.releaseLock(provider.getLock(lockQName, 200L, 0L, 0), lockQName));
+        }
+        finally
+        {
+            provider.destroy();
+        }
+    }
+
+    /**
+     * The affinity filter routes the commands whose processors work on the staging folder of a transfer, whichever
+     * they are, and the stock commands it is told about
+     */
+    public void testAffinityFilterRoutesTransferScopedCommands() throws Exception
+    {
+        Map<String, CommandProcessor> processors = new HashMap<String, CommandProcessor>();
+        processors.put("post-content", new FileTransferPostContentCommandProcessor());
+        processors.put("post-content-archive", new FileTransferPostContentArchiveCommandProcessor());
+        processors.put("post-delta", new FileTransferPostDeltaCommandProcessor());
+        processors.put("content-status", new FileTransferContentStatusCommandProcessor());
+        processors.put("metrics", new FileTransferMetricsCommandProcessor());
+        FileTransferWebScript webScript = new FileTransferWebScript();
+        webScript.setCommandProcessors(processors);
+
+        TransferAffinityFilter filter = new TransferAffinityFilter();
+        filter.setWebScript(webScript);
+        for (String command : new String[] { "post-content", "post-content-archive", "post-delta", "content-status",
+                "prepare", "commit", "abort", "messages", "report" })
+        {
+            assertTrue(command, filter.isRouted(command));
+        }
+        for (String command : new String[] { "metrics", "begin", "status", "unknown", "" })
+        {
+            assertFalse(command, filter.isRouted(command));
+        }
+
+        filter.setRoutedCommands("commit, ");
+        assertTrue(filter.isRouted("commit"));
+        assertFalse(filter.isRouted("abort"));
+        assertTrue(filter.isRouted("post-delta"));
+    }
+
+    /**
+     * A node that loses the commit lock of the cluster is told so before the next phase of its commit, and the lock it
+     * lost is given up
+     */
+    public void testCommitLockLost() throws Exception
+    {
+        FileTransferCluster single = new FileTransferCluster();
+        single.acquireCommitLock().checkHeld();
+
+        FileTransferCluster cluster = new FileTransferCluster();
+        cluster.setNodeId("node" + System.currentTimeMillis());
+        cluster.setJobLockService((JobLockService) context.getBean("jobLockService"));
+        cluster.setCommitLockTimeToLive(500L);
+        cluster.setCommitLockRetryWait(100L);
+        cluster.setCommitLockWait(10000L);
+
+        FileTransferCluster.CommitLock lock = cluster.acquireCommitLock();
+        try
+        {
+            Thread.sleep(1200L);
+            lock.checkHeld();
+
+            //As if the refresh had found another node holding the lock
+            lock.lockReleased();
+            assertFalse(lock.isActive());
+            try
+            {
+                lock.checkHeld();
+                fail("Lost commit lock taken for held");
+            }
+            catch (TransferException e)
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+
+        FileTransferCluster.CommitLock next = cluster.acquireCommitLock();
+        next.checkHeld();
+        next.release();
+    }
+
+    /**
+     * The log-structured store comes back from its log as it was left, without the torn frame of an interrupted write
+     */
+    public void testLogStructuredStoreReplay() throws Exception
+    {
+        File folder = createScratchFolder("metadata");
+        try
+        {
+            LogStructuredFileTransferInfoDAO dao = openStore(folder);
+            dao.createFileTransferInfo("folder", "root", "/", "folder", null, true, "repo", 0L, null, null);
+            dao.createFileTransferInfo("doc", "folder", "/folder/", "doc", "content1", false, "repo", 10L, "abc",
+                    "volume1");
+            FileTransferInfoEntity doc = dao.findFileTransferInfoByNodeRef("doc");
+            doc.setContentUrl("content2");
+            dao.updateFileTransferInfoByNodeRef(doc);
+            dao.createFileTransferInfo("gone", "folder", "/folder/", "gone", null, false, "repo", 0L, null, null);
+            dao.deleteFileTransferInfoByNodeRef("gone");
+            dao.createFileTransferNodeRenameEntity("doc", "transfer1", "doc2");
+            dao.close();
+
+            File logFile = new File(folder, LogStructuredFileTransferInfoDAO.LOG_FILE);
+            long length = logFile.length();
+            //A frame whose header claims more than was written, as if the receiver died while writing it
+            RandomAccessFile torn = new RandomAccessFile(logFile, "rw");
+            try
+            {
+                torn.seek(length);
+                torn.writeInt(100);
+                torn.writeInt(0);
+                torn.write(new byte[10]);
+            }
+            finally
+            {
+                torn.close();
+            }
+
+            dao = openStore(folder);
+            assertEquals(length, logFile.length());
+            doc = dao.findFileTransferInfoByNodeRef("doc");
+            assertEquals("content2", doc.getContentUrl());
+            assertEquals(10L, doc.getContentSize());
+            assertEquals("abc", doc.getContentChecksum());
+            assertEquals("volume1", doc.getVolume());
+            assertNull(dao.findFileTransferInfoByNodeRef("gone"));
+            assertEquals(1, dao.findFileTransferInfoByParentNodeRef("folder").size());
+            assertEquals("doc2", dao.findFileTransferNodeRenameEntityByTransferId("transfer1").get(0).getNewName());
+
+            //Still appended to after the cut
+            dao.createFileTransferInfo("doc3", "folder", "/folder/", "doc3", null, false, "repo", 0L, null, null);
+            dao.close();
+            dao = openStore(folder);
+            assertEquals(2, dao.findFileTransferInfoByParentNodeRef("folder").size());
+            dao.close();
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    /**
+     * A write that fails part way is cut off the log, so that the writes after it are not lost at the next start
+     */
+    public void testLogStructuredStoreFailedWrite() throws Exception
+    {
+        File folder = createScratchFolder("metadata");
+        try
+        {
+            final AtomicBoolean fail = new AtomicBoolean();
+            LogStructuredFileTransferInfoDAO dao = new LogStructuredFileTransferInfoDAO()
+            {
+                @Override
+                void append(ByteBuffer frame) throws IOException
+                {
+                    if (fail.getAndSet(false))
+                    {
+                        //Half the frame reaches the log, as if the disk had filled up
+                        ByteBuffer half = frame.duplicate();
+                        half.limit(frame.position() + frame.remaining() / 2);
+                        super.append(half);
+                        throw new IOException("No space left on device");
+                    }
+                    super.append(frame);
+                }
+            };
+            dao.setDirectory(folder.getPath());
+            dao.setSyncWrites(false);
+            dao.init();
+            dao.createFileTransferInfo("before", "root", "/", "before", null, false, "repo", 0L, null, null);
+            fail.set(true);
+            try
+            {
+                dao.createFileTransferInfo("failed", "root", "/", "failed", null, false, "repo", 0L, null, null);
+                fail("Failed write reported as written");
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                // Expected
+            }
+            assertNull(dao.findFileTransferInfoByNodeRef("failed"));
+            dao.createFileTransferInfo("after", "root", "/", "after", null, false, "repo", 0L, null, null);
+            dao.close();
+
+            dao = openStore(folder);
+            assertNotNull(dao.findFileTransferInfoByNodeRef("before"));
+            assertNull(dao.findFileTransferInfoByNodeRef("failed"));
+            assertNotNull(dao.findFileTransferInfoByNodeRef("after"));
+            dao.close();
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    /**
+     * The paths below a moved folder are written as one change, which a crash cannot leave half done
+     */
+    public void testLogStructuredStorePathUpdate() throws Exception
+    {
+        File folder = createScratchFolder("metadata");
+        try
+        {
+            LogStructuredFileTransferInfoDAO dao = openStore(folder);
+            dao.createFileTransferInfo("a", "root", "/", "a", null, true, "repo", 0L, null, null);
+            dao.createFileTransferInfo("b", "a", "/a/", "b", null, true, "repo", 0L, null, null);
+            dao.createFileTransferInfo("c", "b", "/a/b/", "c", null, true, "repo", 0L, null, null);
+            dao.createFileTransferInfo("d", "c", "/a/b/c/", "d", "content", false, "repo", 0L, null, null);
+            dao.createFileTransferInfo("e", "a", "/a/", "e", "content", false, "repo", 0L, null, null);
+            dao.close();
+            File logFile = new File(folder, LogStructuredFileTransferInfoDAO.LOG_FILE);
+            long length = logFile.length();
+
+            dao = openStore(folder);
+            dao.updatePathOfDescendants("a", "/x/");
+            assertEquals("/x/", dao.findFileTransferInfoByNodeRef("b").getPath());
+            assertEquals("/x/b/", dao.findFileTransferInfoByNodeRef("c").getPath());
+            assertEquals("/x/b/c/", dao.findFileTransferInfoByNodeRef("d").getPath());
+            assertEquals("/x/", dao.findFileTransferInfoByNodeRef("e").getPath());
+            assertEquals("/", dao.findFileTransferInfoByNodeRef("a").getPath());
+            dao.close();
+
+            //Cut off the last byte: the whole change is lost, not just its deepest level
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try
+            {
+                assertTrue(file.length() > length);
+                file.setLength(file.length() - 1);
+            }
+            finally
+            {
+                file.close();
+            }
+            dao = openStore(folder);
+            assertEquals(length, logFile.length());
+            assertEquals("/a/", dao.findFileTransferInfoByNodeRef("b").getPath());
+            assertEquals("/a/b/", dao.findFileTransferInfoByNodeRef("c").getPath());
+            assertEquals("/a/b/c/", dao.findFileTransferInfoByNodeRef("d").getPath());
+            dao.close();
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    /**
+     * A log holding many more records than are live is rewritten with the live ones, and goes on being appended to
+     */
+    public void testLogStructuredStoreCompaction() throws Exception
+    {
+        File folder = createScratchFolder("metadata");
+        try
+        {
+            LogStructuredFileTransferInfoDAO dao = openStore(folder);
+            dao.setMinCompactionRecords(50L);
+            dao.setCompactionRatio(4);
+            File logFile = new File(folder, LogStructuredFileTransferInfoDAO.LOG_FILE);
+            for (int i = 0; i < 10; i++)
+            {
+                dao.createFileTransferInfo("doc" + i, "folder", "/", "doc" + i, "content", false, "repo", 0L, null,
+                        null);
+            }
+            long maxLength = 0L;
+            for (int round = 0; round < 20; round++)
+            {
+                for (int i = 0; i < 10; i++)
+                {
+                    FileTransferInfoEntity doc = dao.findFileTransferInfoByNodeRef("doc" + i);
+                    doc.setContentUrl("content" + round);
+                    dao.updateFileTransferInfoByNodeRef(doc);
+                }
+                maxLength = Math.max(maxLength, logFile.length());
+            }
+            //Without compaction the log would hold 210 records
+            assertTrue(logFile.length() < maxLength);
+            assertFalse(new File(folder, "metadata.log.compact").exists());
+            dao.createFileTransferNodeRenameEntity("doc0", "transfer1", "renamed");
+            dao.close();
+
+            dao = openStore(folder);
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("content19", dao.findFileTransferInfoByNodeRef("doc" + i).getContentUrl());
+            }
+            assertEquals(10, dao.findFileTransferInfoByParentNodeRef("folder").size());
+            assertEquals(1, dao.findFileTransferNodeRenameEntityByTransferId("transfer1").size());
+            dao.close();
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    private LogStructuredFileTransferInfoDAO openStore(File folder)
+    {
+        LogStructuredFileTransferInfoDAO dao = new LogStructuredFileTransferInfoDAO();
+        dao.setDirectory(folder.getPath());
+        dao.setSyncWrites(false);
+        dao.init();
+        return dao;
+    }
+
+    /**
+     * The pool is sized from the commit executor unless its size is given, and the connection of each commit thread
+     * comes with the headroom the rest of the receiver needs
+     */
+    public void testDataSourcePoolSizing() throws Exception
+    {
+        FileTransferDataSource configured = (FileTransferDataSource) context.getBean("dataSource");
+        assertTrue(configured.getMaxActive() > 1);
+        assertEquals(Boolean.TRUE, configured.getMetrics().get("preparedStatementPooling"));
+
+        FileTransferDataSource dataSource = new FileTransferDataSource();
+        dataSource.setCommitParallelism(3);
+        dataSource.setPoolHeadroom(2);
+        dataSource.init();
+        assertEquals(5, dataSource.getMaxActive());
+        assertEquals(5, dataSource.getMaxIdle());
+
+        dataSource = new FileTransferDataSource();
+        dataSource.setPoolSize(2);
+        dataSource.setCommitParallelism(8);
+        dataSource.init();
+        assertEquals(2, dataSource.getMaxActive());
+    }
+
+    /**
+     * Running out of connections is reported as a transient exhaustion of the pool, and counted
+     */
+    public void testDataSourcePoolExhausted() throws Exception
+    {
+        FileTransferDataSource dataSource = createTestDataSource();
+        dataSource.setPoolSize(1);
+        dataSource.setMaxWait(100L);
+        dataSource.init();
+        try
+        {
+            Connection held = dataSource.getConnection();
+            try
+            {
+                dataSource.getConnection();
+                fail("Connection taken from an exhausted pool");
+            }
+            catch (ConnectionPoolExhaustedException e)
+            {
+                // Expected
+            }
+            finally
+            {
+                held.close();
+            }
+            dataSource.getConnection().close();
+
+            Map<String, Object> metrics = dataSource.getMetrics();
+            assertEquals(1, metrics.get("maxActive"));
+            assertEquals(2L, metrics.get("acquired"));
+            assertEquals(1L, metrics.get("exhausted"));
+        }
+        finally
+        {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * A statement prepared again on a connection of the pool is taken from its cache instead of being prepared anew
+     */
+    public void testDataSourceStatementCache() throws Exception
+    {
+        for (boolean pooled : new boolean[] { true, false })
+        {
+            FileTransferDataSource dataSource = createTestDataSource();
+            dataSource.setPoolSize(1);
+            dataSource.setPoolPreparedStatements(pooled);
+            dataSource.setMaxOpenPreparedStatements(10);
+            dataSource.init();
+            try
+            {
+                Connection connection = dataSource.getConnection();
+                try
+                {
+                    Statement first = prepareInnermost(connection, "VALUES 1");
+                    Statement second = prepareInnermost(connection, "VALUES 1");
+                    Statement other = prepareInnermost(connection, "VALUES 2");
+                    assertEquals(pooled, first == second);
+                    assertNotSame(first, other);
+                }
+                finally
+                {
+                    connection.close();
+                }
+            }
+            finally
+            {
+                dataSource.close();
+            }
+        }
+    }
+
+    private FileTransferDataSource createTestDataSource()
+    {
+        FileTransferDataSource dataSource = new FileTransferDataSource();
+        dataSource.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+        dataSource.setUrl("jdbc:derby:memory:ftr" + GUID.generate().replace("-", "") + ";create=true");
+        return dataSource;
+    }
+
+    /**
+     * @return the driver's statement behind a statement prepared, run and closed on the connection
+     */
+    private Statement prepareInnermost(Connection connection, String sql) throws Exception
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try
+        {
+            statement.executeQuery().close();
+            return ((DelegatingStatement) statement).getInnermostDelegate();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    /**
+     * A database that cannot be reached stops the startup, whether the schema is checked in the background or not,
+     * while a missing table only means that the schema is to be created
+     */
+    public void testSchemaBootstrapFailureStopsStartup() throws Exception
+    {
+        for (boolean async : new boolean[] { false, true })
+        {
+            BasicDataSource dataSource = new BasicDataSource();
+            dataSource.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+            dataSource.setUrl("jdbc:derby:memory:missing" + GUID.generate().replace("-", ""));
+            SchemaBootstrap bootstrap = new SchemaBootstrap();
+            bootstrap.setDataSource(dataSource);
+            bootstrap.setCreationScript("classpath:alfresco/no-such-script.sql");
+            bootstrap.setAsyncStartup(async);
+            bootstrap.init();
+            try
+            {
+                bootstrap.onBootstrap(null);
+                fail("Startup went on without a database");
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                // Expected
+            }
+            finally
+            {
+                dataSource.close();
+            }
+        }
+
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+        dataSource.setUrl("jdbc:derby:memory:empty" + GUID.generate().replace("-", "") + ";create=true");
+        try
+        {
+            Connection connection = dataSource.getConnection();
+            try
+            {
+                SchemaBootstrap bootstrap = new SchemaBootstrap();
+                assertFalse(bootstrap.isDBInitialized(connection));
+                assertFalse(bootstrap.hasColumn(connection, "version", "id"));
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+        finally
+        {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * The schema is checked once, in the background or by the first bean to await it, and every bean awaiting it
+     * waits until it has been checked
+     */
+    public void testAwaitSchema() throws Exception
+    {
+        for (boolean async : new boolean[] { false, true })
+        {
+            final AtomicInteger checks = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final SchemaBootstrap bootstrap = new SchemaBootstrap()
+            {
+                @Override
+                protected void bootstrapSchema() throws SQLException
+                {
+                    checks.incrementAndGet();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            bootstrap.setAsyncStartup(async);
+            bootstrap.init();
+            final CountDownLatch awaited = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++)
+            {
+                new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        bootstrap.awaitSchema();
+                        awaited.countDown();
+                    }
+                }).start();
+            }
+            assertFalse(awaited.await(200, TimeUnit.MILLISECONDS));
+            release.countDown();
+            assertTrue(awaited.await(10, TimeUnit.SECONDS));
+            bootstrap.onBootstrap(null);
+            assertEquals(1, checks.get());
+        }
+    }
+
+    /**
+     * New and replaced files are renamed folder by folder, a folder with many files being listed once, and their
+     * records stored in several batches
+     */
+    public void testBatchedRenameOfTempFiles() throws Exception
+    {
+        int renameBatchSize = ftTransferReceiver.getRenameBatchSize();
+        try
+        {
+            ftTransferReceiver.setRenameBatchSize(3);
+
+            String suffix = GUID.generate();
+            TransferManifestNormalNode bigFolder = createFolderNode(companytHome, "BIG_" + suffix);
+            TransferManifestNormalNode smallFolder = createFolderNode(companytHome, "SMALL_" + suffix);
+            List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+            List<TransferManifestNormalNode> bigFiles = new ArrayList<TransferManifestNormalNode>();
+            List<TransferManifestNormalNode> contentNodes = new ArrayList<TransferManifestNormalNode>();
+            nodes.add(bigFolder);
+            nodes.add(smallFolder);
+            for (int i = 0; i < 20; i++)
+            {
+                TransferManifestNormalNode file = createContentNode(bigFolder.getNodeRef(), "big" + i + ".txt");
+                bigFiles.add(file);
+                nodes.add(file);
+                contentNodes.add(file);
+            }
+            for (int i = 0; i < 2; i++)
+            {
+                TransferManifestNormalNode file = createContentNode(smallFolder.getNodeRef(), "small" + i + ".txt");
+                nodes.add(file);
+                contentNodes.add(file);
+            }
+            commitNodes(nodes, false, contentNodes);
+            assertRenamed(contentNodes);
+
+            //Replace the content of enough files for their folder to be listed again
+            List<TransferManifestNormalNode> changed = bigFiles.subList(0, 17);
+            for (TransferManifestNormalNode file : changed)
+            {
+                file.getProperties().put(ContentModel.PROP_CONTENT, new ContentData("/" + GUID.generate(),
+                        "text/plain", dummyContentBytes.length, "UTF-8"));
+            }
+            commitNodes(nodes, false, changed);
+            assertRenamed(contentNodes);
+            for (TransferManifestNormalNode file : changed)
+            {
+                FileTransferInfoEntity entity = ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(
+                        file.getNodeRef().toString());
+                assertEquals(((ContentData) file.getProperties().get(ContentModel.PROP_CONTENT)).getContentUrl(),
+                        entity.getContentUrl());
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setRenameBatchSize(renameBatchSize);
+        }
+    }
+
+    /**
+     * Check that each file has its proper name, on disk and in the database, and that no temporary file is left
+     */
+    private void assertRenamed(List<TransferManifestNormalNode> files) throws Exception
+    {
+        String root = ftTransferReceiver.getDefaultReceivingroot();
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        Map<String, File> folders = new HashMap<String, File>();
+        for (TransferManifestNormalNode node : files)
+        {
+            String name = (String) node.getProperties().get(ContentModel.PROP_NAME);
+            FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(node.getNodeRef().toString());
+            assertEquals(name, entity.getContentName());
+            File file = new File(root + entity.getPath() + name);
+            assertEquals(dummyContent, new String(readBytesFromFile(file), "UTF-8"));
+            folders.put(entity.getParent(), file.getParentFile());
+        }
+        for (Map.Entry<String, File> folder : folders.entrySet())
+        {
+            for (String child : folder.getValue().list())
+            {
+                assertFalse(folder.getValue() + "/" + child, child.startsWith(".ftr"));
+            }
+            for (FileTransferInfoEntity child : dbHelper.findFileTransferInfoByParentNodeRef(folder.getKey()))
+            {
+                assertFalse(child.getContentName(), child.getContentName().startsWith(".ftr"));
+            }
+        }
+    }
+
+    /**
+     * The requisite found while the snapshot is staged is the one a parse of the staged snapshot finds, less the
+     * content staged since, and the manifest kept with it replays to a processor as the snapshot would parse
+     */
+    public void testManifestIndex() throws Exception
+    {
+        boolean indexSnapshot = ftTransferReceiver.isIndexSnapshot();
+        int manifestIndexMaxNodes = ftTransferReceiver.getManifestIndexMaxNodes();
+        try
+        {
+            TransferManifestNormalNode folder = createFolderNode(companytHome, "INDEX_" + GUID.generate());
+            List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+            List<TransferManifestNormalNode> contentNodes = new ArrayList<TransferManifestNormalNode>();
+            nodes.add(folder);
+            for (int i = 0; i < 3; i++)
+            {
+                TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "indexed" + i + ".txt");
+                nodes.add(file);
+                contentNodes.add(file);
+            }
+            List<TransferManifestNormalNode> noContent = Collections.emptyList();
+
+            for (boolean index : new boolean[] { true, false })
+            {
+                ftTransferReceiver.setIndexSnapshot(index);
+                String transferId = stageNodes(nodes, false, noContent);
+                try
+                {
+                    assertEquals(index, ftTransferReceiver.getManifestIndex(transferId) != null);
+                    String requisite = generateRequisite(transferId);
+                    for (TransferManifestNormalNode file : contentNodes)
+                    {
+                        assertTrue(requisite.contains(file.getUuid()));
+                    }
+                    ftTransferReceiver.saveContent(transferId, contentNodes.get(0).getUuid(),
+                            new ByteArrayInputStream(dummyContentBytes));
+                    requisite = generateRequisite(transferId);
+                    assertFalse(requisite.contains(contentNodes.get(0).getUuid()));
+                    assertTrue(requisite.contains(contentNodes.get(1).getUuid()));
+                }
+                finally
+                {
+                    ftTransferReceiver.end(transferId);
+                }
+            }
+
+            ftTransferReceiver.setIndexSnapshot(true);
+            String transferId = stageNodes(nodes, false, noContent);
+            try
+            {
+                ManifestIndex index = ftTransferReceiver.getManifestIndex(transferId);
+                assertTrue(index.isComplete());
+                assertTrue(index.canReplay());
+                final List<NodeRef> replayed = new ArrayList<NodeRef>();
+                final int[] headers = new int[1];
+                index.replay(new TransferManifestProcessor()
+                {
+                    public void startTransferManifest()
+                    {
+                    }
+
+                    public void processTransferManifiestHeader(TransferManifestHeader header)
+                    {
+                        headers[0]++;
+                    }
+
+                    public void processTransferManifestNode(TransferManifestNormalNode node)
+                    {
+                        replayed.add(node.getNodeRef());
+                    }
+
+                    public void processTransferManifestNode(TransferManifestDeletedNode node)
+                    {
+                        replayed.add(node.getNodeRef());
+                    }
+
+                    public void endTransferManifest()
+                    {
+                    }
+                });
+                assertEquals(1, headers[0]);
+                assertEquals(nodes.size(), replayed.size());
+                for (int i = 0; i < nodes.size(); i++)
+                {
+                    assertEquals(nodes.get(i).getNodeRef(), replayed.get(i));
+                }
+            }
+            finally
+            {
+                ftTransferReceiver.end(transferId);
+            }
+
+            //Too many nodes to keep: the requisite is still indexed, and the commit parses the staged snapshot
+            ftTransferReceiver.setManifestIndexMaxNodes(2);
+            transferId = stageNodes(nodes, false, contentNodes);
+            ManifestIndex index = ftTransferReceiver.getManifestIndex(transferId);
+            assertTrue(index.isComplete());
+            assertFalse(index.canReplay());
+            ftTransferReceiver.commit(transferId);
+            String root = ftTransferReceiver.getDefaultReceivingroot();
+            for (TransferManifestNormalNode file : contentNodes)
+            {
+                FileTransferInfoEntity entity = ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(
+                        file.getNodeRef().toString());
+                assertTrue(new File(root + entity.getPath() + entity.getContentName()).exists());
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setIndexSnapshot(indexSnapshot);
+            ftTransferReceiver.setManifestIndexMaxNodes(manifestIndexMaxNodes);
+        }
+    }
+
+    private String generateRequisite(String transferId) throws Exception
+    {
+        ByteArrayOutputStream requisite = new ByteArrayOutputStream();
+        ftTransferReceiver.generateRequsite(transferId, requisite);
+        return requisite.toString("UTF-8");
+    }
+
+    /**
+     * A snapshot cut into several chunks, compressed or not, is parsed into the same nodes in the same order as a
+     * parse of the whole, and a compressed one is committed through the chunked parser
+     */
+    public void testChunkedManifestParser() throws Exception
+    {
+        FileTransferManifestParser chunked = new FileTransferManifestParser();
+        chunked.setParallelism(3);
+        chunked.setChunkSizeMB(1);
+        chunked.setParallelThresholdMB(0);
+        chunked.init();
+
+        TransferManifestNormalNode folder = createFolderNode(companytHome, "CHUNKED_" + GUID.generate());
+        char[] padding = new char[8 * 1024];
+        Arrays.fill(padding, 'x');
+        List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+        List<TransferManifestNormalNode> contentNodes = new ArrayList<TransferManifestNormalNode>();
+        nodes.add(folder);
+        for (int i = 0; i < 400; i++)
+        {
+            TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "chunked" + i + ".txt");
+            file.getProperties().put(ContentModel.PROP_DESCRIPTION, new String(padding));
+            nodes.add(file);
+            if (i % 100 == 0)
+            {
+                contentNodes.add(file);
+            }
+        }
+        byte[] snapshot = createSnapshot(nodes, false).getBytes("UTF-8");
+        assertTrue(snapshot.length > 3 * 1024 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(snapshot);
+        gzip.close();
+
+        List<NodeRef> whole = parseNodeRefs(chunked, new ByteArrayInputStream(snapshot), -1);
+        assertEquals(nodes.size(), whole.size());
+        assertEquals(whole, parseNodeRefs(chunked, new ByteArrayInputStream(snapshot), snapshot.length));
+        assertEquals(whole, parseNodeRefs(chunked, new GZIPInputStream(new ByteArrayInputStream(
+                compressed.toByteArray())), snapshot.length));
+
+        FileTransferManifestParser manifestParser = ftTransferReceiver.getManifestParser();
+        boolean compressSnapshot = ftTransferReceiver.isCompressSnapshot();
+        boolean indexSnapshot = ftTransferReceiver.isIndexSnapshot();
+        try
+        {
+            ftTransferReceiver.setManifestParser(chunked);
+            ftTransferReceiver.setCompressSnapshot(true);
+            ftTransferReceiver.setIndexSnapshot(false);
+            String transferId = stageNodes(nodes, false, contentNodes);
+            File snapshotFile = ftTransferReceiver.getSnapshotFile(transferId);
+            assertTrue(snapshotFile.getName().endsWith(".gz"));
+            assertEquals(snapshot.length, ftTransferReceiver.getSnapshotSize(snapshotFile));
+            ftTransferReceiver.commit(transferId);
+            String root = ftTransferReceiver.getDefaultReceivingroot();
+            for (TransferManifestNormalNode file : contentNodes)
+            {
+                FileTransferInfoEntity entity = ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(
+                        file.getNodeRef().toString());
+                assertTrue(new File(root + entity.getPath() + entity.getContentName()).exists());
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setManifestParser(manifestParser);
+            ftTransferReceiver.setCompressSnapshot(compressSnapshot);
+            ftTransferReceiver.setIndexSnapshot(indexSnapshot);
+        }
+    }
+
+    /**
+     * @param size the size of the snapshot, to parse it in chunks, or -1 to parse it whole
+     * @return the node refs of the snapshot in the order they were passed to the processor, once it has ended
+     */
+    private List<NodeRef> parseNodeRefs(FileTransferManifestParser parser, InputStream in, long size)
+            throws Exception
+    {
+        final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+        final int[] calls = new int[3];
+        TransferManifestProcessor processor = new TransferManifestProcessor()
+        {
+            public void startTransferManifest()
+            {
+                calls[0]++;
+            }
+
+            public void processTransferManifiestHeader(TransferManifestHeader header)
+            {
+                calls[1]++;
+            }
+
+            public void processTransferManifestNode(TransferManifestNormalNode node)
+            {
+                nodeRefs.add(node.getNodeRef());
+            }
+
+            public void processTransferManifestNode(TransferManifestDeletedNode node)
+            {
+                nodeRefs.add(node.getNodeRef());
+            }
+
+            public void endTransferManifest()
+            {
+                calls[2]++;
+            }
+        };
+        try
+        {
+            if (size < 0)
+            {
+                parser.parse(in, processor);
+            }
+            else
+            {
+                parser.parseSnapshot(in, size, processor);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        assertTrue(Arrays.equals(new int[] { 1, 1, 1 }, calls));
+        return nodeRefs;
+    }
+
+    /**
+     * The "stax" parser reads a snapshot into the same header and nodes as the "sax" parser: node refs, names, content
+     * data, primary parents and deleted nodes, in the same order
+     */
+    public void testStaxManifestParser() throws Exception
+    {
+        FileTransferManifestParser sax = new FileTransferManifestParser();
+        sax.setParserType(FileTransferManifestParser.PARSER_TYPE_SAX);
+        sax.init();
+        FileTransferManifestParser stax = new FileTransferManifestParser();
+        stax.setParserType(FileTransferManifestParser.PARSER_TYPE_STAX);
+        stax.init();
+
+        byte[] snapshot = createParserSnapshot();
+        List<String> expected = describeManifest(sax, snapshot);
+        assertEquals(1 + 2 + 20 + 2, expected.size());
+        assertEquals(expected, describeManifest(stax, snapshot));
+        // Again, with the QNames of the first parse taken from the cache
+        assertEquals(expected, describeManifest(stax, snapshot));
+    }
+
+    /**
+     * A parser shared by more threads than it pools parsers for gives each of them the whole of its snapshot
+     */
+    public void testManifestParserThreadSafety() throws Exception
+    {
+        final byte[] snapshot = createParserSnapshot();
+        for (String parserType : new String[] { FileTransferManifestParser.PARSER_TYPE_SAX,
+                FileTransferManifestParser.PARSER_TYPE_STAX })
+        {
+            final FileTransferManifestParser parser = new FileTransferManifestParser();
+            parser.setParserType(parserType);
+            parser.setPoolSize(2);
+            parser.init();
+            final List<String> expected = describeManifest(parser, snapshot);
+            final AtomicInteger parsed = new AtomicInteger();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 8; i++)
+            {
+                Thread thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int j = 0; j < 20; j++)
+                            {
+                                if (!expected.equals(describeManifest(parser, snapshot)))
+                                {
+                                    throw new IllegalStateException("Manifest parsed differently");
+                                }
+                                parsed.incrementAndGet();
+                            }
+                        }
+                        catch (Throwable e)
+                        {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join(60000L);
+            }
+            assertNull(parserType + ": " + failure.get(), failure.get());
+            assertEquals(8 * 20, parsed.get());
+        }
+    }
+
+    /**
+     * @return a snapshot of two folders holding content nodes, one of them moved from the first folder to the
+     *         second, and of two deleted nodes
+     */
+    private byte[] createParserSnapshot() throws Exception
+    {
+        TransferManifestNormalNode folder = createFolderNode(companytHome, "PARSED_" + GUID.generate());
+        TransferManifestNormalNode other = createFolderNode(companytHome, "PARSED_" + GUID.generate());
+        List<TransferManifestNode> nodes = new ArrayList<TransferManifestNode>();
+        nodes.add(folder);
+        nodes.add(other);
+        for (int i = 0; i < 20; i++)
+        {
+            TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "parsed" + i + ".txt");
+            if (i == 5)
+            {
+                modifyParentNode(other.getNodeRef(), file);
+            }
+            nodes.add(file);
+        }
+        nodes.add(createDeletedNode(createContentNode(folder.getNodeRef(), "deleted1.txt")));
+        nodes.add(createDeletedNode(createFolderNode(other.getNodeRef(), "deleted2")));
+        return createSnapshot(nodes, true).getBytes("UTF-8");
+    }
+
+    /**
+     * @return a line for the header and for each node the parser passed to the processor, in the order it did so
+     */
+    private List<String> describeManifest(FileTransferManifestParser parser, byte[] snapshot) throws Exception
+    {
+        final List<String> events = new ArrayList<String>();
+        parser.parse(new ByteArrayInputStream(snapshot), new TransferManifestProcessor()
+        {
+            public void startTransferManifest()
+            {
+            }
+
+            public void processTransferManifiestHeader(TransferManifestHeader header)
+            {
+                events.add("header " + header.getCreatedDate() + "|" + header.getNodeCount() + "|"
+                        + header.getRepositoryId() + "|" + header.isSync() + "|" + header.isReadOnly());
+            }
+
+            public void processTransferManifestNode(TransferManifestNormalNode node)
+            {
+                ContentData content = (ContentData) node.getProperties().get(ContentModel.PROP_CONTENT);
+                events.add("node " + node.getNodeRef() + "|" + node.getType() + "|"
+                        + node.getProperties().get(ContentModel.PROP_NAME) + "|"
+                        + (content == null ? null : content.getContentUrl() + "|" + content.getMimetype() + "|"
+                                + content.getSize() + "|" + content.getEncoding() + "|" + content.getLocale())
+                        + "|" + node.getPrimaryParentAssoc() + "|" + node.getParentAssocs());
+            }
+
+            public void processTransferManifestNode(TransferManifestDeletedNode node)
+            {
+                events.add("deleted " + node.getNodeRef() + "|" + node.getPrimaryParentAssoc());
+            }
+
+            public void endTransferManifest()
+            {
+            }
+        });
+        return events;
+    }
+
+    /**
+     * The parts of a tar archive are staged under the names of their entries; a part sent again is skipped, and an
+     * entry whose name would leave the staging folder fails the archive without writing outside it.
+     */
+    public void testSaveContentArchive() throws Exception
+    {
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            File stagingFolder = ftTransferReceiver.getStagingFolder(transferId);
+            byte[] archive = createTarArchive(new String[] { "archivedpart1", "archivedpart2" }, true);
+            assertEquals(2, ftTransferReceiver.saveContentArchive(transferId, new ByteArrayInputStream(archive),
+                    "gzip"));
+            for (String contentId : new String[] { "archivedpart1", "archivedpart2" })
+            {
+                assertTrue(ftTransferReceiver.isContentStaged(transferId, contentId));
+                assertTrue(Arrays.equals(dummyContentBytes, readBytesFromFile(ftTransferReceiver.getStagedContent(
+                        transferId, contentId))));
+            }
+            assertEquals(0, ftTransferReceiver.saveContentArchive(transferId, new ByteArrayInputStream(archive),
+                    "gzip"));
+
+            String[] escapes = { "../escaped", "archived/../../escaped", "..\\escaped", "/escaped", ".escaped" };
+            for (String escape : escapes)
+            {
+                String contentId = "archivedbefore" + GUID.generate();
+                try
+                {
+                    ftTransferReceiver.saveContentArchive(transferId, new ByteArrayInputStream(createTarArchive(
+                            new String[] { contentId, escape }, false)), null);
+                    fail("The entry " + escape + " should have been rejected");
+                }
+                catch (TransferException e)
+                {
+                    // expected
+                }
+                // the parts before the bad entry are kept
+                assertTrue(ftTransferReceiver.isContentStaged(transferId, contentId));
+                assertFalse(new File(stagingFolder.getParentFile(), "escaped").exists());
+                assertFalse(new File(stagingFolder, "escaped").exists());
+                assertFalse(new File(stagingFolder, ".escaped").exists());
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.end(transferId);
+        }
+    }
+
+    /**
+     * @return a tar archive with an entry of the dummy content for each name, and a folder entry, gzipped or not
+     */
+    private byte[] createTarArchive(String[] names, boolean compress) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(compress ? new GZIPOutputStream(out) : out);
+        try
+        {
+            tar.putArchiveEntry(new TarArchiveEntry("folder/"));
+            tar.closeArchiveEntry();
+            for (String name : names)
+            {
+                // keep the names as they are, absolute or not
+                TarArchiveEntry entry = new TarArchiveEntry(name, true);
+                entry.setSize(dummyContentBytes.length);
+                tar.putArchiveEntry(entry);
+                tar.write(dummyContentBytes);
+                tar.closeArchiveEntry();
+            }
+        }
+        finally
+        {
+            tar.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parts are spread over one folder per shard level, named after the hash of the part name, and only the files
+     * of the last level are listed as parts
+     */
+    public void testStagingLayout() throws Exception
+    {
+        for (int shardLevels : new int[] { -1, 5 })
+        {
+            try
+            {
+                new StagingLayout(shardLevels);
+                fail("The shard levels " + shardLevels + " should have been rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+        File stagingFolder = createScratchFolder("staginglayout");
+        try
+        {
+            StagingLayout flat = new StagingLayout(0);
+            assertEquals(stagingFolder, flat.getPartFolder(stagingFolder, "part"));
+            assertEquals(new File(stagingFolder, "part"), flat.getPartFile(stagingFolder, "part"));
+
+            StagingLayout sharded = new StagingLayout(2);
+            Map<File, Integer> shards = new HashMap<File, Integer>();
+            List<String> partNames = new ArrayList<String>();
+            for (int i = 0; i < 500; i++)
+            {
+                String partName = GUID.generate();
+                partNames.add(partName);
+                File partFolder = sharded.getPartFolder(stagingFolder, partName);
+                assertEquals(partFolder, sharded.getPartFolder(stagingFolder, partName));
+                assertEquals(stagingFolder, partFolder.getParentFile().getParentFile());
+                assertTrue(partFolder.getName().matches("[0-9a-f]{2}"));
+                assertTrue(partFolder.getParentFile().getName().matches("[0-9a-f]{2}"));
+                Integer count = shards.get(partFolder);
+                shards.put(partFolder, count == null ? 1 : count + 1);
+
+                assertEquals(partFolder, sharded.createPartFolder(stagingFolder, partName));
+                assertEquals(partFolder, sharded.createPartFolder(stagingFolder, partName));
+                assertTrue(partFolder.isDirectory());
+                assertTrue(sharded.getPartFile(stagingFolder, partName).createNewFile());
+            }
+            // the hash spreads the parts rather than piling them in a few folders
+            assertTrue(shards.size() > 400);
+
+            // the snapshot, and any stray file or folder, is not a part
+            assertTrue(new File(stagingFolder, "snapshot.xml").createNewFile());
+            assertTrue(new File(sharded.getPartFolder(stagingFolder, partNames.get(0)).getParentFile(), "stray")
+                    .createNewFile());
+            assertTrue(new File(sharded.getPartFolder(stagingFolder, partNames.get(0)), "strayfolder").mkdir());
+            List<String> listed = sharded.listFileNames(stagingFolder);
+            Collections.sort(listed);
+            Collections.sort(partNames);
+            assertEquals(partNames, listed);
+            assertEquals(Arrays.asList("snapshot.xml"), flat.listFileNames(stagingFolder));
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(stagingFolder);
+        }
+    }
+
+    /**
+     * Content is staged, reported and committed alike whether its parts are sharded or not
+     */
+    public void testShardedStaging() throws Exception
+    {
+        int shardLevels = ftTransferReceiver.getStagingShardLevels();
+        try
+        {
+            for (int levels : new int[] { 0, 1, 3 })
+            {
+                ftTransferReceiver.setStagingShardLevels(levels);
+                String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+                try
+                {
+                    File stagingFolder = ftTransferReceiver.getStagingFolder(transferId);
+                    String contentId = "shardedcontent";
+                    ftTransferReceiver.saveContent(transferId, contentId, new ByteArrayInputStream(dummyContentBytes));
+                    File contentFile = ftTransferReceiver.getStagedContent(transferId, contentId);
+                    assertTrue(contentFile.exists());
+                    File shard = contentFile.getParentFile();
+                    for (int level = 0; level < levels; level++)
+                    {
+                        shard = shard.getParentFile();
+                    }
+                    assertEquals(stagingFolder, shard);
+
+                    // a part cut off half way is reported with its staged length
+                    String partialId = "shardedpartial";
+                    final int cutOff = dummyContentBytes.length / 2;
+                    InputStream broken = new FilterInputStream(new ByteArrayInputStream(dummyContentBytes, 0, cutOff))
+                    {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException
+                        {
+                            int read = super.read(b, off, len);
+                            if (read == -1)
+                            {
+                                throw new IOException("Connection reset");
+                            }
+                            return read;
+                        }
+                    };
+                    try
+                    {
+                        ftTransferReceiver.saveContent(transferId, partialId, broken, null, -1L);
+                        fail("The interrupted upload should have been reported");
+                    }
+                    catch (ContentPartInterruptedException e)
+                    {
+                        // expected
+                    }
+                    Map<String, Long> status = ftTransferReceiver.getStagedContentStatus(transferId, null);
+                    assertEquals(2, status.size());
+                    assertTrue(status.containsKey(contentId));
+                    assertNull(status.get(contentId));
+                    assertEquals(Long.valueOf(cutOff), status.get(partialId));
+                    assertEquals(status, ftTransferReceiver.getStagedContentStatus(transferId, Arrays.asList(
+                            contentId, partialId, "shardedmissing")));
+                }
+                finally
+                {
+                    ftTransferReceiver.end(transferId);
+                }
+
+                TransferManifestNormalNode folder = createFolderNode(companytHome, "SHARDED_" + GUID.generate());
+                TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "sharded.txt");
+                String committedId = stageNodes(Arrays.<TransferManifestNode> asList(folder, file), false,
+                        Arrays.asList(file));
+                ftTransferReceiver.commit(committedId);
+                FileTransferInfoEntity entity = ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(
+                        file.getNodeRef().toString());
+                File committed = new File(ftTransferReceiver.getDefaultReceivingroot() + entity.getPath()
+                        + entity.getContentName());
+                assertTrue(Arrays.equals(dummyContentBytes, readBytesFromFile(committed)));
+            }
+        }
+        finally
+        {
+            ftTransferReceiver.setStagingShardLevels(shardLevels);
+        }
+    }
+
+    /**
+     * A new version of a file with the same bytes only updates its content URL: the file is not rewritten and no
+     * listener hears of it. A new version with other bytes of the same size replaces the file.
+     */
+    public void testUnchangedContentNotRewritten() throws Exception
+    {
+        TransferManifestNormalNode folder = createFolderNode(companytHome, "UNCHANGED_" + GUID.generate());
+        TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "unchanged.txt");
+        List<TransferManifestNode> nodes = Arrays.<TransferManifestNode> asList(folder, file);
+        List<TransferManifestNormalNode> contentNodes = Arrays.asList(file);
+        commitNodes(nodes, false, contentNodes);
+
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString());
+        String checksum = entity.getContentChecksum();
+        assertNotNull(checksum);
+        assertEquals(dummyContentBytes.length, entity.getContentSize());
+        File received = ftTransferReceiver.getReceivedFile(entity);
+        long lastModified = (System.currentTimeMillis() / 1000L - 24 * 3600) * 1000L;
+        assertTrue(received.setLastModified(lastModified));
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        TransferProgressMonitor progressMonitor = ftTransferReceiver.getProgressMonitor();
+        HookableTransferMonitorImpl recordingMonitor = new HookableTransferMonitorImpl();
+        recordingMonitor.setSystemMonitor(progressMonitor);
+        recordingMonitor.setListeners(Collections.<TransferListener> singletonList(new TransferListener()
+        {
+            public void created(String transferId, NodeRef sourceNode, NodeRef parentNode, String newPath,
+                    boolean orphan)
+            {
+                events.add("created " + sourceNode);
+            }
+
+            public void deleted(String transferId, NodeRef sourceNode, String path)
+            {
+                events.add("deleted " + sourceNode);
+            }
+
+            public void moved(String transferId, NodeRef sourceNode, String oldPath, NodeRef newParent,
+                    String newPath)
+            {
+                events.add("moved " + sourceNode);
+            }
+
+            public void updated(String transferId, NodeRef sourceNode, String path)
+            {
+                events.add("updated " + sourceNode);
+            }
+
+            public void statusChanged(String transferId, TransferProgress.Status status)
+            {
+            }
+        }));
+        ftTransferReceiver.setProgressMonitor(recordingMonitor);
+        try
+        {
+            //The same bytes under a new content URL, sent twice
+            for (int i = 0; i < 2; i++)
+            {
+                String contentUrl = "/" + GUID.generate();
+                file.getProperties().put(ContentModel.PROP_CONTENT, new ContentData(contentUrl, "text/plain",
+                        dummyContentBytes.length, "UTF-8"));
+                commitNodes(nodes, false, contentNodes);
+                assertEquals(Collections.emptyList(), events);
+                entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString());
+                assertEquals(contentUrl, entity.getContentUrl());
+                assertEquals(checksum, entity.getContentChecksum());
+                assertEquals(received, ftTransferReceiver.getReceivedFile(entity));
+                assertEquals(lastModified, received.lastModified());
+                assertTrue(Arrays.equals(dummyContentBytes, readBytesFromFile(received)));
+            }
+
+            //Other bytes of the same size
+            byte[] changed = dummyContentBytes.clone();
+            changed[changed.length / 2] ^= 1;
+            String contentUrl = "/" + GUID.generate();
+            file.getProperties().put(ContentModel.PROP_CONTENT, new ContentData(contentUrl, "text/plain",
+                    changed.length, "UTF-8"));
+            ftTransferReceiver.commit(stageNodes(nodes, false, contentNodes, changed));
+            assertTrue(events.contains("moved " + file.getNodeRef()));
+            entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString());
+            assertEquals(contentUrl, entity.getContentUrl());
+            assertEquals(changed.length, entity.getContentSize());
+            assertFalse(checksum.equals(entity.getContentChecksum()));
+            received = ftTransferReceiver.getReceivedFile(entity);
+            assertTrue(Arrays.equals(changed, readBytesFromFile(received)));
+            assertFalse(lastModified == received.lastModified());
+        }
+        finally
+        {
+            ftTransferReceiver.setProgressMonitor(progressMonitor);
+        }
+    }
+
+    /**
+     * A delta rebuilds the new version from the current one, and is rejected rather than applied when the current
+     * version is not the one whose signatures it was made from, or when it is corrupted
+     */
+    public void testContentDelta() throws Exception
+    {
+        File folder = createScratchFolder("contentdelta");
+        try
+        {
+            byte[] current = new byte[83];
+            for (int i = 0; i < current.length; i++)
+            {
+                current[i] = (byte) ('a' + i % 26);
+            }
+            File basis = new File(folder, "basis");
+            FileCopyUtils.copy(current, basis);
+            ContentDelta.Signatures signatures = ContentDelta.computeSignatures(basis, 8);
+            assertEquals(11, signatures.getBlockCount());
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            signatures.write(new DataOutputStream(written));
+            assertTrue(Arrays.equals(signatures.getDigest(), ContentDelta.Signatures.read(new DataInputStream(
+                    new ByteArrayInputStream(written.toByteArray()))).getDigest()));
+
+            //The first four blocks, new data in place of the fifth, then the rest including the short last block
+            byte[] data = "CHANGED BLOCK".getBytes("UTF-8");
+            ByteArrayOutputStream newVersion = new ByteArrayOutputStream();
+            newVersion.write(current, 0, 32);
+            newVersion.write(data);
+            newVersion.write(current, 40, current.length - 40);
+            byte[] expected = newVersion.toByteArray();
+            byte[] delta = createDelta(signatures, expected, new int[] { 0, 4 }, data, new int[] { 5, 6 });
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            assertEquals(expected.length, ContentDelta.apply(basis, signatures, new ByteArrayInputStream(delta), out,
+                    digest));
+            assertTrue(Arrays.equals(expected, out.toByteArray()));
+            assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(expected), digest.digest()));
+
+            //Corrupted deltas
+            byte[] flipped = delta.clone();
+            //a byte of the data, after the header and the first copy
+            flipped[32 + 9 + 5 + 3] ^= 1;
+            assertDeltaRejected(basis, signatures, flipped);
+            assertDeltaRejected(basis, signatures, Arrays.copyOf(delta, delta.length - 20));
+            byte[] notADelta = delta.clone();
+            notADelta[0] ^= 1;
+            assertDeltaRejected(basis, signatures, notADelta);
+            assertDeltaRejected(basis, signatures, createDelta(signatures, expected, new int[] { 11, 1 }));
+            assertDeltaRejected(basis, signatures, createDelta(signatures, expected, new int[] { 0, 4 }, data,
+                    new int[] { 5, 5 }));
+
+            //The base changes after its signatures were sent, keeping its size
+            current[20] ^= 1;
+            FileCopyUtils.copy(current, basis);
+            assertDeltaRejected(basis, signatures, delta);
+            assertDeltaRejected(basis, ContentDelta.computeSignatures(basis, 8), delta);
+
+            //A stale delta against a base of another size, or signatures of another block size
+            FileCopyUtils.copy(Arrays.copyOf(current, 90), basis);
+            assertDeltaRejected(basis, ContentDelta.computeSignatures(basis, 8), delta);
+            current[20] ^= 1;
+            FileCopyUtils.copy(current, basis);
+            assertDeltaRejected(basis, ContentDelta.computeSignatures(basis, 16), delta);
+            assertEquals(expected.length, ContentDelta.apply(basis, ContentDelta.computeSignatures(basis, 8),
+                    new ByteArrayInputStream(delta), new ByteArrayOutputStream(), null));
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * A staged delta is applied to the received file at commit; one made from the signatures of an earlier version
+     * fails the commit and leaves the file as it was
+     */
+    public void testContentDeltaCommit() throws Exception
+    {
+        TransferManifestNormalNode folder = createFolderNode(companytHome, "DELTA_" + GUID.generate());
+        TransferManifestNormalNode file = createContentNode(folder.getNodeRef(), "delta.txt");
+        List<TransferManifestNode> nodes = Arrays.<TransferManifestNode> asList(folder, file);
+        commitNodes(nodes, false, Arrays.asList(file));
+        ContentDelta.Signatures signatures = ftTransferReceiver.getContentSignatures(file.getNodeRef().toString());
+        assertEquals(dummyContentBytes.length, signatures.getSize());
+
+        byte[] appended = " appended".getBytes("UTF-8");
+        ByteArrayOutputStream newVersion = new ByteArrayOutputStream();
+        newVersion.write(dummyContentBytes);
+        newVersion.write(appended);
+        byte[] expected = newVersion.toByteArray();
+        String contentUrl = "/" + GUID.generate();
+        ftTransferReceiver.commit(stageDelta(nodes, file, contentUrl, createDelta(signatures, expected, new int[] {
+                0, signatures.getBlockCount() }, appended)));
+        DbHelper dbHelper = ftTransferReceiver.getDbHelper();
+        FileTransferInfoEntity entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString());
+        assertEquals(contentUrl, entity.getContentUrl());
+        assertEquals(expected.length, entity.getContentSize());
+        File received = ftTransferReceiver.getReceivedFile(entity);
+        assertTrue(Arrays.equals(expected, readBytesFromFile(received)));
+
+        //A delta made from the signatures of the first version
+        newVersion.write(appended);
+        String transferId = stageDelta(nodes, file, "/" + GUID.generate(), createDelta(signatures,
+                newVersion.toByteArray(), new int[] { 0, signatures.getBlockCount() }, appended, appended));
+        try
+        {
+            ftTransferReceiver.commit(transferId);
+            fail("The stale delta should have been rejected");
+        }
+        catch (TransferException e)
+        {
+            // expected
+        }
+        entity = dbHelper.findFileTransferInfoByNodeRef(file.getNodeRef().toString());
+        assertEquals(contentUrl, entity.getContentUrl());
+        assertTrue(Arrays.equals(expected, readBytesFromFile(received)));
+        assertEquals(Arrays.asList("delta.txt"), Arrays.asList(received.getParentFile().list()));
+    }
+
+    private void assertDeltaRejected(File basis, ContentDelta.Signatures signatures, byte[] delta) throws Exception
+    {
+        try
+        {
+            ContentDelta.apply(basis, signatures, new ByteArrayInputStream(delta), new ByteArrayOutputStream(), null);
+            fail("The delta should have been rejected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * @param instructions for each instruction, an int array of the first block and the number of blocks to copy,
+     *            or the bytes of the data
+     * @return a delta made from the signatures that rebuilds the new version
+     */
+    private byte[] createDelta(ContentDelta.Signatures signatures, byte[] newVersion, Object... instructions)
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ContentDelta.MAGIC);
+        out.writeInt(signatures.getBlockSize());
+        out.writeLong(signatures.getSize());
+        out.write(signatures.getDigest());
+        for (Object instruction : instructions)
+        {
+            if (instruction instanceof int[])
+            {
+                out.writeByte(ContentDelta.COPY);
+                out.writeInt(((int[]) instruction)[0]);
+                out.writeInt(((int[]) instruction)[1]);
+            }
+            else
+            {
+                out.writeByte(ContentDelta.DATA);
+                out.writeInt(((byte[]) instruction).length);
+                out.write((byte[]) instruction);
+            }
+        }
+        out.writeByte(ContentDelta.END);
+        out.write(MessageDigest.getInstance("MD5").digest(newVersion));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Stage the snapshot of the nodes with a new content URL for the file, and a delta in place of its content
+     */
+    private String stageDelta(List<TransferManifestNode> nodes, TransferManifestNormalNode file, String contentUrl,
+            byte[] delta) throws Exception
+    {
+        file.getProperties().put(ContentModel.PROP_CONTENT, new ContentData(contentUrl, "text/plain", 0L, "UTF-8"));
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            ftTransferReceiver.setTransferRootNode(this.companytHome.toString());
+            ftTransferReceiver.saveSnapshot(transferId, new ByteArrayInputStream(createSnapshot(nodes, false)
+                    .getBytes("UTF-8")));
+            ftTransferReceiver.saveContentDelta(transferId, TransferCommons.URLToPartName(contentUrl),
+                    new ByteArrayInputStream(delta), null, -1L);
+        }
+        catch (Exception ex)
+        {
+            ftTransferReceiver.end(transferId);
+            throw ex;
+        }
+        return transferId;
+    }
+
+    /**
+     * Files go to the volume of the rule of the nearest folder above them, then to that of their source repository,
+     * then to the default receiving root, and their folders are mirrored on the volumes that hold them
+     */
+    public void testReceivingVolumeSelection() throws Exception
+    {
+        File vol1 = createScratchFolder("vol1");
+        File vol2 = createScratchFolder("vol2");
+        ReceivingVolumes receivingVolumes = ftTransferReceiver.getReceivingVolumes();
+        try
+        {
+            ReceivingVolumes rules = new ReceivingVolumes();
+            rules.setVolumes("vol1=" + vol1.getPath() + ", vol2 = " + vol2.getPath());
+            rules.setRules("node:workspace://SpacesStore/abc=vol1,source:repo=vol2");
+            rules.init();
+            assertEquals(vol2.getPath(), rules.getRoot("vol2"));
+            assertEquals("vol1", rules.getSubtreeVolume("workspace://SpacesStore/abc"));
+            assertNull(rules.getSubtreeVolume("workspace://SpacesStore/def"));
+            assertEquals("vol2", rules.getSourceVolume("repo"));
+            assertNull(rules.getSourceVolume(null));
+            try
+            {
+                rules.getRoot("vol3");
+                fail("The unknown volume should have been rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            try
+            {
+                rules.setRules("folder:abc=vol1");
+                fail("The unknown rule should have been rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            try
+            {
+                rules.setRules("source:repo=vol3");
+                rules.init();
+                fail("The rule for an unknown volume should have been rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+
+            String suffix = GUID.generate();
+            TransferManifestNormalNode ruled = createFolderNode(companytHome, "RULED_" + suffix);
+            TransferManifestNormalNode nested = createFolderNode(ruled.getNodeRef(), "nested");
+            TransferManifestNormalNode plain = createFolderNode(companytHome, "PLAIN_" + suffix);
+            TransferManifestNormalNode ruledFile = createContentNode(nested.getNodeRef(), "ruled.txt");
+            TransferManifestNormalNode plainFile = createContentNode(plain.getNodeRef(), "plain.txt");
+            List<TransferManifestNode> nodes = Arrays.<TransferManifestNode> asList(ruled, nested, plain, ruledFile,
+                    plainFile);
+
+            ReceivingVolumes volumes = new ReceivingVolumes();
+            volumes.setVolumes("vol1=" + vol1.getPath() + ",vol2=" + vol2.getPath());
+            volumes.setRules("node:" + ruled.getNodeRef() + "=vol1,source:otherRepo=vol2");
+            volumes.init();
+            ftTransferReceiver.setReceivingVolumes(volumes);
+            commitNodes(nodes, false, Arrays.asList(ruledFile, plainFile));
+            assertReceivedOn("vol1", vol1, ruledFile);
+            assertReceivedOn(null, new File(ftTransferReceiver.getDefaultReceivingroot()), plainFile);
+            assertTrue(new File(vol1, "RULED_" + suffix + "/nested").isDirectory());
+            assertFalse(new File(vol1, "PLAIN_" + suffix).exists());
+            assertFalse(new File(vol2, "PLAIN_" + suffix).exists());
+
+            //The source rule for this sender: a rewritten file moves to its volume, a folder rule still wins
+            volumes.setRules("node:" + ruled.getNodeRef() + "=vol1,source:1234=vol2");
+            volumes.init();
+            for (TransferManifestNormalNode file : Arrays.asList(ruledFile, plainFile))
+            {
+                file.getProperties().put(ContentModel.PROP_CONTENT, new ContentData("/" + GUID.generate(),
+                        "text/plain", dummyContentBytes.length, "UTF-8"));
+            }
+            commitNodes(nodes, false, Arrays.asList(ruledFile, plainFile), "rewritten".getBytes("UTF-8"));
+            assertReceivedOn("vol1", vol1, ruledFile);
+            assertReceivedOn("vol2", vol2, plainFile);
+            assertFalse(new File(ftTransferReceiver.getDefaultReceivingroot() + "/PLAIN_" + suffix + "/plain.txt")
+                    .exists());
+        }
+        finally
+        {
+            ftTransferReceiver.setReceivingVolumes(receivingVolumes);
+            FileUtils.deleteDirectory(vol1);
+            FileUtils.deleteDirectory(vol2);
+        }
+    }
+
+    /**
+     * A transfer that would write to a full or missing volume fails without writing anything, and succeeds once the
+     * volume is back
+     */
+    public void testReceivingVolumeFullOrMissing() throws Exception
+    {
+        File vol1 = createScratchFolder("vol1");
+        ReceivingVolumes receivingVolumes = ftTransferReceiver.getReceivingVolumes();
+        try
+        {
+            TransferManifestNormalNode ruled = createFolderNode(companytHome, "RULED_" + GUID.generate());
+            TransferManifestNormalNode file = createContentNode(ruled.getNodeRef(), "ruled.txt");
+            List<TransferManifestNode> nodes = Arrays.<TransferManifestNode> asList(ruled, file);
+            ReceivingVolumes volumes = new ReceivingVolumes();
+            volumes.setVolumes("vol1=" + vol1.getPath());
+            volumes.setRules("node:" + ruled.getNodeRef() + "=vol1");
+            volumes.init();
+            ftTransferReceiver.setReceivingVolumes(volumes);
+
+            volumes.setMinFreeSpaceMB(Long.MAX_VALUE);
+            assertCommitFails(nodes, file);
+            assertEquals(0, vol1.list().length);
+
+            volumes.setMinFreeSpaceMB(0L);
+            FileUtils.deleteDirectory(vol1);
+            assertCommitFails(nodes, file);
+            assertFalse(vol1.exists());
+
+            assertTrue(vol1.mkdirs());
+            commitNodes(nodes, false, Arrays.asList(file));
+            assertReceivedOn("vol1", vol1, file);
+        }
+        finally
+        {
+            ftTransferReceiver.setReceivingVolumes(receivingVolumes);
+            FileUtils.deleteDirectory(vol1);
+        }
+    }
+
+    private void assertCommitFails(List<TransferManifestNode> nodes, TransferManifestNormalNode file)
+            throws Exception
+    {
+        try
+        {
+            commitNodes(nodes, false, Arrays.asList(file));
+            fail("Commit should have failed");
+        }
+        catch (TransferException e)
+        {
+            // expected
+        }
+        assertNull(ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(file.getNodeRef().toString()));
+    }
+
+    /**
+     * Check that the file is recorded on the volume, and received below its root
+     */
+    private void assertReceivedOn(String volume, File root, TransferManifestNormalNode file) throws Exception
+    {
+        FileTransferInfoEntity entity = ftTransferReceiver.getDbHelper().findFileTransferInfoByNodeRef(
+                file.getNodeRef().toString());
+        assertEquals(volume, entity.getVolume());
+        File received = ftTransferReceiver.getReceivedFile(entity);
+        assertEquals(new File(root, entity.getPath() + entity.getContentName()).getCanonicalFile(),
+                received.getCanonicalFile());
+        assertTrue(received.isFile());
+    }
+
+    /**
+     * Each change set is replayed on every target once its transfer has ended: files are linked or copied in, and
+     * moves and deletes follow them
+     */
+    public void testReplication() throws Exception
+    {
+        File root = createScratchFolder("replicationroot");
+        File linked = createScratchFolder("replicationlinked");
+        File copied = createScratchFolder("replicationcopied");
+        ReplicatingTransferListener listener = new ReplicatingTransferListener();
+        try
+        {
+            listener.setRootDirectory(root.getPath());
+            listener.setTargets("linked=" + linked.getPath());
+            listener.init();
+            ReplicatingTransferListener copying = new ReplicatingTransferListener();
+            copying.setRootDirectory(root.getPath());
+            copying.setTargets("copied=" + copied.getPath());
+            copying.setHardLinks(false);
+            copying.init();
+            try
+            {
+                assertReplicated(listener, root, linked);
+                assertReplicated(copying, root, copied);
+            }
+            finally
+            {
+                copying.destroy();
+            }
+            Map<String, Object> metrics = copying.getMetrics();
+            assertEquals(Boolean.FALSE, metrics.get("copied.hardLinks"));
+            assertEquals(0L, metrics.get("copied.failedChanges"));
+            assertEquals(Boolean.TRUE, metrics.get("copied.atomicMoves"));
+            assertEquals(0L, listener.getMetrics().get("linked.failedChanges"));
+            assertEquals(0L, listener.getMetrics().get("linked.copiedFiles"));
+        }
+        finally
+        {
+            listener.destroy();
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(linked);
+            FileUtils.deleteDirectory(copied);
+        }
+    }
+
+    /**
+     * On a target that can't move files atomically, files are still replaced, with plain moves
+     */
+    public void testReplicationWithoutAtomicMoves() throws Exception
+    {
+        File root = createScratchFolder("replicationroot");
+        File target = createScratchFolder("replicationtarget");
+        final AtomicBoolean attempted = new AtomicBoolean();
+        ReplicatingTransferListener listener = new ReplicatingTransferListener()
+        {
+            @Override
+            protected void moveAtomically(Path source, Path dest) throws IOException
+            {
+                attempted.set(true);
+                throw new AtomicMoveNotSupportedException(source.toString(), dest.toString(), "Not supported");
+            }
+        };
+        try
+        {
+            listener.setRootDirectory(root.getPath());
+            listener.setTargets("target=" + target.getPath());
+            listener.setHardLinks(false);
+            listener.init();
+            assertReplicated(listener, root, target);
+            assertTrue(attempted.get());
+            Map<String, Object> metrics = listener.getMetrics();
+            assertEquals(Boolean.FALSE, metrics.get("target.atomicMoves"));
+            assertEquals(0L, metrics.get("target.failedChanges"));
+        }
+        finally
+        {
+            listener.destroy();
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(target);
+        }
+    }
+
+    /**
+     * The change sets that a stop left unapplied are applied when the listener starts again on the same queue, and a
+     * commit interrupted while its changes were collected has the target resynced
+     */
+    public void testReplicationQueue() throws Exception
+    {
+        File root = createScratchFolder("replicationroot");
+        File target = createScratchFolder("replicationtarget");
+        File queue = createScratchFolder("replicationqueue");
+        final AtomicBoolean block = new AtomicBoolean();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ReplicatingTransferListener stopped = new ReplicatingTransferListener()
+        {
+            @Override
+            protected void moveAtomically(Path source, Path dest) throws IOException
+            {
+                if (block.get())
+                {
+                    blocked.countDown();
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IOException(e);
+                    }
+                    throw new IOException("Stopped");
+                }
+                super.moveAtomically(source, dest);
+            }
+        };
+        ReplicatingTransferListener restarted = new ReplicatingTransferListener();
+        ReplicatingTransferListener recovered = new ReplicatingTransferListener();
+        try
+        {
+            stopped.setRootDirectory(root.getPath());
+            stopped.setTargets("target=" + target.getPath());
+            stopped.setQueueDirectory(queue.getPath());
+            stopped.init();
+            //A target without a record of what it has applied starts with a resync
+            awaitResync(stopped, "target", 1L);
+
+            File first = new File(root, "first.txt");
+            FileCopyUtils.copy(dummyContentBytes, first);
+            String transferId = GUID.generate();
+            stopped.created(transferId, null, null, first.getPath(), false);
+            awaitReplication(stopped, transferId);
+            assertReplica(new File(target, "first.txt"), dummyContentBytes);
+            assertEquals(0, stopped.getMetrics().get("queuedChangeSets"));
+
+            //The next change set is queued, but the listener stops before the target has applied it
+            block.set(true);
+            File second = new File(root, "second.txt");
+            FileCopyUtils.copy(dummyContentBytes, second);
+            transferId = GUID.generate();
+            stopped.created(transferId, null, null, second.getPath(), false);
+            stopped.statusChanged(transferId, TransferProgress.Status.COMPLETE);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            assertEquals(1, stopped.getMetrics().get("queuedChangeSets"));
+
+            restarted.setRootDirectory(root.getPath());
+            restarted.setTargets("target=" + target.getPath());
+            restarted.setQueueDirectory(queue.getPath());
+            restarted.init();
+            awaitReplication(restarted, transferId);
+            assertReplica(new File(target, "second.txt"), dummyContentBytes);
+            Map<String, Object> metrics = restarted.getMetrics();
+            assertEquals(1L, metrics.get("target.appliedChangeSets"));
+            assertEquals(0L, metrics.get("target.resyncs"));
+            assertEquals(0, metrics.get("queuedChangeSets"));
+            stopped.destroy();
+            release.countDown();
+            awaitReplication(stopped, transferId);
+
+            //The listener stops while a transfer commits, so its changes never make a change set
+            File third = new File(root, "third.txt");
+            FileCopyUtils.copy(dummyContentBytes, third);
+            restarted.created(GUID.generate(), null, null, third.getPath(), false);
+            restarted.destroy();
+            assertTrue(second.delete());
+            File stale = new File(target, "stale.txt");
+            FileCopyUtils.copy(dummyContentBytes, stale);
+
+            recovered.setRootDirectory(root.getPath());
+            recovered.setTargets("target=" + target.getPath());
+            recovered.setQueueDirectory(queue.getPath());
+            recovered.init();
+            awaitResync(recovered, "target", 1L);
+            assertReplica(new File(target, "first.txt"), dummyContentBytes);
+            assertReplica(new File(target, "third.txt"), dummyContentBytes);
+            assertFalse(new File(target, "second.txt").exists());
+            assertFalse(stale.exists());
+            assertEquals(0, recovered.getMetrics().get("target.retryPaths"));
+        }
+        finally
+        {
+            release.countDown();
+            stopped.destroy();
+            restarted.destroy();
+            recovered.destroy();
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(target);
+            FileUtils.deleteDirectory(queue);
+        }
+    }
+
+    /**
+     * A change that fails on a target is retried until it succeeds, and a resync brings a target that was changed
+     * behind the listener's back back in line with the root
+     */
+    public void testReplicationRetryAndResync() throws Exception
+    {
+        File root = createScratchFolder("replicationroot");
+        File target = createScratchFolder("replicationtarget");
+        File queue = createScratchFolder("replicationqueue");
+        final AtomicInteger failures = new AtomicInteger(1);
+        ReplicatingTransferListener listener = new ReplicatingTransferListener()
+        {
+            @Override
+            protected void moveAtomically(Path source, Path dest) throws IOException
+            {
+                if (failures.getAndDecrement() > 0)
+                {
+                    throw new IOException("Target unavailable");
+                }
+                super.moveAtomically(source, dest);
+            }
+        };
+        try
+        {
+            listener.setRootDirectory(root.getPath());
+            listener.setTargets("target=" + target.getPath());
+            listener.setQueueDirectory(queue.getPath());
+            listener.setRetryDelay(50L);
+            listener.init();
+            awaitResync(listener, "target", 1L);
+
+            File folder = new File(root, "folder");
+            File file = new File(folder, "file.txt");
+            assertTrue(folder.mkdir());
+            FileCopyUtils.copy(dummyContentBytes, file);
+            String transferId = GUID.generate();
+            listener.created(transferId, null, null, folder.getPath(), false);
+            awaitReplication(listener, transferId);
+            assertEquals(1L, listener.getMetrics().get("target.failedChanges"));
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (!Integer.valueOf(0).equals(listener.getMetrics().get("target.retryPaths")))
+            {
+                assertTrue("Retry timed out", System.currentTimeMillis() < deadline);
+                Thread.sleep(10L);
+            }
+            assertEquals(1L, listener.getMetrics().get("target.retriedPaths"));
+            assertReplica(new File(target, "folder/file.txt"), dummyContentBytes);
+
+            assertTrue(new File(target, "folder/file.txt").delete());
+            File stale = new File(target, "stale/stale.txt");
+            assertTrue(stale.getParentFile().mkdir());
+            FileCopyUtils.copy(dummyContentBytes, stale);
+            assertFalse(listener.resync("missing"));
+            assertTrue(listener.resync("target"));
+            awaitResync(listener, "target", 2L);
+            assertReplica(new File(target, "folder/file.txt"), dummyContentBytes);
+            assertFalse(stale.getParentFile().exists());
+        }
+        finally
+        {
+            listener.destroy();
+            FileUtils.deleteDirectory(root);
+            FileUtils.deleteDirectory(target);
+            FileUtils.deleteDirectory(queue);
+        }
+    }
+
+    /**
+     * Create, update, move and delete a file and a folder below the root, and check that the target of the listener
+     * follows each change set
+     */
+    private void assertReplicated(ReplicatingTransferListener listener, File root, File target) throws Exception
+    {
+        String transferId = GUID.generate();
+        File folder = new File(root, "folder_" + transferId);
+        File file = new File(folder, "file.txt");
+        assertTrue(folder.mkdir());
+        FileCopyUtils.copy(dummyContentBytes, file);
+        listener.created(transferId, null, null, folder.getPath(), false);
+        listener.created(transferId, null, null, file.getPath(), false);
+        awaitReplication(listener, transferId);
+        assertReplica(new File(target, folder.getName() + "/file.txt"), dummyContentBytes);
+
+        //A new version is written aside and renamed over the file
+        transferId = GUID.generate();
+        byte[] changed = "changed content".getBytes("UTF-8");
+        File temp = new File(folder, ".ftr-temp");
+        FileCopyUtils.copy(changed, temp);
+        assertTrue(file.delete());
+        assertTrue(temp.renameTo(file));
+        listener.moved(transferId, null, file.getPath(), null, file.getPath());
+        awaitReplication(listener, transferId);
+        assertReplica(new File(target, folder.getName() + "/file.txt"), changed);
+
+        transferId = GUID.generate();
+        File moved = new File(root, "moved_" + transferId);
+        assertTrue(folder.renameTo(moved));
+        listener.moved(transferId, null, folder.getPath(), null, moved.getPath());
+        awaitReplication(listener, transferId);
+        assertFalse(new File(target, folder.getName()).exists());
+        assertReplica(new File(target, moved.getName() + "/file.txt"), changed);
+
+        transferId = GUID.generate();
+        FileUtils.deleteDirectory(moved);
+        listener.deleted(transferId, null, moved.getPath());
+        awaitReplication(listener, transferId);
+        assertFalse(new File(target, moved.getName()).exists());
+    }
+
+    private void awaitReplication(ReplicatingTransferListener listener, String transferId) throws Exception
+    {
+        listener.statusChanged(transferId, TransferProgress.Status.COMPLETE);
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (true)
+        {
+            boolean pending = false;
+            for (Map.Entry<String, Object> metric : listener.getMetrics().entrySet())
+            {
+                if (metric.getKey().endsWith(".pendingChangeSets") && !Integer.valueOf(0).equals(metric.getValue()))
+                {
+                    pending = true;
+                }
+            }
+            if (!pending)
+            {
+                return;
+            }
+            assertTrue("Replication of " + transferId + " timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+
+    private void awaitResync(ReplicatingTransferListener listener, String target, long resyncs) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!Long.valueOf(resyncs).equals(listener.getMetrics().get(target + ".resyncs")))
+        {
+            assertTrue("Resync of " + target + " timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * Check that the replica has the content, and that no temporary file is left beside it
+     */
+    private void assertReplica(File replica, byte[] content) throws Exception
+    {
+        assertTrue(replica.getPath(), replica.isFile());
+        assertTrue(Arrays.equals(content, readBytesFromFile(replica)));
+        for (String sibling : replica.getParentFile().list())
+        {
+            assertFalse(sibling, sibling.endsWith(".ftr-replica"));
+        }
+    }
+
+    private ArrayList<TransferManifestNode> copyList(List<TransferManifestNode> src)
+    {
+        ArrayList<TransferManifestNode> aCopy = new ArrayList<TransferManifestNode>();
+
+        for(int i = 0; i < src.size(); i++)
+            aCopy.add(src.get(i));
+
+        return aCopy;
+    }
+
+
+
+    /**
+     * @return a new empty folder below the temporary folder
+     */
+    private File createScratchFolder(String prefix)
+    {
+        File folder = new File(System.getProperty("java.io.tmpdir"), "ftr-" + prefix + "-" + GUID.generate());
+        assertTrue(folder.mkdirs());
+        return folder;
+    }
+
+    public static byte[] readBytesFromFile(File file) throws IOException
+    {
+        FileInputStream fileinputstream = new FileInputStream(file);
+        long l = file.length();
+
+        if (l > Integer.MAX_VALUE)
+        {
+            throw new IOException("File too big for loading into a byte array!");
+        }
+
+        byte byteArray[] = new byte[(int) l];
+
+        int i = 0;
+
+        for (int j = 0; (i < byteArray.length) && (j = fileinputstream.read(byteArray, i, byteArray.length - i)) >= 0; i += j);
+
+        if (i < byteArray.length)
+        {
+            throw new IOException("Could not completely read the file " + file.getName());
+        }
+        fileinputstream.close();
+        return byteArray;
+    }
+
+    /**
+     * @return TransferManifestNormalNode
+     */
+    private TransferManifestNormalNode createContentNode(NodeRef parentFolder, String nodeName) throws Exception
+    {
+        TransferManifestNormalNode node = new TransferManifestNormalNode();
+        String uuid = GUID.generate();
+        NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, uuid);
+        node.setNodeRef(nodeRef);
+        node.setUuid(uuid);
+        byte[] dummyContent = "This is some dummy content.".getBytes("UTF-8");
+
+        node.setType(ContentModel.TYPE_CONTENT);
+        node.setAncestorType(ContentModel.TYPE_CONTENT);
+
+        /**
+         * Get guest home
+         */
+
+        List<ChildAssociationRef> parents = new ArrayList<ChildAssociationRef>();
+        ChildAssociationRef primaryAssoc = new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, parentFolder, QName
+                .createQName(NamespaceService.CONTENT_MODEL_1_0_URI, nodeName), node.getNodeRef(), true, -1);
+        parents.add(primaryAssoc);
+        node.setParentAssocs(parents);
+        node.setParentPath(null);
+        node.setPrimaryParentAssoc(primaryAssoc);
+
+        Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+        props.put(ContentModel.PROP_NODE_UUID, uuid);
+        props.put(ContentModel.PROP_NAME, nodeName);
+        ContentData contentData = new ContentData("/" + uuid, "text/plain", dummyContent.length, "UTF-8");
+        props.put(ContentModel.PROP_CONTENT, contentData);
+        node.setProperties(props);
+
+        return node;
+    }
+
+    /**
+     * @return TransferManifestNormalNode
+     */
+    private TransferManifestNormalNode createFolderNode(NodeRef parentFolder, String nodeName) throws Exception
     {
         TransferManifestNormalNode node = new TransferManifestNormalNode();
         String uuid = GUID.generate();
@@ -1106,6 +4529,89 @@ public class FileTransferReceiverTest extends TestCase
 
 
 
+    private TransferManifestDeletedNode createDeletedNode(TransferManifestNormalNode node)
+    {
+        TransferManifestDeletedNode deletedNode = new TransferManifestDeletedNode();
+        deletedNode.setNodeRef(node.getNodeRef());
+        deletedNode.setPrimaryParentAssoc(node.getPrimaryParentAssoc());
+        deletedNode.setParentPath(null);
+        return deletedNode;
+    }
+
+    /**
+     * Record a received file or folder in the database and create it on disk, as a commit would have
+     * 
+     * @return the node ref of the new node
+     */
+    private String createReceivedNode(String parentRef, String path, String name, boolean isFolder)
+            throws Exception
+    {
+        String nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()).toString();
+        File file = new File(ftTransferReceiver.getDefaultReceivingroot() + path + name);
+        if (isFolder)
+        {
+            assertTrue(file.mkdirs());
+        }
+        else
+        {
+            FileCopyUtils.copy(dummyContentBytes, file);
+        }
+        ftTransferReceiver.getDbHelper().createNodeInDB(nodeRef, parentRef, path, name, isFolder ? "" : "/" + name,
+                isFolder);
+        return nodeRef;
+    }
+
+    /**
+     * Transfer the nodes below the company home, sending the dummy content for each of the given content nodes
+     */
+    private void commitNodes(List<TransferManifestNode> nodes, boolean isSync,
+            List<TransferManifestNormalNode> contentNodes) throws Exception
+    {
+        ftTransferReceiver.commit(stageNodes(nodes, isSync, contentNodes));
+    }
+
+    private void commitNodes(List<TransferManifestNode> nodes, boolean isSync,
+            List<TransferManifestNormalNode> contentNodes, byte[] content) throws Exception
+    {
+        ftTransferReceiver.commit(stageNodes(nodes, isSync, contentNodes, content));
+    }
+
+    /**
+     * Start a transfer and send it the snapshot of the nodes and the content of the content nodes
+     */
+    private String stageNodes(List<TransferManifestNode> nodes, boolean isSync,
+            List<TransferManifestNormalNode> contentNodes) throws Exception
+    {
+        return stageNodes(nodes, isSync, contentNodes, dummyContentBytes);
+    }
+
+    /**
+     * Stage the snapshot of the nodes, and the content of each content node under the part name of its content URL
+     */
+    private String stageNodes(List<TransferManifestNode> nodes, boolean isSync,
+            List<TransferManifestNormalNode> contentNodes, byte[] content) throws Exception
+    {
+        String transferId = ftTransferReceiver.start("1234", true, ftTransferReceiver.getVersion());
+        try
+        {
+            String snapshot = createSnapshot(nodes, isSync);
+            ftTransferReceiver.setTransferRootNode(this.companytHome.toString());
+            ftTransferReceiver.saveSnapshot(transferId, new ByteArrayInputStream(snapshot.getBytes("UTF-8")));
+            for (TransferManifestNormalNode node : contentNodes)
+            {
+                ContentData contentData = (ContentData) node.getProperties().get(ContentModel.PROP_CONTENT);
+                ftTransferReceiver.saveContent(transferId, TransferCommons.URLToPartName(
+                        contentData.getContentUrl()), new ByteArrayInputStream(content));
+            }
+        }
+        catch (Exception ex)
+        {
+            ftTransferReceiver.end(transferId);
+            throw ex;
+        }
+        return transferId;
+    }
+
     private String createSnapshot(List<TransferManifestNode> nodes, boolean isSync) throws Exception
     {
         XMLTransferManifestWriter manifestWriter = new XMLTransferManifestWriter();